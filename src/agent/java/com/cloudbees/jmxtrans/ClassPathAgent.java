@@ -0,0 +1,33 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.jmxtrans;
+
+import java.lang.instrument.Instrumentation;
+
+/**
+ * No-op java agent: the JVM appends the jar of each {@code -javaagent} to the system class path, declaring this jar
+ * before the jmxtrans-agent lets the jmxtrans-agent load the {@link PushOutputWriter}.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class ClassPathAgent {
+
+    private ClassPathAgent() {
+    }
+
+    public static void premain(String agentArgs, Instrumentation inst) {
+    }
+}
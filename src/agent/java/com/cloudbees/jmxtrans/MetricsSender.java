@@ -0,0 +1,422 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.jmxtrans;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Push metrics to a statsd (UDP) or Graphite plaintext (TCP) server from a background thread.
+ * <p/>
+ * {@link #offer(String, Number, long)} never blocks: the metrics are queued in a bounded buffer and dropped when it
+ * is full. The sender thread packs as many metrics as possible in each packet ({@code maxPacketSizeInBytes}), writes
+ * them with non-blocking channels and, when the server is unreachable, reconnects with an exponential backoff while
+ * the buffer absorbs the metrics of the next collections.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class MetricsSender implements Closeable {
+
+    public enum Protocol {
+        /**
+         * {@code name:value|g} gauges and {@code name:delta|c} counters in UDP datagrams
+         */
+        STATSD(8125, 1432),
+        /**
+         * {@code name value timestamp} lines on a TCP connection
+         */
+        GRAPHITE(2003, 8192);
+
+        private final int defaultPort;
+        private final int defaultMaxPacketSizeInBytes;
+
+        Protocol(int defaultPort, int defaultMaxPacketSizeInBytes) {
+            this.defaultPort = defaultPort;
+            this.defaultMaxPacketSizeInBytes = defaultMaxPacketSizeInBytes;
+        }
+
+        public int getDefaultPort() {
+            return defaultPort;
+        }
+
+        public int getDefaultMaxPacketSizeInBytes() {
+            return defaultMaxPacketSizeInBytes;
+        }
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+
+    private final Protocol protocol;
+
+    private final String host;
+
+    private final int port;
+
+    private final BlockingQueue<String> queue;
+
+    /**
+     * Batch being sent, kept until the channel accepts it
+     */
+    private final ByteBuffer packet;
+
+    private int packetMetricCount;
+
+    private final Semaphore flushRequests = new Semaphore(0);
+
+    private long flushIntervalInMillis = 10000;
+
+    private long connectTimeoutInMillis = 5000;
+
+    private long maxBackoffInMillis = 60000;
+
+    private long backoffInMillis;
+
+    private long nextConnectionAttempt;
+
+    private long connectionStartTime;
+
+    private WritableByteChannel channel;
+
+    private volatile boolean running;
+
+    private Thread senderThread;
+
+    private final AtomicLong sentMetricCount = new AtomicLong();
+
+    private final AtomicLong droppedMetricCount = new AtomicLong();
+
+    private final AtomicLong sentPacketCount = new AtomicLong();
+
+    private final AtomicLong connectionFailureCount = new AtomicLong();
+
+    private long lastReportedDroppedMetricCount;
+
+    /**
+     * @param bufferSize           max number of metrics waiting to be sent
+     * @param maxPacketSizeInBytes max size of a datagram (statsd) or of a write (Graphite), the metrics larger than
+     *                             this are dropped
+     */
+    public MetricsSender(Protocol protocol, String host, int port, int bufferSize, int maxPacketSizeInBytes) {
+        this.protocol = protocol;
+        this.host = host;
+        this.port = port;
+        this.queue = new ArrayBlockingQueue<>(bufferSize);
+        this.packet = ByteBuffer.allocate(maxPacketSizeInBytes);
+        this.packet.flip();
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        senderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        }, "metrics-sender-" + protocol.name().toLowerCase());
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    /**
+     * Try to send the remaining metrics and stop the sender thread.
+     */
+    @Override
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        flushRequests.release();
+        try {
+            senderThread.join(connectTimeoutInMillis + 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeChannel();
+    }
+
+    /**
+     * Queue the given gauge, it is dropped if the buffer is full.
+     *
+     * @param timestampInSeconds ignored by statsd which timestamps the metrics on reception
+     * @return {@code false} if the metric has been dropped
+     */
+    public boolean offer(String metricName, Number value, long timestampInSeconds) {
+        return offer(metricName, value, timestampInSeconds, "g");
+    }
+
+    /**
+     * Queue the increment of the given counter since the previous collection, it is dropped if the buffer is full.
+     * Graphite has no metric type, the delta is sent as is.
+     *
+     * @param timestampInSeconds ignored by statsd which timestamps the metrics on reception
+     * @return {@code false} if the metric has been dropped
+     */
+    public boolean offerCounter(String metricName, Number delta, long timestampInSeconds) {
+        return offer(metricName, delta, timestampInSeconds, "c");
+    }
+
+    private boolean offer(String metricName, Number value, long timestampInSeconds, String statsdType) {
+        String line;
+        switch (protocol) {
+            case STATSD:
+                line = sanitize(metricName) + ":" + value + "|" + statsdType + "\n";
+                break;
+            case GRAPHITE:
+                line = sanitize(metricName) + " " + value + " " + timestampInSeconds + "\n";
+                break;
+            default:
+                throw new IllegalStateException("Unsupported protocol " + protocol);
+        }
+        if (queue.offer(line)) {
+            return true;
+        }
+        droppedMetricCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Wake up the sender thread to send the queued metrics, returns immediately.
+     */
+    public void flush() {
+        if (flushRequests.availablePermits() == 0) {
+            flushRequests.release();
+        }
+    }
+
+    /**
+     * Replace the characters reserved by the protocols (spaces, {@code :}, {@code |}, quotes...) by {@code _}.
+     */
+    static String sanitize(String metricName) {
+        return metricName.replaceAll("[^A-Za-z0-9_.\\-]", "_");
+    }
+
+    private void sendLoop() {
+        while (running) {
+            // poll the pending TCP connection instead of waiting for the next collection
+            boolean connectionPending = channel instanceof SocketChannel && ((SocketChannel) channel).isConnectionPending();
+            try {
+                flushRequests.tryAcquire(connectionPending ? 100 : flushIntervalInMillis, TimeUnit.MILLISECONDS);
+                flushRequests.drainPermits();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            sendQueuedMetrics();
+        }
+        // best effort for the last collection, a single attempt without waiting for the connection
+        sendQueuedMetrics();
+    }
+
+    private void sendQueuedMetrics() {
+        reportDroppedMetrics();
+        long now = System.currentTimeMillis();
+        if (now < nextConnectionAttempt) {
+            return;
+        }
+        try {
+            if (!isConnected(now)) {
+                return;
+            }
+            while (true) {
+                if (!packet.hasRemaining() && !fillPacket()) {
+                    break;
+                }
+                // non-blocking: a datagram is sent entirely or not at all, a TCP write may be partial
+                int written = channel.write(packet);
+                if (packet.hasRemaining()) {
+                    // socket buffer full, retry at the next flush rather than blocking
+                    if (written == 0) {
+                        break;
+                    }
+                } else {
+                    sentMetricCount.addAndGet(packetMetricCount);
+                    sentPacketCount.incrementAndGet();
+                    packetMetricCount = 0;
+                }
+            }
+            backoffInMillis = 0;
+        } catch (IOException e) {
+            connectionFailureCount.incrementAndGet();
+            backoffInMillis = backoffInMillis == 0 ? 1000 : Math.min(backoffInMillis * 2, maxBackoffInMillis);
+            nextConnectionAttempt = System.currentTimeMillis() + backoffInMillis;
+            logger.log(Level.WARNING, "Failure to send metrics to " + protocol + " server " + host + ":" + port +
+                    ", retry in " + backoffInMillis + "ms: " + e);
+            // a partially written Graphite line would corrupt the next connection
+            droppedMetricCount.addAndGet(packetMetricCount);
+            packetMetricCount = 0;
+            packet.clear();
+            packet.flip();
+            closeChannel();
+        }
+    }
+
+    /**
+     * Pack the queued metrics in the packet buffer.
+     *
+     * @return {@code false} if there is no metric to send
+     */
+    private boolean fillPacket() {
+        packet.clear();
+        String line;
+        while ((line = queue.peek()) != null) {
+            byte[] bytes = line.getBytes(UTF_8);
+            if (bytes.length > packet.capacity()) {
+                queue.poll();
+                droppedMetricCount.incrementAndGet();
+                continue;
+            }
+            if (bytes.length > packet.remaining()) {
+                break;
+            }
+            queue.poll();
+            packet.put(bytes);
+            packetMetricCount++;
+        }
+        packet.flip();
+        return packet.hasRemaining();
+    }
+
+    /**
+     * Open the channel if needed, the TCP connection is established asynchronously.
+     *
+     * @return {@code false} if the TCP connection is still pending
+     */
+    private boolean isConnected(long now) throws IOException {
+        if (channel == null) {
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            if (address.isUnresolved()) {
+                throw new IOException("Unknown host " + host);
+            }
+            switch (protocol) {
+                case STATSD:
+                    DatagramChannel datagramChannel = DatagramChannel.open();
+                    channel = datagramChannel;
+                    datagramChannel.configureBlocking(false);
+                    // a connected datagram channel reports the "port unreachable" errors
+                    datagramChannel.connect(address);
+                    return true;
+                case GRAPHITE:
+                    SocketChannel socketChannel = SocketChannel.open();
+                    channel = socketChannel;
+                    socketChannel.configureBlocking(false);
+                    connectionStartTime = now;
+                    if (socketChannel.connect(address)) {
+                        return true;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unsupported protocol " + protocol);
+            }
+        }
+        if (channel instanceof SocketChannel) {
+            SocketChannel socketChannel = (SocketChannel) channel;
+            if (socketChannel.isConnectionPending()) {
+                if (socketChannel.finishConnect()) {
+                    return true;
+                }
+                if (now - connectionStartTime > connectTimeoutInMillis) {
+                    throw new IOException("Connection timeout after " + connectTimeoutInMillis + "ms");
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Exception closing " + channel, e);
+        }
+        channel = null;
+    }
+
+    private void reportDroppedMetrics() {
+        long droppedMetricCount = this.droppedMetricCount.get();
+        if (droppedMetricCount > lastReportedDroppedMetricCount) {
+            logger.warning((droppedMetricCount - lastReportedDroppedMetricCount) + " metrics dropped, the buffer of " +
+                    (queue.size() + queue.remainingCapacity()) + " metrics is full or the " + protocol + " server " +
+                    host + ":" + port + " is unreachable");
+            lastReportedDroppedMetricCount = droppedMetricCount;
+        }
+    }
+
+    /**
+     * @param flushIntervalInMillis max delay between two sends if {@link #flush()} is not invoked
+     */
+    public void setFlushIntervalInMillis(long flushIntervalInMillis) {
+        this.flushIntervalInMillis = flushIntervalInMillis;
+    }
+
+    public void setConnectTimeoutInMillis(long connectTimeoutInMillis) {
+        this.connectTimeoutInMillis = connectTimeoutInMillis;
+    }
+
+    /**
+     * @param maxBackoffInMillis max delay between two connection attempts, the delay starts at 1 second and doubles
+     *                           after each failure
+     */
+    public void setMaxBackoffInMillis(long maxBackoffInMillis) {
+        this.maxBackoffInMillis = maxBackoffInMillis;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getSentMetricCount() {
+        return sentMetricCount.get();
+    }
+
+    public long getSentPacketCount() {
+        return sentPacketCount.get();
+    }
+
+    public long getDroppedMetricCount() {
+        return droppedMetricCount.get();
+    }
+
+    public long getConnectionFailureCount() {
+        return connectionFailureCount.get();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.jmxtrans;
+
+import org.jmxtrans.agent.AbstractOutputWriter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * jmxtrans-agent {@code OutputWriter} pushing the collected metrics to a statsd or Graphite server with a
+ * {@link MetricsSender}, the collection thread never waits for the network.
+ * <p/>
+ * Settings:
+ * <ul>
+ * <li>{@code protocol}: {@code statsd} or {@code graphite}</li>
+ * <li>{@code host}, {@code port}: server, the port defaults to 8125 (statsd) or 2003 (Graphite)</li>
+ * <li>{@code namePrefix}: prepended to the result alias of the queries (e.g. {@code myapp.node1.})</li>
+ * <li>{@code bufferSize}: max number of metrics waiting to be sent (default 10000)</li>
+ * <li>{@code maxPacketSizeInBytes}: batch size, default 1432 for statsd to fit in an Ethernet frame, 8192 for
+ * Graphite</li>
+ * <li>{@code maxBackoffInSeconds}: max delay between two connection attempts (default 60)</li>
+ * </ul>
+ * The values that are not numbers are ignored, booleans are sent as {@code 0} or {@code 1}. The {@code counter}
+ * metrics are sent as their increment since the previous collection ({@code |c} for statsd), starting at the second
+ * collection.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class PushOutputWriter extends AbstractOutputWriter {
+
+    private MetricsSender sender;
+
+    private String namePrefix;
+
+    private long collectTimeInSeconds;
+
+    /**
+     * Value of the {@code counter} metrics at the previous collection, only accessed by the collection thread
+     */
+    private final Map<String, Number> previousCounterValues = new HashMap<>();
+
+    @Override
+    public void postConstruct(Map<String, String> settings) {
+        super.postConstruct(settings);
+        MetricsSender.Protocol protocol = MetricsSender.Protocol.valueOf(getString(settings, "protocol", "statsd").toUpperCase(Locale.ENGLISH));
+        String host = getString(settings, "host", null);
+        if (host == null) {
+            throw new IllegalArgumentException("No 'host' defined for " + getClass().getName());
+        }
+        int port = getInt(settings, "port", protocol.getDefaultPort());
+        sender = new MetricsSender(protocol, host, port, getInt(settings, "bufferSize", 10000),
+                getInt(settings, "maxPacketSizeInBytes", protocol.getDefaultMaxPacketSizeInBytes()));
+        sender.setMaxBackoffInMillis(getInt(settings, "maxBackoffInSeconds", 60) * 1000L);
+        namePrefix = getString(settings, "namePrefix", "");
+        sender.start();
+        logger.info("Push metrics to " + protocol + " server " + host + ":" + port);
+    }
+
+    @Override
+    public void preDestroy() {
+        super.preDestroy();
+        if (sender != null) {
+            sender.close();
+        }
+    }
+
+    @Override
+    public void preCollect() throws IOException {
+        super.preCollect();
+        collectTimeInSeconds = System.currentTimeMillis() / 1000;
+    }
+
+    @Override
+    public void writeQueryResult(String metricName, String metricType, Object value) throws IOException {
+        Number number;
+        if (value instanceof Number) {
+            number = (Number) value;
+        } else if (value instanceof Boolean) {
+            number = (Boolean) value ? 1 : 0;
+        } else {
+            return;
+        }
+        if ("counter".equals(metricType)) {
+            Number previous = previousCounterValues.put(metricName, number);
+            if (previous != null) {
+                sender.offerCounter(namePrefix + metricName, delta(previous, number), collectTimeInSeconds);
+            }
+        } else {
+            sender.offer(namePrefix + metricName, number, collectTimeInSeconds);
+        }
+    }
+
+    /**
+     * @return the increment of the counter, its current value if it has been reset (e.g. the application has been
+     * redeployed)
+     */
+    static Number delta(Number previous, Number current) {
+        if (isIntegral(previous) && isIntegral(current)) {
+            long delta = current.longValue() - previous.longValue();
+            return delta < 0 ? current.longValue() : delta;
+        }
+        double delta = current.doubleValue() - previous.doubleValue();
+        return delta < 0 ? current.doubleValue() : delta;
+    }
+
+    private static boolean isIntegral(Number number) {
+        return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte ||
+                number instanceof AtomicLong || number instanceof AtomicInteger;
+    }
+
+    @Override
+    public void writeInvocationResult(String invocationName, Object value) throws IOException {
+        writeQueryResult(invocationName, null, value);
+    }
+
+    /**
+     * Send the metrics of the collection in the background.
+     */
+    @Override
+    public void postCollect() throws IOException {
+        super.postCollect();
+        sender.flush();
+    }
+
+    private static String getString(Map<String, String> settings, String name, String defaultValue) {
+        String value = settings.get(name);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    private static int getInt(Map<String, String> settings, String name, int defaultValue) {
+        String value = getString(settings, name, null);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid '" + name + "' for " + PushOutputWriter.class.getName() + ": " + value, e);
+        }
+    }
+}
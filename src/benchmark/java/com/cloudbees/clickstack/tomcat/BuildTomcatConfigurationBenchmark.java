@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.cloudbees.clickstack.util.XmlUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generation of the Tomcat configuration files for metadata with an increasing number of resources:
+ * <ul>
+ * <li>{@code build_tomcat_configuration}: {@link SetupTomcatConfigurationFiles#buildTomcatConfiguration} on
+ * in-memory copies of {@code server.xml} and {@code context.xml}, the copy is measured by {@code clone_documents}</li>
+ * <li>{@code build_tomcat_configuration_files}: {@link SetupTomcatConfigurationFiles#buildTomcatConfigurationFiles},
+ * parsing and writing of the files of {@code catalina-base/conf} included</li>
+ * </ul>
+ * The configuration files are the ones of {@code src/dist/catalina-base/conf}, the benchmark must be launched from
+ * the root of the project.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BuildTomcatConfigurationBenchmark {
+
+    static final Path DIST_CONF_DIR = Paths.get("src/dist/catalina-base/conf");
+
+    @Param({"1", "10", "100"})
+    public int resources;
+
+    private Metadata metadata;
+
+    private Document serverXml;
+
+    private Document contextXml;
+
+    /**
+     * Fresh copy of the configuration files of {@code src/dist/catalina-base/conf} for each invocation, in a separate
+     * state to not slow down the in-memory benchmarks.
+     */
+    @State(Scope.Benchmark)
+    public static class CatalinaBase {
+
+        private static final String[] CONFIGURATION_FILES = {"server.xml", "context.xml", "tomee.xml", "system.properties"};
+
+        private Path path;
+
+        @Setup
+        public void setup() throws Exception {
+            path = Files.createTempDirectory("catalina-base-");
+            Files.createDirectories(path.resolve("conf"));
+        }
+
+        @Setup(Level.Invocation)
+        public void copyConfigurationFiles() throws Exception {
+            for (String file : CONFIGURATION_FILES) {
+                Files.copy(DIST_CONF_DIR.resolve(file), path.resolve("conf").resolve(file), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            SetupBenchmarks.deleteRecursively(path);
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        metadata = Metadata.Builder.fromJsonString(SetupBenchmarks.metadataJson(resources), true);
+        serverXml = XmlUtils.loadXmlDocumentFromFile(DIST_CONF_DIR.resolve("server.xml").toFile());
+        contextXml = XmlUtils.loadXmlDocumentFromFile(DIST_CONF_DIR.resolve("context.xml").toFile());
+    }
+
+    @Benchmark
+    public Document[] clone_documents() {
+        return new Document[]{(Document) serverXml.cloneNode(true), (Document) contextXml.cloneNode(true)};
+    }
+
+    @Benchmark
+    public Document[] build_tomcat_configuration() throws Exception {
+        Document server = (Document) serverXml.cloneNode(true);
+        Document context = (Document) contextXml.cloneNode(true);
+        new SetupTomcatConfigurationFiles(metadata).buildTomcatConfiguration(metadata, server, context);
+        return new Document[]{server, context};
+    }
+
+    @Benchmark
+    public void build_tomcat_configuration_files(CatalinaBase catalinaBase) throws Exception {
+        new SetupTomcatConfigurationFiles(metadata).buildTomcatConfigurationFiles(catalinaBase.path);
+    }
+}
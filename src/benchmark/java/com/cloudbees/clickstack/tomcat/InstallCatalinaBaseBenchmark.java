@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link com.cloudbees.clickstack.tomcat.Setup#installCatalinaBase()} (expansion of {@code app.war} and copy of
+ * {@code deps/tomcat-lib}) with a synthetic war made of many small entries or of a few large jars, see
+ * {@link SetupBenchmarks.WarLayout}.
+ * <p/>
+ * The files are written in {@code java.io.tmpdir}, the results depend on the file system and on the page cache.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InstallCatalinaBaseBenchmark {
+
+    @Param({"SMALL_ENTRIES", "LARGE_JARS"})
+    public String warLayout;
+
+    private Path workDir;
+
+    private com.cloudbees.clickstack.tomcat.Setup setup;
+
+    @Setup
+    public void setup() throws Exception {
+        workDir = Files.createTempDirectory("install-catalina-base-");
+
+        Path clickstackDir = Files.createDirectories(workDir.resolve("clickstack"));
+        Path tomcatLibDir = Files.createDirectories(clickstackDir.resolve("deps/tomcat-lib"));
+        for (int i = 0; i < 4; i++) {
+            SetupBenchmarks.write(tomcatLibDir.resolve("tomcat-extra-" + i + ".jar"), "not a real jar " + i);
+        }
+
+        Path packageDir = Files.createDirectories(workDir.resolve("pkg"));
+        SetupBenchmarks.createWar(packageDir.resolve("app.war"), SetupBenchmarks.WarLayout.valueOf(warLayout));
+
+        Path appDir = Files.createDirectories(workDir.resolve("app"));
+        Path genappDir = Files.createDirectories(appDir.resolve(".genapp"));
+        Path controlDir = Files.createDirectories(genappDir.resolve("control"));
+        Metadata metadata = Metadata.Builder.fromJsonString("{}", true);
+        Path javaHome = Paths.get(System.getProperty("java.home"));
+
+        setup = new com.cloudbees.clickstack.tomcat.Setup(null, appDir, genappDir, controlDir, clickstackDir, packageDir, metadata, javaHome);
+    }
+
+    /**
+     * Start each installation from an empty {@code catalina-base}.
+     */
+    @Setup(Level.Invocation)
+    public void cleanCatalinaBase() throws Exception {
+        SetupBenchmarks.deleteRecursively(setup.catalinaBase.resolve("webapps"));
+        SetupBenchmarks.deleteRecursively(setup.catalinaBase.resolve("lib"));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        SetupBenchmarks.deleteRecursively(workDir);
+    }
+
+    @Benchmark
+    public Path install_catalina_base() throws Exception {
+        return setup.installCatalinaBase();
+    }
+}
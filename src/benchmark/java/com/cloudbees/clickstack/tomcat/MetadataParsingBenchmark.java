@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of {@code metadata.json} as done by {@link com.cloudbees.clickstack.tomcat.Setup#main(String[])}.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetadataParsingBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int resources;
+
+    private String json;
+
+    private Path metadataFile;
+
+    @Setup
+    public void setup() throws IOException {
+        json = SetupBenchmarks.metadataJson(resources);
+        metadataFile = Files.createTempFile("metadata-", ".json");
+        SetupBenchmarks.write(metadataFile, json);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(metadataFile);
+    }
+
+    @Benchmark
+    public Metadata parse_json_string() throws IOException {
+        return Metadata.Builder.fromJsonString(json, true);
+    }
+
+    @Benchmark
+    public Metadata parse_file() throws IOException {
+        return Metadata.Builder.fromFile(metadataFile);
+    }
+}
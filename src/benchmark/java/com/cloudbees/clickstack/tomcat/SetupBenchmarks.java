@@ -0,0 +1,162 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Synthetic metadata and web applications shared by the setup benchmarks.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+final class SetupBenchmarks {
+
+    /**
+     * Layout of the synthetic {@code app.war}
+     */
+    enum WarLayout {
+        /**
+         * 5000 classes of 2 KB in {@code WEB-INF/classes} and 500 static resources
+         */
+        SMALL_ENTRIES,
+        /**
+         * 8 jars of 4 MB in {@code WEB-INF/lib}
+         */
+        LARGE_JARS
+    }
+
+    private SetupBenchmarks() {
+    }
+
+    /**
+     * @param resources number of resources (databases alternatively MySQL and PostgreSQL, and a session store)
+     * @return a {@code metadata.json} document with the given number of resources and the runtime sections used by
+     * {@link SetupTomcatConfigurationFiles}
+     */
+    @Nonnull
+    static String metadataJson(int resources) {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("\"app\": {\"__resource_name__\": \"my-account/myapp\", \"__resource_type__\": \"application\"},\n");
+        json.append("\"privateApp\": {\"secretKey\": \"ze-supper-secret\"},\n");
+        json.append("\"remoteAddress\": {\"allow\": \"82\\\\.66\\\\.240\\\\.18\"},\n");
+        json.append("\"tomcat\": {\"connector.maxThreads\": \"100\"},\n");
+        if (resources > 0) {
+            json.append("\"memcache-session-store\": {\"servers\": \"memcache1.mycompany.com,server2.mycompany.com\", ")
+                    .append("\"username\": \"my_acount\", \"password\": \"09876543\", ")
+                    .append("\"__resource_name__\": \"memcache-session-store\", \"__resource_type__\": \"session-store\"},\n");
+        }
+        for (int i = 1; i < resources; i++) {
+            String url = i % 2 == 0 ? "mysql://mysql.mycompany.com:3306/db" + i : "postgresql://babar.elephantsql.com:5432/db" + i;
+            json.append("\"db").append(i).append("\": {\"DATABASE_URL\": \"").append(url).append("\", ")
+                    .append("\"DATABASE_USERNAME\": \"user").append(i).append("\", \"DATABASE_PASSWORD\": \"test\", ")
+                    .append("\"__resource_name__\": \"db").append(i).append("\", \"__resource_type__\": \"database\"},\n");
+        }
+        json.setLength(json.length() - 2);
+        json.append("\n}\n");
+        return json.toString();
+    }
+
+    /**
+     * Generate a war with the given layout, the content is random (seeded) to prevent the compression from
+     * flattening the cost of the inflation.
+     */
+    static void createWar(@Nonnull Path war, @Nonnull WarLayout layout) throws IOException {
+        Random random = new Random(layout.ordinal());
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(war))) {
+            putEntry(out, "WEB-INF/web.xml", "<web-app version='3.0'/>".getBytes("UTF-8"), ZipEntry.DEFLATED);
+            switch (layout) {
+                case SMALL_ENTRIES:
+                    for (int i = 0; i < 5000; i++) {
+                        putEntry(out, "WEB-INF/classes/com/example/p" + (i / 100) + "/Class" + i + ".class", randomBytes(random, 2048), ZipEntry.DEFLATED);
+                    }
+                    for (int i = 0; i < 500; i++) {
+                        putEntry(out, "static/s" + (i / 50) + "/resource" + i + ".css", randomBytes(random, 1024), ZipEntry.DEFLATED);
+                    }
+                    break;
+                case LARGE_JARS:
+                    for (int i = 0; i < 8; i++) {
+                        // jars are usually stored in the wars as they are already compressed
+                        putEntry(out, "WEB-INF/lib/library-" + i + ".jar", randomBytes(random, 4 * 1024 * 1024), ZipEntry.STORED);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported layout " + layout);
+            }
+        }
+    }
+
+    @Nonnull
+    private static byte[] randomBytes(@Nonnull Random random, int length) {
+        // half random, half constant: compression ratio close to the one of class files
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        for (int i = 0; i < length / 2; i++) {
+            bytes[i] = (byte) (i % 16);
+        }
+        return bytes;
+    }
+
+    private static void putEntry(@Nonnull ZipOutputStream out, @Nonnull String name, @Nonnull byte[] content, int method) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(content);
+        out.closeEntry();
+    }
+
+    static void write(@Nonnull Path file, @Nonnull String content) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(content.getBytes("UTF-8"));
+        }
+    }
+
+    static void deleteRecursively(@Nonnull Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
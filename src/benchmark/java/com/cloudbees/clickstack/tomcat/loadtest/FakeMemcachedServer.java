@@ -0,0 +1,347 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+/**
+ * In-memory memcached speaking the binary protocol with SASL authentication (any credentials are accepted), enough
+ * for the {@code MemcachedBackupSessionManager} generated for the {@code session-store} resources.
+ * <p/>
+ * One thread per connection, the expiration is evaluated on read.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class FakeMemcachedServer implements Runnable {
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private static final int REQUEST_MAGIC = 0x80;
+    private static final int RESPONSE_MAGIC = 0x81;
+
+    private static final short STATUS_OK = 0x0000;
+    private static final short STATUS_KEY_NOT_FOUND = 0x0001;
+    private static final short STATUS_KEY_EXISTS = 0x0002;
+    private static final short STATUS_UNKNOWN_COMMAND = 0x0081;
+
+    /**
+     * Expiration times above 30 days are absolute unix times
+     */
+    private static final int MAX_RELATIVE_EXPIRATION_IN_SECONDS = 60 * 60 * 24 * 30;
+
+    private static class Item {
+        final byte[] value;
+        final int flags;
+        final long cas;
+        final long expirationInMillis;
+
+        Item(byte[] value, int flags, long cas, long expirationInMillis) {
+            this.value = value;
+            this.flags = flags;
+            this.cas = cas;
+            this.expirationInMillis = expirationInMillis;
+        }
+
+        boolean isExpired() {
+            return expirationInMillis > 0 && expirationInMillis < System.currentTimeMillis();
+        }
+    }
+
+    private final ConcurrentMap<String, Item> items = new ConcurrentHashMap<>();
+    private final AtomicLong casSequence = new AtomicLong();
+    private final AtomicLong commandCount = new AtomicLong();
+    private final ServerSocket serverSocket;
+
+    public FakeMemcachedServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public long getCommandCount() {
+        return commandCount.get();
+    }
+
+    public int getItemCount() {
+        return items.size();
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "fake-memcached-acceptor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() throws IOException {
+        serverSocket.close();
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "fake-memcached-" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    logger.warn("Exception accepting connection", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            s.setTcpNoDelay(true);
+            while (true) {
+                int magic = in.read();
+                if (magic == -1) {
+                    return;
+                } else if (magic != REQUEST_MAGIC) {
+                    throw new IOException("Unexpected magic " + magic);
+                }
+                int opcode = in.readUnsignedByte();
+                int keyLength = in.readUnsignedShort();
+                int extrasLength = in.readUnsignedByte();
+                in.readUnsignedByte(); // data type
+                in.readUnsignedShort(); // vbucket
+                int bodyLength = in.readInt();
+                int opaque = in.readInt();
+                long cas = in.readLong();
+                byte[] extras = new byte[extrasLength];
+                in.readFully(extras);
+                byte[] key = new byte[keyLength];
+                in.readFully(key);
+                byte[] value = new byte[bodyLength - keyLength - extrasLength];
+                in.readFully(value);
+
+                commandCount.incrementAndGet();
+                boolean quit = handle(opcode, extras, new String(key, Charsets.UTF_8), value, cas, opaque, out);
+                // quiet commands are flushed with the next non quiet one
+                if (in.available() == 0) {
+                    out.flush();
+                }
+                if (quit) {
+                    return;
+                }
+            }
+        } catch (EOFException e) {
+            // client disconnected
+        } catch (IOException e) {
+            if (!serverSocket.isClosed()) {
+                logger.warn("Exception serving connection {}", socket, e);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the connection must be closed
+     */
+    private boolean handle(int opcode, byte[] extras, String key, byte[] value, long cas, int opaque, DataOutputStream out) throws IOException {
+        switch (opcode) {
+            case 0x00: // get
+            case 0x09: // getq
+            case 0x0c: // getk
+            case 0x0d: // getkq
+            {
+                boolean quiet = opcode == 0x09 || opcode == 0x0d;
+                boolean withKey = opcode == 0x0c || opcode == 0x0d;
+                Item item = getItem(key);
+                if (item == null) {
+                    if (!quiet) {
+                        writeResponse(out, opcode, STATUS_KEY_NOT_FOUND, opaque, 0, null, null, "Not found".getBytes(Charsets.UTF_8));
+                    }
+                } else {
+                    writeResponse(out, opcode, STATUS_OK, opaque, item.cas, intToBytes(item.flags), withKey ? key : null, item.value);
+                }
+                return false;
+            }
+            case 0x01: // set
+            case 0x02: // add
+            case 0x03: // replace
+            case 0x11: // setq
+            case 0x12: // addq
+            case 0x13: // replaceq
+            {
+                boolean quiet = opcode >= 0x11;
+                int command = quiet ? opcode - 0x10 : opcode;
+                int flags = bytesToInt(extras, 0);
+                int expiration = bytesToInt(extras, 4);
+                Item existing = getItem(key);
+                short status;
+                if (command == 0x02 && existing != null) {
+                    status = STATUS_KEY_EXISTS;
+                } else if (command == 0x03 && existing == null) {
+                    status = STATUS_KEY_NOT_FOUND;
+                } else if (cas != 0 && (existing == null || existing.cas != cas)) {
+                    status = existing == null ? STATUS_KEY_NOT_FOUND : STATUS_KEY_EXISTS;
+                } else {
+                    status = STATUS_OK;
+                }
+                long newCas = 0;
+                if (status == STATUS_OK) {
+                    newCas = casSequence.incrementAndGet();
+                    items.put(key, new Item(value, flags, newCas, toExpirationInMillis(expiration)));
+                }
+                if (!quiet || status != STATUS_OK) {
+                    writeResponse(out, opcode, status, opaque, newCas, null, null, status == STATUS_OK ? null : "Not stored".getBytes(Charsets.UTF_8));
+                }
+                return false;
+            }
+            case 0x04: // delete
+            case 0x14: // deleteq
+            {
+                boolean removed = getItem(key) != null && items.remove(key) != null;
+                if (opcode == 0x04 || !removed) {
+                    writeResponse(out, opcode, removed ? STATUS_OK : STATUS_KEY_NOT_FOUND, opaque, 0, null, null, null);
+                }
+                return false;
+            }
+            case 0x1c: // touch
+            case 0x1d: // get and touch
+            case 0x1e: // get and touch quiet
+            {
+                Item item = getItem(key);
+                if (item == null) {
+                    if (opcode != 0x1e) {
+                        writeResponse(out, opcode, STATUS_KEY_NOT_FOUND, opaque, 0, null, null, null);
+                    }
+                    return false;
+                }
+                Item touched = new Item(item.value, item.flags, item.cas, toExpirationInMillis(bytesToInt(extras, 0)));
+                items.put(key, touched);
+                if (opcode == 0x1c) {
+                    writeResponse(out, opcode, STATUS_OK, opaque, item.cas, null, null, null);
+                } else {
+                    writeResponse(out, opcode, STATUS_OK, opaque, item.cas, intToBytes(item.flags), null, item.value);
+                }
+                return false;
+            }
+            case 0x07: // quit
+            case 0x17: // quitq
+                if (opcode == 0x07) {
+                    writeResponse(out, opcode, STATUS_OK, opaque, 0, null, null, null);
+                }
+                return true;
+            case 0x08: // flush
+            case 0x18: // flushq
+                items.clear();
+                if (opcode == 0x08) {
+                    writeResponse(out, opcode, STATUS_OK, opaque, 0, null, null, null);
+                }
+                return false;
+            case 0x0a: // noop
+                writeResponse(out, opcode, STATUS_OK, opaque, 0, null, null, null);
+                return false;
+            case 0x0b: // version
+                writeResponse(out, opcode, STATUS_OK, opaque, 0, null, null, "1.4.0-fake".getBytes(Charsets.UTF_8));
+                return false;
+            case 0x10: // stat, a single empty packet ends the list
+                writeResponse(out, opcode, STATUS_OK, opaque, 0, null, null, null);
+                return false;
+            case 0x20: // SASL list mechanisms
+                writeResponse(out, opcode, STATUS_OK, opaque, 0, null, null, "PLAIN".getBytes(Charsets.UTF_8));
+                return false;
+            case 0x21: // SASL auth
+            case 0x22: // SASL step
+                writeResponse(out, opcode, STATUS_OK, opaque, 0, null, null, "Authenticated".getBytes(Charsets.UTF_8));
+                return false;
+            default:
+                writeResponse(out, opcode, STATUS_UNKNOWN_COMMAND, opaque, 0, null, null, "Unknown command".getBytes(Charsets.UTF_8));
+                return false;
+        }
+    }
+
+    private Item getItem(String key) {
+        Item item = items.get(key);
+        if (item != null && item.isExpired()) {
+            items.remove(key, item);
+            return null;
+        }
+        return item;
+    }
+
+    private long toExpirationInMillis(int expiration) {
+        if (expiration == 0) {
+            return 0;
+        } else if (expiration > MAX_RELATIVE_EXPIRATION_IN_SECONDS) {
+            return expiration * 1000L;
+        } else {
+            return System.currentTimeMillis() + expiration * 1000L;
+        }
+    }
+
+    private void writeResponse(DataOutputStream out, int opcode, short status, int opaque, long cas,
+                               byte[] extras, String key, byte[] value) throws IOException {
+        byte[] keyBytes = key == null ? new byte[0] : key.getBytes(Charsets.UTF_8);
+        int extrasLength = extras == null ? 0 : extras.length;
+        int valueLength = value == null ? 0 : value.length;
+        out.writeByte(RESPONSE_MAGIC);
+        out.writeByte(opcode);
+        out.writeShort(keyBytes.length);
+        out.writeByte(extrasLength);
+        out.writeByte(0); // data type
+        out.writeShort(status);
+        out.writeInt(extrasLength + keyBytes.length + valueLength);
+        out.writeInt(opaque);
+        out.writeLong(cas);
+        if (extras != null) {
+            out.write(extras);
+        }
+        out.write(keyBytes);
+        if (value != null) {
+            out.write(value);
+        }
+    }
+
+    private static byte[] intToBytes(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private static int bytesToInt(byte[] bytes, int offset) {
+        if (bytes.length < offset + 4) {
+            return 0;
+        }
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+    }
+}
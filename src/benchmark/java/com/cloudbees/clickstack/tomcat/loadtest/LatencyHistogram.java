@@ -0,0 +1,67 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat.loadtest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread safe histogram of latencies with a resolution of 100 microseconds up to 60 seconds, higher latencies are
+ * counted as 60 seconds.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class LatencyHistogram {
+
+    private static final long BUCKET_IN_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final int BUCKET_COUNT = (int) (TimeUnit.SECONDS.toNanos(60) / BUCKET_IN_NANOS) + 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    public void record(long latencyInNanos) {
+        buckets.incrementAndGet((int) Math.min(Math.max(latencyInNanos, 0) / BUCKET_IN_NANOS, BUCKET_COUNT - 1));
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 1, {@code 1} for the max
+     * @return the upper bound in milliseconds of the bucket of the given percentile, {@code 0} if empty
+     */
+    public double getPercentileInMillis(double percentile) {
+        long threshold = (long) Math.ceil(getCount() * percentile);
+        long count = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            count += buckets.get(i);
+            if (count >= threshold && count > 0) {
+                return (i + 1) * BUCKET_IN_NANOS / 1000000.0;
+            }
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+    }
+}
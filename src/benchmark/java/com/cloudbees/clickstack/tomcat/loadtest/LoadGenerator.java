@@ -0,0 +1,205 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP load generator with two models:
+ * <ul>
+ * <li>closed loop: a fixed number of users sending a request as soon as they received the previous response
+ * (plus an optional think time), the throughput is the result,</li>
+ * <li>open loop: requests sent at a fixed rate whatever the response times, the latency is measured from the
+ * scheduled start of the request so that the queueing on the client side, when the server falls behind, is part of
+ * the measured latency (no coordinated omission).</li>
+ * </ul>
+ * Each client thread keeps its own {@code JSESSIONID} cookie as a browser would do.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class LoadGenerator {
+
+    public static class Result {
+        private final LatencyHistogram latencies;
+        private final long requestCount;
+        private final long errorCount;
+        private final double elapsedInSeconds;
+
+        Result(LatencyHistogram latencies, long requestCount, long errorCount, double elapsedInSeconds) {
+            this.latencies = latencies;
+            this.requestCount = requestCount;
+            this.errorCount = errorCount;
+            this.elapsedInSeconds = elapsedInSeconds;
+        }
+
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+
+        public long getRequestCount() {
+            return requestCount;
+        }
+
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        public double getThroughput() {
+            return requestCount / elapsedInSeconds;
+        }
+    }
+
+    private final URL url;
+    private final ThreadLocal<String> sessionCookie = new ThreadLocal<>();
+
+    public LoadGenerator(URL url) {
+        this.url = url;
+    }
+
+    public Result closedLoop(int users, int durationInSeconds, final long thinkTimeInMillis) throws InterruptedException {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicLong errorCount = new AtomicLong();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationInSeconds);
+        final CountDownLatch done = new CountDownLatch(users);
+
+        long nanosBefore = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            Thread user = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (System.nanoTime() < deadline) {
+                            long start = System.nanoTime();
+                            if (!get()) {
+                                errorCount.incrementAndGet();
+                            }
+                            latencies.record(System.nanoTime() - start);
+                            if (thinkTimeInMillis > 0) {
+                                Thread.sleep(thinkTimeInMillis);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "user-" + i);
+            user.setDaemon(true);
+            user.start();
+        }
+        done.await(durationInSeconds + 120, TimeUnit.SECONDS);
+        double elapsedInSeconds = (System.nanoTime() - nanosBefore) / 1000000000.0;
+        return new Result(latencies, latencies.getCount(), errorCount.get(), elapsedInSeconds);
+    }
+
+    /**
+     * @param maxConcurrency max number of requests in flight, the requests scheduled above this limit wait on the
+     *                       client side and their waiting time is included in the latency
+     */
+    public Result openLoop(int requestsPerSecond, int maxConcurrency, int durationInSeconds) throws InterruptedException {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicLong errorCount = new AtomicLong();
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor clients = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "client-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        clients.prestartAllCoreThreads();
+
+        long intervalInNanos = TimeUnit.SECONDS.toNanos(1) / requestsPerSecond;
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(durationInSeconds);
+        long scheduledCount = 0;
+        for (long intendedStart = start; intendedStart < deadline; intendedStart += intervalInNanos) {
+            long waitInNanos = intendedStart - System.nanoTime();
+            if (waitInNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(waitInNanos);
+            }
+            final long requestIntendedStart = intendedStart;
+            clients.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!get()) {
+                        errorCount.incrementAndGet();
+                    }
+                    latencies.record(System.nanoTime() - requestIntendedStart);
+                }
+            });
+            scheduledCount++;
+        }
+        clients.shutdown();
+        if (!clients.awaitTermination(120, TimeUnit.SECONDS)) {
+            clients.shutdownNow();
+        }
+        double elapsedInSeconds = (System.nanoTime() - start) / 1000000000.0;
+        // requests still pending after the grace period are errors
+        long completedCount = latencies.getCount();
+        return new Result(latencies, completedCount, errorCount.get() + scheduledCount - completedCount, elapsedInSeconds);
+    }
+
+    /**
+     * @return {@code true} if the response is successful (2xx or 3xx)
+     */
+    public boolean get() {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(30000);
+            connection.setReadTimeout(60000);
+            String cookie = sessionCookie.get();
+            if (cookie != null) {
+                connection.setRequestProperty("Cookie", cookie);
+            }
+            int status = connection.getResponseCode();
+            String setCookie = connection.getHeaderField("Set-Cookie");
+            if (setCookie != null && setCookie.startsWith("JSESSIONID=")) {
+                int end = setCookie.indexOf(';');
+                sessionCookie.set(end == -1 ? setCookie : setCookie.substring(0, end));
+            }
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                byte[] buffer = new byte[4096];
+                while (in.read(buffer) != -1) {
+                    // consume the response to reuse the connection
+                }
+                in.close();
+            }
+            return status < 400;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat.loadtest;
+
+import com.cloudbees.clickstack.tomcat.Setup;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.h2.tools.Server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * End-to-end load test of the clickstack:
+ * <ol>
+ * <li>create a temporary genapp layout with the given {@code app.war} and a {@code metadata.json} declaring a
+ * PostgreSQL database served by an embedded H2 database (PostgreSQL wire protocol) and a memcached session store
+ * served by a {@link FakeMemcachedServer},</li>
+ * <li>run {@link Setup#main(String[])} in a separate JVM with the genapp environment variables,</li>
+ * <li>start TomEE with the generated {@code .genapp/control/start} script and measure the time to the first HTTP
+ * response,</li>
+ * <li>load the application with the {@link LoadGenerator} (warm-up then measure) and report the throughput, the
+ * latency percentiles, the boot time and the resident memory of the TomEE process.</li>
+ * </ol>
+ * Usage: {@code LoadTest <clickstackDir> <app.war> [reportFile]} where {@code clickstackDir} is the installed
+ * clickstack ({@code build/install/tomee16}). Options are system properties:
+ * <ul>
+ * <li>{@code loadtest.mode}: {@code closed} (default) or {@code open}</li>
+ * <li>{@code loadtest.concurrency}: users of the closed loop, max requests in flight of the open loop (default 50)</li>
+ * <li>{@code loadtest.rate}: requests per second of the open loop (default 500)</li>
+ * <li>{@code loadtest.thinkTimeInMillis}: think time of the closed loop users (default 0)</li>
+ * <li>{@code loadtest.warmupInSeconds} (default 30), {@code loadtest.durationInSeconds} (default 60)</li>
+ * <li>{@code loadtest.path}: requested path (default {@code /})</li>
+ * <li>{@code loadtest.metadata}: {@code metadata.json} template, placeholders {@code ${db.port}},
+ * {@code ${memcached.port}} and the system properties (default {@code loadtest-metadata.json})</li>
+ * <li>{@code loadtest.bootTimeoutInSeconds} (default 300), {@code loadtest.keepFiles} (default false)</li>
+ * </ul>
+ * The resident memory is read in {@code /proc} and is only available on Linux.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class LoadTest {
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\$\\{([^}]+)\\}");
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: LoadTest <clickstackDir> <app.war> [reportFile]");
+            System.exit(1);
+        }
+        Path clickstackDir = Paths.get(args[0]).toAbsolutePath();
+        Path war = Paths.get(args[1]).toAbsolutePath();
+        Path reportFile = args.length > 2 ? Paths.get(args[2]).toAbsolutePath() : null;
+
+        Map<String, Object> report = new LoadTest().run(clickstackDir, war);
+        if (reportFile != null) {
+            Files.createDirectories(reportFile.getParent());
+            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(reportFile.toFile(), report);
+            System.out.println("# report: " + reportFile);
+        }
+    }
+
+    private final String mode = System.getProperty("loadtest.mode", "closed");
+    private final int concurrency = Integer.getInteger("loadtest.concurrency", 50);
+    private final int rate = Integer.getInteger("loadtest.rate", 500);
+    private final long thinkTimeInMillis = Long.getLong("loadtest.thinkTimeInMillis", 0);
+    private final int warmupInSeconds = Integer.getInteger("loadtest.warmupInSeconds", 30);
+    private final int durationInSeconds = Integer.getInteger("loadtest.durationInSeconds", 60);
+    private final String path = System.getProperty("loadtest.path", "/");
+    private final String metadataTemplate = System.getProperty("loadtest.metadata");
+    private final int bootTimeoutInSeconds = Integer.getInteger("loadtest.bootTimeoutInSeconds", 300);
+    private final boolean keepFiles = Boolean.getBoolean("loadtest.keepFiles");
+
+    public Map<String, Object> run(Path clickstackDir, Path war) throws Exception {
+        Path workDir = Files.createTempDirectory("clickstack-loadtest-");
+        Path appDir = Files.createDirectories(workDir.resolve("app"));
+        Path genappDir = Files.createDirectories(appDir.resolve(".genapp"));
+        Path controlDir = Files.createDirectories(genappDir.resolve("control"));
+        Path packageDir = Files.createDirectories(workDir.resolve("pkg"));
+        Files.copy(war, packageDir.resolve("app.war"));
+        int appPort = findFreePort();
+        System.out.println("# work dir: " + workDir);
+
+        Server h2 = null;
+        FakeMemcachedServer memcached = new FakeMemcachedServer();
+        Process tomee = null;
+        try {
+            int dbPort = findFreePort();
+            h2 = Server.createPgServer("-pgPort", String.valueOf(dbPort), "-baseDir", workDir.resolve("h2").toString()).start();
+            memcached.start();
+
+            Map<String, String> variables = new LinkedHashMap<>();
+            for (String name : System.getProperties().stringPropertyNames()) {
+                variables.put(name, System.getProperty(name));
+            }
+            variables.put("db.port", String.valueOf(dbPort));
+            variables.put("memcached.port", String.valueOf(memcached.getPort()));
+            Files.write(genappDir.resolve("metadata.json"), render(readMetadataTemplate(), variables).getBytes(Charsets.UTF_8));
+
+            // genapp environment of the setup and control scripts
+            Map<String, String> environment = new LinkedHashMap<>();
+            environment.put("app_id", "loadtest");
+            environment.put("app_dir", appDir.toString());
+            environment.put("app_port", String.valueOf(appPort));
+            environment.put("app_user", System.getProperty("user.name"));
+            environment.put("genapp_dir", genappDir.toString());
+            environment.put("control_dir", controlDir.toString());
+            environment.put("log_dir", genappDir.resolve("log").toString());
+            environment.put("pkg_dir", packageDir.toString());
+            environment.put("plugin_dir", clickstackDir.toString());
+
+            // SETUP
+            List<String> setupCommand = new ArrayList<>();
+            setupCommand.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            setupCommand.add("-cp");
+            setupCommand.add(System.getProperty("java.class.path"));
+            setupCommand.add(Setup.class.getName());
+            long setupStart = System.nanoTime();
+            int exitCode = exec(setupCommand, clickstackDir, environment, workDir.resolve("setup.log"));
+            long setupInMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - setupStart);
+            if (exitCode != 0) {
+                throw new IllegalStateException("Setup failed with exit code " + exitCode + ", see " + workDir.resolve("setup.log"));
+            }
+            System.out.println("# setup: " + setupInMillis + "ms");
+
+            // BOOT
+            URL url = new URL("http://127.0.0.1:" + appPort + path);
+            ProcessBuilder start = new ProcessBuilder("bash", controlDir.resolve("start").toString())
+                    .directory(appDir.toFile())
+                    .redirectErrorStream(true)
+                    .redirectOutput(workDir.resolve("tomee.log").toFile());
+            start.environment().putAll(environment);
+            long bootStart = System.nanoTime();
+            tomee = start.start();
+            long bootInMillis = waitForFirstResponse(url, tomee, bootStart);
+            int pid = findJavaPid(getPid(tomee));
+            long rssAfterBootInKb = readProcStatus(pid, "VmRSS");
+            System.out.println("# boot: " + bootInMillis + "ms, pid " + pid + ", RSS " + rssAfterBootInKb / 1024 + "MB");
+
+            // LOAD
+            LoadGenerator loadGenerator = new LoadGenerator(url);
+            System.out.println("# warm-up: " + warmupInSeconds + "s");
+            load(loadGenerator, warmupInSeconds);
+            System.out.println("# measure: " + durationInSeconds + "s");
+            LoadGenerator.Result result = load(loadGenerator, durationInSeconds);
+            long rssAfterLoadInKb = readProcStatus(pid, "VmRSS");
+            long peakRssInKb = readProcStatus(pid, "VmHWM");
+
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("date", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date()));
+            report.put("clickstack", clickstackDir.toString());
+            report.put("mode", mode);
+            report.put("concurrency", concurrency);
+            if ("open".equals(mode)) {
+                report.put("rate", rate);
+            }
+            report.put("durationInSeconds", durationInSeconds);
+            report.put("setupInMillis", setupInMillis);
+            report.put("bootInMillis", bootInMillis);
+            report.put("requests", result.getRequestCount());
+            report.put("errors", result.getErrorCount());
+            report.put("throughput", Math.round(result.getThroughput() * 10) / 10.0);
+            Map<String, Double> percentiles = new LinkedHashMap<>();
+            for (double percentile : new double[]{0.5, 0.9, 0.99, 0.999, 1.0}) {
+                percentiles.put(percentile == 1.0 ? "max" : "p" + String.valueOf(percentile * 100).replaceAll("\\.0$", ""),
+                        result.getLatencies().getPercentileInMillis(percentile));
+            }
+            report.put("latencyInMillis", percentiles);
+            report.put("rssAfterBootInKb", rssAfterBootInKb);
+            report.put("rssAfterLoadInKb", rssAfterLoadInKb);
+            report.put("peakRssInKb", peakRssInKb);
+            report.put("memcachedCommands", memcached.getCommandCount());
+
+            System.out.println(String.format(Locale.ENGLISH, "%-8s %10s %12s %10s %10s %10s %10s %10s %10s %10s",
+                    "mode", "boot (ms)", "requests/s", "p50 (ms)", "p90 (ms)", "p99 (ms)", "max (ms)", "errors", "RSS (MB)", "peak (MB)"));
+            System.out.println(String.format(Locale.ENGLISH, "%-8s %10d %12.1f %10.1f %10.1f %10.1f %10.1f %10d %10d %10d",
+                    mode, bootInMillis, result.getThroughput(), percentiles.get("p50"), percentiles.get("p90"),
+                    percentiles.get("p99"), percentiles.get("max"), result.getErrorCount(), rssAfterLoadInKb / 1024, peakRssInKb / 1024));
+            return report;
+        } finally {
+            if (tomee != null) {
+                // SIGTERM, Tomcat shutdown hook
+                tomee.destroy();
+                tomee.waitFor();
+            }
+            memcached.stop();
+            if (h2 != null) {
+                h2.stop();
+            }
+            if (!keepFiles) {
+                deleteRecursively(workDir);
+            }
+        }
+    }
+
+    private LoadGenerator.Result load(LoadGenerator loadGenerator, int durationInSeconds) throws InterruptedException {
+        if ("open".equals(mode)) {
+            return loadGenerator.openLoop(rate, concurrency, durationInSeconds);
+        } else {
+            return loadGenerator.closedLoop(concurrency, durationInSeconds, thinkTimeInMillis);
+        }
+    }
+
+    private String readMetadataTemplate() throws IOException {
+        if (metadataTemplate != null) {
+            return new String(Files.readAllBytes(Paths.get(metadataTemplate)), Charsets.UTF_8);
+        }
+        try (InputStream in = LoadTest.class.getResourceAsStream("/loadtest-metadata.json")) {
+            return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        }
+    }
+
+    static String render(String template, Map<String, String> variables) {
+        Matcher matcher = PLACEHOLDER.matcher(template);
+        StringBuffer result = new StringBuffer();
+        while (matcher.find()) {
+            String value = variables.get(matcher.group(1));
+            if (value == null) {
+                throw new IllegalArgumentException("Undefined variable " + matcher.group());
+            }
+            matcher.appendReplacement(result, Matcher.quoteReplacement(value));
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    /**
+     * @return the time in millis between the given start and the first response without server error
+     */
+    private long waitForFirstResponse(URL url, Process process, long startInNanos) throws Exception {
+        long deadline = startInNanos + TimeUnit.SECONDS.toNanos(bootTimeoutInSeconds);
+        while (System.nanoTime() < deadline) {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                connection.setConnectTimeout(1000);
+                connection.setReadTimeout(60000);
+                int status = connection.getResponseCode();
+                if (status < 500) {
+                    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startInNanos);
+                }
+            } catch (IOException e) {
+                // not yet started
+            }
+            Integer exitCode = getExitCode(process);
+            if (exitCode != null) {
+                throw new IllegalStateException("TomEE exited with code " + exitCode + " before responding");
+            }
+            Thread.sleep(50);
+        }
+        throw new IllegalStateException("TomEE did not respond on " + url + " within " + bootTimeoutInSeconds + "s");
+    }
+
+    /**
+     * @return {@code null} if the process is still running
+     */
+    private static Integer getExitCode(Process process) {
+        try {
+            return process.exitValue();
+        } catch (IllegalThreadStateException e) {
+            return null;
+        }
+    }
+
+    private int exec(List<String> command, Path directory, Map<String, String> environment, Path logFile) throws Exception {
+        ProcessBuilder processBuilder = new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(logFile.toFile());
+        processBuilder.environment().putAll(environment);
+        return processBuilder.start().waitFor();
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    /**
+     * {@code Process.pid()} is only available since Java 9.
+     */
+    static int getPid(Process process) {
+        try {
+            Method pid = Process.class.getMethod("pid");
+            return ((Long) pid.invoke(process)).intValue();
+        } catch (NoSuchMethodException e) {
+            try {
+                Field pid = process.getClass().getDeclaredField("pid");
+                pid.setAccessible(true);
+                return pid.getInt(process);
+            } catch (Exception e2) {
+                return -1;
+            }
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the pid of the {@code java} process, the {@code start} script {@code exec}s the JVM but may also fork
+     */
+    static int findJavaPid(int pid) throws IOException {
+        if (pid == -1 || isJava(pid)) {
+            return pid;
+        }
+        Path children = Paths.get("/proc", String.valueOf(pid), "task", String.valueOf(pid), "children");
+        if (Files.exists(children)) {
+            for (String child : new String(Files.readAllBytes(children), Charsets.UTF_8).trim().split("\\s+")) {
+                if (!child.isEmpty()) {
+                    int javaPid = findJavaPid(Integer.parseInt(child));
+                    if (isJava(javaPid)) {
+                        return javaPid;
+                    }
+                }
+            }
+        }
+        return pid;
+    }
+
+    private static boolean isJava(int pid) throws IOException {
+        Path comm = Paths.get("/proc", String.valueOf(pid), "comm");
+        return Files.exists(comm) && new String(Files.readAllBytes(comm), Charsets.UTF_8).trim().equals("java");
+    }
+
+    /**
+     * @return the value in kB of the given field of {@code /proc/<pid>/status}, {@code -1} if not available
+     */
+    static long readProcStatus(int pid, String field) throws IOException {
+        Path status = Paths.get("/proc", String.valueOf(pid), "status");
+        if (pid == -1 || !Files.exists(status)) {
+            return -1;
+        }
+        for (String line : Files.readAllLines(status, Charsets.UTF_8)) {
+            if (line.startsWith(field + ":")) {
+                return Long.parseLong(line.substring(field.length() + 1).replace("kB", "").trim());
+            }
+        }
+        return -1;
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                // the setup makes catalina-home read only
+                dir.toFile().setWritable(true);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.benchmark;
+
+import com.cloudbees.tomcat.valves.CidrAddressValve;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.valves.RemoteAddrValve;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check of a remote address against an allow list of {@code rangeCount} ranges ({@code /24} networks and single
+ * addresses) with the {@link RemoteAddrValve} (one alternation regular expression) and with the
+ * {@link CidrAddressValve} (binary trie). Half of the checked addresses are allowed.
+ * <p/>
+ * Usage: {@code gradle jmh -PjmhArgs="CidrAddressValveBenchmark"}
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CidrAddressValveBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int rangeCount;
+
+    private String[] addresses;
+
+    private RemoteAddrValve remoteAddrValve;
+
+    private CidrAddressValve cidrAddressValve;
+
+    private int index;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(1);
+        StringBuilder regexp = new StringBuilder();
+        StringBuilder cidrs = new StringBuilder();
+        String[] allowedAddresses = new String[rangeCount];
+        for (int i = 0; i < rangeCount; i++) {
+            String network = "10." + random.nextInt(256) + "." + random.nextInt(256);
+            regexp.append(i == 0 ? "" : "|");
+            cidrs.append(i == 0 ? "" : ",");
+            if (i % 2 == 0) {
+                regexp.append(network.replace(".", "\\.")).append("\\.\\d{1,3}");
+                cidrs.append(network).append(".0/24");
+                allowedAddresses[i] = network + "." + random.nextInt(256);
+            } else {
+                int host = random.nextInt(256);
+                regexp.append(network.replace(".", "\\.")).append("\\.").append(host);
+                cidrs.append(network).append(".").append(host);
+                allowedAddresses[i] = network + "." + host;
+            }
+        }
+
+        addresses = new String[1024];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = i % 2 == 0 ? allowedAddresses[random.nextInt(rangeCount)] :
+                    "172." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+        }
+
+        remoteAddrValve = new RemoteAddrValve();
+        remoteAddrValve.setAllow(regexp.toString());
+
+        cidrAddressValve = new CidrAddressValve();
+        cidrAddressValve.setAllowCidrs(cidrs.toString());
+        // the container is needed to register the valve MBean
+        StandardEngine engine = new StandardEngine();
+        engine.setName("benchmark");
+        StandardHost host = new StandardHost();
+        host.setName("localhost");
+        engine.addChild(host);
+        cidrAddressValve.setContainer(host);
+        cidrAddressValve.start();
+
+        for (String address : addresses) {
+            if (remoteAddrValve.isAllowed(address) != cidrAddressValve.isAllowed(address)) {
+                throw new IllegalStateException("Valves disagree on " + address);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        cidrAddressValve.stop();
+        cidrAddressValve.destroy();
+    }
+
+    private String nextAddress() {
+        return addresses[index++ & (addresses.length - 1)];
+    }
+
+    @Benchmark
+    public boolean remote_addr_valve_regexp() {
+        return remoteAddrValve.isAllowed(nextAddress());
+    }
+
+    @Benchmark
+    public boolean cidr_address_valve_trie() {
+        return cidrAddressValve.isAllowed(nextAddress());
+    }
+}
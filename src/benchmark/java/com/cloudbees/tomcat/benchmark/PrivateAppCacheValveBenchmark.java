@@ -0,0 +1,228 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.benchmark;
+
+import com.cloudbees.tomcat.valves.PrivateAppCacheValve;
+import com.cloudbees.tomcat.valves.PrivateAppVerifiedValve;
+import com.google.common.base.Charsets;
+import org.apache.catalina.Valve;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.realm.GenericPrincipal;
+import org.apache.catalina.valves.ValveBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the requests of a private application with and without the {@link PrivateAppCacheValve}.
+ * <p/>
+ * The {@code PrivateAppValve} is not on the classpath of the clickstack, it is simulated by a valve verifying an
+ * HMAC-SHA256 signed cookie ({@code user|expiration|signature}) as usually done by signed token valves.
+ * <p/>
+ * Usage: {@code gradle jmh -PjmhArgs="-t 4 PrivateAppCacheValveBenchmark"}
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PrivateAppCacheValveBenchmark {
+
+    private static final String SECRET_KEY = "ze-supper-secret";
+
+    private static final String COOKIE_NAME = "__cb_private_app";
+
+    /**
+     * Number of distinct users
+     */
+    @Param({"1", "1000"})
+    public int userCount;
+
+    private byte[][] cookieHeaders;
+
+    private Valve verifyingPipeline;
+
+    private Valve cachingPipeline;
+
+    private PrivateAppCacheValve privateAppCacheValve;
+
+    @State(Scope.Thread)
+    public static class RequestState {
+        final Request request = new Request();
+        final Response response = new Response();
+        int requestCount;
+
+        public RequestState() {
+            request.setCoyoteRequest(new org.apache.coyote.Request());
+        }
+
+        Request next(byte[][] cookieHeaders) {
+            request.recycle();
+            org.apache.coyote.Request coyoteRequest = request.getCoyoteRequest();
+            coyoteRequest.recycle();
+            coyoteRequest.decodedURI().setString("/products/42");
+            byte[] cookieHeader = cookieHeaders[requestCount++ % cookieHeaders.length];
+            coyoteRequest.getMimeHeaders().addValue("Cookie").setBytes(cookieHeader, 0, cookieHeader.length);
+            return request;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        cookieHeaders = new byte[userCount][];
+        long expiration = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        for (int i = 0; i < userCount; i++) {
+            String token = "user-" + i + "|" + expiration;
+            String cookieHeader = "JSESSIONID=ABCDEF0123456789; " + COOKIE_NAME + "=" + token + "|" + SignedCookieValve.sign(token);
+            cookieHeaders[i] = cookieHeader.getBytes(Charsets.ISO_8859_1);
+        }
+
+        verifyingPipeline = chain(new SignedCookieValve(), new PrivateAppVerifiedValve(), new ApplicationValve());
+
+        privateAppCacheValve = new PrivateAppCacheValve();
+        privateAppCacheValve.setSecretKey(SECRET_KEY);
+        privateAppCacheValve.setAuthenticationCookieName(COOKIE_NAME);
+        privateAppCacheValve.setAuthenticationHeaderName("X-Private-App");
+        privateAppCacheValve.setAuthenticationParameterName(COOKIE_NAME);
+        privateAppCacheValve.setMaxEntries(10000);
+        cachingPipeline = chain(privateAppCacheValve, new SignedCookieValve(), new PrivateAppVerifiedValve(), new ApplicationValve());
+        // the container is needed to register the valve MBean
+        StandardEngine engine = new StandardEngine();
+        engine.setName("benchmark");
+        StandardHost host = new StandardHost();
+        host.setName("localhost");
+        engine.addChild(host);
+        privateAppCacheValve.setContainer(host);
+        privateAppCacheValve.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        privateAppCacheValve.stop();
+        privateAppCacheValve.destroy();
+        System.out.println();
+        System.out.println("# PrivateAppCacheValve hits: " + privateAppCacheValve.getHitCount() + ", misses: " + privateAppCacheValve.getMissCount());
+    }
+
+    private static Valve chain(Valve... valves) {
+        for (int i = 0; i < valves.length - 1; i++) {
+            valves[i].setNext(valves[i + 1]);
+        }
+        return valves[0];
+    }
+
+    @Benchmark
+    public Object verify_signature(RequestState state) throws Exception {
+        Request request = state.next(cookieHeaders);
+        verifyingPipeline.invoke(request, state.response);
+        return request.getUserPrincipal();
+    }
+
+    @Benchmark
+    public Object cached_verification(RequestState state) throws Exception {
+        Request request = state.next(cookieHeaders);
+        cachingPipeline.invoke(request, state.response);
+        return request.getUserPrincipal();
+    }
+
+    /**
+     * Simulation of the {@code PrivateAppValve}
+     */
+    public static class SignedCookieValve extends ValveBase {
+
+        public SignedCookieValve() {
+            super(true);
+        }
+
+        static String sign(String token) throws GeneralSecurityException {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(SECRET_KEY.getBytes(Charsets.UTF_8), "HmacSHA256"));
+            byte[] signature = mac.doFinal(token.getBytes(Charsets.UTF_8));
+            StringBuilder result = new StringBuilder();
+            for (byte b : signature) {
+                result.append(String.format("%02x", b));
+            }
+            return result.toString();
+        }
+
+        @Override
+        public void invoke(Request request, Response response) throws IOException, ServletException {
+            Cookie[] cookies = request.getCookies();
+            if (cookies != null) {
+                for (Cookie cookie : cookies) {
+                    if (COOKIE_NAME.equals(cookie.getName())) {
+                        String value = cookie.getValue();
+                        int separator = value.lastIndexOf('|');
+                        String token = value.substring(0, separator);
+                        String[] userAndExpiration = token.split("\\|");
+                        try {
+                            if (MessageDigest.isEqual(sign(token).getBytes(Charsets.UTF_8), value.substring(separator + 1).getBytes(Charsets.UTF_8))
+                                    && Long.parseLong(userAndExpiration[1]) > System.currentTimeMillis()) {
+                                request.setUserPrincipal(new GenericPrincipal(userAndExpiration[0], null, Collections.<String>emptyList()));
+                                request.setAuthType("PRIVATE_APP");
+                                getNext().invoke(request, response);
+                                return;
+                            }
+                        } catch (GeneralSecurityException e) {
+                            throw new ServletException(e);
+                        }
+                    }
+                }
+            }
+            response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+        }
+    }
+
+    public static class ApplicationValve extends ValveBase {
+
+        public ApplicationValve() {
+            super(true);
+        }
+
+        @Override
+        public void invoke(Request request, Response response) {
+            if (request.getUserPrincipal() == null) {
+                throw new IllegalStateException("Request not authenticated");
+            }
+        }
+    }
+}
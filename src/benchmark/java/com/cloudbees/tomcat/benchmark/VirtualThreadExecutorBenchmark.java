@@ -0,0 +1,247 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.benchmark;
+
+import com.cloudbees.tomcat.threads.VirtualThreadExecutor;
+import com.cloudbees.tomcat.valves.BulkheadValve;
+import org.apache.catalina.Context;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.coyote.AbstractProtocol;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Compares the throughput of an embedded Tomcat NIO connector backed by a pool of 200 platform threads and by the
+ * {@link VirtualThreadExecutor} with slow requests (a servlet sleeping to simulate a blocking JDBC call).
+ * <p/>
+ * Usage: {@code VirtualThreadExecutorBenchmark [concurrencies] [sleepInMillis] [durationInSeconds] [poolSize]}, e.g.
+ * {@code 1000,10000 100 20 0}. A {@code poolSize > 0} simulates a JDBC pool of this size protected by a
+ * {@link BulkheadValve}.
+ * <p/>
+ * The clients run in virtual threads when available. The virtual threads executor requires Java 24+, set the system
+ * property {@code virtualThreadsMinJavaVersion=21} to measure the pinning of the virtual threads on Java 21.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class VirtualThreadExecutorBenchmark {
+
+    private static final int HISTOGRAM_MAX_MILLIS = 60000;
+
+    public static void main(String[] args) throws Exception {
+        String[] concurrencies = (args.length > 0 ? args[0] : "1000,10000").split(",");
+        int sleepInMillis = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int durationInSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int poolSize = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+        System.setProperty("http.maxConnections", "20000");
+        System.out.println("# java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors() + " cores, "
+                + "sleep " + sleepInMillis + "ms, duration " + durationInSeconds + "s, poolSize " + poolSize);
+        System.out.println(String.format(Locale.ENGLISH, "%-10s %12s %12s %10s %10s %10s %10s",
+                "executor", "concurrency", "requests/s", "p50 (ms)", "p99 (ms)", "max (ms)", "errors"));
+        for (String concurrency : concurrencies) {
+            for (boolean virtualThreads : new boolean[]{false, true}) {
+                new VirtualThreadExecutorBenchmark().run(virtualThreads, Integer.parseInt(concurrency.trim()), sleepInMillis, durationInSeconds, poolSize);
+            }
+        }
+    }
+
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(HISTOGRAM_MAX_MILLIS + 1);
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+
+    public void run(boolean virtualThreads, int concurrency, final int sleepInMillis, int durationInSeconds, int poolSize) throws Exception {
+        File baseDir = Files.createTempDirectory("benchmark").toFile();
+        Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(baseDir.getAbsolutePath());
+
+        VirtualThreadExecutor executor = new VirtualThreadExecutor();
+        executor.setName("tomcatThreadPool");
+        executor.setNamePrefix("http-");
+        executor.setMaxThreads(200);
+        executor.setVirtualThreads(virtualThreads);
+        executor.setVirtualThreadsMinJavaVersion(Integer.getInteger("virtualThreadsMinJavaVersion", 24));
+        tomcat.getService().addExecutor(executor);
+
+        Connector connector = new Connector("org.apache.coyote.http11.Http11NioProtocol");
+        connector.setPort(0);
+        connector.setProperty("address", "127.0.0.1");
+        // the "executor" attribute of server.xml is resolved by the digester, not by Connector.setProperty()
+        ((AbstractProtocol) connector.getProtocolHandler()).setExecutor(executor);
+        connector.setProperty("maxConnections", String.valueOf(concurrency + 100));
+        connector.setProperty("acceptCount", String.valueOf(concurrency));
+        connector.setProperty("maxKeepAliveRequests", "-1");
+        tomcat.getService().addConnector(connector);
+        tomcat.setConnector(connector);
+
+        // simulated JDBC pool
+        final Semaphore pool = poolSize > 0 ? new Semaphore(poolSize) : null;
+        if (poolSize > 0) {
+            BulkheadValve bulkheadValve = new BulkheadValve();
+            bulkheadValve.setMaxConcurrentRequests(poolSize);
+            bulkheadValve.setMaxWaitInMillis(5000);
+            tomcat.getHost().getPipeline().addValve(bulkheadValve);
+        }
+
+        Context context = tomcat.addContext("", baseDir.getAbsolutePath());
+        Tomcat.addServlet(context, "slow", new HttpServlet() {
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+                try {
+                    if (pool != null) {
+                        pool.acquire();
+                    }
+                    try {
+                        Thread.sleep(sleepInMillis);
+                    } finally {
+                        if (pool != null) {
+                            pool.release();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                resp.setContentType("text/plain");
+                resp.getWriter().print("OK");
+            }
+        });
+        context.addServletMapping("/*", "slow");
+        tomcat.start();
+
+        try {
+            String executorName = virtualThreads ? (executor.isVirtualThreadsActive() ? "virtual" : "n/a") : "platform";
+            if (virtualThreads && !executor.isVirtualThreadsActive()) {
+                System.out.println(String.format(Locale.ENGLISH, "%-10s %12d virtual threads not enabled on this JVM", executorName, concurrency));
+                return;
+            }
+            final URL url = new URL("http://127.0.0.1:" + connector.getLocalPort() + "/");
+
+            // warm-up then measure
+            load(url, Math.min(concurrency, 200), 3);
+            for (int i = 0; i < latencyHistogram.length(); i++) {
+                latencyHistogram.set(i, 0);
+            }
+            requestCount.set(0);
+            errorCount.set(0);
+
+            long nanosBefore = System.nanoTime();
+            load(url, concurrency, durationInSeconds);
+            double elapsedInSeconds = (System.nanoTime() - nanosBefore) / 1000000000.0;
+
+            System.out.println(String.format(Locale.ENGLISH, "%-10s %12d %12.0f %10d %10d %10d %10d",
+                    executorName, concurrency, requestCount.get() / elapsedInSeconds,
+                    percentile(0.50), percentile(0.99), percentile(1.0), errorCount.get()));
+        } finally {
+            tomcat.stop();
+            tomcat.destroy();
+        }
+    }
+
+    private void load(final URL url, int concurrency, int durationInSeconds) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationInSeconds);
+        final CountDownLatch done = new CountDownLatch(concurrency);
+        Runnable client = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        long nanosBefore = System.nanoTime();
+                        boolean success = get(url);
+                        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanosBefore);
+                        latencyHistogram.incrementAndGet((int) Math.min(millis, HISTOGRAM_MAX_MILLIS));
+                        requestCount.incrementAndGet();
+                        if (!success) {
+                            errorCount.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+
+        ExecutorService clients = VirtualThreadExecutor.newVirtualThreadPerTaskExecutor("client-");
+        for (int i = 0; i < concurrency; i++) {
+            if (clients == null) {
+                Thread thread = new Thread(null, client, "client-" + i, 256 * 1024);
+                thread.setDaemon(true);
+                thread.start();
+            } else {
+                clients.execute(client);
+            }
+        }
+        done.await(durationInSeconds + 120, TimeUnit.SECONDS);
+        if (clients != null) {
+            clients.shutdown();
+        }
+    }
+
+    private boolean get(URL url) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(30000);
+            connection.setReadTimeout(60000);
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                byte[] buffer = new byte[1024];
+                while (in.read(buffer) != -1) {
+                    // consume the response to reuse the connection
+                }
+                in.close();
+            }
+            return status == 200;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return false;
+        }
+    }
+
+    private long percentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < latencyHistogram.length(); i++) {
+            total += latencyHistogram.get(i);
+        }
+        long threshold = (long) Math.ceil(total * percentile);
+        long count = 0;
+        for (int i = 0; i < latencyHistogram.length(); i++) {
+            count += latencyHistogram.get(i);
+            if (count >= threshold && count > 0) {
+                return i;
+            }
+        }
+        return 0;
+    }
+}
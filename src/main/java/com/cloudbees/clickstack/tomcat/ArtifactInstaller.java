@@ -0,0 +1,278 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.cloudbees.clickstack.util.Files2;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Installs the jars of the clickstack ({@code deps/tomcat-lib*}, {@code deps/javaagent-lib}, {@code deps/control-lib})
+ * in the application directories sharing the blocks with the clickstack directory rather than duplicating them, which
+ * saves the I/O of the deployment and the page cache of the applications of a host:
+ * <ul>
+ * <li>{@link Mode#LINK} (default): hard link when the source and the target are on the same file store</li>
+ * <li>{@link Mode#REFLINK}: copy-on-write clone ({@code cp --reflink=always}) on the file systems supporting it
+ * (btrfs, xfs)</li>
+ * <li>{@link Mode#COPY}: copy</li>
+ * </ul>
+ * Falls back on a streamed copy when the file can not be linked (different file stores, links not permitted...). The
+ * copies and the reflinks are verified with a SHA-256 checksum of the source and of the target, a hard link is the
+ * same file.
+ * <p/>
+ * A hard linked file shares its content and its permissions with the file of the clickstack directory: the installed
+ * jars must not be modified in place (they are replaced or deleted, e.g. by {@link LibDirectoryConsolidator}).
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class ArtifactInstaller {
+
+    public enum Mode {
+        COPY, LINK, REFLINK
+    }
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Nonnull
+    private final Mode mode;
+
+    private final Map<Path, FileStore> fileStores = new HashMap<>();
+
+    private boolean reflinkSupported = true;
+
+    private int linkedFileCount;
+
+    private int reflinkedFileCount;
+
+    private int copiedFileCount;
+
+    private long savedBytes;
+
+    private long copiedBytes;
+
+    public ArtifactInstaller(@Nonnull Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * @param mode {@code link}, {@code reflink} or {@code copy}
+     */
+    @Nonnull
+    public static ArtifactInstaller forMode(@Nonnull String mode) {
+        try {
+            return new ArtifactInstaller(Mode.valueOf(mode.trim().toUpperCase(Locale.ENGLISH)));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid install mode '" + mode + "', expected one of " + Arrays.toString(Mode.values()), e);
+        }
+    }
+
+    /**
+     * Equivalent of {@link Files2#copyDirectoryContent(Path, Path)}.
+     */
+    public void installDirectoryContent(@Nonnull Path sourceDir, @Nonnull Path targetDir) throws IOException {
+        Files.createDirectories(targetDir);
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(sourceDir)) {
+            for (Path source : paths) {
+                Path target = targetDir.resolve(source.getFileName().toString());
+                if (Files.isDirectory(source)) {
+                    installDirectoryContent(source, target);
+                } else {
+                    install(source, target);
+                }
+            }
+        }
+    }
+
+    /**
+     * Equivalent of {@link Files2#copyArtifactToDirectory(Path, String, Path)}.
+     *
+     * @return the installed file
+     */
+    @Nonnull
+    public Path installArtifactToDirectory(@Nonnull Path sourceDir, @Nonnull String artifactId, @Nonnull Path targetDir) throws IOException {
+        Path source = Files2.findArtifact(sourceDir, artifactId, "jar");
+        Files.createDirectories(targetDir);
+        return install(source, targetDir.resolve(source.getFileName().toString()));
+    }
+
+    /**
+     * Install {@code source} as {@code target}, replacing {@code target} if it exists.
+     */
+    @Nonnull
+    public Path install(@Nonnull Path source, @Nonnull Path target) throws IOException {
+        Files.deleteIfExists(target);
+        long size = Files.size(source);
+        boolean sameFileStore = mode != Mode.COPY
+                && getFileStore(source.toAbsolutePath().getParent()).equals(getFileStore(target.toAbsolutePath().getParent()));
+
+        if (sameFileStore && mode == Mode.LINK) {
+            try {
+                Files.createLink(target, source);
+                if (!Files.isSameFile(source, target)) {
+                    throw new IOException("Hard link " + target + " does not point to " + source);
+                }
+                linkedFileCount++;
+                savedBytes += size;
+                return target;
+            } catch (IOException | UnsupportedOperationException | SecurityException e) {
+                logger.debug("Cannot hard link {} to {}, copy it", target, source, e);
+                Files.deleteIfExists(target);
+            }
+        } else if (sameFileStore && mode == Mode.REFLINK && reflinkSupported) {
+            if (reflink(source, target)) {
+                verifyChecksum(source, target, checksum(source));
+                reflinkedFileCount++;
+                savedBytes += size;
+                return target;
+            }
+        }
+
+        copy(source, target);
+        copiedFileCount++;
+        copiedBytes += size;
+        return target;
+    }
+
+    /**
+     * {@link Files#getFileStore(Path)} reads the mount table at each invocation
+     */
+    @Nonnull
+    private FileStore getFileStore(@Nonnull Path dir) throws IOException {
+        FileStore fileStore = fileStores.get(dir);
+        if (fileStore == null) {
+            fileStore = Files.getFileStore(dir);
+            fileStores.put(dir, fileStore);
+        }
+        return fileStore;
+    }
+
+    private boolean reflink(@Nonnull Path source, @Nonnull Path target) throws IOException {
+        Process process = null;
+        try {
+            process = new ProcessBuilder("cp", "--reflink=always", source.toString(), target.toString())
+                    .redirectErrorStream(true).start();
+            String output = new String(ByteStreams.toByteArray(process.getInputStream()), Charsets.UTF_8);
+            if (process.waitFor() == 0) {
+                return true;
+            }
+            logger.debug("Cannot reflink {} to {}, copy it: {}", target, source, output.trim());
+        } catch (IOException e) {
+            logger.debug("Cannot reflink {} to {}, copy it", target, source, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reflinking " + source, e);
+        } finally {
+            if (process != null) {
+                process.destroy();
+            }
+        }
+        // the file system or the cp command does not support reflinks, don't try again
+        reflinkSupported = false;
+        Files.deleteIfExists(target);
+        return false;
+    }
+
+    /**
+     * Streamed copy verified with the checksum computed while reading the source.
+     */
+    private void copy(@Nonnull Path source, @Nonnull Path target) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(source), digest);
+             OutputStream out = Files.newOutputStream(target)) {
+            ByteStreams.copy(in, out);
+        }
+        verifyChecksum(source, target, digest.digest());
+    }
+
+    private void verifyChecksum(@Nonnull Path source, @Nonnull Path target, @Nonnull byte[] sourceChecksum) throws IOException {
+        if (!MessageDigest.isEqual(sourceChecksum, checksum(target))) {
+            Files.deleteIfExists(target);
+            throw new IOException("Checksum of " + target + " does not match the checksum of " + source);
+        }
+    }
+
+    @Nonnull
+    private byte[] checksum(@Nonnull Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            ByteStreams.copy(in, ByteStreams.nullOutputStream());
+        }
+        return digest.digest();
+    }
+
+    @Nonnull
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Nonnull
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getLinkedFileCount() {
+        return linkedFileCount;
+    }
+
+    public int getReflinkedFileCount() {
+        return reflinkedFileCount;
+    }
+
+    public int getCopiedFileCount() {
+        return copiedFileCount;
+    }
+
+    /**
+     * @return size of the files hard linked or reflinked rather than copied
+     */
+    public long getSavedBytes() {
+        return savedBytes;
+    }
+
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "ArtifactInstaller{mode=" + mode + ", linked=" + linkedFileCount + ", reflinked=" + reflinkedFileCount +
+                ", copied=" + copiedFileCount + ", savedBytes=" + savedBytes + ", copiedBytes=" + copiedBytes + "}";
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Summarizes the GC log written by the JVM (see {@link Setup#installGcLogging()}) into pause percentiles, allocation
+ * rate and promotion rate.
+ * <p/>
+ * Invoked by the {@code .genapp/control/stats-appstat} script, this class MUST only depend on the JDK because it runs
+ * with the sole clickstack jar in its classpath. The output uses the "{@code name value}" line format of
+ * {@code tomcat-metrics.data}.
+ * <p/>
+ * Supported formats:
+ * <ul>
+ * <li>JDK 7/8 {@code -XX:+PrintGCDetails} logs (Serial, Parallel, CMS and G1 collectors),</li>
+ * <li>JDK 9+ unified logging ({@code -Xlog:gc}).</li>
+ * </ul>
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class GcLogSummary {
+
+    private static final Pattern LEGACY_UPTIME = Pattern.compile("(\\d+\\.\\d+): \\[");
+    private static final Pattern LEGACY_TIMES = Pattern.compile("\\[Times: [^\\]]*\\]");
+    private static final Pattern LEGACY_PAUSE = Pattern.compile("(\\d+\\.\\d+) secs\\]");
+    private static final Pattern LEGACY_YOUNG_GEN = Pattern.compile("\\[(PSYoungGen|ParNew|DefNew): (\\d+)K->(\\d+)K\\(\\d+K\\)");
+    private static final Pattern LEGACY_HEAP = Pattern.compile("\\] (\\d+)K->(\\d+)K\\(\\d+K\\)");
+    private static final Pattern G1_EDEN = Pattern.compile("Eden: ([\\d.]+)([BKMG])\\([^)]*\\)->([\\d.]+)([BKMG])");
+    private static final Pattern G1_SURVIVORS = Pattern.compile("Survivors: ([\\d.]+)([BKMG])->([\\d.]+)([BKMG])");
+    private static final Pattern G1_HEAP = Pattern.compile("Heap: ([\\d.]+)([BKMG])\\([^)]*\\)->([\\d.]+)([BKMG])");
+
+    private static final Pattern UNIFIED_UPTIME = Pattern.compile("\\[(\\d+\\.\\d+)s\\]");
+    private static final Pattern UNIFIED_PAUSE = Pattern.compile(
+            "GC\\(\\d+\\) Pause ([A-Za-z ]+?)\\b.*? (\\d+)([KMG])->(\\d+)([KMG])\\(\\d+[KMG]\\) (\\d+\\.\\d+)ms");
+
+    final List<Double> pausesInMillis = new ArrayList<>();
+    long fullGcCount;
+    long allocatedBytes;
+    long promotedBytes;
+    double elapsedSeconds;
+
+    private double segmentStartSeconds = -1;
+    private double lastUptimeSeconds = -1;
+    private long previousHeapAfterBytes = -1;
+    private long previousYoungHeapAfterBytes = -1;
+    /**
+     * G1 legacy logs print the sizes of a pause on the lines following the pause itself
+     */
+    private Event pendingG1Event;
+
+    private static class Event {
+        double uptimeSeconds;
+        double pauseMillis;
+        boolean young;
+        boolean full;
+        long heapBeforeBytes = -1;
+        long heapAfterBytes = -1;
+        long youngBeforeBytes = -1;
+        long youngAfterBytes = -1;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: " + GcLogSummary.class.getName() + " <gc-log-file-or-directory>...");
+            System.exit(1);
+        }
+        GcLogSummary summary = new GcLogSummary();
+        for (File file : listGcLogFiles(args)) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8"))) {
+                summary.parse(reader);
+            }
+        }
+        summary.print(System.out);
+    }
+
+    /**
+     * @return the given files and, for the given directories, their {@code gc.log*} files (rotated files included)
+     * sorted by modification date
+     */
+    static List<File> listGcLogFiles(String... paths) {
+        List<File> result = new ArrayList<>();
+        for (String path : paths) {
+            File file = new File(path);
+            if (file.isDirectory()) {
+                File[] gcLogFiles = file.listFiles();
+                if (gcLogFiles == null) {
+                    continue;
+                }
+                for (File gcLogFile : gcLogFiles) {
+                    if (gcLogFile.isFile() && gcLogFile.getName().startsWith("gc.log")) {
+                        result.add(gcLogFile);
+                    }
+                }
+            } else if (file.isFile()) {
+                result.add(file);
+            }
+        }
+        Collections.sort(result, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        return result;
+    }
+
+    public void parse(Reader reader) throws IOException {
+        BufferedReader in = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("[") && UNIFIED_UPTIME.matcher(line).find()) {
+                parseUnifiedLine(line);
+            } else {
+                parseLegacyLine(line);
+            }
+        }
+        flushPendingG1Event();
+    }
+
+    void parseUnifiedLine(String line) {
+        Matcher pauseMatcher = UNIFIED_PAUSE.matcher(line);
+        if (!pauseMatcher.find()) {
+            return;
+        }
+        Matcher uptimeMatcher = UNIFIED_UPTIME.matcher(line);
+        uptimeMatcher.find();
+
+        Event event = new Event();
+        event.uptimeSeconds = Double.parseDouble(uptimeMatcher.group(1));
+        String pauseType = pauseMatcher.group(1).trim();
+        event.young = pauseType.startsWith("Young");
+        event.full = pauseType.startsWith("Full");
+        event.heapBeforeBytes = toBytes(pauseMatcher.group(2), pauseMatcher.group(3));
+        event.heapAfterBytes = toBytes(pauseMatcher.group(4), pauseMatcher.group(5));
+        event.pauseMillis = Double.parseDouble(pauseMatcher.group(6));
+        record(event);
+    }
+
+    void parseLegacyLine(String line) {
+        if (pendingG1Event != null) {
+            if (parseG1Sizes(line, pendingG1Event)) {
+                flushPendingG1Event();
+                return;
+            }
+            if (LEGACY_UPTIME.matcher(line).find()) {
+                // a new event starts without sizes for the pending one
+                flushPendingG1Event();
+            } else {
+                return;
+            }
+        }
+
+        if (line.contains("concurrent")) {
+            // concurrent phases of CMS and G1 don't stop the application
+            return;
+        }
+        Matcher uptimeMatcher = LEGACY_UPTIME.matcher(line);
+        if (!uptimeMatcher.find()) {
+            return;
+        }
+        String withoutTimes = LEGACY_TIMES.matcher(line).replaceAll("");
+        Matcher pauseMatcher = LEGACY_PAUSE.matcher(withoutTimes);
+        String pause = null;
+        while (pauseMatcher.find()) {
+            pause = pauseMatcher.group(1);
+        }
+        if (pause == null) {
+            return;
+        }
+
+        Event event = new Event();
+        event.uptimeSeconds = Double.parseDouble(uptimeMatcher.group(1));
+        event.pauseMillis = Double.parseDouble(pause) * 1000;
+        event.full = line.contains("[Full GC");
+        event.young = !event.full && (line.contains("[GC") || line.contains("(young)"));
+
+        Matcher youngMatcher = LEGACY_YOUNG_GEN.matcher(line);
+        if (youngMatcher.find()) {
+            event.youngBeforeBytes = Long.parseLong(youngMatcher.group(2)) * 1024;
+            event.youngAfterBytes = Long.parseLong(youngMatcher.group(3)) * 1024;
+        }
+        Matcher heapMatcher = LEGACY_HEAP.matcher(line);
+        if (heapMatcher.find()) {
+            event.heapBeforeBytes = Long.parseLong(heapMatcher.group(1)) * 1024;
+            event.heapAfterBytes = Long.parseLong(heapMatcher.group(2)) * 1024;
+            record(event);
+        } else if (line.contains("GC pause") || line.contains("[Full GC (")) {
+            // G1: sizes are printed on the following lines
+            pendingG1Event = event;
+        } else {
+            record(event);
+        }
+    }
+
+    private boolean parseG1Sizes(String line, Event event) {
+        Matcher heapMatcher = G1_HEAP.matcher(line);
+        if (!heapMatcher.find()) {
+            return false;
+        }
+        event.heapBeforeBytes = toBytes(heapMatcher.group(1), heapMatcher.group(2));
+        event.heapAfterBytes = toBytes(heapMatcher.group(3), heapMatcher.group(4));
+
+        Matcher edenMatcher = G1_EDEN.matcher(line);
+        Matcher survivorsMatcher = G1_SURVIVORS.matcher(line);
+        if (edenMatcher.find() && survivorsMatcher.find()) {
+            event.youngBeforeBytes = toBytes(edenMatcher.group(1), edenMatcher.group(2))
+                    + toBytes(survivorsMatcher.group(1), survivorsMatcher.group(2));
+            event.youngAfterBytes = toBytes(edenMatcher.group(3), edenMatcher.group(4))
+                    + toBytes(survivorsMatcher.group(3), survivorsMatcher.group(4));
+        }
+        return true;
+    }
+
+    private void flushPendingG1Event() {
+        if (pendingG1Event != null) {
+            Event event = pendingG1Event;
+            pendingG1Event = null;
+            record(event);
+        }
+    }
+
+    private void record(Event event) {
+        if (lastUptimeSeconds >= 0 && event.uptimeSeconds < lastUptimeSeconds) {
+            // JVM restarted, start a new segment
+            elapsedSeconds += lastUptimeSeconds - segmentStartSeconds;
+            segmentStartSeconds = -1;
+            previousHeapAfterBytes = -1;
+            previousYoungHeapAfterBytes = -1;
+        }
+        if (segmentStartSeconds < 0) {
+            segmentStartSeconds = event.uptimeSeconds;
+        }
+        lastUptimeSeconds = event.uptimeSeconds;
+
+        pausesInMillis.add(event.pauseMillis);
+        if (event.full) {
+            fullGcCount++;
+        }
+
+        if (event.heapBeforeBytes >= 0 && previousHeapAfterBytes >= 0) {
+            allocatedBytes += Math.max(0, event.heapBeforeBytes - previousHeapAfterBytes);
+        }
+        if (event.young && event.youngBeforeBytes >= 0 && event.heapBeforeBytes >= 0) {
+            long youngCollected = event.youngBeforeBytes - event.youngAfterBytes;
+            long heapCollected = event.heapBeforeBytes - event.heapAfterBytes;
+            promotedBytes += Math.max(0, youngCollected - heapCollected);
+        } else if (event.young && previousYoungHeapAfterBytes >= 0 && event.heapAfterBytes >= 0) {
+            // no young generation details, approximate with the growth of the heap between two young collections
+            promotedBytes += Math.max(0, event.heapAfterBytes - previousYoungHeapAfterBytes);
+        }
+
+        if (event.heapAfterBytes >= 0) {
+            previousHeapAfterBytes = event.heapAfterBytes;
+        }
+        previousYoungHeapAfterBytes = event.young ? event.heapAfterBytes : -1;
+    }
+
+    static long toBytes(String value, String unit) {
+        double result = Double.parseDouble(value);
+        switch (unit.charAt(0)) {
+            case 'G':
+                result *= 1024;
+                // fall through
+            case 'M':
+                result *= 1024;
+                // fall through
+            case 'K':
+                result *= 1024;
+                // fall through
+            default:
+                break;
+        }
+        return (long) result;
+    }
+
+    public double getElapsedSeconds() {
+        return lastUptimeSeconds < 0 ? 0 : elapsedSeconds + (lastUptimeSeconds - segmentStartSeconds);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the pause in milliseconds or {@code 0} if no pause has been recorded
+     */
+    public double getPausePercentileInMillis(double percentile) {
+        if (pausesInMillis.isEmpty()) {
+            return 0;
+        }
+        Double[] sortedPauses = pausesInMillis.toArray(new Double[pausesInMillis.size()]);
+        Arrays.sort(sortedPauses);
+        int index = (int) Math.ceil(percentile / 100 * sortedPauses.length) - 1;
+        return sortedPauses[Math.max(0, Math.min(index, sortedPauses.length - 1))];
+    }
+
+    public double getTotalPauseInMillis() {
+        double total = 0;
+        for (Double pause : pausesInMillis) {
+            total += pause;
+        }
+        return total;
+    }
+
+    public double getAllocationRateInMegaBytesPerSecond() {
+        double elapsed = getElapsedSeconds();
+        return elapsed <= 0 ? 0 : allocatedBytes / 1024d / 1024d / elapsed;
+    }
+
+    public double getPromotionRateInMegaBytesPerSecond() {
+        double elapsed = getElapsedSeconds();
+        return elapsed <= 0 ? 0 : promotedBytes / 1024d / 1024d / elapsed;
+    }
+
+    public void print(PrintStream out) {
+        double elapsed = getElapsedSeconds();
+        out.println("gc_log_elapsed_seconds " + format(elapsed));
+        out.println("gc_log_pause_count " + pausesInMillis.size());
+        out.println("gc_log_full_gc_count " + fullGcCount);
+        out.println("gc_log_pause_total_ms " + format(getTotalPauseInMillis()));
+        out.println("gc_log_pause_p50_ms " + format(getPausePercentileInMillis(50)));
+        out.println("gc_log_pause_p90_ms " + format(getPausePercentileInMillis(90)));
+        out.println("gc_log_pause_p99_ms " + format(getPausePercentileInMillis(99)));
+        out.println("gc_log_pause_max_ms " + format(getPausePercentileInMillis(100)));
+        out.println("gc_log_overhead_percent " + format(elapsed <= 0 ? 0 : getTotalPauseInMillis() / 10 / elapsed));
+        out.println("gc_log_allocation_rate_mb_per_sec " + format(getAllocationRateInMegaBytesPerSecond()));
+        out.println("gc_log_promotion_rate_mb_per_sec " + format(getPromotionRateInMegaBytesPerSecond()));
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ENGLISH, "%.3f", value);
+    }
+}
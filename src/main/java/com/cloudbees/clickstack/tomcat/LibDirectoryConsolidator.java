@@ -0,0 +1,292 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Inspects the jars of {@code lib} directories (e.g. {@code catalina-base/lib} and {@code catalina-home/lib}) to
+ * report the classes defined by several jars and optionally merges the jars of a directory in a single jar to reduce
+ * the number of jars probed by the common class loader for each class.
+ * <p/>
+ * Merging only {@code catalina-base/lib} (16 jars with all the resources) doesn't measurably change the TomEE
+ * boot, the time spent in {@code URLClassLoader.findClass} is dominated by the 101 jars of {@code catalina-home/lib}.
+ * <p/>
+ * Signed jars are never merged, their signature would no longer match. When an entry exists in several jars, the
+ * first jar in alphabetical order wins, {@code META-INF/services/*} files are concatenated.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class LibDirectoryConsolidator {
+
+    public static final String MERGED_JAR_NAME = "clickstack-merged-lib.jar";
+
+    /**
+     * Entries defined by several jars
+     */
+    public static class Duplicates {
+        /**
+         * entry name -> jars defining it with the same content
+         */
+        private final Map<String, List<String>> identical = new TreeMap<>();
+        /**
+         * entry name -> jars defining it with different contents
+         */
+        private final Map<String, List<String>> conflicting = new TreeMap<>();
+
+        @Nonnull
+        public Map<String, List<String>> getIdentical() {
+            return identical;
+        }
+
+        @Nonnull
+        public Map<String, List<String>> getConflicting() {
+            return conflicting;
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Nonnull
+    protected List<Path> listJars(@Nonnull Path libDir) throws IOException {
+        List<Path> jars = new ArrayList<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(libDir, "*.jar")) {
+            for (Path path : paths) {
+                jars.add(path);
+            }
+        }
+        Collections.sort(jars);
+        return jars;
+    }
+
+    /**
+     * @param libDirs directories of the jars of a class loader, e.g. {@code catalina-base/lib} and
+     *                {@code catalina-home/lib} for the common class loader
+     * @return the classes ({@code .class} entries) defined by several jars of the given directories, the jars are
+     * identified by their path relative to the grand parent of their directory (e.g. {@code catalina-base/lib/mail-1.4.7.jar})
+     */
+    @Nonnull
+    public Duplicates findDuplicateClasses(@Nonnull List<Path> libDirs) throws IOException {
+        // class entry -> (jar -> crc)
+        Map<String, Map<String, Long>> classes = new TreeMap<>();
+        for (Path libDir : libDirs) {
+            if (!Files.isDirectory(libDir)) {
+                continue;
+            }
+            for (Path jar : listJars(libDir)) {
+                Path root = libDir.getParent() == null ? null : libDir.getParent().getParent();
+                String jarName = root == null ? jar.toString() : root.relativize(jar).toString();
+                try (ZipFile zipFile = new ZipFile(jar.toFile())) {
+                    Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                    while (entries.hasMoreElements()) {
+                        ZipEntry entry = entries.nextElement();
+                        if (entry.isDirectory() || !entry.getName().endsWith(".class") || entry.getName().startsWith("META-INF/")) {
+                            continue;
+                        }
+                        Map<String, Long> definingJars = classes.get(entry.getName());
+                        if (definingJars == null) {
+                            definingJars = new LinkedHashMap<>();
+                            classes.put(entry.getName(), definingJars);
+                        }
+                        definingJars.put(jarName, entry.getCrc());
+                    }
+                } catch (IOException e) {
+                    logger.warn("Exception reading {}, ignore it", jar, e);
+                }
+            }
+        }
+
+        Duplicates duplicates = new Duplicates();
+        for (Map.Entry<String, Map<String, Long>> entry : classes.entrySet()) {
+            Map<String, Long> definingJars = entry.getValue();
+            if (definingJars.size() < 2) {
+                continue;
+            }
+            String className = entry.getKey().substring(0, entry.getKey().length() - ".class".length()).replace('/', '.');
+            List<String> jars = new ArrayList<>(definingJars.keySet());
+            if (new LinkedHashSet<>(definingJars.values()).size() == 1) {
+                duplicates.identical.put(className, jars);
+            } else {
+                duplicates.conflicting.put(className, jars);
+            }
+        }
+        return duplicates;
+    }
+
+    /**
+     * Log the duplicate classes grouped by set of jars.
+     */
+    public void reportDuplicateClasses(@Nonnull Duplicates duplicates) {
+        for (Map.Entry<List<String>, List<String>> group : groupByJars(duplicates.getConflicting()).entrySet()) {
+            List<String> classes = group.getValue();
+            logger.warn("{} conflicting classes (different versions) in {}: {}{}", classes.size(), group.getKey(),
+                    classes.subList(0, Math.min(5, classes.size())), classes.size() > 5 ? "..." : "");
+        }
+        for (Map.Entry<List<String>, List<String>> group : groupByJars(duplicates.getIdentical()).entrySet()) {
+            List<String> classes = group.getValue();
+            logger.info("{} duplicate classes (same version) in {}: {}{}", classes.size(), group.getKey(),
+                    classes.subList(0, Math.min(5, classes.size())), classes.size() > 5 ? "..." : "");
+        }
+    }
+
+    @Nonnull
+    private Map<List<String>, List<String>> groupByJars(@Nonnull Map<String, List<String>> classesToJars) {
+        Map<List<String>, List<String>> jarsToClasses = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> entry : classesToJars.entrySet()) {
+            List<String> classes = jarsToClasses.get(entry.getValue());
+            if (classes == null) {
+                classes = new ArrayList<>();
+                jarsToClasses.put(entry.getValue(), classes);
+            }
+            classes.add(entry.getKey());
+        }
+        return jarsToClasses;
+    }
+
+    /**
+     * Merge the unsigned jars of the given directory in {@link #MERGED_JAR_NAME} and delete them.
+     *
+     * @return the names of the merged jars
+     */
+    @Nonnull
+    public List<String> mergeJars(@Nonnull Path libDir) throws IOException {
+        List<Path> jars = new ArrayList<>();
+        for (Path jar : listJars(libDir)) {
+            if (jar.getFileName().toString().equals(MERGED_JAR_NAME)) {
+                continue;
+            }
+            if (isSigned(jar)) {
+                logger.info("Don't merge signed jar {}", jar.getFileName());
+            } else {
+                jars.add(jar);
+            }
+        }
+        List<String> mergedJars = new ArrayList<>();
+        if (jars.size() < 2) {
+            return mergedJars;
+        }
+
+        Set<String> writtenEntries = new LinkedHashSet<>();
+        Map<String, StringBuilder> services = new TreeMap<>();
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("Created-By", "tomcat-clickstack");
+
+        Path mergedJar = libDir.resolve(MERGED_JAR_NAME);
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(mergedJar), manifest)) {
+            writtenEntries.add("META-INF/");
+            writtenEntries.add(JarFile.MANIFEST_NAME);
+            for (Path jar : jars) {
+                try (ZipFile zipFile = new ZipFile(jar.toFile())) {
+                    Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                    while (entries.hasMoreElements()) {
+                        ZipEntry entry = entries.nextElement();
+                        String name = entry.getName();
+                        if (name.equals(JarFile.MANIFEST_NAME) || name.equals("META-INF/INDEX.LIST")) {
+                            continue;
+                        }
+                        if (name.startsWith("META-INF/services/") && !entry.isDirectory()) {
+                            StringBuilder service = services.get(name);
+                            if (service == null) {
+                                service = new StringBuilder();
+                                services.put(name, service);
+                            }
+                            try (InputStream in = zipFile.getInputStream(entry)) {
+                                service.append(new String(ByteStreams.toByteArray(in), Charsets.UTF_8)).append('\n');
+                            }
+                            continue;
+                        }
+                        if (!writtenEntries.add(name)) {
+                            continue;
+                        }
+                        JarEntry jarEntry = new JarEntry(name);
+                        jarEntry.setTime(entry.getTime());
+                        out.putNextEntry(jarEntry);
+                        if (!entry.isDirectory()) {
+                            try (InputStream in = zipFile.getInputStream(entry)) {
+                                ByteStreams.copy(in, out);
+                            }
+                        }
+                        out.closeEntry();
+                    }
+                }
+                mergedJars.add(jar.getFileName().toString());
+            }
+            for (Map.Entry<String, StringBuilder> service : services.entrySet()) {
+                out.putNextEntry(new JarEntry(service.getKey()));
+                out.write(service.getValue().toString().getBytes(Charsets.UTF_8));
+                out.closeEntry();
+            }
+            // keep track of the merged jars
+            out.putNextEntry(new JarEntry("META-INF/clickstack-merged-jars.txt"));
+            writeLines(mergedJars, out);
+            out.closeEntry();
+        }
+        for (Path jar : jars) {
+            Files.delete(jar);
+        }
+        logger.info("Merged {} jars of {} in {}: {}", mergedJars.size(), libDir, MERGED_JAR_NAME, mergedJars);
+        return mergedJars;
+    }
+
+    private void writeLines(@Nonnull List<String> lines, @Nonnull OutputStream out) throws IOException {
+        for (String line : lines) {
+            out.write((line + "\n").getBytes(Charsets.UTF_8));
+        }
+    }
+
+    protected boolean isSigned(@Nonnull Path jar) throws IOException {
+        try (ZipFile zipFile = new ZipFile(jar.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName().toUpperCase();
+                if (name.startsWith("META-INF/") && (name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Read-only access to a war (or any zip file) memory-mapped once and indexed with its central directory: looking up
+ * an entry does not scan the archive and the content of the entries is read from the page cache without intermediate
+ * stream nor temp file. Stored entries (e.g. the jars of {@code WEB-INF/lib} added without compression) are written
+ * with a single {@link FileChannel#write(ByteBuffer)}, deflated entries are inflated with a reused {@link Inflater}.
+ * <p/>
+ * ZIP64 archives (more than 65535 entries or larger than 4GB) and archives larger than 2GB are not supported, the
+ * constructor throws an {@link UnsupportedArchiveException}.
+ * <p/>
+ * Not thread safe.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class MappedWarArchive implements Closeable {
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The archive is valid but can not be memory-mapped or indexed, it must be read with {@link java.util.zip.ZipFile}.
+     */
+    public static class UnsupportedArchiveException extends IOException {
+        public UnsupportedArchiveException(String message) {
+            super(message);
+        }
+    }
+
+    static class Entry {
+        final String name;
+        final int method;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Path file;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Entries indexed by name in the order of the central directory
+     */
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private final Inflater inflater = new Inflater(true);
+
+    private final byte[] inputBuffer = new byte[BUFFER_SIZE];
+
+    private final byte[] outputBuffer = new byte[BUFFER_SIZE];
+
+    public MappedWarArchive(@Nonnull Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long fileSize = channel.size();
+            if (fileSize > Integer.MAX_VALUE) {
+                throw new UnsupportedArchiveException("Archive larger than 2GB not supported: " + file);
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+            readCentralDirectory();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        logger.debug("Indexed {} entries of {}", entries.size(), file);
+    }
+
+    private void readCentralDirectory() throws IOException {
+        int endOfCentralDirectory = -1;
+        // the end of central directory record is followed by a comment of at most 65535 bytes
+        int lowerBound = Math.max(0, buffer.capacity() - END_OF_CENTRAL_DIRECTORY_SIZE - 0xFFFF);
+        for (int i = buffer.capacity() - END_OF_CENTRAL_DIRECTORY_SIZE; i >= lowerBound; i--) {
+            if (buffer.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                endOfCentralDirectory = i;
+                break;
+            }
+        }
+        if (endOfCentralDirectory == -1) {
+            throw new IOException("End of central directory not found, not a zip file: " + file);
+        }
+        int entryCount = unsignedShort(endOfCentralDirectory + 10);
+        long centralDirectoryOffset = unsignedInt(endOfCentralDirectory + 16);
+        if (entryCount == 0xFFFF || centralDirectoryOffset == 0xFFFFFFFFL) {
+            throw new UnsupportedArchiveException("ZIP64 archive not supported: " + file);
+        }
+
+        int offset = (int) centralDirectoryOffset;
+        for (int i = 0; i < entryCount; i++) {
+            if (buffer.getInt(offset) != CENTRAL_DIRECTORY_SIGNATURE) {
+                throw new IOException("Corrupted central directory at offset " + offset + ": " + file);
+            }
+            int method = unsignedShort(offset + 10);
+            long compressedSize = unsignedInt(offset + 20);
+            long size = unsignedInt(offset + 24);
+            int nameLength = unsignedShort(offset + 28);
+            int extraLength = unsignedShort(offset + 30);
+            int commentLength = unsignedShort(offset + 32);
+            long localHeaderOffset = unsignedInt(offset + 42);
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL) {
+                throw new UnsupportedArchiveException("ZIP64 entry not supported: " + file);
+            }
+
+            byte[] nameBytes = new byte[nameLength];
+            ByteBuffer nameBuffer = buffer.duplicate();
+            nameBuffer.position(offset + 46);
+            nameBuffer.get(nameBytes);
+            String name = new String(nameBytes, Charsets.UTF_8);
+
+            entries.put(name, new Entry(name, method, compressedSize, size, localHeaderOffset));
+            offset += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    private int unsignedShort(int index) {
+        return buffer.getShort(index) & 0xFFFF;
+    }
+
+    private long unsignedInt(int index) {
+        return buffer.getInt(index) & 0xFFFFFFFFL;
+    }
+
+    @Nonnull
+    public Path getFile() {
+        return file;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isFile(@Nonnull String name) {
+        Entry entry = entries.get(name);
+        return entry != null && !entry.isDirectory();
+    }
+
+    /**
+     * @return {@code true} if the archive contains an entry for the given directory or entries in this directory (the
+     * directory entries are optional in a zip file)
+     */
+    public boolean isDirectory(@Nonnull String name) {
+        String prefix = name.endsWith("/") ? name : name + "/";
+        if (entries.containsKey(prefix)) {
+            return true;
+        }
+        for (String entryName : entries.keySet()) {
+            if (entryName.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy the given entry, replacing {@code target} if it exists.
+     */
+    public void copy(@Nonnull String name, @Nonnull Path target) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null || entry.isDirectory()) {
+            throw new IOException("File '" + name + "' not found in " + file);
+        }
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        write(entry, target);
+    }
+
+    /**
+     * Copy the files located under {@code directory} in {@code targetDir}, replacing the existing files.
+     *
+     * @return the number of copied files
+     */
+    public int copyDirectoryContent(@Nonnull String directory, @Nonnull Path targetDir) throws IOException {
+        String prefix = directory.endsWith("/") ? directory : directory + "/";
+        Set<Path> createdDirs = new HashSet<>();
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.name.startsWith(prefix) && entry.name.length() > prefix.length()) {
+                count += extract(entry, entry.name.substring(prefix.length()), targetDir, createdDirs);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Expand the whole archive in {@code targetDir}.
+     *
+     * @return the number of expanded files
+     */
+    public int extractTo(@Nonnull Path targetDir) throws IOException {
+        Set<Path> createdDirs = new HashSet<>();
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            count += extract(entry, entry.name, targetDir, createdDirs);
+        }
+        return count;
+    }
+
+    /**
+     * @param createdDirs directories already created, saves a {@code stat} per file
+     */
+    private int extract(@Nonnull Entry entry, @Nonnull String relativeName, @Nonnull Path targetDir,
+                        @Nonnull Set<Path> createdDirs) throws IOException {
+        Path normalizedTargetDir = targetDir.toAbsolutePath().normalize();
+        Path target = normalizedTargetDir.resolve(relativeName).normalize();
+        if (!target.startsWith(normalizedTargetDir) || target.equals(normalizedTargetDir)) {
+            throw new IOException("Entry '" + entry.name + "' is outside of the target directory " + targetDir);
+        }
+        if (entry.isDirectory()) {
+            if (createdDirs.add(target)) {
+                Files.createDirectories(target);
+            }
+            return 0;
+        }
+        Path parent = target.getParent();
+        if (createdDirs.add(parent)) {
+            Files.createDirectories(parent);
+        }
+        write(entry, target);
+        return 1;
+    }
+
+    private void write(@Nonnull Entry entry, @Nonnull Path target) throws IOException {
+        ByteBuffer data = data(entry);
+        switch (entry.method) {
+            case ZipEntry.STORED:
+                try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (data.hasRemaining()) {
+                        out.write(data);
+                    }
+                }
+                break;
+            case ZipEntry.DEFLATED:
+                try (OutputStream out = Files.newOutputStream(target)) {
+                    inflate(entry, data, out);
+                }
+                break;
+            default:
+                throw new IOException("Unsupported compression method " + entry.method + " for '" + entry.name + "' in " + file);
+        }
+    }
+
+    private void inflate(@Nonnull Entry entry, @Nonnull ByteBuffer data, @Nonnull OutputStream out) throws IOException {
+        inflater.reset();
+        long written = 0;
+        boolean endOfInput = false;
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (data.hasRemaining()) {
+                        int length = Math.min(inputBuffer.length, data.remaining());
+                        data.get(inputBuffer, 0, length);
+                        inflater.setInput(inputBuffer, 0, length);
+                    } else if (!endOfInput) {
+                        // the raw deflate format may need an extra dummy byte to detect the end of the stream
+                        inflater.setInput(new byte[1], 0, 1);
+                        endOfInput = true;
+                    } else {
+                        throw new IOException("Truncated entry '" + entry.name + "' in " + file);
+                    }
+                }
+                int inflated = inflater.inflate(outputBuffer);
+                if (inflated == 0 && inflater.needsDictionary()) {
+                    throw new IOException("Preset dictionary not supported for '" + entry.name + "' in " + file);
+                }
+                out.write(outputBuffer, 0, inflated);
+                written += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted entry '" + entry.name + "' in " + file, e);
+        }
+        if (written != entry.size) {
+            throw new IOException("Invalid size of entry '" + entry.name + "' in " + file + ", expected " + entry.size + " bytes, got " + written);
+        }
+    }
+
+    /**
+     * @return the compressed content of the entry, located after its local header
+     */
+    @Nonnull
+    private ByteBuffer data(@Nonnull Entry entry) throws IOException {
+        int localHeaderOffset = (int) entry.localHeaderOffset;
+        if (buffer.getInt(localHeaderOffset) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Corrupted local header of '" + entry.name + "' in " + file);
+        }
+        // the sizes of the local header may be zero (data descriptor), the central directory is authoritative
+        int dataOffset = localHeaderOffset + 30 + unsignedShort(localHeaderOffset + 26) + unsignedShort(localHeaderOffset + 28);
+        if (dataOffset + entry.compressedSize > buffer.capacity()) {
+            throw new IOException("Truncated entry '" + entry.name + "' in " + file);
+        }
+        ByteBuffer data = buffer.duplicate();
+        data.position(dataOffset);
+        data.limit(dataOffset + (int) entry.compressedSize);
+        return data;
+    }
+
+    /**
+     * The mapped buffer is released by the garbage collector, Java 7 does not offer an API to unmap it.
+     */
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "MappedWarArchive{file=" + file + ", entries=" + entries.size() + "}";
+    }
+}
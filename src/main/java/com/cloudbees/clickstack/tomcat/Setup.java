@@ -15,16 +15,27 @@
  */
 package com.cloudbees.clickstack.tomcat;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.InetAddress;
+import java.net.URISyntaxException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -43,11 +54,13 @@ import com.cloudbees.clickstack.plugin.java.JavaPluginResult;
 import com.cloudbees.clickstack.util.CommandLineUtils;
 import com.cloudbees.clickstack.util.Files2;
 import com.cloudbees.clickstack.util.Manifests;
+import com.cloudbees.clickstack.util.XmlUtils;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
 
 public class Setup {
 
@@ -76,26 +89,65 @@ public class Setup {
     final Path appExtraFilesDir;
     @Nonnull
     final Metadata metadata;
+    /**
+     * installs the jars of the clickstack, see {@code classpath.installMode}
+     */
     @Nonnull
+    final ArtifactInstaller artifactInstaller;
+    /**
+     * {@code null} when the setup is invoked by the benchmarks
+     */
+    @Nullable
     final Environment env;
     /**
      * initialised by {@link #installCatalinaHome()}
      */
     @Nullable
     Path catalinaHome;
+    /**
+     * initialised by {@link #installCatalinaBase()}
+     */
+    @Nullable
+    Path webAppDir;
+    /**
+     * initialised by {@link #setupOpenJpaProfile()}
+     */
+    @Nonnull
+    List<String> openJpaPersistenceUnits = new ArrayList<>();
+    /**
+     * initialised by {@link #installTomcatNative()}, {@code null} if the Tomcat native library is not used
+     */
+    @Nullable
+    Path tomcatNativeLibraryDir;
 
     public Setup(@Nonnull
     Environment env, @Nonnull
     Metadata metadata, @Nonnull
+    Path javaHome) throws IOException {
+        this(env, env.appDir, env.genappDir, env.controlDir, env.clickstackDir, env.packageDir, metadata, javaHome);
+    }
+
+    /**
+     * Used by the benchmarks without genapp {@link Environment}, {@link #writeConfig()} and
+     * {@link #installEnvClickstackProvided()} require the environment.
+     */
+    Setup(@Nullable
+    Environment env, @Nonnull
+    Path appDir, @Nonnull
+    Path genappDir, @Nonnull
+    Path controlDir, @Nonnull
+    Path clickstackDir, @Nonnull
+    Path packageDir, @Nonnull
+    Metadata metadata, @Nonnull
     Path javaHome) throws IOException {
         logger.info("Setup: {}, {}", env, metadata);
 
         this.env = env;
-        appDir = env.appDir;
+        this.appDir = appDir;
 
-        genappDir = env.genappDir;
+        this.genappDir = genappDir;
 
-        controlDir = env.controlDir;
+        this.controlDir = controlDir;
         logDir = Files.createDirectories(genappDir.resolve("log"));
         Files2.chmodAddReadWrite(logDir);
 
@@ -106,10 +158,10 @@ public class Setup {
         tmpDir = Files.createDirectories(appDir.resolve("tmp"));
         Files2.chmodAddReadWrite(tmpDir);
 
-        clickstackDir = env.clickstackDir;
+        this.clickstackDir = clickstackDir;
         Preconditions.checkState(Files.exists(clickstackDir) && Files.isDirectory(clickstackDir));
 
-        warFile = env.packageDir.resolve("app.war");
+        warFile = packageDir.resolve("app.war");
         Preconditions.checkState(Files.exists(warFile), "File not found %s", warFile);
         Preconditions.checkState(!Files.isDirectory(warFile), "Expected to be a file and not a directory %s", warFile);
 
@@ -117,6 +169,7 @@ public class Setup {
         Files2.chmodAddReadWrite(appExtraFilesDir);
 
         this.metadata = metadata;
+        artifactInstaller = ArtifactInstaller.forMode(metadata.getRuntimeParameter("classpath", "installMode", "link"));
 
         this.javaHome = Preconditions.checkNotNull(javaHome, "javaHome");
         Preconditions.checkArgument(Files.exists(javaHome), "JavaHome does not exist %s", javaHome);
@@ -159,16 +212,34 @@ public class Setup {
         installCatalinaHome();
         installSkeleton();
         Path catalinaBase = installCatalinaBase();
+        consolidateCatalinaBaseLib();
+        disableUnusedTomEEServices();
+        setupOpenJpaProfile();
         installEnvClickstackProvided();
         installCloudBeesJavaAgent();
         installJmxTransAgent();
         writeJavaOpts();
+        installGcLogging();
         writeConfig();
         installControlScripts();
         installTomcatJavaOpts();
+        installTomcatNative();
+        installOffHeapSessionsJavaOpts();
+        checkSessionClusterDistributable();
 
-        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata, getJavaMajorVersion());
+        setupTomcatConfigurationFiles.setAprLibraryDir(tomcatNativeLibraryDir);
+        setupTomcatConfigurationFiles.setLogDir(logDir);
         setupTomcatConfigurationFiles.buildTomcatConfigurationFiles(catalinaBase);
+
+        SetupTomcatMetricsConfigurationFile setupTomcatMetricsConfigurationFile = new SetupTomcatMetricsConfigurationFile(metadata);
+        setupTomcatMetricsConfigurationFile.setOpenJpaPersistenceUnits(openJpaPersistenceUnits);
+        String webAppDirName = webAppDir.getFileName().toString();
+        setupTomcatMetricsConfigurationFile.setContextPath("ROOT".equals(webAppDirName) ? "/" : "/" + webAppDirName);
+        setupTomcatMetricsConfigurationFile.buildTomcatMetricsConfigurationFile(catalinaBase);
+        logger.info("Clickstack jars installed with mode {}: {} hard linked, {} reflinked, {} copied, {} bytes saved, {} bytes copied",
+                artifactInstaller.getMode(), artifactInstaller.getLinkedFileCount(), artifactInstaller.getReflinkedFileCount(),
+                artifactInstaller.getCopiedFileCount(), artifactInstaller.getSavedBytes(), artifactInstaller.getCopiedBytes());
         logger.info("Clickstack successfully installed");
     }
 
@@ -190,6 +261,116 @@ public class Setup {
         Files.write(optsFile, Collections.singleton(opts), Charsets.UTF_8);
     }
 
+    /**
+     * If {@code tomcat.apr=auto}, look for a Tomcat native library usable by the JVM of the application and add its
+     * directory to the {@code java.library.path}.
+     */
+    public void installTomcatNative() throws IOException {
+        Path optsFile = controlDir.resolve("java-opts-25-tomcat-native");
+        logger.debug("installTomcatNative() {}", optsFile);
+
+        if (!"auto".equals(metadata.getRuntimeParameter("tomcat", "apr", "false"))) {
+            return;
+        }
+
+        List<String> candidateDirs = new ArrayList<>();
+        String libraryPath = metadata.getRuntimeParameter("tomcat", "apr.libraryPath", null);
+        if (libraryPath != null) {
+            candidateDirs.addAll(Arrays.asList(libraryPath.split(":")));
+        }
+        String ldLibraryPath = System.getenv("LD_LIBRARY_PATH");
+        if (ldLibraryPath != null) {
+            candidateDirs.addAll(Arrays.asList(ldLibraryPath.split(":")));
+        }
+        candidateDirs.addAll(Arrays.asList("/usr/lib/x86_64-linux-gnu", "/usr/lib64", "/usr/lib", "/usr/local/apr/lib",
+                "/usr/local/lib"));
+
+        for (String candidateDir : candidateDirs) {
+            if (candidateDir.isEmpty()) {
+                continue;
+            }
+            Path libraryDir = Paths.get(candidateDir);
+            if (!Files.exists(libraryDir.resolve("libtcnative-1.so"))) {
+                logger.debug("No libtcnative-1.so in {}", libraryDir);
+                continue;
+            }
+            if (isTomcatNativeUsable(libraryDir)) {
+                tomcatNativeLibraryDir = libraryDir;
+                String opts = "-Djava.library.path=\"" + libraryDir + "\"";
+                Files.write(optsFile, Collections.singleton(opts), Charsets.UTF_8);
+                return;
+            }
+        }
+        logger.info("No usable Tomcat native library (libtcnative-1.so) found in {}, use the NIO connector", candidateDirs);
+    }
+
+    /**
+     * Reserve the direct memory of the {@code OffHeapSessionManager} (capacity plus 64 MB for the NIO buffers) unless
+     * {@code -XX:MaxDirectMemorySize} is given in {@code java.opts}, the default limit is the max heap size.
+     */
+    public void installOffHeapSessionsJavaOpts() throws IOException {
+        Path optsFile = controlDir.resolve("java-opts-26-offheap-sessions");
+        logger.debug("installOffHeapSessionsJavaOpts() {}", optsFile);
+
+        if (!SetupTomcatConfigurationFiles.isOffHeapSessions(metadata)) {
+            return;
+        }
+        if (metadata.getRuntimeParameter("java", "opts", "").contains("-XX:MaxDirectMemorySize")) {
+            logger.info("MaxDirectMemorySize already configured by 'java.opts'");
+            return;
+        }
+        int capacityInMegabytes = Integer.parseInt(SetupTomcatConfigurationFiles.getOffHeapSessionsCapacityInMegabytes(metadata));
+        String opts = "-XX:MaxDirectMemorySize=" + (capacityInMegabytes + 64) + "m";
+        Files.write(optsFile, Collections.singleton(opts), Charsets.UTF_8);
+    }
+
+    /**
+     * Tomcat only replicates the sessions of the applications declaring {@code <distributable/>} in their
+     * {@code web.xml}, the sessions of the others stay local to the instance.
+     */
+    public void checkSessionClusterDistributable() throws IOException {
+        Path webXml = webAppDir.resolve("WEB-INF/web.xml");
+        logger.debug("checkSessionClusterDistributable() {}", webXml);
+
+        if (!SetupTomcatConfigurationFiles.isSessionCluster(metadata)) {
+            return;
+        }
+        if (!Files.exists(webXml) || XmlUtils.loadXmlDocumentFromFile(webXml.toFile()).getElementsByTagName("distributable").getLength() == 0) {
+            logger.warn("sessionCluster enabled but the application does not declare <distributable/> in WEB-INF/web.xml, " +
+                    "its sessions will not be replicated");
+        }
+    }
+
+    /**
+     * Load the Tomcat native library of the given directory in the JVM of the application.
+     */
+    protected boolean isTomcatNativeUsable(@Nonnull Path libraryDir) throws IOException {
+        String classpath = catalinaBase.resolve("lib") + File.separator + "*" + File.pathSeparator
+                + catalinaHome.resolve("lib") + File.separator + "*" + File.pathSeparator
+                + catalinaHome.resolve("bin/tomcat-juli.jar");
+        List<String> command = Arrays.asList(javaHome.resolve("bin/java").toString(),
+                "-Djava.library.path=" + libraryDir, "-cp", classpath, "com.cloudbees.tomcat.util.AprProbe");
+        logger.debug("Probe Tomcat native library: {}", command);
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(ByteStreams.toByteArray(process.getInputStream()), Charsets.UTF_8).trim();
+        int exitCode;
+        try {
+            exitCode = process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroy();
+            return false;
+        }
+        if (exitCode == 0) {
+            logger.info("Use Tomcat native library of {}: {}", libraryDir, output);
+            return true;
+        } else {
+            logger.info("Tomcat native library of {} is not usable:\n{}", libraryDir, output);
+            return false;
+        }
+    }
+
     public void installCatalinaHome() throws Exception {
 
         Path tomcatPackagePath = Files2.findArtifact(clickstackDir, "apache-tomee", "zip");
@@ -233,41 +414,50 @@ public class Setup {
 
         // WEB APP
         Path rootWebAppDir = Files.createDirectories(catalinaBase.resolve("webapps").resolve(contextPath));
-        Files2.unzip(warFile, rootWebAppDir);
-
-        // CONFIGURATION FILES
-        Path webAppBundledContextXmlFile = rootWebAppDir.resolve("META-INF/context.xml");
-        Path catalinaBaseContextXml = catalinaBase.resolve("conf/context.xml");
-        if (Files.exists(webAppBundledContextXmlFile) && !Files.isDirectory(webAppBundledContextXmlFile)) {
-            logger.info("Copy application provided context.xml");
-            Files.move(catalinaBaseContextXml, catalinaBase.resolve("conf/context-initial.xml"));
-            Files.copy(webAppBundledContextXmlFile, catalinaBaseContextXml);
-        }
+        // TomEE expands the packed wars at deployment time (unpackWARs="false" is not honored), expand it beforehand
+        try (MappedWarArchive war = new MappedWarArchive(warFile)) {
+            int fileCount = war.extractTo(rootWebAppDir);
+            logger.debug("Expanded {} files of {} in {}", fileCount, warFile, rootWebAppDir);
+            webAppDir = rootWebAppDir;
+
+            // CONFIGURATION FILES
+            Path catalinaBaseContextXml = catalinaBase.resolve("conf/context.xml");
+            if (war.isFile("META-INF/context.xml")) {
+                logger.info("Copy application provided context.xml");
+                Files.move(catalinaBaseContextXml, catalinaBase.resolve("conf/context-initial.xml"));
+                war.copy("META-INF/context.xml", catalinaBaseContextXml);
+            }
 
-        Path webAppBundledServerXmlFile = rootWebAppDir.resolve("META-INF/server.xml");
-        Path catalinaBaseServerXml = catalinaBase.resolve("conf/server.xml");
-        if (Files.exists(webAppBundledServerXmlFile) && !Files.isDirectory(webAppBundledServerXmlFile)) {
-            logger.info("Copy application provided server.xml");
-            Files.move(catalinaBaseServerXml, catalinaBase.resolve("conf/server-initial.xml"));
-            Files.copy(webAppBundledServerXmlFile, catalinaBaseServerXml);
-        }
+            Path catalinaBaseServerXml = catalinaBase.resolve("conf/server.xml");
+            if (war.isFile("META-INF/server.xml")) {
+                logger.info("Copy application provided server.xml");
+                Files.move(catalinaBaseServerXml, catalinaBase.resolve("conf/server-initial.xml"));
+                war.copy("META-INF/server.xml", catalinaBaseServerXml);
+            }
 
-        Path webAppBundledExtraFiles = rootWebAppDir.resolve("META-INF/extra-files");
-        if (Files.exists(webAppBundledExtraFiles) && Files.isDirectory(webAppBundledExtraFiles)) {
-            logger.info("Copy application provided extra files");
-            Files2.copyDirectoryContent(webAppBundledExtraFiles, appExtraFilesDir);
-        }
+            if (war.isDirectory("META-INF/extra-files")) {
+                logger.info("Copy application provided extra files");
+                war.copyDirectoryContent("META-INF/extra-files", appExtraFilesDir);
+            }
 
-        Path webAppBundledExtraLibs = rootWebAppDir.resolve("META-INF/lib");
-        if (Files.exists(webAppBundledExtraLibs) && Files.isDirectory(webAppBundledExtraLibs)) {
-            logger.info("Copy application provided extra libs");
-            Files2.copyDirectoryContent(webAppBundledExtraLibs, catalinaBase.resolve("lib"));
+            if (war.isDirectory("META-INF/lib")) {
+                logger.info("Copy application provided extra libs");
+                war.copyDirectoryContent("META-INF/lib", catalinaBase.resolve("lib"));
+            }
+        } catch (MappedWarArchive.UnsupportedArchiveException e) {
+            // thrown by the constructor only, nothing has been expanded
+            logger.info("{}, expand it with Files2.unzip", e.getMessage());
+            Files2.unzip(warFile, rootWebAppDir);
+            webAppDir = rootWebAppDir;
+            copyWebAppBundledFiles(rootWebAppDir);
         }
 
         // LIBRARIES
 
         Path targetLibDir = Files.createDirectories(catalinaBase.resolve("lib"));
-        Files2.copyDirectoryContent(clickstackDir.resolve("deps/tomcat-lib"), targetLibDir);
+        // before the installation of the jars: the hard linked jars share their inode with the jars of the clickstack
+        Files2.chmodAddReadWrite(catalinaBase);
+        artifactInstaller.installDirectoryContent(clickstackDir.resolve("deps/tomcat-lib"), targetLibDir);
 
         // JDBC Drivers
         Collection<Database> mysqlDatabases = Collections2.filter(metadata.getResources(Database.class),
@@ -280,7 +470,7 @@ public class Setup {
                 });
         if (!mysqlDatabases.isEmpty()) {
             logger.debug("Add mysql jars");
-            Files2.copyDirectoryContent(clickstackDir.resolve("deps/tomcat-lib-mysql"), targetLibDir);
+            artifactInstaller.installDirectoryContent(clickstackDir.resolve("deps/tomcat-lib-mysql"), targetLibDir);
         }
 
         Collection<Database> postgresqlDatabases = Collections2.filter(metadata.getResources(Database.class),
@@ -292,30 +482,122 @@ public class Setup {
                     }
                 });
         if (!postgresqlDatabases.isEmpty()) {
-            Files2.copyDirectoryContent(clickstackDir.resolve("deps/tomcat-lib-postgresql"), targetLibDir);
+            artifactInstaller.installDirectoryContent(clickstackDir.resolve("deps/tomcat-lib-postgresql"), targetLibDir);
         }
 
         // Mail
         if (!metadata.getResources(Email.class).isEmpty()) {
             logger.debug("Add mail jars");
-            Files2.copyDirectoryContent(clickstackDir.resolve("deps/tomcat-lib-mail"), targetLibDir);
+            artifactInstaller.installDirectoryContent(clickstackDir.resolve("deps/tomcat-lib-mail"), targetLibDir);
         }
 
         // Memcache
         if (!metadata.getResources(SessionStore.class).isEmpty()) {
             logger.debug("Add memcache jars");
-            Files2.copyDirectoryContent(clickstackDir.resolve("deps/tomcat-lib-memcache"), targetLibDir);
+            artifactInstaller.installDirectoryContent(clickstackDir.resolve("deps/tomcat-lib-memcache"), targetLibDir);
         }
 
-        Files2.chmodAddReadWrite(catalinaBase);
-
         return catalinaBase;
     }
 
+    /**
+     * Copy the configuration files and the extra files and libs of the {@code META-INF} directory of the expanded
+     * application.
+     */
+    private void copyWebAppBundledFiles(Path rootWebAppDir) throws IOException {
+        Path webAppBundledContextXmlFile = rootWebAppDir.resolve("META-INF/context.xml");
+        Path catalinaBaseContextXml = catalinaBase.resolve("conf/context.xml");
+        if (Files.exists(webAppBundledContextXmlFile) && !Files.isDirectory(webAppBundledContextXmlFile)) {
+            logger.info("Copy application provided context.xml");
+            Files.move(catalinaBaseContextXml, catalinaBase.resolve("conf/context-initial.xml"));
+            Files.copy(webAppBundledContextXmlFile, catalinaBaseContextXml);
+        }
+
+        Path webAppBundledServerXmlFile = rootWebAppDir.resolve("META-INF/server.xml");
+        Path catalinaBaseServerXml = catalinaBase.resolve("conf/server.xml");
+        if (Files.exists(webAppBundledServerXmlFile) && !Files.isDirectory(webAppBundledServerXmlFile)) {
+            logger.info("Copy application provided server.xml");
+            Files.move(catalinaBaseServerXml, catalinaBase.resolve("conf/server-initial.xml"));
+            Files.copy(webAppBundledServerXmlFile, catalinaBaseServerXml);
+        }
+
+        Path webAppBundledExtraFiles = rootWebAppDir.resolve("META-INF/extra-files");
+        if (Files.exists(webAppBundledExtraFiles) && Files.isDirectory(webAppBundledExtraFiles)) {
+            logger.info("Copy application provided extra files");
+            Files2.copyDirectoryContent(webAppBundledExtraFiles, appExtraFilesDir);
+        }
+
+        Path webAppBundledExtraLibs = rootWebAppDir.resolve("META-INF/lib");
+        if (Files.exists(webAppBundledExtraLibs) && Files.isDirectory(webAppBundledExtraLibs)) {
+            logger.info("Copy application provided extra libs");
+            Files2.copyDirectoryContent(webAppBundledExtraLibs, catalinaBase.resolve("lib"));
+        }
+    }
+
+    /**
+     * Report the classes defined by several jars of the common class loader ({@code catalina-base/lib} and
+     * {@code catalina-home/lib}) and, if {@code classpath.mergeLib=true}, merge the jars of {@code catalina-base/lib}
+     * in a single jar.
+     */
+    public void consolidateCatalinaBaseLib() throws IOException {
+        Path libDir = catalinaBase.resolve("lib");
+        logger.debug("consolidateCatalinaBaseLib() {}", libDir);
+        Preconditions.checkState(catalinaHome != null, "catalinaHome not initialised by installCatalinaHome()");
+
+        LibDirectoryConsolidator consolidator = new LibDirectoryConsolidator();
+        if (Boolean.valueOf(metadata.getRuntimeParameter("classpath", "checkDuplicates", "true"))) {
+            consolidator.reportDuplicateClasses(consolidator.findDuplicateClasses(Arrays.asList(libDir, catalinaHome.resolve("lib"))));
+        }
+        if (Boolean.valueOf(metadata.getRuntimeParameter("classpath", "mergeLib", "false"))) {
+            consolidator.mergeJars(libDir);
+        }
+    }
+
+    /**
+     * Inspect the web application and disable in {@code conf/system.properties} the TomEE services it does not use.
+     */
+    public void disableUnusedTomEEServices() throws IOException {
+        logger.debug("disableUnusedTomEEServices() {}", webAppDir);
+        Preconditions.checkState(webAppDir != null, "webAppDir not initialised by installCatalinaBase()");
+
+        if (!Boolean.valueOf(metadata.getRuntimeParameter("tomee", "disableUnusedServices", "true"))) {
+            logger.info("Analysis of the web application to disable unused TomEE services is disabled");
+            return;
+        }
+
+        WebAppContentAnalyzer analyzer = new WebAppContentAnalyzer();
+        WebAppContentAnalyzer.Analysis analysis = analyzer.analyze(webAppDir);
+        logger.info("Web application uses {}", analysis.getFeatures());
+
+        Map<String, String> reasons = new LinkedHashMap<>();
+        boolean excludePassiveJars = Boolean.valueOf(metadata.getRuntimeParameter("tomee", "excludePassiveJars", "false"));
+        Map<String, String> systemProperties = analyzer.getSystemPropertiesDisablingUnusedServices(analysis, excludePassiveJars, reasons);
+        if (Boolean.valueOf(metadata.getRuntimeParameter("tomee", "disableOpenEjbJmx", "false"))) {
+            systemProperties.put("openejb.jmx.active", "false");
+            reasons.put("openejb.jmx.active", "tomee.disableOpenEjbJmx=true");
+        }
+        for (Map.Entry<String, String> systemProperty : systemProperties.entrySet()) {
+            logger.info("Set {}={}: {}", systemProperty.getKey(), systemProperty.getValue(), reasons.get(systemProperty.getKey()));
+        }
+        SetupTomcatConfigurationFiles.appendSystemProperties(catalinaBase.resolve("conf/system.properties"), systemProperties);
+    }
+
+    /**
+     * Apply the OpenJPA performance profile to the persistence units bound to the metadata databases.
+     */
+    public void setupOpenJpaProfile() throws IOException {
+        logger.debug("setupOpenJpaProfile() {}", webAppDir);
+        Preconditions.checkState(catalinaHome != null, "catalinaHome not initialised by installCatalinaHome()");
+        Preconditions.checkState(webAppDir != null, "webAppDir not initialised by installCatalinaBase()");
+
+        SetupOpenJpaProfile openJpaProfile = new SetupOpenJpaProfile(metadata, javaHome, catalinaHome, catalinaBase, webAppDir);
+        openJpaPersistenceUnits = openJpaProfile.setup();
+    }
+
     public void installJmxTransAgent() throws IOException {
         logger.debug("installJmxTransAgent() {}", agentLibDir);
 
-        Path jmxtransAgentJarFile = Files2.copyArtifactToDirectory(clickstackDir.resolve("deps/javaagent-lib"),
+        Path jmxtransAgentJarFile = artifactInstaller.installArtifactToDirectory(clickstackDir.resolve("deps/javaagent-lib"),
                 "jmxtrans-agent", agentLibDir);
         Path jmxtransAgentConfigurationFile = catalinaBase.resolve("conf/tomcat-metrics.xml");
         Preconditions.checkState(Files.exists(jmxtransAgentConfigurationFile), "File %s does not exist",
@@ -328,13 +610,20 @@ public class Setup {
                 + jmxtransAgentConfigurationFile.toString() + " -Dtomcat_metrics_data_file="
                 + jmxtransAgentDataFile.toString();
 
+        if (SetupTomcatMetricsConfigurationFile.getPushProtocol(metadata) != null) {
+            // the PushOutputWriter must be on the system class path before the jmxtrans-agent starts
+            Path jmxtransExtrasJarFile = artifactInstaller.installArtifactToDirectory(clickstackDir.resolve("deps/javaagent-lib"),
+                    "clickstack-jmxtrans-extras", agentLibDir);
+            agentOptsFileData = "-javaagent:" + jmxtransExtrasJarFile.toString() + " " + agentOptsFileData;
+        }
+
         Files.write(agentOptsFile, Collections.singleton(agentOptsFileData), Charsets.UTF_8);
     }
 
     public void installCloudBeesJavaAgent() throws IOException {
         logger.debug("installCloudBeesJavaAgent() {}", agentLibDir);
 
-        Path cloudbeesJavaAgentJarFile = Files2.copyArtifactToDirectory(clickstackDir.resolve("deps/javaagent-lib"),
+        Path cloudbeesJavaAgentJarFile = artifactInstaller.installArtifactToDirectory(clickstackDir.resolve("deps/javaagent-lib"),
                 "cloudbees-clickstack-javaagent", agentLibDir);
         Path agentOptsFile = controlDir.resolve("java-opts-20-javaagent");
 
@@ -364,6 +653,72 @@ public class Setup {
         Files.write(javaOptsFile, Collections.singleton(javaOpts), Charsets.UTF_8);
     }
 
+    /**
+     * Enable rotating GC logs in {@code $log_dir/gc.log*}, summarized by the {@code stats-appstat} control script.
+     */
+    public void installGcLogging() throws IOException {
+        Path gcOptsFile = controlDir.resolve("java-opts-30-gc-logs");
+        logger.debug("installGcLogging() {}", gcOptsFile);
+
+        if (!Boolean.valueOf(metadata.getRuntimeParameter("java", "gcLog", "true"))) {
+            logger.info("GC logs disabled");
+            return;
+        }
+        String javaOpts = metadata.getRuntimeParameter("java", "opts", "");
+        if (javaOpts.contains("-Xloggc") || javaOpts.contains("-Xlog:gc")) {
+            logger.info("GC logs already configured by 'java.opts', don't enable them");
+            return;
+        }
+
+        String fileCount = metadata.getRuntimeParameter("java", "gcLog.fileCount", "5");
+        String fileSize = metadata.getRuntimeParameter("java", "gcLog.fileSize", "10M");
+        Path gcLogFile = logDir.resolve("gc.log");
+
+        String opts;
+        if (getJavaMajorVersion() >= 9) {
+            opts = "\"-Xlog:gc*:file=" + gcLogFile + ":time,uptime,level,tags:filecount=" + fileCount + ",filesize="
+                    + fileSize + "\"";
+        } else {
+            opts = "-Xloggc:\"" + gcLogFile + "\" " + "-XX:+PrintGCDetails -XX:+PrintGCDateStamps "
+                    + "-XX:+PrintGCTimeStamps -XX:+UseGCLogFileRotation -XX:NumberOfGCLogFiles=" + fileCount + " "
+                    + "-XX:GCLogFileSize=" + fileSize;
+        }
+        Files.write(gcOptsFile, Collections.singleton(opts), Charsets.UTF_8);
+    }
+
+    /**
+     * @return the major version of the JVM of the application ({@code 7}, {@code 8}, {@code 11}...) read in
+     * {@code $JAVA_HOME/release}, fallback on the {@code java.version} runtime parameter.
+     */
+    public int getJavaMajorVersion() {
+        String version = null;
+        Path releaseFile = javaHome.resolve("release");
+        if (Files.exists(releaseFile)) {
+            try {
+                Properties release = new Properties();
+                try (InputStream in = Files.newInputStream(releaseFile)) {
+                    release.load(in);
+                }
+                version = release.getProperty("JAVA_VERSION");
+            } catch (IOException e) {
+                logger.warn("Exception reading {}", releaseFile, e);
+            }
+        }
+        if (version == null) {
+            version = metadata.getRuntimeParameter("java", "version", "1.7");
+        }
+        version = version.replace("\"", "").trim();
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        Matcher matcher = Pattern.compile("^(\\d+)").matcher(version);
+        if (!matcher.find()) {
+            logger.warn("Unexpected java version '{}', assume 7", version);
+            return 7;
+        }
+        return Integer.parseInt(matcher.group(1));
+    }
+
     public void writeConfig() throws IOException {
 
         Path configFile = controlDir.resolve("config");
@@ -377,6 +732,8 @@ public class Setup {
         writer.println("log_dir=\"" + logDir + "\"");
         writer.println("catalina_home=\"" + catalinaHome + "\"");
         writer.println("catalina_base=\"" + catalinaBase + "\"");
+        String webAppDirName = webAppDir.getFileName().toString();
+        writer.println("context_path=\"" + ("ROOT".equals(webAppDirName) ? "/" : "/" + webAppDirName) + "\"");
 
         writer.println("port=" + env.appPort);
 
@@ -425,10 +782,26 @@ public class Setup {
         Path genappLibDir = genappDir.resolve("lib");
         Files.createDirectories(genappLibDir);
 
-        Path jmxInvokerPath = Files2.copyArtifactToDirectory(clickstackDir.resolve("deps/control-lib"),
+        Path jmxInvokerPath = artifactInstaller.installArtifactToDirectory(clickstackDir.resolve("deps/control-lib"),
                 "cloudbees-jmx-invoker", genappLibDir);
         // create symlink without version to simplify jmx_invoker script
         Files.createSymbolicLink(genappLibDir.resolve("cloudbees-jmx-invoker-jar-with-dependencies.jar"),
                 jmxInvokerPath);
+
+        // clickstack jar for the control scripts tools (e.g. GcLogSummary invoked by stats-appstat)
+        Path clickstackJar;
+        try {
+            clickstackJar = Paths.get(Setup.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("Exception locating the clickstack jar", e);
+        }
+        if (Files.isRegularFile(clickstackJar)) {
+            Path clickstackJarCopy = Files.copy(clickstackJar, genappLibDir.resolve(clickstackJar.getFileName()));
+            // create symlink without version to simplify control scripts
+            Files.createSymbolicLink(genappLibDir.resolve("clickstack.jar"), clickstackJarCopy);
+        } else {
+            logger.warn("Clickstack classes are not packaged in a jar ({}), control scripts tools won't be available",
+                    clickstackJar);
+        }
     }
 }
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.cloudbees.clickstack.domain.metadata.Database;
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Optional OpenJPA performance profile for the persistence units of {@code WEB-INF/classes/META-INF/persistence.xml}
+ * bound to the {@code jdbc/<name>} data sources generated for the metadata databases:
+ * <ul>
+ * <li>build time enhancement of the entities found in {@code WEB-INF/classes},</li>
+ * <li>query compilation cache,</li>
+ * <li>bounded data cache and query cache with JMX instrumentation.</li>
+ * </ul>
+ * The configuration is applied with the {@code <unit-name>.<property>} system properties that TomEE uses to
+ * override the properties of {@code persistence.xml}.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class SetupOpenJpaProfile {
+
+    private static final String[] ENTITY_MARKERS = {"Ljavax/persistence/Entity;", "Ljavax/persistence/MappedSuperclass;", "Ljavax/persistence/Embeddable;"};
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Metadata metadata;
+    private final Path javaHome;
+    private final Path catalinaHome;
+    private final Path catalinaBase;
+    private final Path webAppDir;
+
+    public SetupOpenJpaProfile(@Nonnull Metadata metadata, @Nonnull Path javaHome, @Nonnull Path catalinaHome,
+                               @Nonnull Path catalinaBase, @Nonnull Path webAppDir) {
+        this.metadata = metadata;
+        this.javaHome = javaHome;
+        this.catalinaHome = catalinaHome;
+        this.catalinaBase = catalinaBase;
+        this.webAppDir = webAppDir;
+    }
+
+    public boolean isEnabled() {
+        return Boolean.valueOf(metadata.getRuntimeParameter("openjpa", "enabled", "false"));
+    }
+
+    /**
+     * @return the names of the persistence units to which the profile has been applied
+     */
+    @Nonnull
+    public List<String> setup() throws IOException {
+        List<String> persistenceUnits = new ArrayList<>();
+        if (!isEnabled()) {
+            return persistenceUnits;
+        }
+        Path persistenceXml = webAppDir.resolve("WEB-INF/classes/META-INF/persistence.xml");
+        if (!Files.exists(persistenceXml)) {
+            logger.info("OpenJPA profile: no {} found, skip", webAppDir.relativize(persistenceXml));
+            return persistenceUnits;
+        }
+
+        for (Map.Entry<String, String> unit : getPersistenceUnitsDataSources(persistenceXml).entrySet()) {
+            Database database = findDatabase(unit.getValue());
+            if (database == null) {
+                logger.info("OpenJPA profile: skip persistence unit '{}' not bound to a metadata database ({})", unit.getKey(), unit.getValue());
+            } else {
+                logger.info("OpenJPA profile: apply to persistence unit '{}' bound to database '{}'", unit.getKey(), database.getName());
+                persistenceUnits.add(unit.getKey());
+            }
+        }
+        if (persistenceUnits.isEmpty()) {
+            return persistenceUnits;
+        }
+
+        boolean enhanced = false;
+        if (Boolean.valueOf(metadata.getRuntimeParameter("openjpa", "buildTimeEnhancement", "true"))) {
+            enhanced = enhanceEntities();
+        }
+
+        Map<String, String> systemProperties = new LinkedHashMap<>();
+        for (String unit : persistenceUnits) {
+            systemProperties.putAll(getPersistenceUnitSystemProperties(unit, enhanced));
+        }
+        SetupTomcatConfigurationFiles.appendSystemProperties(catalinaBase.resolve("conf/system.properties"), systemProperties);
+        return persistenceUnits;
+    }
+
+    @Nonnull
+    protected Map<String, String> getPersistenceUnitSystemProperties(@Nonnull String unit, boolean enhanced) {
+        String dataCacheSize = metadata.getRuntimeParameter("openjpa", "dataCache.size", "1000");
+        String queryCacheSize = metadata.getRuntimeParameter("openjpa", "queryCache.size", "1000");
+        String dataCacheEvictionSchedule = metadata.getRuntimeParameter("openjpa", "dataCache.evictionSchedule", null);
+
+        Map<String, String> systemProperties = new LinkedHashMap<>();
+        systemProperties.put(unit + ".openjpa.QueryCompilationCache", "true");
+        // SoftReferenceSize=0: evicted objects are released, the caches are bounded by CacheSize
+        systemProperties.put(unit + ".openjpa.DataCache", "true(CacheSize=" + dataCacheSize + ", SoftReferenceSize=0" +
+                (dataCacheEvictionSchedule == null ? "" : ", EvictionSchedule='" + dataCacheEvictionSchedule + "'") + ")");
+        systemProperties.put(unit + ".openjpa.QueryCache", "true(CacheSize=" + queryCacheSize + ", SoftReferenceSize=0)");
+        systemProperties.put(unit + ".openjpa.RemoteCommitProvider", "sjvm");
+        // expose the cache statistics for tomcat-metrics.xml
+        systemProperties.put(unit + ".openjpa.Instrumentation", "jmx(Instrument='DataCache,QueryCache')");
+        if (enhanced) {
+            systemProperties.put(unit + ".openjpa.RuntimeUnenhancedClasses", "unsupported");
+        }
+        return systemProperties;
+    }
+
+    /**
+     * @return the {@code jta-data-source} (or {@code non-jta-data-source}) of each persistence unit
+     */
+    @Nonnull
+    protected Map<String, String> getPersistenceUnitsDataSources(@Nonnull Path persistenceXml) throws IOException {
+        Map<String, String> result = new LinkedHashMap<>();
+        Document document;
+        try (InputStream in = Files.newInputStream(persistenceXml)) {
+            document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+        } catch (Exception e) {
+            throw new IOException("Exception parsing " + persistenceXml, e);
+        }
+        NodeList units = document.getElementsByTagName("persistence-unit");
+        for (int i = 0; i < units.getLength(); i++) {
+            Element unit = (Element) units.item(i);
+            String dataSource = getChildText(unit, "jta-data-source");
+            if (dataSource == null) {
+                dataSource = getChildText(unit, "non-jta-data-source");
+            }
+            result.put(unit.getAttribute("name"), dataSource == null ? "" : dataSource);
+        }
+        return result;
+    }
+
+    @Nullable
+    private String getChildText(@Nonnull Element element, @Nonnull String childName) {
+        NodeList children = element.getElementsByTagName(childName);
+        if (children.getLength() == 0) {
+            return null;
+        }
+        String text = children.item(0).getTextContent().trim();
+        return text.isEmpty() ? null : text;
+    }
+
+    /**
+     * @param dataSource e.g. {@code jdbc/mydb}, {@code java:comp/env/jdbc/mydb} or {@code openejb:Resource/jdbc/mydb}
+     */
+    @Nullable
+    protected Database findDatabase(@Nonnull String dataSource) {
+        for (Database database : metadata.getResources(Database.class)) {
+            if (dataSource.equals("jdbc/" + database.getName()) || dataSource.endsWith("/jdbc/" + database.getName())) {
+                return database;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Enhance in place the entities of {@code WEB-INF/classes} with the OpenJPA {@code PCEnhancer} of TomEE.
+     *
+     * @return {@code true} if the enhancement succeeded
+     */
+    protected boolean enhanceEntities() throws IOException {
+        final Path classesDir = webAppDir.resolve("WEB-INF/classes");
+        final List<String> entities = new ArrayList<>();
+        if (!Files.isDirectory(classesDir)) {
+            return false;
+        }
+        Files.walkFileTree(classesDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String fileName = classesDir.relativize(file).toString().replace('\\', '/');
+                if (fileName.endsWith(".class")) {
+                    String content = new String(Files.readAllBytes(file), Charsets.ISO_8859_1);
+                    for (String marker : ENTITY_MARKERS) {
+                        if (content.contains(marker)) {
+                            entities.add(fileName.substring(0, fileName.length() - ".class".length()).replace('/', '.'));
+                            break;
+                        }
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (entities.isEmpty()) {
+            logger.info("OpenJPA profile: no entity found in {}, skip enhancement", classesDir);
+            return false;
+        }
+
+        String classpath = classesDir + File.pathSeparator
+                + webAppDir.resolve("WEB-INF/lib") + File.separator + "*" + File.pathSeparator
+                + catalinaBase.resolve("lib") + File.separator + "*" + File.pathSeparator
+                + catalinaHome.resolve("lib") + File.separator + "*";
+        List<String> command = new ArrayList<>();
+        command.add(javaHome.resolve("bin/java").toString());
+        command.add("-cp");
+        command.add(classpath);
+        command.add("org.apache.openjpa.enhance.PCEnhancer");
+        command.add("-d");
+        command.add(classesDir.toString());
+        command.addAll(entities);
+
+        logger.info("OpenJPA profile: enhance {} entities", entities.size());
+        logger.debug("Enhancer command: {}", command);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        byte[] output = ByteStreams.toByteArray(process.getInputStream());
+        try {
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                logger.warn("OpenJPA profile: enhancement failed with exit code {}, fallback on runtime enhancement:\n{}",
+                        exitCode, new String(output, Charsets.UTF_8));
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroy();
+            return false;
+        }
+        logger.debug("Enhancer output: {}", new String(output, Charsets.UTF_8));
+        return true;
+    }
+}
@@ -3,22 +3,30 @@ package com.cloudbees.clickstack.tomcat;
 import com.cloudbees.clickstack.domain.metadata.*;
 import com.cloudbees.clickstack.util.Strings2;
 import com.cloudbees.clickstack.util.XmlUtils;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -26,6 +34,25 @@ public class SetupTomcatConfigurationFiles {
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private Metadata metadata;
+    /**
+     * number of cores used to size the TomEE pools
+     */
+    protected int availableProcessors = Runtime.getRuntime().availableProcessors();
+    /**
+     * major version of the JVM selected by the {@code JavaPlugin}
+     */
+    protected int javaMajorVersion = 7;
+    /**
+     * directory of the usable Tomcat native library detected by {@link Setup#installTomcatNative()}
+     */
+    @Nullable
+    protected Path aprLibraryDir;
+    /**
+     * directory of the files read by the {@code stats-appstat} control script, {@code catalina.base/logs} if
+     * {@code null}
+     */
+    @Nullable
+    protected Path logDir;
     private Set<String> databaseProperties = Sets.newHashSet("minIdle", "maxIdle", "maxActive", "maxWait",
             "initialSize",
             "validationQuery", "validationQueryTimeout", "testOnBorrow", "testOnReturn",
@@ -38,11 +65,32 @@ public class SetupTomcatConfigurationFiles {
             "fairQueue", "abandonWhenPercentageFull", "maxAge", "useEquals", "suspectTimeout", "rollbackOnReturn",
             "commitOnReturn", "alternateUsernameAllowed", "useDisposableConnectionFacade", "logValidationErrors",
             "propagateInterruptState");
+    /**
+     * properties of the database handled by the {@code ReplicationDataSourceFactory}
+     */
+    private Set<String> replicationProperties = Sets.newHashSet("replicaUrls", "replicaRetryDelayInMillis");
+    /**
+     * properties of the database selecting the {@code DataSourceFactory}, not passed to the pool
+     */
+    private Set<String> factoryProperties = Sets.newHashSet("borrowMetrics");
 
     public SetupTomcatConfigurationFiles(Metadata metadata) {
         this.metadata = metadata;
     }
 
+    public SetupTomcatConfigurationFiles(Metadata metadata, int javaMajorVersion) {
+        this.metadata = metadata;
+        this.javaMajorVersion = javaMajorVersion;
+    }
+
+    public void setAprLibraryDir(@Nullable Path aprLibraryDir) {
+        this.aprLibraryDir = aprLibraryDir;
+    }
+
+    public void setLogDir(@Nullable Path logDir) {
+        this.logDir = logDir;
+    }
+
     protected SetupTomcatConfigurationFiles addDatabase(Database database, Document serverDocument, Document contextXmlDocument) {
         logger.info("Add DataSource name={}, url={}", database.getName(), database.getUrl());
         Element e = contextXmlDocument.createElement("Resource");
@@ -54,35 +102,168 @@ public class SetupTomcatConfigurationFiles {
         e.setAttribute("username", database.getUsername());
         e.setAttribute("password", database.getPassword());
 
-        // by default, use use tomcat-jdbc-pool
+        // by default, use tomcat-jdbc-pool
         e.setAttribute("factory", "org.apache.tomcat.jdbc.pool.DataSourceFactory");
+        if (Boolean.parseBoolean(database.getProperties().get("borrowMetrics"))) {
+            // instrumented to report the borrow count and wait time
+            e.setAttribute("factory", "com.cloudbees.tomcat.jdbc.InstrumentedDataSourceFactory");
+        }
+
+        String replicaUrls = getReplicaUrls(database);
+        if (replicaUrls != null) {
+            logger.info("Route the read-only connections of DataSource name={} to replicas {}", database.getName(), replicaUrls);
+            e.setAttribute("factory", "com.cloudbees.tomcat.jdbc.ReplicationDataSourceFactory");
+            e.setAttribute("replicaUrls", replicaUrls);
+            String replicaRetryDelay = database.getProperties().get("replicaRetryDelayInMillis");
+            if (replicaRetryDelay != null) {
+                e.setAttribute("replicaRetryDelayInMillis", replicaRetryDelay);
+            }
+        }
+
+        for (Map.Entry<String, String> entry : getDataSourcePoolProperties(database).entrySet()) {
+            e.setAttribute(entry.getKey(), entry.getValue());
+        }
+
+        contextXmlDocument.getDocumentElement().appendChild(e);
+        return this;
+    }
+
+    /**
+     * @return the JDBC urls of the replicas declared in the {@code replicaUrls} property of the database (comma
+     * separated, in the format of the database url, with or without the {@code jdbc:} prefix), {@code null} if none
+     */
+    @Nullable
+    protected static String getReplicaUrls(Database database) {
+        String replicaUrls = database.getProperties().get("replicaUrls");
+        if (replicaUrls == null) {
+            return null;
+        }
+        List<String> jdbcUrls = new ArrayList<>();
+        for (String replicaUrl : replicaUrls.split(",")) {
+            replicaUrl = replicaUrl.trim();
+            if (!replicaUrl.isEmpty()) {
+                jdbcUrls.add(replicaUrl.startsWith("jdbc:") ? replicaUrl : "jdbc:" + replicaUrl);
+            }
+        }
+        return jdbcUrls.isEmpty() ? null : Joiner.on(',').join(jdbcUrls);
+    }
+
+    /**
+     * @return the tomcat-jdbc-pool settings of the given database, shared by the {@code context.xml} and
+     * {@code tomee.xml} data sources
+     */
+    @Nonnull
+    protected Map<String, String> getDataSourcePoolProperties(Database database) {
+        Map<String, String> poolProperties = new LinkedHashMap<>();
 
         int maxActive = database.getMaxConnections();
         int maxIdle = Math.max(maxActive / 2, 1);
-        e.setAttribute("maxActive", String.valueOf(maxActive));
-        e.setAttribute("maxIdle", String.valueOf(maxIdle));
-        e.setAttribute("minIdle", "1");
-        e.setAttribute("initialSize", "1");
+        poolProperties.put("maxActive", String.valueOf(maxActive));
+        poolProperties.put("maxIdle", String.valueOf(maxIdle));
+        poolProperties.put("minIdle", "1");
+        poolProperties.put("initialSize", "1");
 
         // test on borrow and while idle to release idle connections
-        e.setAttribute("testOnBorrow", "true");
-        e.setAttribute("testWhileIdle", "true");
-        e.setAttribute("validationQuery", database.getValidationQuery());
-        e.setAttribute("validationInterval", "5000"); // 5 secs
+        poolProperties.put("testOnBorrow", "true");
+        poolProperties.put("testWhileIdle", "true");
+        poolProperties.put("validationQuery", database.getValidationQuery());
+        poolProperties.put("validationInterval", "5000"); // 5 secs
 
         // all the parameters can be overwritten
         for (Map.Entry<String, String> entry : database.getProperties().entrySet()) {
             if (databaseProperties.contains(entry.getKey())) {
-                e.setAttribute(entry.getKey(), entry.getValue());
-            } else {
+                poolProperties.put(entry.getKey(), entry.getValue());
+            } else if (!replicationProperties.contains(entry.getKey()) && !factoryProperties.contains(entry.getKey())) {
                 logger.debug("Ignore unknown datasource property '{}'", entry);
             }
         }
+        return poolProperties;
+    }
 
-        contextXmlDocument.getDocumentElement().appendChild(e);
+    /**
+     * Declare the given database as a JTA managed TomEE resource instead of a Tomcat {@code context.xml} resource.
+     */
+    protected SetupTomcatConfigurationFiles addTomEEDataSource(Database database, Document tomeeXmlDocument) {
+        logger.info("Add TomEE DataSource name={}, url={}", database.getName(), database.getUrl());
+
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("JdbcDriver", database.getJavaDriver());
+        properties.put("JdbcUrl", "jdbc:" + database.getUrl());
+        properties.put("UserName", database.getUsername());
+        properties.put("Password", database.getPassword());
+        properties.put("JtaManaged", "true");
+        for (Map.Entry<String, String> entry : getDataSourcePoolProperties(database).entrySet()) {
+            if ("factory".equals(entry.getKey()) || "type".equals(entry.getKey())) {
+                continue;
+            }
+            // TomEE property names are capitalized (e.g. "MaxActive")
+            String name = Character.toUpperCase(entry.getKey().charAt(0)) + entry.getKey().substring(1);
+            properties.put(name, entry.getValue());
+        }
+
+        Element e = tomeeXmlDocument.createElement("Resource");
+        e.setAttribute("id", "jdbc/" + database.getName());
+        e.setAttribute("type", "DataSource");
+        e.setTextContent(toTomEEProperties(properties));
+
+        tomeeXmlDocument.getDocumentElement().appendChild(e);
+        return this;
+    }
+
+    /**
+     * Size the pool of the stateless session beans container according to the number of cores.
+     */
+    protected SetupTomcatConfigurationFiles addTomEEStatelessContainer(Metadata metadata, Document tomeeXmlDocument) {
+        String section = "tomee";
+
+        int minSize = Integer.parseInt(metadata.getRuntimeParameter(section, "stateless.minSize", String.valueOf(availableProcessors)));
+        int maxSize = Integer.parseInt(metadata.getRuntimeParameter(section, "stateless.maxSize", String.valueOf(Math.max(10, 4 * availableProcessors))));
+        logger.info("Add TomEE Stateless Container minSize={}, maxSize={}", minSize, maxSize);
+
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("MinSize", String.valueOf(minSize));
+        properties.put("MaxSize", String.valueOf(Math.max(minSize, maxSize)));
+        // elastic pool by default, don't block the request threads when the pool is exhausted
+        properties.put("StrictPooling", metadata.getRuntimeParameter(section, "stateless.strictPooling", "false"));
+        properties.put("AccessTimeout", metadata.getRuntimeParameter(section, "stateless.accessTimeout", "30 seconds"));
+        properties.put("IdleTimeout", metadata.getRuntimeParameter(section, "stateless.idleTimeout", "5 minutes"));
+        properties.put("SweepInterval", metadata.getRuntimeParameter(section, "stateless.sweepInterval", "1 minute"));
+
+        Element e = tomeeXmlDocument.createElement("Container");
+        e.setAttribute("id", "Default Stateless Container");
+        e.setAttribute("type", "STATELESS");
+        e.setTextContent(toTomEEProperties(properties));
+
+        tomeeXmlDocument.getDocumentElement().appendChild(e);
         return this;
     }
 
+    /**
+     * Size the pool of the {@code @Asynchronous} methods according to the number of cores.
+     */
+    protected SetupTomcatConfigurationFiles addTomEEAsynchronousPool(Metadata metadata, Map<String, String> systemProperties) {
+        String section = "tomee";
+
+        String corePoolSize = metadata.getRuntimeParameter(section, "asynchronous.corePoolSize", String.valueOf(availableProcessors));
+        String maximumPoolSize = metadata.getRuntimeParameter(section, "asynchronous.maximumPoolSize", String.valueOf(2 * availableProcessors));
+        logger.info("Size TomEE Asynchronous Pool corePoolSize={}, maximumPoolSize={}", corePoolSize, maximumPoolSize);
+
+        systemProperties.put("AsynchronousPool.CorePoolSize", corePoolSize);
+        systemProperties.put("AsynchronousPool.MaximumPoolSize", maximumPoolSize);
+        systemProperties.put("AsynchronousPool.KeepAliveTime", metadata.getRuntimeParameter(section, "asynchronous.keepAliveTime", "60 seconds"));
+        systemProperties.put("AsynchronousPool.QueueSize", metadata.getRuntimeParameter(section, "asynchronous.queueSize", "1000"));
+        return this;
+    }
+
+    @Nonnull
+    private String toTomEEProperties(@Nonnull Map<String, String> properties) {
+        StringBuilder result = new StringBuilder("\n");
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            result.append("    ").append(property.getKey()).append(" = ").append(property.getValue()).append("\n");
+        }
+        return result.append("  ").toString();
+    }
+
     protected SetupTomcatConfigurationFiles addSyslogAccessLogValve(Metadata metadata, Document serverDocument, Document contextXmlDocument) {
         // Syslog Access Log Valve
         if (!"true".equalsIgnoreCase(metadata.getRuntimeParameter("accessLog", "syslog", "false"))) {
@@ -167,6 +348,240 @@ public class SetupTomcatConfigurationFiles {
         return this;
     }
 
+    /**
+     * @return {@code true} if the sessions are kept in off-heap memory by the {@code OffHeapSessionManager}, a
+     * memcached {@code session-store} resource takes precedence
+     */
+    protected static boolean isOffHeapSessions(Metadata metadata) {
+        return Boolean.valueOf(metadata.getRuntimeParameter("offHeapSessions", "enabled", "false"))
+                && metadata.getResources(SessionStore.class).isEmpty();
+    }
+
+    /**
+     * Keep the serialized sessions in off-heap memory and only the recently used ones on the heap, intended for sticky
+     * session deployments with large sessions.
+     */
+    protected SetupTomcatConfigurationFiles addOffHeapSessionManager(Metadata metadata, Document contextXmlDocument) {
+        String section = "offHeapSessions";
+
+        if (!Boolean.valueOf(metadata.getRuntimeParameter(section, "enabled", "false"))) {
+            return this;
+        }
+        if (!isOffHeapSessions(metadata)) {
+            logger.warn("Memcache SessionStore declared, ignore offHeapSessions");
+            return this;
+        }
+        logger.info("Add OffHeapSessionManager");
+
+        Set<String> offHeapSessionsProperties = new HashSet<>(Arrays.asList(
+                "capacityInMegabytes", "maxHeapSessions", "maxIdleSwap", "minIdleSwap", "maxIdleBackup",
+                "blockSizeInBytes", "slabSizeInMegabytes", "persistenceFile", "saveOnRestart"));
+
+        Element manager = contextXmlDocument.createElement("Manager");
+        manager.setAttribute("className", "com.cloudbees.tomcat.session.OffHeapSessionManager");
+        manager.setAttribute("capacityInMegabytes", getOffHeapSessionsCapacityInMegabytes(metadata));
+        manager.setAttribute("maxHeapSessions", metadata.getRuntimeParameter(section, "maxHeapSessions", "500"));
+
+        for (Map.Entry<String, String> entry : metadata.getRuntimeProperty(section).entrySet()) {
+            if (offHeapSessionsProperties.contains(entry.getKey())) {
+                manager.setAttribute(entry.getKey(), entry.getValue());
+            } else if (!"enabled".equals(entry.getKey())) {
+                logger.debug("offHeapSessionManager: ignore unknown property '" + entry.getKey() + "'");
+            }
+        }
+
+        contextXmlDocument.getDocumentElement().appendChild(manager);
+        return this;
+    }
+
+    protected static String getOffHeapSessionsCapacityInMegabytes(Metadata metadata) {
+        return metadata.getRuntimeParameter("offHeapSessions", "capacityInMegabytes", "128");
+    }
+
+    /**
+     * @return {@code true} if the sessions are replicated in memory between the instances, a memcached
+     * {@code session-store} resource and the {@code offHeapSessions} take precedence
+     */
+    protected static boolean isSessionCluster(Metadata metadata) {
+        return Boolean.valueOf(metadata.getRuntimeParameter("sessionCluster", "enabled", "false"))
+                && metadata.getResources(SessionStore.class).isEmpty()
+                && !isOffHeapSessions(metadata);
+    }
+
+    /**
+     * Replicate the sessions in memory to one backup instance rather than storing them in memcached: Tomcat
+     * {@code <Cluster>} with a {@code BackupManager} (the primary instance of a session sends the changes of the
+     * session to the instance owning its backup at the end of the request) over TCP.
+     * <ul>
+     * <li>static membership, no multicast: the instances are listed in the {@code members} property
+     * ({@code host:port,host:port...}), the instance itself is recognized by its receiver {@code port} and a local
+     * address and is excluded from the static members</li>
+     * <li>asynchronous sends: the request thread queues the changes in the {@code MessageDispatch15Interceptor},
+     * its dispatch threads send them and wait for the acknowledgement of the backup instance</li>
+     * <li>replication statistics (messages, bytes, lag) reported by the {@code ReplicationStatsInterceptor}</li>
+     * </ul>
+     * Only the applications declaring {@code <distributable/>} in their {@code web.xml} get the replicated sessions.
+     */
+    protected SetupTomcatConfigurationFiles addSessionCluster(Metadata metadata, Document serverXmlDocument) {
+        String section = "sessionCluster";
+
+        if (!Boolean.valueOf(metadata.getRuntimeParameter(section, "enabled", "false"))) {
+            return this;
+        }
+        if (!isSessionCluster(metadata)) {
+            logger.warn("Memcache SessionStore or offHeapSessions declared, ignore sessionCluster");
+            return this;
+        }
+
+        String members = metadata.getRuntimeParameter(section, "members", "");
+        Preconditions.checkArgument(!members.trim().isEmpty(), "sessionCluster.members is required with sessionCluster.enabled=true");
+        int port = Integer.parseInt(metadata.getRuntimeParameter(section, "port", "4000"));
+        String address = metadata.getRuntimeParameter(section, "address", null);
+
+        Set<String> sessionClusterProperties = new HashSet<>(Arrays.asList(
+                "members", "address", "port", "requestUriIgnorePattern", "maxQueueSize", "maxThreads", "deployment"));
+        for (String key : metadata.getRuntimeProperty(section).keySet()) {
+            if (!sessionClusterProperties.contains(key) && !"enabled".equals(key)) {
+                logger.debug("sessionCluster: ignore unknown property '" + key + "'");
+            }
+        }
+
+        Element cluster = serverXmlDocument.createElement("Cluster");
+        cluster.setAttribute("className", "org.apache.catalina.ha.tcp.SimpleTcpCluster");
+        // start the TCP receiver and sender but not the multicast membership (Channel.SND_RX_SEQ | Channel.SND_TX_SEQ)
+        cluster.setAttribute("channelStartOptions", "3");
+        // Channel.SEND_OPTIONS_ASYNCHRONOUS
+        cluster.setAttribute("channelSendOptions", "8");
+
+        Element manager = serverXmlDocument.createElement("Manager");
+        manager.setAttribute("className", "org.apache.catalina.ha.session.BackupManager");
+        // Channel.SEND_OPTIONS_ASYNCHRONOUS | Channel.SEND_OPTIONS_USE_ACK
+        manager.setAttribute("mapSendOptions", "10");
+        manager.setAttribute("notifyListenersOnReplication", "true");
+        cluster.appendChild(manager);
+
+        Element channel = serverXmlDocument.createElement("Channel");
+        channel.setAttribute("className", "org.apache.catalina.tribes.group.GroupChannel");
+        cluster.appendChild(channel);
+
+        Element receiver = serverXmlDocument.createElement("Receiver");
+        receiver.setAttribute("className", "org.apache.catalina.tribes.transport.nio.NioReceiver");
+        receiver.setAttribute("port", String.valueOf(port));
+        // the static members connect to the configured port, don't bind another one if it is in use
+        receiver.setAttribute("autoBind", "1");
+        channel.appendChild(receiver);
+
+        Element sender = serverXmlDocument.createElement("Sender");
+        sender.setAttribute("className", "org.apache.catalina.tribes.transport.ReplicationTransmitter");
+        Element transport = serverXmlDocument.createElement("Transport");
+        transport.setAttribute("className", "org.apache.catalina.tribes.transport.nio.PooledParallelSender");
+        sender.appendChild(transport);
+        channel.appendChild(sender);
+
+        Element pingInterceptor = serverXmlDocument.createElement("Interceptor");
+        pingInterceptor.setAttribute("className", "org.apache.catalina.tribes.group.interceptors.TcpPingInterceptor");
+        pingInterceptor.setAttribute("staticOnly", "true");
+        channel.appendChild(pingInterceptor);
+
+        Element failureDetector = serverXmlDocument.createElement("Interceptor");
+        failureDetector.setAttribute("className", "org.apache.catalina.tribes.group.interceptors.TcpFailureDetector");
+        channel.appendChild(failureDetector);
+
+        Element dispatchInterceptor = serverXmlDocument.createElement("Interceptor");
+        dispatchInterceptor.setAttribute("className", "org.apache.catalina.tribes.group.interceptors.MessageDispatch15Interceptor");
+        for (String key : Arrays.asList("maxQueueSize", "maxThreads")) {
+            String value = metadata.getRuntimeParameter(section, key, null);
+            if (value != null) {
+                dispatchInterceptor.setAttribute(key, value);
+            }
+        }
+        channel.appendChild(dispatchInterceptor);
+
+        // after the MessageDispatch15Interceptor to measure the wait in its queue
+        Element statsInterceptor = serverXmlDocument.createElement("Interceptor");
+        statsInterceptor.setAttribute("className", "com.cloudbees.tomcat.cluster.ReplicationStatsInterceptor");
+        channel.appendChild(statsInterceptor);
+
+        Element membershipInterceptor = serverXmlDocument.createElement("Interceptor");
+        membershipInterceptor.setAttribute("className", "org.apache.catalina.tribes.group.interceptors.StaticMembershipInterceptor");
+        for (String member : members.split(",")) {
+            member = member.trim();
+            if (member.isEmpty()) {
+                continue;
+            }
+            int separator = member.lastIndexOf(':');
+            Preconditions.checkArgument(separator > 0, "Invalid sessionCluster member '%s', expected 'host:port'", member);
+            String memberHost = member.substring(0, separator);
+            memberHost = memberHost.startsWith("[") && memberHost.endsWith("]") ? memberHost.substring(1, memberHost.length() - 1) : memberHost;
+            int memberPort = Integer.parseInt(member.substring(separator + 1));
+            if (memberPort == port && (address == null ? isLocalAddress(memberHost) : address.equals(memberHost))) {
+                logger.debug("sessionCluster: local member {}", member);
+                address = memberHost;
+                continue;
+            }
+            Element staticMember = serverXmlDocument.createElement("Member");
+            staticMember.setAttribute("className", "org.apache.catalina.tribes.membership.StaticMember");
+            staticMember.setAttribute("host", memberHost);
+            staticMember.setAttribute("port", String.valueOf(memberPort));
+            staticMember.setAttribute("uniqueId", getStaticMemberUniqueId(memberHost, memberPort));
+            membershipInterceptor.appendChild(staticMember);
+        }
+        channel.appendChild(membershipInterceptor);
+        receiver.setAttribute("address", address == null ? "auto" : address);
+        logger.info("Add session Cluster listening on {}:{} with {} static members", receiver.getAttribute("address"), port,
+                membershipInterceptor.getElementsByTagName("Member").getLength());
+
+        Element replicationValve = serverXmlDocument.createElement("Valve");
+        replicationValve.setAttribute("className", "org.apache.catalina.ha.tcp.ReplicationValve");
+        replicationValve.setAttribute("filter", metadata.getRuntimeParameter(section, "requestUriIgnorePattern", ".*\\.(ico|png|gif|jpg|css|js)$"));
+        replicationValve.setAttribute("statistics", "true");
+        cluster.appendChild(replicationValve);
+
+        Element clusterListener = serverXmlDocument.createElement("ClusterListener");
+        clusterListener.setAttribute("className", "org.apache.catalina.ha.session.ClusterSessionListener");
+        cluster.appendChild(clusterListener);
+
+        Element host = XmlUtils.getUniqueElement(serverXmlDocument, "/Server/Service/Engine/Host");
+        host.getParentNode().insertBefore(cluster, host);
+        return this;
+    }
+
+    /**
+     * @return {@code true} if {@code host} is an address of this machine
+     */
+    protected static boolean isLocalAddress(String host) {
+        try {
+            InetAddress address = InetAddress.getByName(host);
+            return address.isLoopbackAddress() || address.isAnyLocalAddress() || NetworkInterface.getByInetAddress(address) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stable identifier of a static member derived from its address (e.g. {@code {12,-7,...}}, 16 bytes).
+     */
+    protected static String getStaticMemberUniqueId(String host, int port) {
+        byte[] bytes = Hashing.md5().hashString(host + ":" + port, Charsets.UTF_8).asBytes();
+        StringBuilder uniqueId = new StringBuilder("{");
+        for (int i = 0; i < bytes.length; i++) {
+            uniqueId.append(i == 0 ? "" : ",").append(bytes[i]);
+        }
+        return uniqueId.append("}").toString();
+    }
+
+    /**
+     * Propagation of the deployments by the TomEE cluster listener, disabled by default as each instance deploys its
+     * own copy of the application.
+     */
+    protected SetupTomcatConfigurationFiles addTomEEClusterDeployment(Metadata metadata, Map<String, String> systemProperties) {
+        if (!isSessionCluster(metadata)) {
+            return this;
+        }
+        systemProperties.put("tomee.cluster.deployment", metadata.getRuntimeParameter("sessionCluster", "deployment", "false"));
+        return this;
+    }
+
     protected SetupTomcatConfigurationFiles addRemoteAddrValve(Metadata metadata, Document serverXmlDocument, Document contextXmlDocument) {
         String section = "remoteAddress";
 
@@ -174,18 +589,28 @@ public class SetupTomcatConfigurationFiles {
         if (runtimeProperty == null) {
             return this;
         }
-        logger.info("Add RemoteAddrValve");
-
-        Set<String> privateAppProperties = new HashSet<>(Arrays.asList(
-                "className", "allow", "deny", "denyStatus"));
+        Set<String> cidrProperties = new HashSet<>(Arrays.asList(
+                "allowCidrs", "denyCidrs", "allowCidrsFile", "denyCidrsFile"));
+        boolean cidr = !Collections.disjoint(runtimeProperty.keySet(), cidrProperties);
 
+        Set<String> remoteAddrProperties;
         Element remoteAddrValve = serverXmlDocument.createElement("Valve");
-
-        remoteAddrValve.setAttribute("className", "org.apache.catalina.valves.RemoteAddrValve");
+        if (cidr) {
+            // ranges matched with a trie rather than regular expressions
+            logger.info("Add CidrAddressValve");
+            remoteAddrProperties = new HashSet<>(cidrProperties);
+            remoteAddrProperties.add("denyStatus");
+            remoteAddrValve.setAttribute("className", "com.cloudbees.tomcat.valves.CidrAddressValve");
+        } else {
+            logger.info("Add RemoteAddrValve");
+            remoteAddrProperties = new HashSet<>(Arrays.asList(
+                    "className", "allow", "deny", "denyStatus"));
+            remoteAddrValve.setAttribute("className", "org.apache.catalina.valves.RemoteAddrValve");
+        }
 
 
         for (Map.Entry<String, String> entry : runtimeProperty.entrySet()) {
-            if (privateAppProperties.contains(entry.getKey())) {
+            if (remoteAddrProperties.contains(entry.getKey())) {
                 remoteAddrValve.setAttribute(entry.getKey(), entry.getValue());
             } else {
                 logger.debug("remoteAddrValve: ignore unknown property '" + entry.getKey() + "'");
@@ -235,6 +660,9 @@ public class SetupTomcatConfigurationFiles {
                 "authenticationEntryPointName",
                 "authenticationParameterName", "authenticationHeaderName", "authenticationUri", "authenticationCookieName",
                 "enabled", "realmName", "ignoredUriRegexp"));
+        // properties of the PrivateAppCacheValve
+        Set<String> verificationCacheProperties = new HashSet<>(Arrays.asList(
+                "verificationCacheSize", "verificationCacheTtlInSeconds"));
 
         Element privateAppValve = serverXmlDocument.createElement("Valve");
 
@@ -243,6 +671,8 @@ public class SetupTomcatConfigurationFiles {
         for (Map.Entry<String, String> entry : runtimeProperty.entrySet()) {
             if (privateAppProperties.contains(entry.getKey())) {
                 privateAppValve.setAttribute(entry.getKey(), entry.getValue());
+            } else if (verificationCacheProperties.contains(entry.getKey())) {
+                // see below
             } else {
                 logger.debug("privateAppValve: ignore unknown property '" + entry.getKey() + "'");
             }
@@ -254,6 +684,337 @@ public class SetupTomcatConfigurationFiles {
 
         Element remoteIpValve = XmlUtils.getUniqueElement(serverXmlDocument, "//Valve[@className='org.apache.catalina.valves.RemoteIpValve']");
         XmlUtils.insertSiblingAfter(privateAppValve, remoteIpValve);
+
+        int verificationCacheSize = Integer.parseInt(metadata.getRuntimeParameter(section, "verificationCacheSize", "0"));
+        // the cache is keyed by the credentials verified by the PrivateAppValve, their names must be explicit
+        List<String> missingNames = new ArrayList<>();
+        for (String name : Arrays.asList("authenticationHeaderName", "authenticationCookieName", "authenticationParameterName")) {
+            if (privateAppValve.getAttribute(name).isEmpty()) {
+                missingNames.add(section + "." + name);
+            }
+        }
+        if (verificationCacheSize > 0 && !missingNames.isEmpty()) {
+            logger.warn("Ignore {}.verificationCacheSize, the verification cache requires {}", section, missingNames);
+        } else if (verificationCacheSize > 0) {
+            logger.info("Add PrivateAppCacheValve");
+            Element privateAppCacheValve = serverXmlDocument.createElement("Valve");
+            privateAppCacheValve.setAttribute("className", "com.cloudbees.tomcat.valves.PrivateAppCacheValve");
+            privateAppCacheValve.setAttribute("maxEntries", String.valueOf(verificationCacheSize));
+            privateAppCacheValve.setAttribute("ttlInSeconds", metadata.getRuntimeParameter(section, "verificationCacheTtlInSeconds", "60"));
+            for (String name : Arrays.asList("secretKey", "authenticationHeaderName", "authenticationCookieName",
+                    "authenticationParameterName", "ignoredUriRegexp")) {
+                if (privateAppValve.hasAttribute(name)) {
+                    privateAppCacheValve.setAttribute(name, privateAppValve.getAttribute(name));
+                }
+            }
+            Element privateAppVerifiedValve = serverXmlDocument.createElement("Valve");
+            privateAppVerifiedValve.setAttribute("className", "com.cloudbees.tomcat.valves.PrivateAppVerifiedValve");
+
+            // PrivateAppCacheValve -> PrivateAppValve -> PrivateAppVerifiedValve
+            XmlUtils.insertSiblingAfter(privateAppVerifiedValve, privateAppValve);
+            XmlUtils.insertSiblingAfter(privateAppCacheValve, remoteIpValve);
+        }
+        return this;
+    }
+
+    /**
+     * @return {@code true} if the connector must use the {@code VirtualThreadExecutor} ({@code tomcat.executor=virtual}
+     * on Java 24+: the Tomcat 7 connectors process requests in {@code synchronized} blocks which pin the virtual
+     * threads on older JVMs)
+     */
+    protected boolean isVirtualThreadExecutor(Metadata metadata) {
+        String executor = metadata.getRuntimeParameter("tomcat", "executor", "platform");
+        if (!"virtual".equals(executor)) {
+            return false;
+        }
+        if (javaMajorVersion < 24) {
+            logger.warn("Virtual threads would be pinned by the connector on Java {}, fallback on platform threads", javaMajorVersion);
+            return false;
+        }
+        return true;
+    }
+
+    protected SetupTomcatConfigurationFiles addVirtualThreadExecutor(Metadata metadata, Document serverXmlDocument) {
+        if (!isVirtualThreadExecutor(metadata)) {
+            return this;
+        }
+        logger.info("Add VirtualThreadExecutor");
+
+        Element executor = serverXmlDocument.createElement("Executor");
+        executor.setAttribute("name", "tomcatThreadPool");
+        executor.setAttribute("className", "com.cloudbees.tomcat.threads.VirtualThreadExecutor");
+        executor.setAttribute("namePrefix", "http-vt-");
+        // size of the platform threads pool if the virtual threads can not be created at runtime
+        executor.setAttribute("maxThreads", "200");
+
+        Element connector = XmlUtils.getUniqueElement(serverXmlDocument, "/Server/Service/Connector");
+        connector.getParentNode().insertBefore(executor, connector);
+
+        // the blocking connector would dedicate a thread to each keep-alive connection
+        connector.setAttribute("executor", "tomcatThreadPool");
+        connector.setAttribute("protocol", "org.apache.coyote.http11.Http11NioProtocol");
+        connector.setAttribute("maxConnections", "10000");
+        return this;
+    }
+
+    /**
+     * With {@code tomcat.apr=auto}, use the APR connector (sendfile and native pollers) if the Tomcat native library
+     * has been found, the NIO connector otherwise.
+     */
+    protected SetupTomcatConfigurationFiles updateConnectorProtocol(Metadata metadata, Document serverXmlDocument) {
+        if (!"auto".equals(metadata.getRuntimeParameter("tomcat", "apr", "false"))) {
+            return this;
+        }
+        if (isVirtualThreadExecutor(metadata)) {
+            logger.info("APR connector not used with the VirtualThreadExecutor, keep the NIO connector");
+            return this;
+        }
+        Element connector = XmlUtils.getUniqueElement(serverXmlDocument, "/Server/Service/Connector");
+        if (aprLibraryDir == null) {
+            logger.info("Tomcat native library not available, fallback on the NIO connector");
+            connector.setAttribute("protocol", "org.apache.coyote.http11.Http11NioProtocol");
+            return this;
+        }
+        logger.info("Use the APR connector with the Tomcat native library of {}", aprLibraryDir);
+        connector.setAttribute("protocol", "org.apache.coyote.http11.Http11AprProtocol");
+        // one epoll poller handles thousands of sockets, a second one helps on large machines
+        String pollerThreadCount = availableProcessors > 8 ? "2" : "1";
+        connector.setAttribute("maxConnections", "8192");
+        connector.setAttribute("pollerThreadCount", pollerThreadCount);
+        connector.setAttribute("pollTime", "2000");
+        connector.setAttribute("useSendfile", "true");
+        connector.setAttribute("sendfileSize", "2048");
+        connector.setAttribute("sendfileThreadCount", pollerThreadCount);
+        connector.setAttribute("deferAccept", "true");
+        return this;
+    }
+
+    /**
+     * Limit the concurrent requests to the size of the JDBC pools of the application, enabled by default with the
+     * {@code VirtualThreadExecutor}.
+     */
+    protected SetupTomcatConfigurationFiles addBulkheadValve(Metadata metadata, Document serverXmlDocument) {
+        String section = "bulkhead";
+
+        boolean enabled = Boolean.valueOf(metadata.getRuntimeParameter(section, "enabled", String.valueOf(isVirtualThreadExecutor(metadata))));
+        if (!enabled) {
+            return this;
+        }
+
+        String maxConcurrentRequests = metadata.getRuntimeParameter(section, "maxConcurrentRequests", null);
+        if (maxConcurrentRequests == null) {
+            int databasesMaxActive = 0;
+            for (Database database : metadata.getResources(Database.class)) {
+                databasesMaxActive += Integer.parseInt(getDataSourcePoolProperties(database).get("maxActive"));
+            }
+            if (databasesMaxActive == 0) {
+                logger.info("No database to size the bulkhead, skip BulkheadValve");
+                return this;
+            }
+            maxConcurrentRequests = String.valueOf(databasesMaxActive);
+        }
+        logger.info("Add BulkheadValve maxConcurrentRequests={}", maxConcurrentRequests);
+
+        Element bulkheadValve = serverXmlDocument.createElement("Valve");
+        bulkheadValve.setAttribute("className", "com.cloudbees.tomcat.valves.BulkheadValve");
+        bulkheadValve.setAttribute("maxConcurrentRequests", maxConcurrentRequests);
+        bulkheadValve.setAttribute("maxWaitInMillis", metadata.getRuntimeParameter(section, "maxWaitInMillis", "1000"));
+
+        Element remoteIpValve = XmlUtils.getUniqueElement(serverXmlDocument, "//Valve[@className='org.apache.catalina.valves.RemoteIpValve']");
+        XmlUtils.insertSiblingAfter(bulkheadValve, remoteIpValve);
+        return this;
+    }
+
+    /**
+     * Reject with a {@code 503} the requests exceeding a concurrency limit adapted to the latency of the application.
+     */
+    protected SetupTomcatConfigurationFiles addAdmissionControlValve(Metadata metadata, Document serverXmlDocument) {
+        String section = "admissionControl";
+
+        if (!Boolean.valueOf(metadata.getRuntimeParameter(section, "enabled", "false"))) {
+            return this;
+        }
+        logger.info("Add AdmissionControlValve");
+
+        Set<String> admissionControlProperties = new HashSet<>(Arrays.asList(
+                "initialLimit", "minLimit", "maxLimit", "rttTolerance", "backoffRatio", "windowInMillis",
+                "retryAfterInSeconds", "priorityUriPrefixes", "lowPriorityUriPrefixes", "normalPriorityLimitPercent",
+                "lowPriorityLimitPercent"));
+
+        Element admissionControlValve = serverXmlDocument.createElement("Valve");
+        admissionControlValve.setAttribute("className", "com.cloudbees.tomcat.valves.AdmissionControlValve");
+
+        for (Map.Entry<String, String> entry : metadata.getRuntimeProperty(section).entrySet()) {
+            if (admissionControlProperties.contains(entry.getKey())) {
+                admissionControlValve.setAttribute(entry.getKey(), entry.getValue());
+            } else if (!"enabled".equals(entry.getKey())) {
+                logger.debug("admissionControlValve: ignore unknown property '" + entry.getKey() + "'");
+            }
+        }
+
+        Element remoteIpValve = XmlUtils.getUniqueElement(serverXmlDocument, "//Valve[@className='org.apache.catalina.valves.RemoteIpValve']");
+        XmlUtils.insertSiblingAfter(admissionControlValve, remoteIpValve);
+        return this;
+    }
+
+    /**
+     * Cache the GET responses declared cacheable by the application ({@code Cache-Control: max-age}...) under the
+     * required {@code uriPrefixes}.
+     */
+    protected SetupTomcatConfigurationFiles addResponseCacheValve(Metadata metadata, Document serverXmlDocument) {
+        String section = "responseCache";
+
+        if (!Boolean.valueOf(metadata.getRuntimeParameter(section, "enabled", "false"))) {
+            return this;
+        }
+        String uriPrefixes = metadata.getRuntimeParameter(section, "uriPrefixes", "");
+        Preconditions.checkArgument(!uriPrefixes.trim().isEmpty(), "responseCache.uriPrefixes is required with responseCache.enabled=true");
+        logger.info("Add ResponseCacheValve for {}", uriPrefixes);
+
+        Set<String> responseCacheProperties = new HashSet<>(Arrays.asList(
+                "maxSizeInMegabytes", "maxEntrySizeInKilobytes", "coalescingTimeoutInMillis", "uriPrefixes"));
+
+        Element responseCacheValve = serverXmlDocument.createElement("Valve");
+        responseCacheValve.setAttribute("className", "com.cloudbees.tomcat.valves.ResponseCacheValve");
+
+        for (Map.Entry<String, String> entry : metadata.getRuntimeProperty(section).entrySet()) {
+            if (responseCacheProperties.contains(entry.getKey())) {
+                responseCacheValve.setAttribute(entry.getKey(), entry.getValue());
+            } else if (!"enabled".equals(entry.getKey())) {
+                logger.debug("responseCacheValve: ignore unknown property '" + entry.getKey() + "'");
+            }
+        }
+
+        Element remoteIpValve = XmlUtils.getUniqueElement(serverXmlDocument, "//Valve[@className='org.apache.catalina.valves.RemoteIpValve']");
+        XmlUtils.insertSiblingAfter(responseCacheValve, remoteIpValve);
+        return this;
+    }
+
+    protected SetupTomcatConfigurationFiles addWarmupListener(Metadata metadata, Document serverXmlDocument) {
+        String section = "warmup";
+
+        RuntimeProperty runtimeProperty = metadata.getRuntimeProperty(section);
+        if (runtimeProperty == null) {
+            return this;
+        }
+        logger.info("Add WarmupListener");
+
+        Set<String> warmupProperties = new HashSet<>(Arrays.asList(
+                "urls", "iterations", "duration", "timeout", "concurrency", "warmDataSources", "reportFile",
+                "requestTimeoutInMillis"));
+
+        Element warmupListener = serverXmlDocument.createElement("Listener");
+        warmupListener.setAttribute("className", "com.cloudbees.tomcat.listeners.WarmupListener");
+
+        for (Map.Entry<String, String> entry : runtimeProperty.entrySet()) {
+            if (warmupProperties.contains(entry.getKey())) {
+                warmupListener.setAttribute(entry.getKey(), entry.getValue());
+            } else {
+                logger.debug("warmupListener: ignore unknown property '" + entry.getKey() + "'");
+            }
+        }
+
+        // warm-up urls are relative to the context path of the application
+        String contextPath = metadata.getRuntimeParameter("webapp", "contextPath", "/");
+        contextPath = contextPath.startsWith("/") ? contextPath : "/" + contextPath;
+        contextPath = contextPath.endsWith("/") ? contextPath : contextPath + "/";
+        String urls = warmupListener.hasAttribute("urls") ? warmupListener.getAttribute("urls") : "";
+        StringBuilder absoluteUrls = new StringBuilder();
+        for (String url : urls.split(",")) {
+            url = url.trim();
+            url = url.startsWith("/") ? url.substring(1) : url;
+            absoluteUrls.append(absoluteUrls.length() == 0 ? "" : ",").append(contextPath).append(url);
+        }
+        warmupListener.setAttribute("urls", absoluteUrls.toString());
+
+        Element engine = XmlUtils.getUniqueElement(serverXmlDocument, "/Server/Service/Engine");
+        engine.insertBefore(warmupListener, engine.getFirstChild());
+
+        // the access control valves (RemoteAddrValve, PrivateAppValve...) would reject the warm-up requests
+        Element warmupValve = serverXmlDocument.createElement("Valve");
+        warmupValve.setAttribute("className", "com.cloudbees.tomcat.valves.WarmupValve");
+        Element remoteIpValve = XmlUtils.getUniqueElement(serverXmlDocument, "//Valve[@className='org.apache.catalina.valves.RemoteIpValve']");
+        XmlUtils.insertSiblingAfter(warmupValve, remoteIpValve);
+
+        // don't bind the port of the application before the end of the warm-up
+        Element connector = XmlUtils.getUniqueElement(serverXmlDocument, "/Server/Service/Connector");
+        connector.setAttribute("bindOnInit", "false");
+        return this;
+    }
+
+    /**
+     * Diagnostics of the class loader leaks and of the growth of the metaspace and of the heap, enabled by default.
+     */
+    protected SetupTomcatConfigurationFiles addLeakDetectorListener(Metadata metadata, Document serverXmlDocument) {
+        String section = "leakDetector";
+
+        if (!Boolean.valueOf(metadata.getRuntimeParameter(section, "enabled", "true"))) {
+            return this;
+        }
+        logger.info("Add ClassLoaderLeakDetectorListener");
+
+        Set<String> leakDetectorProperties = new HashSet<>(Arrays.asList(
+                "samplingIntervalInSeconds", "maxSamples", "histogramIntervalInMinutes", "histogramMaxClasses",
+                "histogramHistory", "loadedClassesGrowthThresholdPerHour", "metaspaceGrowthThresholdInKilobytesPerHour"));
+
+        Element leakDetectorListener = serverXmlDocument.createElement("Listener");
+        leakDetectorListener.setAttribute("className", "com.cloudbees.tomcat.listeners.ClassLoaderLeakDetectorListener");
+        String dir = logDir == null ? "logs" : logDir.toString();
+        leakDetectorListener.setAttribute("dataFile", dir + "/leak-detector.data");
+        if (Boolean.valueOf(metadata.getRuntimeParameter(section, "report", "false"))) {
+            leakDetectorListener.setAttribute("reportFile", dir + "/leak-report.txt");
+        }
+
+        RuntimeProperty runtimeProperty = metadata.getRuntimeProperty(section);
+        if (runtimeProperty != null) {
+            for (Map.Entry<String, String> entry : runtimeProperty.entrySet()) {
+                if (leakDetectorProperties.contains(entry.getKey())) {
+                    leakDetectorListener.setAttribute(entry.getKey(), entry.getValue());
+                } else {
+                    logger.debug("leakDetectorListener: ignore unknown property '" + entry.getKey() + "'");
+                }
+            }
+        }
+
+        Element threadLocalLeakPreventionListener = XmlUtils.getUniqueElement(serverXmlDocument,
+                "//Listener[@className='org.apache.catalina.core.ThreadLocalLeakPreventionListener']");
+        XmlUtils.insertSiblingAfter(leakDetectorListener, threadLocalLeakPreventionListener);
+        return this;
+    }
+
+    /**
+     * Production profile ({@code tomcat.profile=production}): the application is deployed once at startup and only
+     * reloaded on demand by the {@code .genapp/control/reload} script, the background processor no longer scans the
+     * files of the application:
+     * <ul>
+     * <li>{@code autoDeploy="false"} on the {@code <Host>}</li>
+     * <li>{@code reloadable="false"} and no {@code <WatchedResource>} in {@code context.xml}</li>
+     * <li>{@code backgroundProcessorDelay} of the {@code <Engine>} raised from 10 to 30 seconds
+     * ({@code tomcat.backgroundProcessorDelay}), the idle sessions are then expired (or swapped off-heap) every
+     * 3 minutes instead of every minute</li>
+     * </ul>
+     */
+    protected SetupTomcatConfigurationFiles applyProductionProfile(Metadata metadata, Document serverXmlDocument, Document contextXmlDocument) {
+        String section = "tomcat";
+
+        if (!"production".equals(metadata.getRuntimeParameter(section, "profile", null))) {
+            return this;
+        }
+        String backgroundProcessorDelay = metadata.getRuntimeParameter(section, "backgroundProcessorDelay", "30");
+        logger.info("Apply production profile, backgroundProcessorDelay={}", backgroundProcessorDelay);
+
+        Element engine = XmlUtils.getUniqueElement(serverXmlDocument, "/Server/Service/Engine");
+        engine.setAttribute("backgroundProcessorDelay", backgroundProcessorDelay);
+
+        Element host = XmlUtils.getUniqueElement(serverXmlDocument, "/Server/Service/Engine/Host");
+        host.setAttribute("autoDeploy", "false");
+
+        Element context = contextXmlDocument.getDocumentElement();
+        context.setAttribute("reloadable", "false");
+        NodeList watchedResources = context.getElementsByTagName("WatchedResource");
+        for (int i = watchedResources.getLength() - 1; i >= 0; i--) {
+            context.removeChild(watchedResources.item(i));
+        }
         return this;
     }
 
@@ -266,17 +1027,73 @@ public class SetupTomcatConfigurationFiles {
 
         for (Resource resource : metadata.getResources().values()) {
             if (resource instanceof Database) {
-                addDatabase((Database) resource, serverXmlDocument, contextXmlDocument);
+                if (isTomEEDataSources(metadata)) {
+                    logger.debug("DataSource {} declared in tomee.xml", resource.getName());
+                } else {
+                    addDatabase((Database) resource, serverXmlDocument, contextXmlDocument);
+                }
             } else if (resource instanceof Email) {
                 addEmail((Email) resource, serverXmlDocument, contextXmlDocument);
             } else if (resource instanceof SessionStore) {
                 addSessionStore((SessionStore) resource, serverXmlDocument, contextXmlDocument, metadata);
             }
         }
+        addOffHeapSessionManager(metadata, contextXmlDocument);
+        addSessionCluster(metadata, serverXmlDocument);
+        // inserted first after the RemoteIpValve to be invoked after the access control valves
+        addBulkheadValve(metadata, serverXmlDocument);
+        // rejects before the bulkhead makes the requests wait
+        addAdmissionControlValve(metadata, serverXmlDocument);
+        // cache hits are served without being limited
+        addResponseCacheValve(metadata, serverXmlDocument);
         addPrivateAppValve(metadata, serverXmlDocument, contextXmlDocument);
         addRemoteAddrValve(metadata, serverXmlDocument, contextXmlDocument);
         addSyslogAccessLogValve(metadata, serverXmlDocument, contextXmlDocument);
+        addVirtualThreadExecutor(metadata, serverXmlDocument);
+        updateConnectorProtocol(metadata, serverXmlDocument);
         updateConnectorConfiguration(metadata, serverXmlDocument);
+        // inserted first after the RemoteIpValve to skip the access control valves
+        addWarmupListener(metadata, serverXmlDocument);
+        addLeakDetectorListener(metadata, serverXmlDocument);
+        applyProductionProfile(metadata, serverXmlDocument, contextXmlDocument);
+    }
+
+    protected void buildTomEEConfiguration(Metadata metadata, Document tomeeXmlDocument, Map<String, String> systemProperties) {
+        String message = "File generated by tomcat-clickstack at " + new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date());
+        tomeeXmlDocument.appendChild(tomeeXmlDocument.createComment(message));
+
+        if (isTomEEDataSources(metadata)) {
+            for (Database database : metadata.getResources(Database.class)) {
+                addTomEEDataSource(database, tomeeXmlDocument);
+            }
+        }
+        addTomEEStatelessContainer(metadata, tomeeXmlDocument);
+        addTomEEAsynchronousPool(metadata, systemProperties);
+        addTomEEClusterDeployment(metadata, systemProperties);
+    }
+
+    /**
+     * @return {@code true} if the databases must be declared as JTA managed resources in {@code tomee.xml} rather
+     * than in {@code context.xml}
+     */
+    protected boolean isTomEEDataSources(Metadata metadata) {
+        return Boolean.valueOf(metadata.getRuntimeParameter("tomee", "jtaDataSources", "false"));
+    }
+
+    /**
+     * Append the given properties to {@code conf/system.properties}, preserving its comments.
+     */
+    protected static void appendSystemProperties(Path systemPropertiesPath, Map<String, String> systemProperties) throws IOException {
+        if (systemProperties.isEmpty()) {
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        lines.add("");
+        lines.add("# Generated by tomcat-clickstack at " + new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date()));
+        for (Map.Entry<String, String> property : systemProperties.entrySet()) {
+            lines.add(property.getKey() + " = " + property.getValue());
+        }
+        Files.write(systemPropertiesPath, lines, Charsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
     }
 
     public void buildTomcatConfigurationFiles(Path catalinaBase) throws Exception {
@@ -299,7 +1116,18 @@ public class SetupTomcatConfigurationFiles {
 
         this.buildTomcatConfiguration(metadata, serverXmlDocument, contextXmlDocument);
 
+        Path tomeeXmlPath = catalinaBase.resolve("conf/tomee.xml");
+        Preconditions.checkArgument(Files.exists(tomeeXmlPath), "Given tomee.xml does not exist %s", tomeeXmlPath);
+
+        Document tomeeXmlDocument = XmlUtils.loadXmlDocumentFromFile(tomeeXmlPath.toFile());
+        XmlUtils.checkRootElement(tomeeXmlDocument, "tomee");
+
+        Map<String, String> systemProperties = new LinkedHashMap<>();
+        this.buildTomEEConfiguration(metadata, tomeeXmlDocument, systemProperties);
+
         XmlUtils.flush(contextXmlDocument, new FileOutputStream(contextXmlPath.toFile()));
         XmlUtils.flush(serverXmlDocument, new FileOutputStream(serverXmlPath.toFile()));
+        XmlUtils.flush(tomeeXmlDocument, new FileOutputStream(tomeeXmlPath.toFile()));
+        appendSystemProperties(catalinaBase.resolve("conf/system.properties"), systemProperties);
     }
 }
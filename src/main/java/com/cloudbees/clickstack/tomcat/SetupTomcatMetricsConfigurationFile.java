@@ -0,0 +1,434 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.cloudbees.clickstack.util.XmlUtils;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.ObjectName;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates the deployment specific queries of the jmxtrans-agent configuration file {@code conf/tomcat-metrics.xml}.
+ */
+public class SetupTomcatMetricsConfigurationFile {
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private Metadata metadata;
+    private List<String> openJpaPersistenceUnits = new ArrayList<>();
+    private String contextPath = "/";
+
+    public SetupTomcatMetricsConfigurationFile(Metadata metadata) {
+        this.metadata = metadata;
+    }
+
+    /**
+     * @param openJpaPersistenceUnits persistence units instrumented by {@link SetupOpenJpaProfile}
+     */
+    public void setOpenJpaPersistenceUnits(@Nonnull List<String> openJpaPersistenceUnits) {
+        this.openJpaPersistenceUnits = openJpaPersistenceUnits;
+    }
+
+    /**
+     * @param contextPath path of the deployed application as it appears in the MBean names ({@code /} for ROOT)
+     */
+    public void setContextPath(@Nonnull String contextPath) {
+        this.contextPath = contextPath;
+    }
+
+    /**
+     * Transforms a MBean name into a jmxtrans result alias fragment (e.g. "PS Eden Space" -> "ps_eden_space").
+     */
+    @Nonnull
+    protected static String toAlias(@Nonnull String name) {
+        String alias = name.toLowerCase(Locale.ENGLISH).replaceAll("[^a-z0-9]+", "_");
+        return alias.replaceAll("^_+|_+$", "");
+    }
+
+    protected Element addQuery(Document metricsDocument, String objectName, String attribute, @Nullable String key,
+                               @Nullable String type, String resultAlias) {
+        Element query = metricsDocument.createElement("query");
+        query.setAttribute("objectName", objectName);
+        query.setAttribute("attribute", attribute);
+        if (key != null) {
+            query.setAttribute("key", key);
+        }
+        if (type != null) {
+            query.setAttribute("type", type);
+        }
+        query.setAttribute("resultAlias", resultAlias);
+
+        Element queries = XmlUtils.getUniqueElement(metricsDocument, "/jmxtrans-agent/queries");
+        queries.appendChild(query);
+        return query;
+    }
+
+    /**
+     * Memory pools and garbage collectors queried with wildcards: their names depend on the collector chosen by the
+     * JVM (ergonomics select the serial collector on small containers) and on the JVM version, {@code %name%} is
+     * resolved by jmxtrans-agent with the name of each MBean, its non alphanumeric characters escaped
+     * (e.g. "PS Eden Space" -> "PS_Eden_Space").
+     */
+    protected SetupTomcatMetricsConfigurationFile addGarbageCollectorQueries(Document metricsDocument) {
+        logger.info("Add metrics of memory pools and garbage collectors");
+
+        String memoryPool = "java.lang:type=MemoryPool,name=*";
+        addQuery(metricsDocument, memoryPool, "Usage", "used", null, "memory_%name%_used");
+        addQuery(metricsDocument, memoryPool, "Usage", "committed", null, "memory_%name%_committed");
+        addQuery(metricsDocument, memoryPool, "PeakUsage", "used", null, "memory_%name%_peakUsed");
+        addQuery(metricsDocument, memoryPool, "PeakUsage", "committed", null, "memory_%name%_peakCommitted");
+
+        String garbageCollector = "java.lang:type=GarbageCollector,name=*";
+        addQuery(metricsDocument, garbageCollector, "CollectionCount", null, "counter", "gc_%name%_collection_count");
+        addQuery(metricsDocument, garbageCollector, "CollectionTime", null, "counter", "gc_%name%_collection_time");
+        return this;
+    }
+
+    /**
+     * Hit and read counts of the data cache and query cache MBeans registered by the OpenJPA {@code jmx}
+     * instrumentation, the hit rate is {@code hit_count / read_count} (resp. {@code hit_count / execution_count}).
+     */
+    protected SetupTomcatMetricsConfigurationFile addOpenJpaCacheQueries(String persistenceUnit, Document metricsDocument) {
+        logger.info("Add metrics of OpenJPA caches of persistence unit {}", persistenceUnit);
+
+        String alias = "openjpa_" + toAlias(persistenceUnit);
+        String dataCache = "org.apache.openjpa:type=DataCache,cfgid=" + persistenceUnit + ",*";
+        addQuery(metricsDocument, dataCache, "HitCount", null, "counter", alias + "_datacache_hit_count");
+        addQuery(metricsDocument, dataCache, "ReadCount", null, "counter", alias + "_datacache_read_count");
+        addQuery(metricsDocument, dataCache, "WriteCount", null, "counter", alias + "_datacache_write_count");
+        String queryCache = "org.apache.openjpa:type=QueryCache,cfgid=" + persistenceUnit + ",*";
+        addQuery(metricsDocument, queryCache, "HitCount", null, "counter", alias + "_querycache_hit_count");
+        addQuery(metricsDocument, queryCache, "ExecutionCount", null, "counter", alias + "_querycache_execution_count");
+        return this;
+    }
+
+    /**
+     * Occupancy and evictions of the off-heap store of the {@code OffHeapSessionManager}, the sessions on the heap are
+     * reported by the default {@code activeSessions} query.
+     */
+    protected SetupTomcatMetricsConfigurationFile addOffHeapSessionQueries(String hostName, Document metricsDocument) {
+        logger.info("Add metrics of the off-heap session store");
+
+        String manager = "Catalina:type=Manager,context=" + contextPath + ",host=" + hostName;
+        addQuery(metricsDocument, manager, "storeSessionCount", null, null, "application_offHeapSessions");
+        addQuery(metricsDocument, manager, "storeUsedBytes", null, null, "application_offHeapSessions_usedBytes");
+        addQuery(metricsDocument, manager, "storeOccupancyPercent", null, null, "application_offHeapSessions_occupancyPercent");
+        addQuery(metricsDocument, manager, "storeEvictionCount", null, "counter", "application_offHeapSessions_evictions");
+        addQuery(metricsDocument, manager, "storeMissCount", null, "counter", "application_offHeapSessions_misses");
+        return this;
+    }
+
+    /**
+     * Sessions of the {@code Manager} of the deployed application.
+     */
+    protected SetupTomcatMetricsConfigurationFile addApplicationQueries(String hostName, Document metricsDocument) {
+        logger.info("Add metrics of context {}", contextPath);
+
+        String manager = "Catalina:type=Manager,context=" + contextPath + ",host=" + hostName;
+        addQuery(metricsDocument, manager, "activeSessions", null, null, "application_activeSessions");
+        addQuery(metricsDocument, manager, "expiredSessions", null, "counter", "application_expiredSessions");
+        return this;
+    }
+
+    /**
+     * Pool usage of a {@code javax.sql.DataSource} resource of {@code context.xml}, the borrow wait time is only
+     * reported by the {@code com.cloudbees.tomcat.jdbc.InstrumentedDataSource}. The pools of the primary and of the
+     * replicas of a {@code ReplicationDataSource} are also reported individually.
+     *
+     * @param resource {@code <Resource type="javax.sql.DataSource" ... />} element
+     */
+    protected SetupTomcatMetricsConfigurationFile addDataSourceQueries(String hostName, Element resource, Document metricsDocument) {
+        String resourceName = resource.getAttribute("name");
+        logger.info("Add metrics of DataSource {}", resourceName);
+
+        // see org.apache.catalina.core.NamingContextListener#createObjectName(ContextResource)
+        String dataSource = "Catalina:type=DataSource,context=" + contextPath + ",host=" + hostName +
+                ",class=javax.sql.DataSource,name=" + ObjectName.quote(resourceName);
+        String alias = "datasource_" + toAlias(resourceName.startsWith("jdbc/") ? resourceName.substring("jdbc/".length()) : resourceName);
+        String factory = resource.getAttribute("factory");
+        boolean instrumented = "com.cloudbees.tomcat.jdbc.InstrumentedDataSourceFactory".equals(factory) ||
+                "com.cloudbees.tomcat.jdbc.ReplicationDataSourceFactory".equals(factory);
+        addPoolQueries(metricsDocument, dataSource, instrumented, alias);
+
+        String replicaUrls = resource.getAttribute("replicaUrls");
+        if ("com.cloudbees.tomcat.jdbc.ReplicationDataSourceFactory".equals(factory) && !replicaUrls.isEmpty()) {
+            // the ReplicationDataSource registers the pool of each database with an additional "pool" key
+            addQuery(metricsDocument, dataSource, "readConnectionCount", null, "counter", alias + "_readConnections");
+            addQuery(metricsDocument, dataSource, "primaryReadConnectionCount", null, "counter", alias + "_primaryReadConnections");
+            addQuery(metricsDocument, dataSource, "writeConnectionCount", null, "counter", alias + "_writeConnections");
+            addQuery(metricsDocument, dataSource, "replicaFailureCount", null, "counter", alias + "_replicaFailures");
+            addPoolQueries(metricsDocument, dataSource + ",pool=primary", true, alias + "_primary");
+            int replicaCount = replicaUrls.split(",").length;
+            for (int i = 1; i <= replicaCount; i++) {
+                addPoolQueries(metricsDocument, dataSource + ",pool=replica" + i, true, alias + "_replica" + i);
+            }
+        }
+        return this;
+    }
+
+    private void addPoolQueries(Document metricsDocument, String objectName, boolean instrumented, String alias) {
+        addQuery(metricsDocument, objectName, "numActive", null, null, alias + "_numActive");
+        addQuery(metricsDocument, objectName, "numIdle", null, null, alias + "_numIdle");
+        addQuery(metricsDocument, objectName, "waitCount", null, null, alias + "_numWait");
+        addQuery(metricsDocument, objectName, "maxActive", null, null, alias + "_maxActive");
+        if (instrumented) {
+            addQuery(metricsDocument, objectName, "borrowCount", null, "counter", alias + "_borrowCount");
+            addQuery(metricsDocument, objectName, "borrowWaitTimeInMillis", null, "counter", alias + "_borrowWaitTime");
+            addQuery(metricsDocument, objectName, "borrowTimeoutCount", null, "counter", alias + "_borrowTimeouts");
+        }
+    }
+
+    /**
+     * Busy threads and queue depth of the {@code <Executor>}s of {@code server.xml}, busy threads of the internal
+     * pools of the connectors without executor (their queue is not exposed).
+     */
+    protected SetupTomcatMetricsConfigurationFile addThreadPoolQueries(Document serverXmlDocument, Document metricsDocument) {
+        NodeList executors = serverXmlDocument.getElementsByTagName("Executor");
+        for (int i = 0; i < executors.getLength(); i++) {
+            String executorName = ((Element) executors.item(i)).getAttribute("name");
+            logger.info("Add metrics of Executor {}", executorName);
+
+            String executor = "Catalina:type=Executor,name=" + executorName;
+            String alias = "executor_" + toAlias(executorName);
+            addQuery(metricsDocument, executor, "activeCount", null, null, alias + "_activeCount");
+            addQuery(metricsDocument, executor, "poolSize", null, null, alias + "_poolSize");
+            addQuery(metricsDocument, executor, "maxThreads", null, null, alias + "_maxThreads");
+            addQuery(metricsDocument, executor, "queueSize", null, null, alias + "_queueSize");
+            addQuery(metricsDocument, executor, "completedTaskCount", null, "counter", alias + "_completedTaskCount");
+        }
+
+        NodeList connectors = serverXmlDocument.getElementsByTagName("Connector");
+        boolean connectorThreadPool = false;
+        for (int i = 0; i < connectors.getLength(); i++) {
+            connectorThreadPool |= ((Element) connectors.item(i)).getAttribute("executor").isEmpty();
+        }
+        if (connectorThreadPool) {
+            logger.info("Add metrics of the connector thread pools");
+
+            String threadPool = "Catalina:type=ThreadPool,name=*";
+            addQuery(metricsDocument, threadPool, "currentThreadsBusy", null, null, "threadpool_currentThreadsBusy");
+            addQuery(metricsDocument, threadPool, "currentThreadCount", null, null, "threadpool_currentThreadCount");
+            addQuery(metricsDocument, threadPool, "maxThreads", null, null, "threadpool_maxThreads");
+        }
+        return this;
+    }
+
+    /**
+     * Limit, in-flight and rejected requests of the {@code AdmissionControlValve} if it is declared in
+     * {@code server.xml}.
+     */
+    protected SetupTomcatMetricsConfigurationFile addAdmissionControlQueries(Document serverXmlDocument, Document metricsDocument) {
+        NodeList valves = serverXmlDocument.getElementsByTagName("Valve");
+        boolean admissionControl = false;
+        for (int i = 0; i < valves.getLength(); i++) {
+            admissionControl |= "com.cloudbees.tomcat.valves.AdmissionControlValve".equals(((Element) valves.item(i)).getAttribute("className"));
+        }
+        if (!admissionControl) {
+            return this;
+        }
+        logger.info("Add metrics of AdmissionControlValve");
+
+        String valve = "Catalina:type=Valve,host=" + getHostName(serverXmlDocument) + ",name=AdmissionControlValve";
+        addQuery(metricsDocument, valve, "limit", null, null, "admission_limit");
+        addQuery(metricsDocument, valve, "inFlightRequestCount", null, null, "admission_inFlightRequests");
+        addQuery(metricsDocument, valve, "acceptedRequestCount", null, "counter", "admission_acceptedRequests");
+        addQuery(metricsDocument, valve, "rejectedRequestCount", null, "counter", "admission_rejectedRequests");
+        addQuery(metricsDocument, valve, "rejectedLowPriorityRequestCount", null, "counter", "admission_rejectedLowPriorityRequests");
+        addQuery(metricsDocument, valve, "droppedRequestCount", null, "counter", "admission_droppedRequests");
+        return this;
+    }
+
+    /**
+     * Hit ratio and bytes saved by the {@code ResponseCacheValve} if it is declared in {@code server.xml}.
+     */
+    protected SetupTomcatMetricsConfigurationFile addResponseCacheQueries(Document serverXmlDocument, Document metricsDocument) {
+        NodeList valves = serverXmlDocument.getElementsByTagName("Valve");
+        boolean responseCache = false;
+        for (int i = 0; i < valves.getLength(); i++) {
+            responseCache |= "com.cloudbees.tomcat.valves.ResponseCacheValve".equals(((Element) valves.item(i)).getAttribute("className"));
+        }
+        if (!responseCache) {
+            return this;
+        }
+        logger.info("Add metrics of ResponseCacheValve");
+
+        String valve = "Catalina:type=Valve,host=" + getHostName(serverXmlDocument) + ",name=ResponseCacheValve";
+        addQuery(metricsDocument, valve, "hitRatio", null, null, "responseCache_hitRatio");
+        addQuery(metricsDocument, valve, "hitCount", null, "counter", "responseCache_hits");
+        addQuery(metricsDocument, valve, "missCount", null, "counter", "responseCache_misses");
+        addQuery(metricsDocument, valve, "notModifiedCount", null, "counter", "responseCache_notModified");
+        addQuery(metricsDocument, valve, "bytesSaved", null, "counter", "responseCache_bytesSaved");
+        addQuery(metricsDocument, valve, "sizeInBytes", null, null, "responseCache_sizeInBytes");
+        addQuery(metricsDocument, valve, "evictionCount", null, "counter", "responseCache_evictions");
+        return this;
+    }
+
+    /**
+     * Replication traffic and lag of the session {@code <Cluster>} if it is declared in {@code server.xml}: the bytes
+     * per second are the {@code cluster_sentBytes} counter divided by the collect interval, the average lag is
+     * {@code cluster_replicationLag / cluster_sentMessages}.
+     */
+    protected SetupTomcatMetricsConfigurationFile addSessionClusterQueries(Document serverXmlDocument, Document metricsDocument) {
+        if (serverXmlDocument.getElementsByTagName("Cluster").getLength() == 0) {
+            return this;
+        }
+        logger.info("Add metrics of the session Cluster");
+
+        String stats = "Catalina:type=Cluster,component=ReplicationStats";
+        addQuery(metricsDocument, stats, "sentMessageCount", null, "counter", "cluster_sentMessages");
+        addQuery(metricsDocument, stats, "sentBytes", null, "counter", "cluster_sentBytes");
+        addQuery(metricsDocument, stats, "sendErrorCount", null, "counter", "cluster_sendErrors");
+        addQuery(metricsDocument, stats, "replicationLagInMillis", null, "counter", "cluster_replicationLag");
+        addQuery(metricsDocument, stats, "lastReplicationLagInMillis", null, null, "cluster_lastReplicationLag");
+        addQuery(metricsDocument, stats, "receivedMessageCount", null, "counter", "cluster_receivedMessages");
+        addQuery(metricsDocument, stats, "receivedBytes", null, "counter", "cluster_receivedBytes");
+        // time spent by the request threads to hand over the changes of the sessions
+        String valve = "Catalina:type=Valve,name=ReplicationValve";
+        addQuery(metricsDocument, valve, "nrOfRequests", null, "counter", "cluster_replicatedRequests");
+        addQuery(metricsDocument, valve, "totalSendTime", null, "counter", "cluster_requestSendTime");
+        return this;
+    }
+
+    /**
+     * @return name of the {@code <Host>} serving the application, the default host of the engine
+     */
+    @Nonnull
+    protected static String getHostName(Document serverXmlDocument) {
+        NodeList engines = serverXmlDocument.getElementsByTagName("Engine");
+        String defaultHost = engines.getLength() == 0 ? "" : ((Element) engines.item(0)).getAttribute("defaultHost");
+        return defaultHost.isEmpty() ? "localhost" : defaultHost;
+    }
+
+    /**
+     * @return {@code statsd}, {@code graphite} or {@code null} if the metrics are not pushed
+     */
+    @Nullable
+    protected static String getPushProtocol(Metadata metadata) {
+        String protocol = metadata.getRuntimeParameter("metrics", "push", null);
+        if (protocol == null || protocol.isEmpty()) {
+            return null;
+        }
+        protocol = protocol.toLowerCase(Locale.ENGLISH);
+        if (!"statsd".equals(protocol) && !"graphite".equals(protocol)) {
+            throw new IllegalArgumentException("Unsupported metrics.push '" + protocol + "', expected 'statsd' or 'graphite'");
+        }
+        return protocol;
+    }
+
+    /**
+     * Push the metrics to a statsd or Graphite server in addition to the {@code tomcat-metrics.data} file of
+     * {@code stats-appstat}, the writer is loaded from the {@code clickstack-jmxtrans-extras} jar added by
+     * {@link Setup#installJmxTransAgent()}.
+     */
+    protected SetupTomcatMetricsConfigurationFile addPushOutputWriter(Metadata metadata, Document metricsDocument) {
+        String section = "metrics";
+
+        String protocol = getPushProtocol(metadata);
+        if (protocol == null) {
+            return this;
+        }
+        String host = metadata.getRuntimeParameter(section, "host", null);
+        Preconditions.checkArgument(host != null && !host.isEmpty(), "metrics.host is required with metrics.push=%s", protocol);
+        logger.info("Push metrics to {} server {}", protocol, host);
+
+        Set<String> pushProperties = new HashSet<>(Arrays.asList(
+                "host", "port", "namePrefix", "bufferSize", "maxPacketSizeInBytes", "maxBackoffInSeconds"));
+
+        Element outputWriter = metricsDocument.createElement("outputWriter");
+        outputWriter.setAttribute("class", "com.cloudbees.jmxtrans.PushOutputWriter");
+        addSetting(outputWriter, "protocol", protocol);
+        for (Map.Entry<String, String> entry : metadata.getRuntimeProperty(section).entrySet()) {
+            if (pushProperties.contains(entry.getKey())) {
+                addSetting(outputWriter, entry.getKey(), entry.getValue());
+            } else if (!"push".equals(entry.getKey())) {
+                logger.debug("pushOutputWriter: ignore unknown property '" + entry.getKey() + "'");
+            }
+        }
+
+        Element fileOutputWriter = XmlUtils.getUniqueElement(metricsDocument, "/jmxtrans-agent/outputWriter");
+        fileOutputWriter.getParentNode().insertBefore(outputWriter, fileOutputWriter.getNextSibling());
+        return this;
+    }
+
+    private void addSetting(Element outputWriter, String name, String value) {
+        Element setting = outputWriter.getOwnerDocument().createElement(name);
+        setting.setTextContent(value);
+        outputWriter.appendChild(setting);
+    }
+
+    protected void buildTomcatMetricsConfiguration(Metadata metadata, Document serverXmlDocument, Document contextXmlDocument, Document metricsDocument) {
+        String message = "File generated by tomcat-clickstack at " + new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date());
+        metricsDocument.appendChild(metricsDocument.createComment(message));
+
+        addGarbageCollectorQueries(metricsDocument);
+        for (String persistenceUnit : openJpaPersistenceUnits) {
+            addOpenJpaCacheQueries(persistenceUnit, metricsDocument);
+        }
+
+        String hostName = getHostName(serverXmlDocument);
+        addApplicationQueries(hostName, metricsDocument);
+        if (SetupTomcatConfigurationFiles.isOffHeapSessions(metadata)) {
+            addOffHeapSessionQueries(hostName, metricsDocument);
+        }
+        NodeList resources = contextXmlDocument.getElementsByTagName("Resource");
+        for (int i = 0; i < resources.getLength(); i++) {
+            Element resource = (Element) resources.item(i);
+            if ("javax.sql.DataSource".equals(resource.getAttribute("type"))) {
+                addDataSourceQueries(hostName, resource, metricsDocument);
+            }
+        }
+        addThreadPoolQueries(serverXmlDocument, metricsDocument);
+        addAdmissionControlQueries(serverXmlDocument, metricsDocument);
+        addResponseCacheQueries(serverXmlDocument, metricsDocument);
+        addSessionClusterQueries(serverXmlDocument, metricsDocument);
+        addPushOutputWriter(metadata, metricsDocument);
+    }
+
+    public void buildTomcatMetricsConfigurationFile(Path catalinaBase) throws Exception {
+        Path metricsXmlPath = catalinaBase.resolve("conf/tomcat-metrics.xml");
+        Preconditions.checkArgument(Files.exists(metricsXmlPath), "Given tomcat-metrics.xml does not exist %s", metricsXmlPath);
+
+        Document metricsDocument = XmlUtils.loadXmlDocumentFromFile(metricsXmlPath.toFile());
+        XmlUtils.checkRootElement(metricsDocument, "jmxtrans-agent");
+
+        // generated by SetupTomcatConfigurationFiles
+        Document serverXmlDocument = XmlUtils.loadXmlDocumentFromFile(catalinaBase.resolve("conf/server.xml").toFile());
+        Document contextXmlDocument = XmlUtils.loadXmlDocumentFromFile(catalinaBase.resolve("conf/context.xml").toFile());
+
+        this.buildTomcatMetricsConfiguration(metadata, serverXmlDocument, contextXmlDocument, metricsDocument);
+
+        XmlUtils.flush(metricsDocument, new FileOutputStream(metricsXmlPath.toFile()));
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Inspects an exploded web application (descriptors and annotations of the classes of {@code WEB-INF/classes} and
+ * {@code WEB-INF/lib}) to find out which Java EE features it uses.
+ * <p/>
+ * Annotations are detected looking for their type descriptor (e.g. {@code Ljavax/ejb/Stateless;}) in the constant
+ * pool of the class files, without loading the classes. Descriptor markers may contain a {@code *} wildcard
+ * (e.g. {@code META-INF/*.tld} matches the TLDs of any sub directory of {@code META-INF}).
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class WebAppContentAnalyzer {
+
+    public enum Feature {
+        EJB("Ljavax/ejb/", "META-INF/ejb-jar.xml", "WEB-INF/ejb-jar.xml"),
+        WEB_SERVICES("Ljavax/jws/WebService", "Ljavax/xml/ws/WebServiceProvider", "META-INF/webservices.xml", "WEB-INF/webservices.xml"),
+        JAX_RS("Ljavax/ws/rs/"),
+        CDI("Ljavax/enterprise/", "Ljavax/inject/", "META-INF/beans.xml", "WEB-INF/beans.xml"),
+        JPA("Ljavax/persistence/", "META-INF/persistence.xml"),
+        BEAN_VALIDATION("Ljavax/validation/", "META-INF/validation.xml", "WEB-INF/validation.xml"),
+        // scanned by Tomcat through the OpenEJB scan of TomEE
+        SERVLET("Ljavax/servlet/annotation/", "META-INF/web-fragment.xml",
+                "META-INF/services/javax.servlet.ServletContainerInitializer", "META-INF/*.tld"),
+        COMMON_ANNOTATIONS("Ljavax/annotation/"),
+        JSF("Ljavax/faces/", "META-INF/faces-config.xml", "WEB-INF/faces-config.xml"),
+        INTERCEPTORS("Ljavax/interceptor/"),
+        JMS("Ljavax/jms/");
+
+        private final List<String> markers = new ArrayList<>();
+
+        Feature(String... markers) {
+            Collections.addAll(this.markers, markers);
+        }
+
+        boolean isDescriptor(String marker) {
+            return !marker.startsWith("L");
+        }
+
+        static boolean matchesDescriptor(String marker, String entryName) {
+            int wildcard = marker.indexOf('*');
+            if (wildcard == -1) {
+                return marker.equals(entryName);
+            }
+            return entryName.startsWith(marker.substring(0, wildcard)) && entryName.endsWith(marker.substring(wildcard + 1));
+        }
+    }
+
+    /**
+     * Result of the analysis of a web application
+     */
+    public static class Analysis {
+        private final Set<Feature> features = EnumSet.noneOf(Feature.class);
+        /**
+         * Jars of {@code WEB-INF/lib} with neither Java EE annotation nor descriptor and whose base name is not the
+         * prefix of another jar ({@code openejb.additional.exclude} is matched as a prefix)
+         */
+        private final List<String> passiveJars = new ArrayList<>();
+
+        public boolean uses(Feature feature) {
+            return features.contains(feature);
+        }
+
+        @Nonnull
+        public Set<Feature> getFeatures() {
+            return features;
+        }
+
+        @Nonnull
+        public List<String> getPassiveJars() {
+            return passiveJars;
+        }
+
+        @Override
+        public String toString() {
+            return "Analysis{features=" + features + ", passiveJars=" + passiveJars + "}";
+        }
+    }
+
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Nonnull
+    public Analysis analyze(@Nonnull Path webAppDir) throws IOException {
+        final Analysis analysis = new Analysis();
+
+        // descriptors of the web app
+        for (Feature feature : Feature.values()) {
+            for (String marker : feature.markers) {
+                if (feature.isDescriptor(marker) && marker.startsWith("WEB-INF/") && Files.exists(webAppDir.resolve(marker))) {
+                    analysis.features.add(feature);
+                }
+            }
+        }
+
+        // WEB-INF/classes
+        final Path classesDir = webAppDir.resolve("WEB-INF/classes");
+        if (Files.isDirectory(classesDir)) {
+            Files.walkFileTree(classesDir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    String entryName = classesDir.relativize(file).toString().replace('\\', '/');
+                    if (isInspected(entryName)) {
+                        try (InputStream in = Files.newInputStream(file)) {
+                            analysis.features.addAll(inspect(entryName, in));
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        // WEB-INF/lib
+        Path libDir = webAppDir.resolve("WEB-INF/lib");
+        if (Files.isDirectory(libDir)) {
+            List<String> activeJars = new ArrayList<>();
+            try (DirectoryStream<Path> jars = Files.newDirectoryStream(libDir, "*.jar")) {
+                for (Path jar : jars) {
+                    Set<Feature> jarFeatures = inspectJar(jar);
+                    if (jarFeatures.isEmpty()) {
+                        analysis.passiveJars.add(jar.getFileName().toString());
+                    } else {
+                        activeJars.add(jar.getFileName().toString());
+                    }
+                    analysis.features.addAll(jarFeatures);
+                }
+            }
+            for (Iterator<String> it = analysis.passiveJars.iterator(); it.hasNext(); ) {
+                String passiveJar = it.next();
+                String baseName = passiveJar.substring(0, passiveJar.length() - ".jar".length());
+                for (String activeJar : activeJars) {
+                    if (activeJar.startsWith(baseName)) {
+                        logger.debug("Don't exclude {}, its name is a prefix of {}", passiveJar, activeJar);
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+            Collections.sort(analysis.passiveJars);
+        }
+        logger.debug("analyze({}): {}", webAppDir, analysis);
+        return analysis;
+    }
+
+    @Nonnull
+    protected Set<Feature> inspectJar(@Nonnull Path jar) throws IOException {
+        Set<Feature> features = EnumSet.noneOf(Feature.class);
+        try (ZipFile zipFile = new ZipFile(jar.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && isInspected(entry.getName())) {
+                    try (InputStream in = zipFile.getInputStream(entry)) {
+                        features.addAll(inspect(entry.getName(), in));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Exception inspecting {}, consider it uses all the features", jar, e);
+            features.addAll(EnumSet.allOf(Feature.class));
+        }
+        return features;
+    }
+
+    private boolean isInspected(@Nonnull String entryName) {
+        return entryName.endsWith(".class") || entryName.startsWith("META-INF/");
+    }
+
+    @Nonnull
+    protected Set<Feature> inspect(@Nonnull String entryName, @Nonnull InputStream in) throws IOException {
+        Set<Feature> features = EnumSet.noneOf(Feature.class);
+        if (!entryName.endsWith(".class")) {
+            for (Feature feature : Feature.values()) {
+                for (String marker : feature.markers) {
+                    if (feature.isDescriptor(marker) && marker.startsWith("META-INF/") && Feature.matchesDescriptor(marker, entryName)) {
+                        features.add(feature);
+                    }
+                }
+            }
+            return features;
+        }
+        // ISO-8859-1 maps each byte to a char, the markers are plain ASCII
+        String content = new String(ByteStreams.toByteArray(in), Charsets.ISO_8859_1);
+        for (Feature feature : Feature.values()) {
+            for (String marker : feature.markers) {
+                if (!feature.isDescriptor(marker) && content.contains(marker)) {
+                    features.add(feature);
+                }
+            }
+        }
+        return features;
+    }
+
+    /**
+     * @param excludePassiveJars exclude the {@link Analysis#getPassiveJars() passive jars} from the scan of TomEE, which
+     *                           also drives the scan of the servlet annotations by Tomcat
+     * @param reasons            filled with the reason of each generated property
+     * @return the {@code openejb.*} / {@code tomee.*} system properties disabling the services that the analyzed
+     * application does not use
+     */
+    @Nonnull
+    public Map<String, String> getSystemPropertiesDisablingUnusedServices(@Nonnull Analysis analysis, boolean excludePassiveJars,
+                                                                         @Nonnull Map<String, String> reasons) {
+        Map<String, String> systemProperties = new LinkedHashMap<>();
+
+        if (!analysis.uses(Feature.WEB_SERVICES)) {
+            systemProperties.put("openejb.webservices.enabled", "false");
+            reasons.put("openejb.webservices.enabled", "no @WebService, @WebServiceProvider nor webservices.xml");
+        }
+        if (!analysis.uses(Feature.EJB)) {
+            systemProperties.put("openejb.validation.skip", "true");
+            reasons.put("openejb.validation.skip", "no EJB annotation nor ejb-jar.xml");
+            systemProperties.put("openejb.validation.output.level", "TERSE");
+            reasons.put("openejb.validation.output.level", "no EJB annotation nor ejb-jar.xml");
+        }
+        systemProperties.put("openejb.descriptors.output", "false");
+        reasons.put("openejb.descriptors.output", "generated descriptors are not used on the platform");
+
+        if (excludePassiveJars && !analysis.getPassiveJars().isEmpty()) {
+            StringBuilder excludes = new StringBuilder();
+            for (String jar : analysis.getPassiveJars()) {
+                excludes.append(excludes.length() == 0 ? "" : ",").append(jar.substring(0, jar.length() - ".jar".length()));
+            }
+            systemProperties.put("openejb.additional.exclude", excludes.toString());
+            reasons.put("openejb.additional.exclude", "jars without Java EE annotation nor descriptor are not scanned");
+        }
+        return systemProperties;
+    }
+}
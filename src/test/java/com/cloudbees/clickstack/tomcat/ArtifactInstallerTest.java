@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ArtifactInstallerTest {
+
+    private Path sourceDir;
+
+    private Path targetDir;
+
+    @Before
+    public void before() throws Exception {
+        Path tmpDir = Files.createTempDirectory("artifact-installer");
+        sourceDir = Files.createDirectories(tmpDir.resolve("clickstack/deps/tomcat-lib"));
+        Files.write(sourceDir.resolve("tomcat-extras.jar"), "tomcat-extras".getBytes(Charsets.UTF_8));
+        Files.write(Files.createDirectories(sourceDir.resolve("ext")).resolve("driver.jar"), "driver".getBytes(Charsets.UTF_8));
+        targetDir = tmpDir.resolve("app/catalina-base/lib");
+    }
+
+    @Test
+    public void link_files_of_the_same_file_store() throws Exception {
+        // prepare
+        ArtifactInstaller installer = ArtifactInstaller.forMode("link");
+        Files.createDirectories(targetDir);
+        Files.write(targetDir.resolve("tomcat-extras.jar"), "previous version".getBytes(Charsets.UTF_8));
+
+        // run
+        installer.installDirectoryContent(sourceDir, targetDir);
+
+        // verify
+        assertThat(Files.isSameFile(sourceDir.resolve("tomcat-extras.jar"), targetDir.resolve("tomcat-extras.jar")), is(true));
+        assertThat(Files.isSameFile(sourceDir.resolve("ext/driver.jar"), targetDir.resolve("ext/driver.jar")), is(true));
+        assertThat(installer.getLinkedFileCount(), is(2));
+        assertThat(installer.getCopiedFileCount(), is(0));
+        assertThat(installer.getSavedBytes(), is((long) ("tomcat-extras".length() + "driver".length())));
+    }
+
+    @Test
+    public void copy_files() throws Exception {
+        // prepare
+        ArtifactInstaller installer = ArtifactInstaller.forMode("COPY");
+
+        // run
+        installer.installDirectoryContent(sourceDir, targetDir);
+
+        // verify
+        Path target = targetDir.resolve("tomcat-extras.jar");
+        assertThat(Files.isSameFile(sourceDir.resolve("tomcat-extras.jar"), target), is(false));
+        assertThat(new String(Files.readAllBytes(target), Charsets.UTF_8), is("tomcat-extras"));
+        assertThat(installer.getCopiedFileCount(), is(2));
+        assertThat(installer.getSavedBytes(), is(0L));
+        assertThat(installer.getCopiedBytes(), is((long) ("tomcat-extras".length() + "driver".length())));
+    }
+
+    @Test
+    public void reflink_or_copy_files() throws Exception {
+        // prepare
+        ArtifactInstaller installer = ArtifactInstaller.forMode("reflink");
+
+        // run
+        installer.installDirectoryContent(sourceDir, targetDir);
+
+        // verify: reflinks are not supported by all file systems
+        assertThat(installer.getReflinkedFileCount() + installer.getCopiedFileCount(), is(2));
+        assertThat(new String(Files.readAllBytes(targetDir.resolve("ext/driver.jar")), Charsets.UTF_8), is("driver"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void reject_unknown_mode() throws Exception {
+        ArtifactInstaller.forMode("symlink");
+    }
+}
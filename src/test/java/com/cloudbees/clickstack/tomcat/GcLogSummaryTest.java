@@ -0,0 +1,86 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class GcLogSummaryTest {
+
+    @Test
+    public void parse_parallel_gc_log() throws Exception {
+        String log = "" +
+                "2014-03-30T21:29:30.000+0200: 1.000: [GC [PSYoungGen: 32768K->4096K(38400K)] 32768K->4096K(125952K), 0.0100000 secs] [Times: user=0.01 sys=0.00, real=0.01 secs] \n" +
+                "2014-03-30T21:29:31.000+0200: 2.000: [GC [PSYoungGen: 36864K->4096K(38400K)] 36864K->6144K(125952K), 0.0200000 secs] [Times: user=0.02 sys=0.00, real=0.02 secs] \n" +
+                "2014-03-30T21:29:33.000+0200: 4.000: [Full GC [PSYoungGen: 4096K->0K(38400K)] [ParOldGen: 2048K->3072K(87552K)] 6144K->3072K(125952K) [PSPermGen: 2700K->2699K(21504K)], 0.0500000 secs] [Times: user=0.05 sys=0.00, real=0.05 secs] \n";
+
+        GcLogSummary summary = new GcLogSummary();
+        summary.parse(new StringReader(log));
+
+        assertThat(summary.pausesInMillis.size(), is(3));
+        assertThat(summary.fullGcCount, is(1L));
+        assertThat(summary.getElapsedSeconds(), closeTo(3.0, 0.001));
+        assertThat(summary.getPausePercentileInMillis(50), closeTo(20.0, 0.001));
+        assertThat(summary.getPausePercentileInMillis(100), closeTo(50.0, 0.001));
+        // allocated: (36864 - 4096) + (6144 - 6144) = 32768K
+        assertThat(summary.allocatedBytes, is(32768L * 1024));
+        // promoted: (36864 - 4096) - (36864 - 6144) = 2048K
+        assertThat(summary.promotedBytes, is(2048L * 1024));
+    }
+
+    @Test
+    public void parse_g1_multi_lines_gc_log() throws Exception {
+        String log = "" +
+                "2014-03-30T21:29:30.000+0200: 1.000: [GC pause (G1 Evacuation Pause) (young), 0.0040000 secs]\n" +
+                "   [Parallel Time: 3.1 ms, GC Workers: 4]\n" +
+                "   [Eden: 24.0M(24.0M)->0.0B(21.0M) Survivors: 0.0B->3072.0K Heap: 24.0M(256.0M)->4096.0K(256.0M)]\n" +
+                " [Times: user=0.01 sys=0.00, real=0.00 secs] \n" +
+                "2014-03-30T21:29:32.000+0200: 3.000: [GC pause (G1 Evacuation Pause) (young), 0.0060000 secs]\n" +
+                "   [Eden: 21.0M(21.0M)->0.0B(21.0M) Survivors: 3072.0K->3072.0K Heap: 25.0M(256.0M)->5.0M(256.0M)]\n";
+
+        GcLogSummary summary = new GcLogSummary();
+        summary.parse(new StringReader(log));
+
+        assertThat(summary.pausesInMillis.size(), is(2));
+        assertThat(summary.getTotalPauseInMillis(), closeTo(10.0, 0.001));
+        // allocated: 25M - 4M = 21M in 2 seconds
+        assertThat(summary.getAllocationRateInMegaBytesPerSecond(), closeTo(10.5, 0.001));
+        // promoted in 2nd pause: (24M - 3M) - (25M - 5M) = 1M
+        assertThat(summary.promotedBytes, is(1024L * 1024 + 1024L * 1024));
+    }
+
+    @Test
+    public void parse_unified_gc_log() throws Exception {
+        String log = "" +
+                "[2019-03-30T21:29:30.000+0000][1.000s][info][gc,start    ] GC(0) Pause Young (Normal) (G1 Evacuation Pause)\n" +
+                "[2019-03-30T21:29:30.004+0000][1.004s][info][gc          ] GC(0) Pause Young (Normal) (G1 Evacuation Pause) 24M->4M(256M) 4.000ms\n" +
+                "[2019-03-30T21:29:31.000+0000][2.000s][info][gc          ] GC(1) Concurrent Cycle 12.000ms\n" +
+                "[2019-03-30T21:29:32.004+0000][3.004s][info][gc          ] GC(2) Pause Full (System.gc()) 24M->3M(256M) 30.000ms\n";
+
+        GcLogSummary summary = new GcLogSummary();
+        summary.parse(new StringReader(log));
+
+        assertThat(summary.pausesInMillis.size(), is(2));
+        assertThat(summary.fullGcCount, is(1L));
+        assertThat(summary.getPausePercentileInMillis(99), closeTo(30.0, 0.001));
+        assertThat(summary.allocatedBytes, is(20L * 1024 * 1024));
+    }
+}
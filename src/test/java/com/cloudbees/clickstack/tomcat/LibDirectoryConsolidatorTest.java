@@ -0,0 +1,108 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.tomcat.LibDirectoryConsolidator.Duplicates;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class LibDirectoryConsolidatorTest {
+
+    private Path catalinaBaseLib;
+    private Path catalinaHomeLib;
+
+    @Before
+    public void before() throws Exception {
+        Path tmpDir = Files.createTempDirectory("consolidator");
+        catalinaBaseLib = Files.createDirectories(tmpDir.resolve("catalina-base/lib"));
+        catalinaHomeLib = Files.createDirectories(tmpDir.resolve("catalina-home/lib"));
+
+        createJar(catalinaBaseLib.resolve("mail-1.4.7.jar"),
+                "javax/mail/Session.class", "v1.4.7",
+                "com/sun/mail/smtp/SMTPTransport.class", "smtp",
+                "META-INF/services/javax.mail.Provider", "com.sun.mail.smtp.SMTPProvider");
+        createJar(catalinaBaseLib.resolve("activation-1.1.jar"),
+                "javax/activation/DataHandler.class", "v1.1",
+                "META-INF/services/javax.mail.Provider", "com.example.OtherProvider");
+        createJar(catalinaHomeLib.resolve("geronimo-javamail.jar"),
+                "javax/mail/Session.class", "geronimo",
+                "com/sun/mail/smtp/SMTPTransport.class", "smtp");
+    }
+
+    @Test
+    public void find_duplicate_classes_across_directories() throws Exception {
+        // run
+        Duplicates duplicates = new LibDirectoryConsolidator().findDuplicateClasses(Arrays.asList(catalinaBaseLib, catalinaHomeLib));
+
+        // verify
+        assertThat(duplicates.getConflicting().keySet(), contains("javax.mail.Session"));
+        assertThat(duplicates.getConflicting().get("javax.mail.Session"), contains(
+                Paths.get("catalina-base/lib/mail-1.4.7.jar").toString(),
+                Paths.get("catalina-home/lib/geronimo-javamail.jar").toString()));
+        assertThat(duplicates.getIdentical().keySet(), contains("com.sun.mail.smtp.SMTPTransport"));
+    }
+
+    @Test
+    public void merge_jars() throws Exception {
+        // run
+        LibDirectoryConsolidator consolidator = new LibDirectoryConsolidator();
+        consolidator.mergeJars(catalinaBaseLib);
+
+        // verify
+        Path mergedJar = catalinaBaseLib.resolve(LibDirectoryConsolidator.MERGED_JAR_NAME);
+        assertThat(Files.exists(mergedJar), is(true));
+        assertThat(Files.exists(catalinaBaseLib.resolve("mail-1.4.7.jar")), is(false));
+        try (ZipFile zipFile = new ZipFile(mergedJar.toFile())) {
+            assertThat(zipFile.getEntry("javax/mail/Session.class"), notNullValue());
+            assertThat(zipFile.getEntry("javax/activation/DataHandler.class"), notNullValue());
+            String providers = read(zipFile, "META-INF/services/javax.mail.Provider");
+            assertThat(providers, containsString("com.sun.mail.smtp.SMTPProvider"));
+            assertThat(providers, containsString("com.example.OtherProvider"));
+        }
+    }
+
+    private String read(ZipFile zipFile, String entryName) throws IOException {
+        try (InputStream in = zipFile.getInputStream(zipFile.getEntry(entryName))) {
+            return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+        }
+    }
+
+    private void createJar(Path jar, String... entriesAndContents) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar))) {
+            for (int i = 0; i < entriesAndContents.length; i += 2) {
+                out.putNextEntry(new ZipEntry(entriesAndContents[i]));
+                out.write(entriesAndContents[i + 1].getBytes(Charsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+    }
+}
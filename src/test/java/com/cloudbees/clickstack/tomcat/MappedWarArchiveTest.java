@@ -0,0 +1,173 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class MappedWarArchiveTest {
+
+    private Path tmpDir;
+
+    private byte[] jarContent;
+
+    @Before
+    public void before() throws Exception {
+        tmpDir = Files.createTempDirectory("mapped-war");
+        jarContent = new byte[200 * 1024];
+        new Random(1).nextBytes(jarContent);
+    }
+
+    @Test
+    public void extract_stored_and_deflated_entries() throws Exception {
+        // prepare
+        Path war = createWar(tmpDir.resolve("app.war"));
+        Path target = tmpDir.resolve("webapps/ROOT");
+
+        // run
+        int fileCount;
+        try (MappedWarArchive archive = new MappedWarArchive(war)) {
+            fileCount = archive.extractTo(target);
+        }
+
+        // verify
+        assertThat(fileCount, is(5));
+        assertThat(read(target.resolve("index.html")), is(repeat("<html>hello</html>", 1000)));
+        assertThat(Files.readAllBytes(target.resolve("WEB-INF/lib/library.jar")), is(jarContent));
+        assertThat(read(target.resolve("META-INF/context.xml")), is("<Context/>"));
+        assertThat(Files.isDirectory(target.resolve("WEB-INF/classes")), is(true));
+    }
+
+    @Test
+    public void lookup_and_copy_without_expansion() throws Exception {
+        // prepare
+        Path war = createWar(tmpDir.resolve("app.war"));
+        Path extraFilesDir = Files.createDirectories(tmpDir.resolve("extra-files"));
+        Files.write(extraFilesDir.resolve("newrelic.yml"), "previous".getBytes(Charsets.UTF_8));
+
+        // run
+        try (MappedWarArchive archive = new MappedWarArchive(war)) {
+            // verify
+            assertThat(archive.size(), is(6));
+            assertThat(archive.isFile("META-INF/context.xml"), is(true));
+            assertThat(archive.isFile("META-INF/server.xml"), is(false));
+            assertThat(archive.isDirectory("META-INF/extra-files"), is(true));
+            assertThat(archive.isDirectory("WEB-INF/classes"), is(true));
+            assertThat(archive.isFile("WEB-INF/classes/"), is(false));
+            assertThat(archive.isDirectory("META-INF/lib"), is(false));
+
+            assertThat(archive.copyDirectoryContent("META-INF/extra-files", extraFilesDir), is(2));
+            archive.copy("META-INF/context.xml", tmpDir.resolve("conf/context.xml"));
+        }
+        assertThat(read(extraFilesDir.resolve("newrelic.yml")), is("license_key: 123"));
+        assertThat(read(extraFilesDir.resolve("agent/agent.properties")), is("enabled=true"));
+        assertThat(read(tmpDir.resolve("conf/context.xml")), is("<Context/>"));
+    }
+
+    @Test(expected = IOException.class)
+    public void reject_entry_outside_of_target_directory() throws Exception {
+        // prepare
+        Path war = tmpDir.resolve("evil.war");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(war))) {
+            out.putNextEntry(new ZipEntry("../../evil.sh"));
+            out.write("rm -rf /".getBytes(Charsets.UTF_8));
+            out.closeEntry();
+        }
+
+        // run
+        try (MappedWarArchive archive = new MappedWarArchive(war)) {
+            archive.extractTo(tmpDir.resolve("webapps/ROOT"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void reject_file_which_is_not_a_zip() throws Exception {
+        // prepare
+        Path file = tmpDir.resolve("app.war");
+        Files.write(file, "not a zip file".getBytes(Charsets.UTF_8));
+
+        // run
+        new MappedWarArchive(file).close();
+    }
+
+    @Test(expected = MappedWarArchive.UnsupportedArchiveException.class)
+    public void reject_zip64_archive() throws Exception {
+        // prepare: more than 65535 entries
+        Path war = tmpDir.resolve("app.war");
+        try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(war)))) {
+            for (int i = 0; i <= 0xFFFF; i++) {
+                out.putNextEntry(new ZipEntry("WEB-INF/classes/p" + i + "/"));
+                out.closeEntry();
+            }
+        }
+
+        // run
+        new MappedWarArchive(war).close();
+    }
+
+    private Path createWar(Path war) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(war))) {
+            addEntry(out, "index.html", repeat("<html>hello</html>", 1000).getBytes(Charsets.UTF_8), false);
+            addEntry(out, "META-INF/context.xml", "<Context/>".getBytes(Charsets.UTF_8), false);
+            addEntry(out, "META-INF/extra-files/newrelic.yml", "license_key: 123".getBytes(Charsets.UTF_8), false);
+            addEntry(out, "META-INF/extra-files/agent/agent.properties", "enabled=true".getBytes(Charsets.UTF_8), false);
+            out.putNextEntry(new ZipEntry("WEB-INF/classes/"));
+            out.closeEntry();
+            addEntry(out, "WEB-INF/lib/library.jar", jarContent, true);
+        }
+        return war;
+    }
+
+    private void addEntry(ZipOutputStream out, String name, byte[] content, boolean stored) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(content);
+        out.closeEntry();
+    }
+
+    private String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), Charsets.UTF_8);
+    }
+
+    private String repeat(String value, int count) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            result.append(value);
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SetupOpenJpaProfileTest {
+
+    private Path webAppDir;
+
+    @Before
+    public void before() throws Exception {
+        webAppDir = Files.createTempDirectory("webapp");
+        Path persistenceXml = Files.createDirectories(webAppDir.resolve("WEB-INF/classes/META-INF")).resolve("persistence.xml");
+        String xml = "" +
+                "<persistence xmlns='http://java.sun.com/xml/ns/persistence' version='2.0'>\n" +
+                "   <persistence-unit name='bound-unit'>\n" +
+                "      <jta-data-source>java:comp/env/jdbc/mydb</jta-data-source>\n" +
+                "   </persistence-unit>\n" +
+                "   <persistence-unit name='other-unit'>\n" +
+                "      <non-jta-data-source>jdbc/other</non-jta-data-source>\n" +
+                "   </persistence-unit>\n" +
+                "</persistence>";
+        Files.write(persistenceXml, xml.getBytes(Charsets.UTF_8));
+    }
+
+    private SetupOpenJpaProfile newProfile(String json) throws Exception {
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        return new SetupOpenJpaProfile(metadata, webAppDir, webAppDir, webAppDir, webAppDir);
+    }
+
+    @Test
+    public void find_persistence_units_bound_to_databases() throws Exception {
+        String json = "{\n" +
+                "'mydb': {\n" +
+                "   'DATABASE_PASSWORD': 'test',\n" +
+                "   'DATABASE_URL': 'mysql://mysql.mycompany.com:3306/test',\n" +
+                "   'DATABASE_USERNAME': 'test',\n" +
+                "   '__resource_name__': 'mydb',\n" +
+                "   '__resource_type__': 'database'\n" +
+                "}\n" +
+                "}";
+        SetupOpenJpaProfile profile = newProfile(json);
+
+        Map<String, String> dataSources = profile.getPersistenceUnitsDataSources(webAppDir.resolve("WEB-INF/classes/META-INF/persistence.xml"));
+
+        assertThat(dataSources.keySet(), contains("bound-unit", "other-unit"));
+        assertThat(profile.findDatabase(dataSources.get("bound-unit")), notNullValue());
+        assertThat(profile.findDatabase(dataSources.get("other-unit")), nullValue());
+    }
+
+    @Test
+    public void persistence_unit_system_properties() throws Exception {
+        String json = "{\n" +
+                "'openjpa': {\n" +
+                "   'enabled': 'true',\n" +
+                "   'dataCache.size': '5000'\n" +
+                "}\n" +
+                "}";
+        SetupOpenJpaProfile profile = newProfile(json);
+
+        Map<String, String> systemProperties = profile.getPersistenceUnitSystemProperties("bound-unit", true);
+
+        assertThat(systemProperties, hasEntry("bound-unit.openjpa.QueryCompilationCache", "true"));
+        assertThat(systemProperties, hasEntry("bound-unit.openjpa.DataCache", "true(CacheSize=5000, SoftReferenceSize=0)"));
+        assertThat(systemProperties, hasEntry("bound-unit.openjpa.QueryCache", "true(CacheSize=1000, SoftReferenceSize=0)"));
+        assertThat(systemProperties, hasEntry("bound-unit.openjpa.RuntimeUnenhancedClasses", "unsupported"));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SetupTest {
+
+    private Path clickstackDir;
+
+    private Path appDir;
+
+    private Path packageDir;
+
+    private Setup setup;
+
+    @Before
+    public void before() throws Exception {
+        Path workDir = Files.createTempDirectory("setup");
+        clickstackDir = Files.createDirectories(workDir.resolve("clickstack"));
+        Files.createDirectories(clickstackDir.resolve("deps/tomcat-lib"));
+
+        packageDir = Files.createDirectories(workDir.resolve("pkg"));
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(packageDir.resolve("app.war")))) {
+            out.putNextEntry(new ZipEntry("WEB-INF/web.xml"));
+            out.write("<web-app version='3.0'/>".getBytes(Charsets.UTF_8));
+            out.closeEntry();
+        }
+
+        appDir = Files.createDirectories(workDir.resolve("app"));
+        Path genappDir = Files.createDirectories(appDir.resolve(".genapp"));
+        Path controlDir = Files.createDirectories(genappDir.resolve("control"));
+        Metadata metadata = Metadata.Builder.fromJsonString("{}", true);
+        Path javaHome = Paths.get(System.getProperty("java.home"));
+        setup = new Setup(null, appDir, genappDir, controlDir, clickstackDir, packageDir, metadata, javaHome);
+    }
+
+    @Test
+    public void install_catalina_base_expands_a_zip64_war() throws IOException {
+        // prepare: more than 65535 entries
+        try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(packageDir.resolve("app.war"))))) {
+            out.putNextEntry(new ZipEntry("META-INF/extra-files/newrelic.yml"));
+            out.write("license_key: 123".getBytes(Charsets.UTF_8));
+            out.closeEntry();
+            for (int i = 0; i <= 0xFFFF; i++) {
+                out.putNextEntry(new ZipEntry("WEB-INF/classes/p" + i + "/"));
+                out.closeEntry();
+            }
+        }
+
+        // run
+        Path catalinaBase = setup.installCatalinaBase();
+
+        // verify
+        assertThat(Files.isDirectory(catalinaBase.resolve("webapps/ROOT/WEB-INF/classes/p65535")), is(true));
+        assertThat(Files.exists(appDir.resolve("app-extra-files/newrelic.yml")), is(true));
+    }
+
+    @Test
+    public void install_catalina_base_does_not_change_the_permissions_of_the_clickstack_jars() throws IOException {
+        // prepare
+        Path sourceJar = clickstackDir.resolve("deps/tomcat-lib/tomcat-extras.jar");
+        Files.write(sourceJar, "tomcat-extras".getBytes(Charsets.UTF_8));
+        Set<PosixFilePermission> readOnly = PosixFilePermissions.fromString("r--r--r--");
+        Files.setPosixFilePermissions(sourceJar, readOnly);
+
+        // run
+        Path catalinaBase = setup.installCatalinaBase();
+
+        // verify
+        Path installedJar = catalinaBase.resolve("lib/tomcat-extras.jar");
+        assertThat(Files.exists(installedJar), is(true));
+        assertThat(Files.getPosixFilePermissions(sourceJar), is(readOnly));
+        assertThat(Files.exists(appDir.resolve("catalina-base/webapps/ROOT/WEB-INF/web.xml")), is(true));
+    }
+}
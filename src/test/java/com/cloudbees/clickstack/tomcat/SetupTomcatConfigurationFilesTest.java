@@ -29,7 +29,11 @@ import org.w3c.dom.Element;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileSystem;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
 import static org.xmlmatchers.XmlMatchers.isEquivalentTo;
 import static org.xmlmatchers.transform.XmlConverters.the;
@@ -41,11 +45,13 @@ public class SetupTomcatConfigurationFilesTest {
 
     private Document serverXml;
     private Document contextXml;
+    private Document tomeeXml;
 
     @Before
     public void before() throws Exception {
         serverXml = XmlUtils.loadXmlDocumentFromStream(Thread.currentThread().getContextClassLoader().getResourceAsStream("server.xml"));
         contextXml = XmlUtils.loadXmlDocumentFromStream(Thread.currentThread().getContextClassLoader().getResourceAsStream("context.xml"));
+        tomeeXml = XmlUtils.loadXmlDocumentFromStream(Thread.currentThread().getContextClassLoader().getResourceAsStream("tomee.xml"));
     }
 
     @Test
@@ -85,6 +91,69 @@ public class SetupTomcatConfigurationFilesTest {
 
     }
 
+    @Test
+    public void add_private_app_valve_with_verification_cache() throws Exception {
+        // prepare
+        String json = "{ \n" +
+                "'privateApp': { \n" +
+                "    'secretKey': 'ze-supper-secret', \n" +
+                "    'authenticationHeaderName': 'X-Private-App', \n" +
+                "    'authenticationCookieName': '__private_app', \n" +
+                "    'authenticationParameterName': '__private_app', \n" +
+                "    'ignoredUriRegexp': '/health.*', \n" +
+                "    'verificationCacheSize': '5000', \n" +
+                "    'verificationCacheTtlInSeconds': '30' \n" +
+                "}\n" +
+                "}";
+        String xml = "" +
+                "<Valve className='com.cloudbees.tomcat.valves.PrivateAppValve' \n" +
+                "   authenticationCookieName='__private_app' \n" +
+                "   authenticationHeaderName='X-Private-App' \n" +
+                "   authenticationParameterName='__private_app' \n" +
+                "   ignoredUriRegexp='/health.*' \n" +
+                "   secretKey='ze-supper-secret'/>";
+
+        test_private_app_valve(json, xml);
+
+        // verify
+        Element privateAppCacheValve = XmlUtils.getUniqueElement(serverXml, "//Valve[@className='com.cloudbees.tomcat.valves.PrivateAppValve']/preceding-sibling::Valve[1]");
+        String cacheXml = "" +
+                "<Valve className='com.cloudbees.tomcat.valves.PrivateAppCacheValve' \n" +
+                "   authenticationCookieName='__private_app' \n" +
+                "   authenticationHeaderName='X-Private-App' \n" +
+                "   authenticationParameterName='__private_app' \n" +
+                "   ignoredUriRegexp='/health.*' \n" +
+                "   maxEntries='5000' \n" +
+                "   secretKey='ze-supper-secret' \n" +
+                "   ttlInSeconds='30'/>";
+        assertThat(the(privateAppCacheValve), isEquivalentTo(the(cacheXml)));
+
+        Element privateAppVerifiedValve = XmlUtils.getUniqueElement(serverXml, "//Valve[@className='com.cloudbees.tomcat.valves.PrivateAppValve']/following-sibling::Valve[1]");
+        assertThat(the(privateAppVerifiedValve), isEquivalentTo(the("<Valve className='com.cloudbees.tomcat.valves.PrivateAppVerifiedValve'/>")));
+    }
+
+    @Test
+    public void verification_cache_requires_the_authentication_names() throws Exception {
+        // prepare
+        String json = "{ \n" +
+                "'privateApp': { \n" +
+                "    'secretKey': 'ze-supper-secret', \n" +
+                "    'authenticationCookieName': '__private_app', \n" +
+                "    'verificationCacheSize': '5000' \n" +
+                "}\n" +
+                "}";
+        String xml = "" +
+                "<Valve className='com.cloudbees.tomcat.valves.PrivateAppValve' \n" +
+                "   authenticationCookieName='__private_app' \n" +
+                "   secretKey='ze-supper-secret'/>";
+
+        test_private_app_valve(json, xml);
+
+        // verify: no PrivateAppCacheValve
+        Element previousValve = XmlUtils.getUniqueElement(serverXml, "//Valve[@className='com.cloudbees.tomcat.valves.PrivateAppValve']/preceding-sibling::Valve[1]");
+        assertThat(previousValve.getAttribute("className"), is("org.apache.catalina.valves.RemoteIpValve"));
+    }
+
     private void test_private_app_valve(String metadataDotJson, String expectedXml) throws IOException {
         Metadata metadata = Metadata.Builder.fromJsonString(metadataDotJson, true);
         SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
@@ -118,6 +187,31 @@ public class SetupTomcatConfigurationFilesTest {
 
     }
 
+    @Test
+    public void test_remote_addr_valve_allow_cidrs() throws Exception {
+        // prepare
+        String json = "{ \n" +
+                "'remoteAddress': { \n" +
+                "    'allowCidrs': '82.66.240.18, 10.0.0.0/8', \n" +
+                "    'allowCidrsFile': 'partners-cidrs.txt', \n" +
+                "    'allow': '82\\\\.66\\\\.240\\\\.18' \n" +
+                "}\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        // run
+        setupTomcatConfigurationFiles.addRemoteAddrValve(metadata, serverXml, contextXml);
+
+        // verify
+        Element cidrAddressValve = XmlUtils.getUniqueElement(serverXml, "//Valve[@className='com.cloudbees.tomcat.valves.CidrAddressValve']");
+        String xml = "" +
+                "<Valve className='com.cloudbees.tomcat.valves.CidrAddressValve' \n" +
+                "   allowCidrs='82.66.240.18, 10.0.0.0/8' \n" +
+                "   allowCidrsFile='partners-cidrs.txt' />";
+        assertThat(the(cidrAddressValve), isEquivalentTo(the(xml)));
+    }
+
     private void test_remote_addr_valve(String metadataDotJson, String expectedXml) throws IOException {
         Metadata metadata = Metadata.Builder.fromJsonString(metadataDotJson, true);
         SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
@@ -243,6 +337,80 @@ public class SetupTomcatConfigurationFilesTest {
         test_add_datasource(bindingName, json, xml);
     }
 
+    @Test
+    public void add_mysql_data_source_with_borrow_metrics() throws Exception {
+
+
+        String bindingName = "mydb";
+
+        String json = "{ \n" +
+                "'cb-db': { \n" +
+                "    'DATABASE_PASSWORD': 'test', \n" +
+                "    'DATABASE_URL': 'mysql://mysql.mycompany.com:3306/test', \n" +
+                "    'DATABASE_USERNAME': 'test', \n" +
+                "    '__resource_name__': '" + bindingName + "', \n" +
+                "    '__resource_type__': 'database', \n" +
+                "    'borrowMetrics': 'true' \n" +
+                "}\n" +
+                "}";
+        String xml = "" +
+                "<Resource auth='Container' \n" +
+                "   driverClassName='com.mysql.jdbc.Driver' \n" +
+                "   factory='com.cloudbees.tomcat.jdbc.InstrumentedDataSourceFactory' \n" +
+                "   initialSize='1' \n" +
+                "   maxActive='19' \n" +
+                "   maxIdle='9' \n" +
+                "   minIdle='1' \n" +
+                "   name='jdbc/" + bindingName + "' \n" +
+                "   password='test' \n" +
+                "   testOnBorrow='true' \n" +
+                "   testWhileIdle='true' \n" +
+                "   type='javax.sql.DataSource' \n" +
+                "   url='jdbc:mysql://mysql.mycompany.com:3306/test' \n" +
+                "   username='test' \n" +
+                "   validationInterval='5000' \n" +
+                "   validationQuery='select 1'/>";
+
+        test_add_datasource(bindingName, json, xml);
+    }
+
+    @Test
+    public void add_mysql_data_source_with_replicas() throws Exception {
+
+        String bindingName = "mydb";
+
+        String json = "{ \n" +
+                "'cb-db': { \n" +
+                "    'DATABASE_PASSWORD': 'test', \n" +
+                "    'DATABASE_URL': 'mysql://mysql.mycompany.com:3306/test', \n" +
+                "    'DATABASE_USERNAME': 'test', \n" +
+                "    '__resource_name__': '" + bindingName + "', \n" +
+                "    '__resource_type__': 'database', \n" +
+                "    'replicaUrls': 'mysql://replica-1.mycompany.com:3306/test, jdbc:mysql://replica-2.mycompany.com:3306/test' \n" +
+                "}\n" +
+                "}";
+        String xml = "" +
+                "<Resource auth='Container' \n" +
+                "   driverClassName='com.mysql.jdbc.Driver' \n" +
+                "   factory='com.cloudbees.tomcat.jdbc.ReplicationDataSourceFactory' \n" +
+                "   initialSize='1' \n" +
+                "   maxActive='19' \n" +
+                "   maxIdle='9' \n" +
+                "   minIdle='1' \n" +
+                "   name='jdbc/" + bindingName + "' \n" +
+                "   password='test' \n" +
+                "   replicaUrls='jdbc:mysql://replica-1.mycompany.com:3306/test,jdbc:mysql://replica-2.mycompany.com:3306/test' \n" +
+                "   testOnBorrow='true' \n" +
+                "   testWhileIdle='true' \n" +
+                "   type='javax.sql.DataSource' \n" +
+                "   url='jdbc:mysql://mysql.mycompany.com:3306/test' \n" +
+                "   username='test' \n" +
+                "   validationInterval='5000' \n" +
+                "   validationQuery='select 1'/>";
+
+        test_add_datasource(bindingName, json, xml);
+    }
+
     private void test_add_datasource(String bindingName, String json, String xml) throws IOException {
         Metadata metadata = Metadata.Builder.fromJsonString(json, true);
         SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
@@ -402,6 +570,60 @@ public class SetupTomcatConfigurationFilesTest {
         add_session_store(json, xml);
     }
 
+    @Test
+    public void add_off_heap_session_manager() throws Exception {
+        // prepare
+        String json = "{ \n" +
+                "'offHeapSessions': { \n" +
+                "    'enabled': 'true', \n" +
+                "    'capacityInMegabytes': '256', \n" +
+                "    'maxIdleSwap': '30' \n" +
+                "}\n" +
+                "}";
+
+        String xml = "" +
+                "<Manager className='com.cloudbees.tomcat.session.OffHeapSessionManager' \n" +
+                "   capacityInMegabytes='256' \n" +
+                "   maxHeapSessions='500' \n" +
+                "   maxIdleSwap='30' />";
+
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        // run
+        setupTomcatConfigurationFiles.addOffHeapSessionManager(metadata, contextXml);
+
+        // verify
+        Element sessionManager = XmlUtils.getUniqueElement(contextXml, "//Manager");
+        assertThat(the(sessionManager), isEquivalentTo(the(xml)));
+    }
+
+    @Test
+    public void off_heap_session_manager_ignored_with_memcache_session_store() throws Exception {
+        // prepare
+        String json = "{ \n" +
+                "'offHeapSessions': { \n" +
+                "    'enabled': 'true' \n" +
+                "},\n" +
+                "'memcache-session-store': { \n" +
+                "    'servers': 'memcache1.mycompany.com', \n" +
+                "    'username': 'my_acount', \n" +
+                "    'password': '09876543', \n" +
+                "    '__resource_name__': 'memcache-session-store', \n" +
+                "    '__resource_type__': 'session-store' \n" +
+                "}\n" +
+                "}";
+
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        // run
+        setupTomcatConfigurationFiles.addOffHeapSessionManager(metadata, contextXml);
+
+        // verify
+        assertThat(contextXml.getElementsByTagName("Manager").getLength(), is(0));
+    }
+
     @Test
     public void add_mail_session_success_basic_config() throws IOException {
         // prepare
@@ -469,4 +691,399 @@ public class SetupTomcatConfigurationFilesTest {
                 "    redirectPort='8443'/>";
         assertThat(the(connector), isEquivalentTo(the(xml)));
     }
+
+    @Test
+    public void add_warmup_listener() throws IOException {
+        // prepare
+        String json = "{ \n" +
+                " 'webapp': { \n" +
+                " 'contextPath': '/myapp' \n" +
+                " },\n" +
+                " 'warmup': { \n" +
+                " 'urls': '/, api/status', \n" +
+                " 'iterations': '50', \n" +
+                " 'ignore.me': 'anyvalue' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        // run
+        setupTomcatConfigurationFiles.addWarmupListener(metadata, serverXml);
+
+        // XmlUtils.flush(serverXml, System.out);
+
+        // verify
+        Element warmupListener = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Engine/Listener[@className='com.cloudbees.tomcat.listeners.WarmupListener']");
+        String xml = "" +
+                "<Listener className='com.cloudbees.tomcat.listeners.WarmupListener' \n" +
+                "    urls='/myapp/,/myapp/api/status' \n" +
+                "    iterations='50'/>";
+        assertThat(the(warmupListener), isEquivalentTo(the(xml)));
+
+        Element connector = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Connector");
+        assertThat(connector.getAttribute("bindOnInit"), is("false"));
+
+        Element warmupValve = XmlUtils.getUniqueElement(serverXml, "//Valve[@className='org.apache.catalina.valves.RemoteIpValve']/following-sibling::Valve[1]");
+        assertThat(warmupValve.getAttribute("className"), is("com.cloudbees.tomcat.valves.WarmupValve"));
+    }
+
+    @Test
+    public void add_leak_detector_listener() throws IOException {
+        // prepare
+        String json = "{ \n" +
+                " 'leakDetector': { \n" +
+                " 'report': 'true', \n" +
+                " 'histogramIntervalInMinutes': '60' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+        setupTomcatConfigurationFiles.setLogDir(Paths.get("/app/.genapp/log"));
+
+        // run
+        setupTomcatConfigurationFiles.addLeakDetectorListener(metadata, serverXml);
+
+        // verify
+        Element leakDetectorListener = XmlUtils.getUniqueElement(serverXml, "/Server/Listener[@className='com.cloudbees.tomcat.listeners.ClassLoaderLeakDetectorListener']");
+        String xml = "" +
+                "<Listener className='com.cloudbees.tomcat.listeners.ClassLoaderLeakDetectorListener' \n" +
+                "    dataFile='/app/.genapp/log/leak-detector.data' \n" +
+                "    reportFile='/app/.genapp/log/leak-report.txt' \n" +
+                "    histogramIntervalInMinutes='60'/>";
+        assertThat(the(leakDetectorListener), isEquivalentTo(the(xml)));
+    }
+
+    @Test
+    public void add_tomee_stateless_container() throws IOException {
+        // prepare
+        String json = "{ \n" +
+                " 'tomee': { \n" +
+                " 'stateless.maxSize': '20' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+        setupTomcatConfigurationFiles.availableProcessors = 4;
+
+        // run
+        setupTomcatConfigurationFiles.addTomEEStatelessContainer(metadata, tomeeXml);
+
+        // XmlUtils.flush(tomeeXml, System.out);
+
+        // verify
+        Element container = XmlUtils.getUniqueElement(tomeeXml, "/tomee/Container[@id='Default Stateless Container']");
+        assertThat(container.getAttribute("type"), is("STATELESS"));
+        assertThat(container.getTextContent(), is("\n" +
+                "    MinSize = 4\n" +
+                "    MaxSize = 20\n" +
+                "    StrictPooling = false\n" +
+                "    AccessTimeout = 30 seconds\n" +
+                "    IdleTimeout = 5 minutes\n" +
+                "    SweepInterval = 1 minute\n" +
+                "  "));
+    }
+
+    @Test
+    public void add_tomee_asynchronous_pool() throws IOException {
+        // prepare
+        Metadata metadata = Metadata.Builder.fromJsonString("{}", true);
+
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+        setupTomcatConfigurationFiles.availableProcessors = 2;
+        Map<String, String> systemProperties = new LinkedHashMap<>();
+
+        // run
+        setupTomcatConfigurationFiles.addTomEEAsynchronousPool(metadata, systemProperties);
+
+        // verify
+        assertThat(systemProperties.get("AsynchronousPool.CorePoolSize"), is("2"));
+        assertThat(systemProperties.get("AsynchronousPool.MaximumPoolSize"), is("4"));
+    }
+
+    @Test
+    public void add_tomee_mysql_data_source() throws Exception {
+        String bindingName = "mydb";
+
+        String json = "{ \n" +
+                "'cb-db': { \n" +
+                "    'DATABASE_PASSWORD': 'test', \n" +
+                "    'DATABASE_URL': 'mysql://mysql.mycompany.com:3306/test', \n" +
+                "    'DATABASE_USERNAME': 'test', \n" +
+                "    '__resource_name__': '" + bindingName + "', \n" +
+                "    '__resource_type__': 'database', \n" +
+                "    'maxWait': '2000' \n" +
+                "}\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        Database database = metadata.getResource(bindingName);
+
+        // run
+        setupTomcatConfigurationFiles.addTomEEDataSource(database, tomeeXml);
+
+        // XmlUtils.flush(tomeeXml, System.out);
+
+        // verify
+        Element dataSource = XmlUtils.getUniqueElement(tomeeXml, "/tomee/Resource[@id='jdbc/" + bindingName + "']");
+        assertThat(dataSource.getAttribute("type"), is("DataSource"));
+        assertThat(dataSource.getTextContent(), is("\n" +
+                "    JdbcDriver = com.mysql.jdbc.Driver\n" +
+                "    JdbcUrl = jdbc:mysql://mysql.mycompany.com:3306/test\n" +
+                "    UserName = test\n" +
+                "    Password = test\n" +
+                "    JtaManaged = true\n" +
+                "    MaxActive = 19\n" +
+                "    MaxIdle = 9\n" +
+                "    MinIdle = 1\n" +
+                "    InitialSize = 1\n" +
+                "    TestOnBorrow = true\n" +
+                "    TestWhileIdle = true\n" +
+                "    ValidationQuery = select 1\n" +
+                "    ValidationInterval = 5000\n" +
+                "    MaxWait = 2000\n" +
+                "  "));
+    }
+
+    @Test
+    public void add_virtual_thread_executor_and_bulkhead_valve() throws Exception {
+        String json = "{ \n" +
+                "'cb-db': { \n" +
+                "    'DATABASE_PASSWORD': 'test', \n" +
+                "    'DATABASE_URL': 'mysql://mysql.mycompany.com:3306/test', \n" +
+                "    'DATABASE_USERNAME': 'test', \n" +
+                "    '__resource_name__': 'mydb', \n" +
+                "    '__resource_type__': 'database' \n" +
+                "},\n" +
+                " 'tomcat': { \n" +
+                " 'executor': 'virtual' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata, 25);
+
+        // run
+        setupTomcatConfigurationFiles.addVirtualThreadExecutor(metadata, serverXml);
+        setupTomcatConfigurationFiles.addBulkheadValve(metadata, serverXml);
+
+        // XmlUtils.flush(serverXml, System.out);
+
+        // verify
+        Element executor = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Executor");
+        assertThat(executor.getAttribute("className"), is("com.cloudbees.tomcat.threads.VirtualThreadExecutor"));
+
+        Element connector = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Connector");
+        assertThat(connector.getAttribute("executor"), is("tomcatThreadPool"));
+        assertThat(connector.getAttribute("protocol"), is("org.apache.coyote.http11.Http11NioProtocol"));
+
+        Element bulkheadValve = XmlUtils.getUniqueElement(serverXml, "//Valve[@className='com.cloudbees.tomcat.valves.BulkheadValve']");
+        String xml = "" +
+                "<Valve className='com.cloudbees.tomcat.valves.BulkheadValve' \n" +
+                "    maxConcurrentRequests='19' \n" +
+                "    maxWaitInMillis='1000'/>";
+        assertThat(the(bulkheadValve), isEquivalentTo(the(xml)));
+    }
+
+    @Test
+    public void add_admission_control_valve_before_bulkhead_valve() throws Exception {
+        String json = "{ \n" +
+                "'cb-db': { \n" +
+                "    'DATABASE_PASSWORD': 'test', \n" +
+                "    'DATABASE_URL': 'mysql://mysql.mycompany.com:3306/test', \n" +
+                "    'DATABASE_USERNAME': 'test', \n" +
+                "    '__resource_name__': 'mydb', \n" +
+                "    '__resource_type__': 'database' \n" +
+                "},\n" +
+                " 'bulkhead': { \n" +
+                " 'enabled': 'true' \n" +
+                " },\n" +
+                " 'admissionControl': { \n" +
+                " 'enabled': 'true', \n" +
+                " 'maxLimit': '400', \n" +
+                " 'lowPriorityUriPrefixes': '/reports', \n" +
+                " 'unknownProperty': 'foo' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        // run
+        setupTomcatConfigurationFiles.addBulkheadValve(metadata, serverXml);
+        setupTomcatConfigurationFiles.addAdmissionControlValve(metadata, serverXml);
+
+        // verify
+        Element admissionControlValve = XmlUtils.getUniqueElement(serverXml, "//Valve[@className='org.apache.catalina.valves.RemoteIpValve']/following-sibling::Valve[1]");
+        String xml = "" +
+                "<Valve className='com.cloudbees.tomcat.valves.AdmissionControlValve' \n" +
+                "    maxLimit='400' \n" +
+                "    lowPriorityUriPrefixes='/reports'/>";
+        assertThat(the(admissionControlValve), isEquivalentTo(the(xml)));
+
+        Element bulkheadValve = XmlUtils.getUniqueElement(serverXml, "//Valve[@className='com.cloudbees.tomcat.valves.AdmissionControlValve']/following-sibling::Valve[1]");
+        assertThat(bulkheadValve.getAttribute("className"), is("com.cloudbees.tomcat.valves.BulkheadValve"));
+    }
+
+    @Test
+    public void add_response_cache_valve() throws Exception {
+        String json = "{ \n" +
+                " 'responseCache': { \n" +
+                " 'enabled': 'true', \n" +
+                " 'maxSizeInMegabytes': '128', \n" +
+                " 'uriPrefixes': '/api/catalog', \n" +
+                " 'unknownProperty': 'foo' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        // run
+        setupTomcatConfigurationFiles.addResponseCacheValve(metadata, serverXml);
+
+        // verify
+        Element responseCacheValve = XmlUtils.getUniqueElement(serverXml, "//Valve[@className='org.apache.catalina.valves.RemoteIpValve']/following-sibling::Valve[1]");
+        String xml = "" +
+                "<Valve className='com.cloudbees.tomcat.valves.ResponseCacheValve' \n" +
+                "    maxSizeInMegabytes='128' \n" +
+                "    uriPrefixes='/api/catalog'/>";
+        assertThat(the(responseCacheValve), isEquivalentTo(the(xml)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void add_response_cache_valve_requires_uri_prefixes() throws Exception {
+        String json = "{ \n" +
+                " 'responseCache': { \n" +
+                " 'enabled': 'true' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        // run
+        setupTomcatConfigurationFiles.addResponseCacheValve(metadata, serverXml);
+    }
+
+    @Test
+    public void add_session_cluster() throws Exception {
+        String json = "{ \n" +
+                " 'sessionCluster': { \n" +
+                " 'enabled': 'true', \n" +
+                " 'members': '127.0.0.1:4001, 127.0.0.1:4002, 127.0.0.1:4003', \n" +
+                " 'port': '4002' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+        Map<String, String> systemProperties = new LinkedHashMap<>();
+
+        // run
+        setupTomcatConfigurationFiles.addSessionCluster(metadata, serverXml);
+        setupTomcatConfigurationFiles.addTomEEClusterDeployment(metadata, systemProperties);
+
+        // verify
+        Element receiver = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Engine/Cluster/Channel/Receiver");
+        String xml = "" +
+                "<Receiver className='org.apache.catalina.tribes.transport.nio.NioReceiver' \n" +
+                "    address='127.0.0.1' \n" +
+                "    port='4002' \n" +
+                "    autoBind='1'/>";
+        assertThat(the(receiver), isEquivalentTo(the(xml)));
+
+        Element member = XmlUtils.getUniqueElement(serverXml, "//Interceptor/Member[@port='4003']");
+        xml = "" +
+                "<Member className='org.apache.catalina.tribes.membership.StaticMember' \n" +
+                "    host='127.0.0.1' \n" +
+                "    port='4003' \n" +
+                "    uniqueId='" + SetupTomcatConfigurationFiles.getStaticMemberUniqueId("127.0.0.1", 4003) + "'/>";
+        assertThat(the(member), isEquivalentTo(the(xml)));
+        // the local member is not a static member
+        assertThat(serverXml.getElementsByTagName("Member").getLength(), is(2));
+        assertThat(XmlUtils.getUniqueElement(serverXml, "/Server/Service/Engine/Cluster/Manager").getAttribute("className"),
+                is("org.apache.catalina.ha.session.BackupManager"));
+        assertThat(systemProperties.get("tomee.cluster.deployment"), is("false"));
+    }
+
+    @Test
+    public void virtual_thread_executor_falls_back_on_platform_threads_before_java_24() throws Exception {
+        String json = "{ \n" +
+                " 'tomcat': { \n" +
+                " 'executor': 'virtual' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata, 21);
+
+        // run
+        setupTomcatConfigurationFiles.addVirtualThreadExecutor(metadata, serverXml);
+
+        // verify
+        Element connector = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Connector");
+        assertThat(connector.hasAttribute("executor"), is(false));
+    }
+
+    @Test
+    public void update_connector_protocol_apr() throws Exception {
+        String json = "{ \n" +
+                " 'tomcat': { \n" +
+                " 'apr': 'auto' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+        setupTomcatConfigurationFiles.availableProcessors = 4;
+        setupTomcatConfigurationFiles.setAprLibraryDir(Paths.get("/usr/lib/x86_64-linux-gnu"));
+
+        // run
+        setupTomcatConfigurationFiles.updateConnectorProtocol(metadata, serverXml);
+
+        // verify
+        Element connector = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Connector");
+        assertThat(connector.getAttribute("protocol"), is("org.apache.coyote.http11.Http11AprProtocol"));
+        assertThat(connector.getAttribute("pollerThreadCount"), is("1"));
+        assertThat(connector.getAttribute("useSendfile"), is("true"));
+    }
+
+    @Test
+    public void update_connector_protocol_apr_falls_back_on_nio() throws Exception {
+        String json = "{ \n" +
+                " 'tomcat': { \n" +
+                " 'apr': 'auto' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        // run
+        setupTomcatConfigurationFiles.updateConnectorProtocol(metadata, serverXml);
+
+        // verify
+        Element connector = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Connector");
+        assertThat(connector.getAttribute("protocol"), is("org.apache.coyote.http11.Http11NioProtocol"));
+        assertThat(connector.hasAttribute("pollerThreadCount"), is(false));
+    }
+
+    @Test
+    public void apply_production_profile() throws Exception {
+        String json = "{ \n" +
+                " 'tomcat': { \n" +
+                " 'profile': 'production' \n" +
+                " }\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatConfigurationFiles setupTomcatConfigurationFiles = new SetupTomcatConfigurationFiles(metadata);
+
+        // run
+        setupTomcatConfigurationFiles.applyProductionProfile(metadata, serverXml, contextXml);
+
+        // verify
+        Element host = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Engine/Host");
+        assertThat(host.getAttribute("autoDeploy"), is("false"));
+        Element engine = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Engine");
+        assertThat(engine.getAttribute("backgroundProcessorDelay"), is("30"));
+        assertThat(contextXml.getDocumentElement().getAttribute("reloadable"), is("false"));
+        assertThat(contextXml.getElementsByTagName("WatchedResource").getLength(), is(0));
+    }
 }
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.domain.metadata.Metadata;
+import com.cloudbees.clickstack.util.XmlUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.xmlmatchers.XmlMatchers.isEquivalentTo;
+import static org.xmlmatchers.transform.XmlConverters.the;
+
+public class SetupTomcatMetricsConfigurationFileTest {
+
+    private Document metricsXml;
+
+    @Before
+    public void before() throws Exception {
+        metricsXml = XmlUtils.loadXmlDocumentFromStream(Thread.currentThread().getContextClassLoader().getResourceAsStream("tomcat-metrics.xml"));
+    }
+
+    @Test
+    public void add_garbage_collector_queries() throws Exception {
+        Metadata metadata = Metadata.Builder.fromJsonString("{}", true);
+        SetupTomcatMetricsConfigurationFile setupTomcatMetricsConfigurationFile = new SetupTomcatMetricsConfigurationFile(metadata);
+
+        // run
+        setupTomcatMetricsConfigurationFile.addGarbageCollectorQueries(metricsXml);
+
+        // XmlUtils.flush(metricsXml, System.out);
+
+        // verify
+        Element gcQuery = XmlUtils.getUniqueElement(metricsXml, "//query[@resultAlias='gc_%name%_collection_count']");
+        String xml = "" +
+                "<query objectName='java.lang:type=GarbageCollector,name=*' \n" +
+                "   attribute='CollectionCount' \n" +
+                "   type='counter' \n" +
+                "   resultAlias='gc_%name%_collection_count'/>";
+        assertThat(the(gcQuery), isEquivalentTo(the(xml)));
+
+        Element memoryPoolQuery = XmlUtils.getUniqueElement(metricsXml, "//query[@resultAlias='memory_%name%_used']");
+        String memoryPoolXml = "" +
+                "<query objectName='java.lang:type=MemoryPool,name=*' \n" +
+                "   attribute='Usage' \n" +
+                "   key='used' \n" +
+                "   resultAlias='memory_%name%_used'/>";
+        assertThat(the(memoryPoolQuery), isEquivalentTo(the(memoryPoolXml)));
+    }
+
+    @Test
+    public void add_openjpa_cache_queries() throws Exception {
+        Metadata metadata = Metadata.Builder.fromJsonString("{}", true);
+        SetupTomcatMetricsConfigurationFile setupTomcatMetricsConfigurationFile = new SetupTomcatMetricsConfigurationFile(metadata);
+
+        // run
+        setupTomcatMetricsConfigurationFile.addOpenJpaCacheQueries("my-unit", metricsXml);
+
+        // verify
+        Element query = XmlUtils.getUniqueElement(metricsXml, "//query[@resultAlias='openjpa_my_unit_datacache_hit_count']");
+        String xml = "" +
+                "<query objectName='org.apache.openjpa:type=DataCache,cfgid=my-unit,*' \n" +
+                "   attribute='HitCount' \n" +
+                "   type='counter' \n" +
+                "   resultAlias='openjpa_my_unit_datacache_hit_count'/>";
+        assertThat(the(query), isEquivalentTo(the(xml)));
+    }
+
+    @Test
+    public void add_datasource_queries() throws Exception {
+        // prepare
+        Metadata metadata = Metadata.Builder.fromJsonString("{}", true);
+        SetupTomcatMetricsConfigurationFile setupTomcatMetricsConfigurationFile = new SetupTomcatMetricsConfigurationFile(metadata);
+        setupTomcatMetricsConfigurationFile.setContextPath("/myapp");
+
+        Document contextXml = XmlUtils.loadXmlDocumentFromStream(Thread.currentThread().getContextClassLoader().getResourceAsStream("context.xml"));
+        Element resource = contextXml.createElement("Resource");
+        resource.setAttribute("name", "jdbc/mydb");
+        resource.setAttribute("type", "javax.sql.DataSource");
+        resource.setAttribute("factory", "com.cloudbees.tomcat.jdbc.InstrumentedDataSourceFactory");
+
+        // run
+        setupTomcatMetricsConfigurationFile.addDataSourceQueries("localhost", resource, metricsXml);
+
+        // verify
+        Element query = XmlUtils.getUniqueElement(metricsXml, "//query[@resultAlias='datasource_mydb_numActive']");
+        String xml = "" +
+                "<query objectName='Catalina:type=DataSource,context=/myapp,host=localhost,class=javax.sql.DataSource,name=\"jdbc/mydb\"' \n" +
+                "   attribute='numActive' \n" +
+                "   resultAlias='datasource_mydb_numActive'/>";
+        assertThat(the(query), isEquivalentTo(the(xml)));
+
+        Element borrowQuery = XmlUtils.getUniqueElement(metricsXml, "//query[@resultAlias='datasource_mydb_borrowWaitTime']");
+        String borrowXml = "" +
+                "<query objectName='Catalina:type=DataSource,context=/myapp,host=localhost,class=javax.sql.DataSource,name=\"jdbc/mydb\"' \n" +
+                "   attribute='borrowWaitTimeInMillis' \n" +
+                "   type='counter' \n" +
+                "   resultAlias='datasource_mydb_borrowWaitTime'/>";
+        assertThat(the(borrowQuery), isEquivalentTo(the(borrowXml)));
+    }
+
+    @Test
+    public void add_executor_queries() throws Exception {
+        // prepare
+        Metadata metadata = Metadata.Builder.fromJsonString("{}", true);
+        SetupTomcatMetricsConfigurationFile setupTomcatMetricsConfigurationFile = new SetupTomcatMetricsConfigurationFile(metadata);
+
+        Document serverXml = XmlUtils.loadXmlDocumentFromStream(Thread.currentThread().getContextClassLoader().getResourceAsStream("server.xml"));
+        Element executor = serverXml.createElement("Executor");
+        executor.setAttribute("name", "tomcatThreadPool");
+        Element connector = XmlUtils.getUniqueElement(serverXml, "/Server/Service/Connector");
+        connector.getParentNode().insertBefore(executor, connector);
+        connector.setAttribute("executor", "tomcatThreadPool");
+        int initialQueryCount = metricsXml.getElementsByTagName("query").getLength();
+
+        // run
+        setupTomcatMetricsConfigurationFile.addThreadPoolQueries(serverXml, metricsXml);
+
+        // verify
+        Element query = XmlUtils.getUniqueElement(metricsXml, "//query[@resultAlias='executor_tomcatthreadpool_queueSize']");
+        String xml = "" +
+                "<query objectName='Catalina:type=Executor,name=tomcatThreadPool' \n" +
+                "   attribute='queueSize' \n" +
+                "   resultAlias='executor_tomcatthreadpool_queueSize'/>";
+        assertThat(the(query), isEquivalentTo(the(xml)));
+        assertThat(metricsXml.getElementsByTagName("query").getLength(), is(initialQueryCount + 5));
+    }
+
+    @Test
+    public void add_admission_control_queries() throws Exception {
+        // prepare
+        Metadata metadata = Metadata.Builder.fromJsonString("{}", true);
+        SetupTomcatMetricsConfigurationFile setupTomcatMetricsConfigurationFile = new SetupTomcatMetricsConfigurationFile(metadata);
+
+        Document serverXml = XmlUtils.loadXmlDocumentFromStream(Thread.currentThread().getContextClassLoader().getResourceAsStream("server.xml"));
+        Element valve = serverXml.createElement("Valve");
+        valve.setAttribute("className", "com.cloudbees.tomcat.valves.AdmissionControlValve");
+        XmlUtils.getUniqueElement(serverXml, "/Server/Service/Engine/Host").appendChild(valve);
+        int initialQueryCount = metricsXml.getElementsByTagName("query").getLength();
+
+        // run
+        setupTomcatMetricsConfigurationFile.addAdmissionControlQueries(serverXml, metricsXml);
+
+        // verify
+        Element query = XmlUtils.getUniqueElement(metricsXml, "//query[@resultAlias='admission_rejectedRequests']");
+        String xml = "" +
+                "<query objectName='Catalina:type=Valve,host=localhost,name=AdmissionControlValve' \n" +
+                "   attribute='rejectedRequestCount' \n" +
+                "   type='counter' \n" +
+                "   resultAlias='admission_rejectedRequests'/>";
+        assertThat(the(query), isEquivalentTo(the(xml)));
+        assertThat(metricsXml.getElementsByTagName("query").getLength(), is(initialQueryCount + 6));
+    }
+
+    @Test
+    public void add_session_cluster_queries() throws Exception {
+        // prepare
+        Metadata metadata = Metadata.Builder.fromJsonString("{}", true);
+        SetupTomcatMetricsConfigurationFile setupTomcatMetricsConfigurationFile = new SetupTomcatMetricsConfigurationFile(metadata);
+
+        Document serverXml = XmlUtils.loadXmlDocumentFromStream(Thread.currentThread().getContextClassLoader().getResourceAsStream("server.xml"));
+        Element cluster = serverXml.createElement("Cluster");
+        cluster.setAttribute("className", "org.apache.catalina.ha.tcp.SimpleTcpCluster");
+        XmlUtils.getUniqueElement(serverXml, "/Server/Service/Engine").appendChild(cluster);
+        int initialQueryCount = metricsXml.getElementsByTagName("query").getLength();
+
+        // run
+        setupTomcatMetricsConfigurationFile.addSessionClusterQueries(serverXml, metricsXml);
+
+        // verify
+        Element query = XmlUtils.getUniqueElement(metricsXml, "//query[@resultAlias='cluster_sentBytes']");
+        String xml = "" +
+                "<query objectName='Catalina:type=Cluster,component=ReplicationStats' \n" +
+                "   attribute='sentBytes' \n" +
+                "   type='counter' \n" +
+                "   resultAlias='cluster_sentBytes'/>";
+        assertThat(the(query), isEquivalentTo(the(xml)));
+        assertThat(metricsXml.getElementsByTagName("query").getLength(), is(initialQueryCount + 9));
+    }
+
+    @Test
+    public void add_push_output_writer() throws Exception {
+        // prepare
+        String json = "{ \n" +
+                "'metrics': { \n" +
+                "   'push': 'statsd', \n" +
+                "   'host': 'statsd.example.com', \n" +
+                "   'namePrefix': 'myapp.', \n" +
+                "   'unknownProperty': 'foo' \n" +
+                "}\n" +
+                "}";
+        Metadata metadata = Metadata.Builder.fromJsonString(json, true);
+        SetupTomcatMetricsConfigurationFile setupTomcatMetricsConfigurationFile = new SetupTomcatMetricsConfigurationFile(metadata);
+
+        // run
+        setupTomcatMetricsConfigurationFile.addPushOutputWriter(metadata, metricsXml);
+
+        // verify
+        Element outputWriter = XmlUtils.getUniqueElement(metricsXml, "//outputWriter[@class='com.cloudbees.jmxtrans.PushOutputWriter']");
+        String xml = "" +
+                "<outputWriter class='com.cloudbees.jmxtrans.PushOutputWriter'>\n" +
+                "   <protocol>statsd</protocol>\n" +
+                "   <host>statsd.example.com</host>\n" +
+                "   <namePrefix>myapp.</namePrefix>\n" +
+                "</outputWriter>";
+        assertThat(the(outputWriter), isEquivalentTo(the(xml)));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.clickstack.tomcat;
+
+import com.cloudbees.clickstack.tomcat.WebAppContentAnalyzer.Analysis;
+import com.cloudbees.clickstack.tomcat.WebAppContentAnalyzer.Feature;
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+public class WebAppContentAnalyzerTest {
+
+    private Path webAppDir;
+
+    @Before
+    public void before() throws Exception {
+        webAppDir = Files.createTempDirectory("webapp");
+        Files.createDirectories(webAppDir.resolve("WEB-INF/classes/com/example"));
+        Files.createDirectories(webAppDir.resolve("WEB-INF/lib"));
+    }
+
+    @Test
+    public void analyze_jax_rs_application_with_jpa() throws Exception {
+        // prepare: fake class files, only the constant pool matters
+        Files.write(webAppDir.resolve("WEB-INF/classes/com/example/Resource.class"),
+                "\u00CA\u00FE\u00BA\u00BELjavax/ws/rs/Path;".getBytes(Charsets.ISO_8859_1));
+        Files.createDirectories(webAppDir.resolve("WEB-INF/classes/META-INF"));
+        Files.write(webAppDir.resolve("WEB-INF/classes/META-INF/persistence.xml"), "<persistence/>".getBytes(Charsets.UTF_8));
+        createJar(webAppDir.resolve("WEB-INF/lib/commons-lang-2.6.jar"), "org/apache/commons/lang/StringUtils.class", "Ljava/lang/String;");
+        createJar(webAppDir.resolve("WEB-INF/lib/my-validators.jar"), "com/example/Valid.class", "Ljavax/validation/Constraint;");
+
+        // run
+        WebAppContentAnalyzer analyzer = new WebAppContentAnalyzer();
+        Analysis analysis = analyzer.analyze(webAppDir);
+
+        // verify
+        assertThat(analysis.getFeatures(), is(EnumSet.of(Feature.JAX_RS, Feature.JPA, Feature.BEAN_VALIDATION)));
+        assertThat(analysis.getPassiveJars(), is(Collections.singletonList("commons-lang-2.6.jar")));
+
+        Map<String, String> reasons = new LinkedHashMap<>();
+        Map<String, String> systemProperties = analyzer.getSystemPropertiesDisablingUnusedServices(analysis, true, reasons);
+        assertThat(systemProperties.get("openejb.webservices.enabled"), is("false"));
+        assertThat(systemProperties.get("openejb.validation.skip"), is("true"));
+        assertThat(systemProperties.get("openejb.additional.exclude"), is("commons-lang-2.6"));
+        assertThat(systemProperties, not(hasKey("openejb.jmx.active")));
+        assertThat(reasons.keySet(), is(systemProperties.keySet()));
+
+        // the exclusion of the jars is opt-in
+        systemProperties = analyzer.getSystemPropertiesDisablingUnusedServices(analysis, false, new LinkedHashMap<String, String>());
+        assertThat(systemProperties, not(hasKey("openejb.additional.exclude")));
+    }
+
+    @Test
+    public void servlet_and_common_markers_make_jars_active() throws Exception {
+        // prepare
+        createJar(webAppDir.resolve("WEB-INF/lib/my-servlets.jar"), "com/example/MyServlet.class", "Ljavax/servlet/annotation/WebServlet;");
+        createJar(webAppDir.resolve("WEB-INF/lib/my-fragment.jar"), "META-INF/web-fragment.xml", "<web-fragment/>");
+        createJar(webAppDir.resolve("WEB-INF/lib/spring-web-4.0.jar"), "META-INF/services/javax.servlet.ServletContainerInitializer",
+                "org.springframework.web.SpringServletContainerInitializer");
+        createJar(webAppDir.resolve("WEB-INF/lib/my-taglib.jar"), "META-INF/tags/my.tld", "<taglib/>");
+        createJar(webAppDir.resolve("WEB-INF/lib/my-beans.jar"), "com/example/Bean.class", "Ljavax/annotation/PostConstruct;");
+        createJar(webAppDir.resolve("WEB-INF/lib/my-faces.jar"), "com/example/Bean.class", "Ljavax/faces/bean/ManagedBean;");
+        createJar(webAppDir.resolve("WEB-INF/lib/my-interceptors.jar"), "com/example/Logged.class", "Ljavax/interceptor/Interceptor;");
+        createJar(webAppDir.resolve("WEB-INF/lib/my-listeners.jar"), "com/example/Listener.class", "Ljavax/jms/MessageListener;");
+        // passive but prefix of spring-web-4.0.jar
+        createJar(webAppDir.resolve("WEB-INF/lib/spring.jar"), "org/springframework/Util.class", "Ljava/lang/String;");
+        createJar(webAppDir.resolve("WEB-INF/lib/commons-io-2.4.jar"), "org/apache/commons/io/IOUtils.class", "Ljava/lang/String;");
+
+        // run
+        WebAppContentAnalyzer analyzer = new WebAppContentAnalyzer();
+        Analysis analysis = analyzer.analyze(webAppDir);
+
+        // verify
+        assertThat(analysis.getFeatures(), is(EnumSet.of(Feature.SERVLET, Feature.COMMON_ANNOTATIONS, Feature.JSF,
+                Feature.INTERCEPTORS, Feature.JMS)));
+        assertThat(analysis.getPassiveJars(), is(Collections.singletonList("commons-io-2.4.jar")));
+    }
+
+    @Test
+    public void analyze_ejb_web_services_application() throws Exception {
+        // prepare
+        Files.write(webAppDir.resolve("WEB-INF/classes/com/example/Service.class"),
+                "Ljavax/ejb/Stateless;Ljavax/jws/WebService;".getBytes(Charsets.ISO_8859_1));
+        Files.write(webAppDir.resolve("WEB-INF/beans.xml"), "<beans/>".getBytes(Charsets.UTF_8));
+
+        // run
+        WebAppContentAnalyzer analyzer = new WebAppContentAnalyzer();
+        Analysis analysis = analyzer.analyze(webAppDir);
+
+        // verify
+        assertThat(analysis.getFeatures(), is(EnumSet.of(Feature.EJB, Feature.WEB_SERVICES, Feature.CDI)));
+
+        Map<String, String> systemProperties = analyzer.getSystemPropertiesDisablingUnusedServices(analysis, true, new LinkedHashMap<String, String>());
+        assertThat(systemProperties, not(hasKey("openejb.webservices.enabled")));
+        assertThat(systemProperties, not(hasKey("openejb.validation.skip")));
+        assertThat(systemProperties, not(hasKey("openejb.additional.exclude")));
+    }
+
+    private void createJar(Path jar, String entryName, String content) throws IOException {
+        try (OutputStream out = Files.newOutputStream(jar); ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry(entryName));
+            zip.write(content.getBytes(Charsets.ISO_8859_1));
+            zip.closeEntry();
+        }
+    }
+}
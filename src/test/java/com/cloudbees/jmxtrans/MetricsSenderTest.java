@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.jmxtrans;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class MetricsSenderTest {
+
+    @Test
+    public void statsd_metrics_are_batched_in_datagrams() throws Exception {
+        // prepare
+        try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(5000);
+            MetricsSender sender = new MetricsSender(MetricsSender.Protocol.STATSD, "127.0.0.1", server.getLocalPort(), 100, 64);
+            sender.start();
+
+            // run
+            sender.offer("memory_heap_used", 123456789, 0);
+            sender.offer("threads_count", 42, 0);
+            sender.offer("datasource_\"jdbc/mydb\"_numActive", 3, 0);
+            sender.flush();
+
+            // verify
+            DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+            server.receive(packet);
+            assertThat(new String(packet.getData(), 0, packet.getLength(), "UTF-8"),
+                    is("memory_heap_used:123456789|g\nthreads_count:42|g\n"));
+            server.receive(packet);
+            assertThat(new String(packet.getData(), 0, packet.getLength(), "UTF-8"),
+                    is("datasource__jdbc_mydb__numActive:3|g\n"));
+            sender.close();
+            assertThat(sender.getSentMetricCount(), is(3L));
+            assertThat(sender.getSentPacketCount(), is(2L));
+        }
+    }
+
+    @Test
+    public void graphite_metrics_are_sent_on_a_tcp_connection() throws Exception {
+        // prepare
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(5000);
+            MetricsSender sender = new MetricsSender(MetricsSender.Protocol.GRAPHITE, "127.0.0.1", server.getLocalPort(), 100, 8192);
+            sender.start();
+
+            // run
+            sender.offer("request_requestCount", 10, 1400000000L);
+            sender.offer("request_errorCount", 1, 1400000000L);
+            sender.flush();
+
+            // verify
+            try (Socket socket = server.accept()) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                assertThat(in.readLine(), is("request_requestCount 10 1400000000"));
+                assertThat(in.readLine(), is("request_errorCount 1 1400000000"));
+            }
+            sender.close();
+        }
+    }
+
+    @Test
+    public void metrics_are_dropped_when_the_buffer_is_full() throws Exception {
+        // prepare, the sender thread is not started
+        MetricsSender sender = new MetricsSender(MetricsSender.Protocol.STATSD, "127.0.0.1", 8125, 2, 1432);
+
+        // run
+        sender.offer("a", 1, 0);
+        sender.offer("b", 2, 0);
+        boolean accepted = sender.offer("c", 3, 0);
+
+        // verify
+        assertThat(accepted, is(false));
+        assertThat(sender.getQueueSize(), is(2));
+        assertThat(sender.getDroppedMetricCount(), is(1L));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.jmxtrans;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PushOutputWriterTest {
+
+    @Test
+    public void statsd_counters_are_sent_as_deltas() throws Exception {
+        // prepare
+        try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(5000);
+            Map<String, String> settings = new HashMap<>();
+            settings.put("protocol", "statsd");
+            settings.put("host", "127.0.0.1");
+            settings.put("port", String.valueOf(server.getLocalPort()));
+            settings.put("namePrefix", "myapp.");
+            PushOutputWriter writer = new PushOutputWriter();
+            writer.postConstruct(settings);
+
+            try {
+                // run: first collection, no delta for the counter
+                collect(writer, 10L, 100);
+
+                // verify
+                assertThat(receive(server), is("myapp.heap:100|g\n"));
+
+                // run
+                collect(writer, 25L, 120);
+
+                // verify
+                assertThat(receive(server), is("myapp.requests:15|c\nmyapp.heap:120|g\n"));
+
+                // run: counter reset by a redeployment
+                collect(writer, 4L, 90);
+
+                // verify
+                assertThat(receive(server), is("myapp.requests:4|c\nmyapp.heap:90|g\n"));
+            } finally {
+                writer.preDestroy();
+            }
+        }
+    }
+
+    @Test
+    public void delta_of_integral_and_decimal_counters() {
+        assertThat(PushOutputWriter.delta(10L, 25), is((Number) 15L));
+        assertThat(PushOutputWriter.delta(25L, 4L), is((Number) 4L));
+        assertThat(PushOutputWriter.delta(1.5, 4L), is((Number) 2.5));
+        assertThat(PushOutputWriter.delta(4.0, 1.5), is((Number) 1.5));
+    }
+
+    private static void collect(PushOutputWriter writer, long requestCount, int heap) throws Exception {
+        writer.preCollect();
+        writer.writeQueryResult("requests", "counter", requestCount);
+        writer.writeQueryResult("heap", null, heap);
+        writer.writeQueryResult("name", null, "not a number");
+        writer.postCollect();
+    }
+
+    private static String receive(DatagramSocket server) throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+        server.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), "UTF-8");
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.cluster;
+
+import org.apache.catalina.tribes.ChannelException;
+import org.apache.catalina.tribes.ChannelMessage;
+import org.apache.catalina.tribes.Member;
+import org.apache.catalina.tribes.group.ChannelInterceptorBase;
+import org.apache.catalina.tribes.group.InterceptorPayload;
+import org.apache.catalina.tribes.io.ChannelData;
+import org.apache.catalina.tribes.io.XByteBuffer;
+import org.apache.catalina.tribes.membership.MemberImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class ReplicationStatsInterceptorTest {
+
+    private ReplicationStatsInterceptor interceptor;
+
+    private StubInterceptor next;
+
+    private StubInterceptor previous;
+
+    private Member[] members;
+
+    @Before
+    public void before() throws Exception {
+        interceptor = new ReplicationStatsInterceptor();
+        next = new StubInterceptor();
+        previous = new StubInterceptor();
+        interceptor.setNext(next);
+        interceptor.setPrevious(previous);
+        members = new Member[]{
+                new MemberImpl("10.0.0.2", 4000, 0),
+                new MemberImpl("10.0.0.3", 4000, 0),
+                new MemberImpl("10.0.0.4", 4000, 0)};
+    }
+
+    @Test
+    public void sent_bytes_are_multiplied_by_the_number_of_destinations() throws Exception {
+        // run
+        interceptor.sendMessage(members, message(100, System.currentTimeMillis()), null);
+        interceptor.sendMessage(new Member[]{members[0]}, message(50, System.currentTimeMillis()), null);
+
+        // verify
+        assertThat(next.sentMessageCount.get(), is(2));
+        assertThat(interceptor.getSentMessageCount(), is(2L));
+        assertThat(interceptor.getSentBytes(), is(3 * 100L + 50L));
+        assertThat(interceptor.getSendErrorCount(), is(0L));
+    }
+
+    @Test
+    public void replication_lag_is_measured_from_the_timestamp_of_the_message() throws Exception {
+        // prepare: messages submitted to the channel 1s and 3s ago
+        long now = System.currentTimeMillis();
+
+        // run
+        interceptor.sendMessage(members, message(100, now - 3000), null);
+        interceptor.sendMessage(members, message(100, now - 1000), null);
+
+        // verify
+        assertThat(interceptor.getLastReplicationLagInMillis(), allOf(greaterThanOrEqualTo(1000L), lessThan(2000L)));
+        assertThat(interceptor.getReplicationLagInMillis(), allOf(greaterThanOrEqualTo(4000L), lessThan(5000L)));
+    }
+
+    @Test
+    public void channel_exception_is_counted_as_an_error_and_rethrown() throws Exception {
+        // prepare
+        next.failure = new ChannelException("Connection refused");
+
+        // run
+        try {
+            interceptor.sendMessage(members, message(100, System.currentTimeMillis() - 1000), null);
+            fail();
+        } catch (ChannelException e) {
+            // verify
+            assertThat(e, sameInstance(next.failure));
+        }
+        assertThat(interceptor.getSendErrorCount(), is(1L));
+        assertThat(interceptor.getSentMessageCount(), is(0L));
+        assertThat(interceptor.getSentBytes(), is(0L));
+        assertThat(interceptor.getReplicationLagInMillis(), is(0L));
+    }
+
+    @Test
+    public void received_messages_are_counted_and_passed_to_the_previous_interceptor() throws Exception {
+        // run
+        interceptor.messageReceived(message(100, System.currentTimeMillis()));
+        interceptor.messageReceived(message(20, System.currentTimeMillis()));
+
+        // verify
+        assertThat(previous.receivedMessageCount.get(), is(2));
+        assertThat(interceptor.getReceivedMessageCount(), is(2L));
+        assertThat(interceptor.getReceivedBytes(), is(120L));
+    }
+
+    private static ChannelMessage message(int length, long timestamp) {
+        ChannelData message = new ChannelData(false);
+        message.setMessage(new XByteBuffer(new byte[length], false));
+        message.setTimestamp(timestamp);
+        return message;
+    }
+
+    private static class StubInterceptor extends ChannelInterceptorBase {
+        final AtomicInteger sentMessageCount = new AtomicInteger();
+        final AtomicInteger receivedMessageCount = new AtomicInteger();
+        volatile ChannelException failure;
+
+        @Override
+        public void sendMessage(Member[] destination, ChannelMessage msg, InterceptorPayload payload) throws ChannelException {
+            if (failure != null) {
+                throw failure;
+            }
+            sentMessageCount.incrementAndGet();
+        }
+
+        @Override
+        public void messageReceived(ChannelMessage msg) {
+            receivedMessageCount.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.jdbc;
+
+import org.apache.tomcat.jdbc.pool.PoolProperties;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * The primary and the replicas are H2 in-memory databases, each one containing its name in the {@code node} table.
+ */
+public class ReplicationDataSourceTest {
+
+    private InstrumentedDataSource primary;
+    private InstrumentedDataSource replica1;
+    private InstrumentedDataSource replica2;
+    private ReplicationDataSource dataSource;
+
+    @Before
+    public void before() throws Exception {
+        primary = newDataSource("primary");
+        replica1 = newDataSource("replica1");
+        replica2 = newDataSource("replica2");
+        dataSource = new ReplicationDataSource(primary, Arrays.asList(replica1, replica2));
+    }
+
+    @After
+    public void after() {
+        dataSource.close();
+    }
+
+    private InstrumentedDataSource newDataSource(String name) throws SQLException {
+        PoolProperties poolProperties = new PoolProperties();
+        poolProperties.setUrl("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        poolProperties.setDriverClassName("org.h2.Driver");
+        poolProperties.setInitialSize(1);
+        InstrumentedDataSource dataSource = new InstrumentedDataSource(poolProperties);
+        try (Connection cnn = dataSource.getConnection()) {
+            try (Statement stmt = cnn.createStatement()) {
+                stmt.execute("drop table if exists node");
+                stmt.execute("create table node(name varchar(20))");
+                stmt.execute("insert into node values('" + name + "')");
+            }
+        }
+        return dataSource;
+    }
+
+    /**
+     * The H2 driver doesn't accept the url
+     */
+    private InstrumentedDataSource newUnreachableDataSource() {
+        PoolProperties poolProperties = new PoolProperties();
+        poolProperties.setUrl("jdbc:unreachable:replica");
+        poolProperties.setDriverClassName("org.h2.Driver");
+        poolProperties.setInitialSize(0);
+        return new InstrumentedDataSource(poolProperties);
+    }
+
+    private String getNode(Connection cnn) throws SQLException {
+        try (Statement stmt = cnn.createStatement()) {
+            try (ResultSet rst = stmt.executeQuery("select name from node")) {
+                rst.next();
+                return rst.getString(1);
+            }
+        }
+    }
+
+    @Test
+    public void write_connection_goes_to_primary() throws Exception {
+        try (Connection cnn = dataSource.getConnection()) {
+            cnn.setAutoCommit(false);
+            assertThat(getNode(cnn), is("primary"));
+            cnn.commit();
+        }
+        assertThat(dataSource.getWriteConnectionCount(), is(1L));
+        assertThat(dataSource.getReadConnectionCount(), is(0L));
+    }
+
+    @Test
+    public void read_only_connections_go_to_the_least_loaded_replica() throws Exception {
+        try (Connection cnn1 = dataSource.getConnection(); Connection cnn2 = dataSource.getConnection()) {
+            cnn1.setReadOnly(true);
+            cnn2.setReadOnly(true);
+            String node1 = getNode(cnn1);
+            String node2 = getNode(cnn2);
+
+            assertThat(node1.startsWith("replica"), is(true));
+            assertThat(node2.startsWith("replica"), is(true));
+            assertThat(node1.equals(node2), is(false));
+            assertThat(replica1.getNumActive() + replica2.getNumActive(), is(2));
+        }
+        assertThat(replica1.getNumActive() + replica2.getNumActive(), is(0));
+        assertThat(primary.getNumActive(), is(0));
+        assertThat(dataSource.getReadConnectionCount(), is(2L));
+    }
+
+    @Test
+    public void unused_connection_does_not_borrow_a_physical_connection() throws Exception {
+        long borrowCount = primary.getBorrowCount() + replica1.getBorrowCount() + replica2.getBorrowCount();
+        try (Connection cnn = dataSource.getConnection()) {
+            cnn.setReadOnly(true);
+            cnn.commit();
+        }
+        assertThat(primary.getBorrowCount() + replica1.getBorrowCount() + replica2.getBorrowCount(), is(borrowCount));
+    }
+
+    @Test
+    public void reads_fall_back_on_primary_when_replicas_fail() throws Exception {
+        // prepare
+        dataSource.close();
+        dataSource = new ReplicationDataSource(primary, Arrays.asList(newUnreachableDataSource(), newUnreachableDataSource()));
+
+        // run
+        String node;
+        try (Connection cnn = dataSource.getConnection()) {
+            cnn.setReadOnly(true);
+            node = getNode(cnn);
+        }
+
+        // verify
+        assertThat(node, is("primary"));
+        assertThat(dataSource.getReplicaFailureCount(), is(2L));
+        assertThat(dataSource.getPrimaryReadConnectionCount(), is(1L));
+        try (Connection cnn = primary.getConnection()) {
+            assertThat("primary connection restored read-write", cnn.isReadOnly(), is(false));
+        }
+    }
+}
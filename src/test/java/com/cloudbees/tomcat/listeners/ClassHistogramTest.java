@@ -0,0 +1,80 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.listeners;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ClassHistogramTest {
+
+    @Test
+    public void parse_the_largest_classes() {
+        // prepare
+        String histogram = "" +
+                " num     #instances         #bytes  class name (module)\n" +
+                "-------------------------------------------------------\n" +
+                "   1:         12345        1234567  [B (java.base@11.0.2)\n" +
+                "   2:          2000          48000  java.lang.String (java.base@11.0.2)\n" +
+                "   3:            10            240  com.example.Cache\n" +
+                "Total         14355        1282807\n";
+
+        // run
+        ClassHistogram classHistogram = ClassHistogram.parse(histogram, 2, 42L);
+
+        // verify
+        assertThat(classHistogram.getTimestamp(), is(42L));
+        assertThat(classHistogram.getEntries().keySet(), contains("[B", "java.lang.String"));
+        assertThat(classHistogram.getEntries().get("java.lang.String").getInstances(), is(2000L));
+        assertThat(classHistogram.getEntries().get("java.lang.String").getBytes(), is(48000L));
+    }
+
+    @Test
+    public void only_the_classes_growing_in_each_histogram_are_reported() {
+        // prepare
+        List<ClassHistogram> histograms = Arrays.asList(
+                histogram(1, "com.example.Leak 10 1000", "com.example.Cache 10 5000", "java.lang.String 100 2000", "com.example.Session 1 100"),
+                histogram(2, "com.example.Leak 20 2000", "com.example.Cache 20 9000", "java.lang.String 200 4000"),
+                histogram(3, "com.example.Leak 30 3000", "com.example.Cache 15 7000", "java.lang.String 400 8000", "com.example.Session 3 300"));
+
+        // run
+        List<ClassHistogram.Growth> growingClasses = ClassHistogram.findGrowingClasses(histograms, 10);
+
+        // verify: Cache shrank, Session is missing from a histogram
+        assertThat(growingClasses, hasSize(2));
+        assertThat(growingClasses.get(0).getClassName(), is("java.lang.String"));
+        assertThat(growingClasses.get(0).getBytesDelta(), is(6000L));
+        assertThat(growingClasses.get(0).getInstancesDelta(), is(300L));
+        assertThat(growingClasses.get(1).getClassName(), is("com.example.Leak"));
+        assertThat(growingClasses.get(1).getBytes(), is(3000L));
+        assertThat(ClassHistogram.findGrowingClasses(histograms, 1), hasSize(1));
+        assertThat(ClassHistogram.findGrowingClasses(histograms.subList(0, 1), 10), empty());
+    }
+
+    private static ClassHistogram histogram(long timestamp, String... classes) {
+        StringBuilder histogram = new StringBuilder();
+        for (int i = 0; i < classes.length; i++) {
+            String[] nameInstancesAndBytes = classes[i].split(" ");
+            histogram.append(i + 1).append(": ").append(nameInstancesAndBytes[1]).append(" ").append(nameInstancesAndBytes[2])
+                    .append(" ").append(nameInstancesAndBytes[0]).append("\n");
+        }
+        return ClassHistogram.parse(histogram.toString(), 100, timestamp);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.listeners;
+
+import com.google.common.base.Charsets;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ClassLoaderLeakDetectorListenerTest {
+
+    private Path dataFile;
+
+    private Path reportFile;
+
+    private ClassLoaderLeakDetectorListener listener;
+
+    @Before
+    public void before() throws Exception {
+        Path dir = Files.createTempDirectory("leak-detector");
+        dataFile = dir.resolve("leak-detector.data");
+        reportFile = dir.resolve("leak-report.txt");
+        listener = new ClassLoaderLeakDetectorListener();
+        listener.setDataFile(dataFile.toString());
+        listener.setReportFile(reportFile.toString());
+    }
+
+    @Test
+    public void class_loader_reachable_after_the_unloading_of_the_classes_is_leaked() throws Exception {
+        // prepare: a thread of the application survives the stop of its context
+        ClassLoader leakyClassLoader = new URLClassLoader(new URL[0], null);
+        ClassLoader runningClassLoader = new URLClassLoader(new URL[0], null);
+        final CountDownLatch stopThread = new CountDownLatch(1);
+        Thread leakyThread = new Thread("leaky-thread") {
+            @Override
+            public void run() {
+                try {
+                    stopThread.await();
+                } catch (InterruptedException e) {
+                    // stop
+                }
+            }
+        };
+        leakyThread.setContextClassLoader(leakyClassLoader);
+        leakyThread.start();
+        try {
+            listener.contextStarted("/leaky", leakyClassLoader);
+            listener.contextStarted("/running", runningClassLoader);
+
+            // run: stopped, no class unloading since
+            long unloadedClassCount = ManagementFactory.getClassLoadingMXBean().getUnloadedClassCount();
+            listener.contextStopped("/leaky");
+            listener.sample();
+
+            // verify
+            Map<String, String> data = readData();
+            assertThat(data.get("leak_detector_webapp_class_loaders"), is("1"));
+            assertThat(data.get("leak_detector_stopped_class_loaders"), is("1"));
+            assertThat(data.get("leak_detector_leaked_class_loaders"), is("0"));
+            assertThat(data.get("leak_detector_leftover_threads"), is("1"));
+
+            // run: still reachable after the unloading of the classes
+            for (int i = 0; i < 10 && "0".equals(data.get("leak_detector_leaked_class_loaders")); i++) {
+                System.gc();
+                listener.sample();
+                data = readData();
+            }
+
+            // verify: at least the class of the unloading sentinel has been unloaded
+            assertThat(ManagementFactory.getClassLoadingMXBean().getUnloadedClassCount(), greaterThan(unloadedClassCount));
+            assertThat(data.get("leak_detector_stopped_class_loaders"), is("0"));
+            assertThat(data.get("leak_detector_leaked_class_loaders"), is("1"));
+            String report = new String(Files.readAllBytes(reportFile), Charsets.UTF_8);
+            assertThat(report, containsString("Leaked class loaders"));
+            assertThat(report, containsString("  /leaky started "));
+            assertThat(report, containsString("Thread 'leaky-thread'"));
+            assertThat(report, not(containsString("  /running started ")));
+        } finally {
+            stopThread.countDown();
+            leakyThread.join();
+        }
+    }
+
+    @Test
+    public void collected_class_loader_is_forgotten() throws Exception {
+        // prepare
+        startAndStopContext("/collected");
+
+        // run
+        Map<String, String> data = null;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            listener.sample();
+            data = readData();
+            if ("0".equals(data.get("leak_detector_leaked_class_loaders"))) {
+                break;
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        // verify
+        assertThat(data.get("leak_detector_leaked_class_loaders"), is("0"));
+        assertThat(data.get("leak_detector_stopped_class_loaders"), is("0"));
+        assertThat(data.get("leak_detector_leftover_threads"), is("0"));
+    }
+
+    @Test
+    public void growth_per_hour_is_the_slope_of_the_samples() {
+        // prepare: 150 classes/hour during 2 hours, unknown metaspace
+        List<ClassLoaderLeakDetectorListener.Sample> samples = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int minutes = 0; minutes <= 120; minutes += 10) {
+            samples.add(new ClassLoaderLeakDetectorListener.Sample(start + TimeUnit.MINUTES.toMillis(minutes),
+                    10000 + 150 * minutes / 60, 0, -1, 0));
+        }
+
+        // run
+        double loadedClassesGrowth = ClassLoaderLeakDetectorListener.growthPerHour(samples, new ClassLoaderLeakDetectorListener.Metric() {
+            @Override
+            public long get(ClassLoaderLeakDetectorListener.Sample sample) {
+                return sample.loadedClasses;
+            }
+        });
+        double metaspaceGrowth = ClassLoaderLeakDetectorListener.growthPerHour(samples, new ClassLoaderLeakDetectorListener.Metric() {
+            @Override
+            public long get(ClassLoaderLeakDetectorListener.Sample sample) {
+                return sample.metaspaceUsed;
+            }
+        });
+        double shortPeriodGrowth = ClassLoaderLeakDetectorListener.growthPerHour(samples.subList(0, 6), new ClassLoaderLeakDetectorListener.Metric() {
+            @Override
+            public long get(ClassLoaderLeakDetectorListener.Sample sample) {
+                return sample.loadedClasses;
+            }
+        });
+
+        // verify
+        assertThat(loadedClassesGrowth, closeTo(150, 0.5));
+        assertThat(metaspaceGrowth, is(0.0));
+        // less than one hour of samples
+        assertThat(shortPeriodGrowth, is(0.0));
+    }
+
+    @Test
+    public void growth_trend_thresholds() {
+        // default thresholds: 100 classes/hour, 1024 KB/hour
+        assertThat(listener.isGrowthTrend(150, 0), is(true));
+        assertThat(listener.isGrowthTrend(50, 512 * 1024), is(false));
+        assertThat(listener.isGrowthTrend(50, 2048 * 1024), is(true));
+    }
+
+    @Test
+    public void class_histograms_are_disabled_by_default() {
+        assertThat(new ClassLoaderLeakDetectorListener().getHistogramIntervalInMinutes(), is(0));
+    }
+
+    /**
+     * The class loader is only referenced by the listener when this method returns.
+     */
+    private void startAndStopContext(String contextName) {
+        listener.contextStarted(contextName, new URLClassLoader(new URL[0], null));
+        listener.contextStopped(contextName);
+    }
+
+    private Map<String, String> readData() throws Exception {
+        Map<String, String> data = new HashMap<>();
+        for (String line : Files.readAllLines(dataFile, Charsets.UTF_8)) {
+            String[] nameAndValue = line.split(" ");
+            data.put(nameAndValue[0], nameAndValue[1]);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.listeners;
+
+import com.cloudbees.tomcat.valves.CidrAddressValve;
+import com.cloudbees.tomcat.valves.WarmupValve;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Valve;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.valves.RemoteAddrValve;
+import org.apache.catalina.valves.ValveBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Warm-up requests through the {@link WarmupValve} and the access control valves it skips.
+ */
+public class WarmupListenerTest {
+
+    private final Connector connector = new Connector();
+
+    private final Connector warmupConnector = new Connector();
+
+    private WarmupValve warmupValve;
+
+    private ApplicationValve applicationValve;
+
+    private List<Valve> valves;
+
+    private String token;
+
+    @Before
+    public void before() throws Exception {
+        // only 10.0.0.1 is allowed by the access control valves
+        warmupValve = new WarmupValve();
+        RemoteAddrValve remoteAddrValve = new RemoteAddrValve();
+        remoteAddrValve.setAllow("10\\.0\\.0\\.1");
+        CidrAddressValve cidrAddressValve = new CidrAddressValve();
+        cidrAddressValve.setAllowCidrs("10.0.0.1/32");
+        applicationValve = new ApplicationValve();
+        valves = Arrays.<Valve>asList(warmupValve, remoteAddrValve, cidrAddressValve, applicationValve);
+        for (int i = 0; i < valves.size() - 1; i++) {
+            valves.get(i).setNext(valves.get(i + 1));
+        }
+        token = WarmupListener.beginWarmup(warmupConnector);
+    }
+
+    @After
+    public void after() throws Exception {
+        WarmupListener.endWarmup();
+        for (Valve valve : valves) {
+            ((ValveBase) valve).stop();
+            ((ValveBase) valve).destroy();
+        }
+    }
+
+    @Test
+    public void requests_of_the_regular_connector_go_through_the_access_control_valves() throws Exception {
+        // prepare
+        start();
+
+        // run
+        Request withoutHeader = invoke(connector, null);
+        Request withToken = invoke(connector, token);
+        Request withForgedToken = invoke(connector, "forged");
+
+        // verify
+        assertThat(withoutHeader.getResponse().getStatus(), is(HttpServletResponse.SC_FORBIDDEN));
+        assertThat(withToken.getResponse().getStatus(), is(HttpServletResponse.SC_FORBIDDEN));
+        assertThat(withForgedToken.getResponse().getStatus(), is(HttpServletResponse.SC_FORBIDDEN));
+        assertThat(applicationValve.invocationCount.get(), is(0));
+    }
+
+    @Test
+    public void requests_of_the_warmup_connector_require_the_token() throws Exception {
+        // prepare
+        start();
+
+        // run
+        Request withoutHeader = invoke(warmupConnector, null);
+        Request withWrongToken = invoke(warmupConnector, token.substring(1) + "0");
+
+        // verify
+        assertThat(withoutHeader.getResponse().getStatus(), is(HttpServletResponse.SC_FORBIDDEN));
+        assertThat(withWrongToken.getResponse().getStatus(), is(HttpServletResponse.SC_FORBIDDEN));
+        assertThat(applicationValve.invocationCount.get(), is(0));
+    }
+
+    @Test
+    public void warmup_requests_skip_the_access_control_valves() throws Exception {
+        // prepare
+        start();
+
+        // run
+        Request warmup = invoke(warmupConnector, token);
+        WarmupListener.endWarmup();
+        Request afterWarmup = invoke(warmupConnector, token);
+
+        // verify
+        assertThat(warmup.getResponse().getStatus(), is(HttpServletResponse.SC_OK));
+        assertThat(afterWarmup.getResponse().getStatus(), is(HttpServletResponse.SC_FORBIDDEN));
+        assertThat(applicationValve.invocationCount.get(), is(1));
+    }
+
+    @Test
+    public void warmup_requests_only_skip_the_configured_valves() throws Exception {
+        // prepare
+        warmupValve.setSkippedValves(" org.apache.catalina.valves.RemoteAddrValve ");
+        start();
+
+        // run
+        Request warmup = invoke(warmupConnector, token);
+
+        // verify: accepted by the skipped RemoteAddrValve, rejected by the CidrAddressValve
+        assertThat(warmup.getResponse().getStatus(), is(HttpServletResponse.SC_FORBIDDEN));
+        assertThat(applicationValve.invocationCount.get(), is(0));
+    }
+
+    /**
+     * The valves are started once chained, as in a pipeline.
+     */
+    private void start() throws LifecycleException {
+        // the container is needed to register the valve MBeans
+        StandardEngine engine = new StandardEngine();
+        engine.setName("test");
+        StandardHost host = new StandardHost();
+        host.setName("localhost");
+        engine.addChild(host);
+        for (int i = valves.size() - 1; i >= 0; i--) {
+            ValveBase valve = (ValveBase) valves.get(i);
+            valve.setContainer(host);
+            valve.start();
+        }
+    }
+
+    private Request invoke(Connector connector, String warmupHeader) throws Exception {
+        org.apache.coyote.Request coyoteRequest = new org.apache.coyote.Request();
+        coyoteRequest.method().setString("GET");
+        coyoteRequest.requestURI().setString("/");
+        coyoteRequest.decodedURI().setString("/");
+        if (warmupHeader != null) {
+            coyoteRequest.getMimeHeaders().addValue(WarmupListener.WARMUP_HEADER).setString(warmupHeader);
+        }
+        Request request = new Request();
+        request.setConnector(connector);
+        request.setCoyoteRequest(coyoteRequest);
+        request.setRemoteAddr("127.0.0.1");
+        Response response = new Response();
+        response.setConnector(connector);
+        response.setCoyoteResponse(new org.apache.coyote.Response());
+        request.setResponse(response);
+        response.setRequest(request);
+
+        warmupValve.invoke(request, response);
+        return request;
+    }
+
+    private static class ApplicationValve extends ValveBase {
+        final AtomicInteger invocationCount = new AtomicInteger();
+
+        @Override
+        public void invoke(Request request, Response response) {
+            invocationCount.incrementAndGet();
+            response.setStatus(HttpServletResponse.SC_OK);
+        }
+    }
+}
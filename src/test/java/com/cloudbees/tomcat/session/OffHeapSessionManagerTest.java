@@ -0,0 +1,238 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.session;
+
+import org.apache.catalina.Session;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.core.StandardService;
+import org.apache.catalina.session.StandardSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class OffHeapSessionManagerTest {
+
+    private Path workDir;
+
+    private OffHeapSessionManager manager;
+
+    private final List<String> destroyedSessionIds = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void before() throws Exception {
+        workDir = Files.createTempDirectory("offheap-sessions");
+        manager = newManager();
+    }
+
+    @After
+    public void after() throws Exception {
+        if (manager.getState().isAvailable()) {
+            manager.stop();
+        }
+        manager.destroy();
+    }
+
+    @Test
+    public void expired_store_copy_of_a_session_loaded_on_the_heap_is_recycled_not_expired() throws Exception {
+        // prepare: the copy in the store is expired, the session on the heap has been accessed since
+        StandardSession session = createSession(10000);
+        session.setMaxInactiveInterval(1);
+        manager.getStore().save(session);
+        session.setCreationTime(System.currentTimeMillis());
+
+        // run
+        ((OffHeapSessionStore) manager.getStore()).processExpires();
+
+        // verify
+        assertThat(destroyedSessionIds, empty());
+        assertThat(manager.isLoaded(session.getIdInternal()), is(true));
+        assertThat(session.isValid(), is(true));
+        assertThat(manager.getStoreSessionCount(), is(0));
+    }
+
+    @Test
+    public void expired_session_only_in_the_store_is_expired() throws Exception {
+        // prepare
+        StandardSession session = createSession(10000);
+        session.setMaxInactiveInterval(1);
+        String id = session.getIdInternal();
+        manager.setMaxHeapSessions(0);
+        manager.processMaxHeapSwaps();
+
+        // run
+        ((OffHeapSessionStore) manager.getStore()).processExpires();
+
+        // verify
+        assertThat(destroyedSessionIds, contains(id));
+        assertThat(manager.getStoreSessionCount(), is(0));
+    }
+
+    @Test
+    public void sessions_are_saved_on_stop_and_reloaded_on_start() throws Exception {
+        // prepare
+        StandardSession session = createSession(0);
+        session.setAttribute("user", "jdoe");
+        String id = session.getIdInternal();
+
+        // run
+        manager.stop();
+        manager.destroy();
+        manager = newManager();
+
+        // verify
+        assertThat(manager.isLoaded(id), is(false));
+        assertThat(manager.getStoreSessionCount(), is(1));
+        assertThat(Files.exists(workDir.resolve("SESSIONS-offheap.ser")), is(false));
+        // swapped in lazily
+        Session reloadedSession = manager.findSession(id);
+        assertThat(reloadedSession, notNullValue());
+        assertThat(reloadedSession.getSession().getAttribute("user"), is((Object) "jdoe"));
+        assertThat(destroyedSessionIds, empty());
+    }
+
+    @Test
+    public void truncated_session_file_is_ignored() throws Exception {
+        // prepare
+        createSession(0);
+        createSession(0);
+        manager.stop();
+        manager.destroy();
+        Path sessionFile = workDir.resolve("SESSIONS-offheap.ser");
+        byte[] content = Files.readAllBytes(sessionFile);
+        Files.write(sessionFile, Arrays.copyOf(content, content.length - 10));
+
+        // run
+        manager = newManager();
+
+        // verify
+        assertThat(manager.getState().isAvailable(), is(true));
+        assertThat(manager.getStoreSessionCount(), is(0));
+        assertThat(Files.exists(sessionFile), is(false));
+    }
+
+    @Test
+    public void session_file_of_another_format_is_ignored() throws Exception {
+        // prepare
+        manager.stop();
+        manager.destroy();
+        Path sessionFile = workDir.resolve("SESSIONS-offheap.ser");
+        Files.write(sessionFile, new byte[]{(byte) 0xAC, (byte) 0xED, 0, 5, 1, 2, 3});
+
+        // run
+        manager = newManager();
+
+        // verify
+        assertThat(manager.getState().isAvailable(), is(true));
+        assertThat(manager.getStoreSessionCount(), is(0));
+        assertThat(Files.exists(sessionFile), is(false));
+    }
+
+    @Test
+    public void least_recently_accessed_sessions_above_max_heap_sessions_are_swapped_out() throws Exception {
+        // prepare
+        manager.setMaxHeapSessions(2);
+        StandardSession oldest = createSession(30000);
+        StandardSession old = createSession(20000);
+        StandardSession recent = createSession(10000);
+        StandardSession current = createSession(0);
+
+        // run
+        manager.processMaxHeapSwaps();
+
+        // verify
+        assertThat(manager.isLoaded(oldest.getIdInternal()), is(false));
+        assertThat(manager.isLoaded(old.getIdInternal()), is(false));
+        assertThat(manager.isLoaded(recent.getIdInternal()), is(true));
+        assertThat(manager.isLoaded(current.getIdInternal()), is(true));
+        assertThat(manager.getStoreSessionCount(), is(2));
+        assertThat(destroyedSessionIds, empty());
+    }
+
+    @Test
+    public void sessions_accessed_within_min_idle_swap_are_not_swapped_out() throws Exception {
+        // prepare
+        manager.setMaxHeapSessions(1);
+        manager.setMinIdleSwap(5);
+        StandardSession old = createSession(10000);
+        StandardSession recent = createSession(2000);
+        StandardSession current = createSession(0);
+
+        // run
+        manager.processMaxHeapSwaps();
+
+        // verify: only the session idle for more than minIdleSwap is swapped out, above maxHeapSessions
+        assertThat(manager.isLoaded(old.getIdInternal()), is(false));
+        assertThat(manager.isLoaded(recent.getIdInternal()), is(true));
+        assertThat(manager.isLoaded(current.getIdInternal()), is(true));
+        assertThat(manager.findSessions().length, is(2));
+    }
+
+    private OffHeapSessionManager newManager() throws Exception {
+        StandardEngine engine = new StandardEngine();
+        engine.setName("test");
+        // the servlet context looks up the connectors of the service
+        StandardService service = new StandardService();
+        service.setContainer(engine);
+        StandardHost host = new StandardHost();
+        host.setName("localhost");
+        engine.addChild(host);
+        StandardContext context = new StandardContext();
+        context.setName("/app");
+        context.setPath("/app");
+        host.addChild(context);
+        context.getServletContext().setAttribute(ServletContext.TEMPDIR, workDir.toFile());
+        context.setApplicationLifecycleListeners(new Object[]{new HttpSessionListener() {
+            @Override
+            public void sessionCreated(HttpSessionEvent event) {
+            }
+
+            @Override
+            public void sessionDestroyed(HttpSessionEvent event) {
+                destroyedSessionIds.add(event.getSession().getId());
+            }
+        }});
+
+        OffHeapSessionManager manager = new OffHeapSessionManager();
+        manager.setCapacityInMegabytes(1);
+        manager.setSlabSizeInMegabytes(1);
+        manager.setContainer(context);
+        manager.start();
+        return manager;
+    }
+
+    /**
+     * @param idleInMillis time since the last access of the session
+     */
+    private StandardSession createSession(long idleInMillis) {
+        StandardSession session = (StandardSession) manager.createSession(null);
+        session.setCreationTime(System.currentTimeMillis() - idleInMillis);
+        return session;
+    }
+}
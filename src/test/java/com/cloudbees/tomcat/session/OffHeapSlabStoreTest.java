@@ -0,0 +1,164 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.session;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class OffHeapSlabStoreTest {
+
+    @Test
+    public void values_are_split_in_blocks_across_slabs() {
+        // prepare: 10 blocks of 100 bytes, 3 blocks per slab
+        OffHeapSlabStore store = new OffHeapSlabStore(1000, 100, 300);
+        byte[] small = value(250, 1);
+        byte[] large = value(450, 2);
+
+        // run
+        store.put("small", small, -1);
+        store.put("large", large, -1);
+
+        // verify
+        assertThat(store.get("small"), is(small));
+        assertThat(store.get("large"), is(large));
+        assertThat(store.getSize(), is(2));
+        assertThat(store.getDataSizeInBytes(), is(700L));
+        // 3 + 5 blocks
+        assertThat(store.getUsedBytes(), is(800L));
+        // slabs allocated on demand: 3 of the 4 slabs
+        assertThat(store.getAllocatedBytes(), is(900L));
+        assertThat(store.getCapacityInBytes(), is(1000L));
+    }
+
+    @Test
+    public void least_recently_used_entry_is_evicted() {
+        // prepare: 3 blocks
+        OffHeapSlabStore store = new OffHeapSlabStore(300, 100, 300);
+        store.put("a", value(100, 1), -1);
+        store.put("b", value(100, 2), -1);
+        store.put("c", value(100, 3), -1);
+        store.get("a");
+
+        // run
+        store.put("d", value(100, 4), -1);
+
+        // verify
+        assertThat(store.get("b"), nullValue());
+        assertThat(store.get("a"), is(value(100, 1)));
+        assertThat(store.get("c"), is(value(100, 3)));
+        assertThat(store.get("d"), is(value(100, 4)));
+        assertThat(store.getEvictionCount(), is(1L));
+    }
+
+    @Test
+    public void released_blocks_are_reused() {
+        // prepare
+        OffHeapSlabStore store = new OffHeapSlabStore(1000, 100, 300);
+        store.put("a", value(300, 1), -1);
+        store.put("b", value(300, 2), -1);
+        long allocatedBytes = store.getAllocatedBytes();
+
+        // run: replace and remove the values many times
+        for (int i = 0; i < 100; i++) {
+            store.put("a", value(300, i), -1);
+            store.remove("b");
+            store.put("b", value(250, i + 1), -1);
+        }
+
+        // verify
+        assertThat(store.getAllocatedBytes(), is(allocatedBytes));
+        assertThat(store.getUsedBytes(), is(600L));
+        assertThat(store.getEvictionCount(), is(0L));
+        assertThat(store.get("a"), is(value(300, 99)));
+        assertThat(store.get("b"), is(value(250, 100)));
+    }
+
+    @Test
+    public void value_larger_than_the_capacity_is_rejected() {
+        // prepare
+        OffHeapSlabStore store = new OffHeapSlabStore(300, 100, 300);
+        store.put("a", value(100, 1), -1);
+
+        // run
+        boolean stored = store.put("a", value(301, 2), -1);
+
+        // verify
+        assertThat(stored, is(false));
+        assertThat(store.get("a"), nullValue());
+        assertThat(store.getRejectionCount(), is(1L));
+        assertThat(store.getUsedBytes(), is(0L));
+    }
+
+    @Test
+    public void expired_keys_and_peek_are_not_hits() {
+        // prepare
+        OffHeapSlabStore store = new OffHeapSlabStore(1000, 100, 300);
+        long now = System.currentTimeMillis();
+        store.put("expired", value(10, 1), now - 1000);
+        store.put("valid", value(10, 2), now + 60000);
+        store.put("eternal", value(10, 3), -1);
+
+        // run
+        byte[] expired = store.peek("expired");
+
+        // verify
+        assertThat(store.expiredKeys(now), is(Collections.singletonList("expired")));
+        assertThat(expired, is(value(10, 1)));
+        assertThat(store.peek("unknown"), nullValue());
+        assertThat(store.getHitCount(), is(0L));
+        assertThat(store.getMissCount(), is(0L));
+    }
+
+    @Test
+    public void persist_and_load_skip_the_expired_entries() throws Exception {
+        // prepare
+        OffHeapSlabStore store = new OffHeapSlabStore(1000, 100, 300);
+        long now = System.currentTimeMillis();
+        store.put("expired", value(150, 1), now - 1000);
+        store.put("valid", value(150, 2), now + 60000);
+        store.put("eternal", value(0, 3), -1);
+        Path file = Files.createTempDirectory("offheap").resolve("sessions.ser");
+
+        // run
+        int persisted = store.persist(file);
+        OffHeapSlabStore loadedStore = new OffHeapSlabStore(1000, 100, 300);
+        int loaded = loadedStore.load(file);
+
+        // verify
+        assertThat(persisted, is(3));
+        assertThat(loaded, is(2));
+        assertThat(Files.exists(file.resolveSibling("sessions.ser.tmp")), is(false));
+        assertThat(Arrays.asList(loadedStore.keys()), containsInAnyOrder("valid", "eternal"));
+        assertThat(loadedStore.get("valid"), is(value(150, 2)));
+        assertThat(loadedStore.get("eternal"), is(new byte[0]));
+        assertThat(loadedStore.expiredKeys(now + 120000), is(Collections.singletonList("valid")));
+    }
+
+    private static byte[] value(int length, int seed) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte) (seed * 31 + i);
+        }
+        return value;
+    }
+}
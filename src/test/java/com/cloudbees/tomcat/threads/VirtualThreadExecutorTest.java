@@ -0,0 +1,179 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.threads;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class VirtualThreadExecutorTest {
+
+    private VirtualThreadExecutor executor;
+
+    @After
+    public void after() throws Exception {
+        if (executor != null) {
+            executor.stop();
+            executor.destroy();
+        }
+    }
+
+    @Test
+    public void platform_threads_pool_is_used_when_virtual_threads_are_not_supported() throws Exception {
+        // prepare: Thread.ofVirtual() missing or failing
+        final AtomicInteger virtualThreadExecutorCreations = new AtomicInteger();
+        executor = new VirtualThreadExecutor() {
+            @Override
+            protected ExecutorService newVirtualThreadExecutor() {
+                virtualThreadExecutorCreations.incrementAndGet();
+                return null;
+            }
+        };
+        executor.setVirtualThreadsMinJavaVersion(0);
+
+        // run
+        start("unsupported");
+        String threadName = runAndGetThreadName();
+
+        // verify
+        assertThat(virtualThreadExecutorCreations.get(), is(1));
+        assertThat(executor.isVirtualThreadsActive(), is(false));
+        assertThat(threadName, startsWith("unsupported-"));
+        assertThat(executor.getPoolSize(), greaterThanOrEqualTo(1));
+    }
+
+    @Test
+    public void platform_threads_pool_is_used_before_virtual_threads_min_java_version() throws Exception {
+        // prepare
+        final AtomicInteger virtualThreadExecutorCreations = new AtomicInteger();
+        executor = new VirtualThreadExecutor() {
+            @Override
+            protected ExecutorService newVirtualThreadExecutor() {
+                virtualThreadExecutorCreations.incrementAndGet();
+                return Executors.newCachedThreadPool();
+            }
+        };
+        executor.setVirtualThreadsMinJavaVersion(VirtualThreadExecutor.getJavaMajorVersion() + 1);
+
+        // run
+        start("pinned");
+        String threadName = runAndGetThreadName();
+
+        // verify
+        assertThat(virtualThreadExecutorCreations.get(), is(0));
+        assertThat(executor.isVirtualThreadsActive(), is(false));
+        assertThat(threadName, startsWith("pinned-"));
+    }
+
+    @Test
+    public void tasks_run_in_the_virtual_thread_executor_and_are_counted() throws Exception {
+        // prepare: a thread per task executor stands for the virtual threads
+        executor = new VirtualThreadExecutor() {
+            @Override
+            protected ExecutorService newVirtualThreadExecutor() {
+                return Executors.newCachedThreadPool(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "virtual-thread");
+                    }
+                });
+            }
+        };
+        executor.setVirtualThreadsMinJavaVersion(0);
+        start("virtual");
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blockedTask = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        // run
+        executor.execute(blockedTask);
+        executor.execute(blockedTask, 1, TimeUnit.SECONDS);
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+
+        // verify
+        assertThat(executor.isVirtualThreadsActive(), is(true));
+        assertThat(executor.getActiveCount(), is(2));
+        assertThat(executor.getLargestPoolSize(), is(2));
+        assertThat(executor.resizePool(1, 1), is(false));
+
+        // run
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getCompletedTaskCount() < 2 && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+
+        // verify
+        assertThat(executor.getCompletedTaskCount(), is(2L));
+        assertThat(executor.getActiveCount(), is(0));
+        assertThat(runAndGetThreadName(), is("virtual-thread"));
+    }
+
+    @Test
+    public void virtual_thread_per_task_executor_requires_java_21() throws Exception {
+        // run
+        ExecutorService executorService = VirtualThreadExecutor.newVirtualThreadPerTaskExecutor("vt-");
+
+        // verify
+        int javaMajorVersion = VirtualThreadExecutor.getJavaMajorVersion();
+        if (javaMajorVersion < 19) {
+            assertThat(executorService, nullValue());
+        } else if (javaMajorVersion >= 21) {
+            assertThat(executorService, notNullValue());
+            executorService.shutdown();
+        }
+    }
+
+    private void start(String name) throws Exception {
+        executor.setName(name);
+        executor.setNamePrefix(name + "-");
+        executor.start();
+    }
+
+    private String runAndGetThreadName() throws InterruptedException {
+        final AtomicReference<String> threadName = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                threadName.set(Thread.currentThread().getName());
+                done.countDown();
+            }
+        });
+        assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+        return threadName.get();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.util;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class CidrTrieTest {
+
+    @Test
+    public void ipv4_ranges_and_addresses() {
+        // prepare
+        CidrTrie trie = new CidrTrie();
+        trie.add("10.0.0.0/8");
+        trie.add("192.168.1.0/24");
+        trie.add(" 82.66.240.18 ");
+
+        // verify
+        assertThat(trie.size(), is(3));
+        assertThat(trie.contains("10.1.2.3"), is(true));
+        assertThat(trie.contains("11.1.2.3"), is(false));
+        assertThat(trie.contains("192.168.1.255"), is(true));
+        assertThat(trie.contains("192.168.2.1"), is(false));
+        assertThat(trie.contains("82.66.240.18"), is(true));
+        assertThat(trie.contains("82.66.240.19"), is(false));
+    }
+
+    @Test
+    public void ipv6_ranges_and_addresses() {
+        // prepare
+        CidrTrie trie = new CidrTrie();
+        trie.add("2001:db8::/32");
+        trie.add("::1");
+        trie.add("::ffff:10.0.0.0/104");
+
+        // verify
+        assertThat(trie.contains("2001:db8:0:0:0:0:0:1"), is(true));
+        assertThat(trie.contains("2001:DB8:FFFF::"), is(true));
+        assertThat(trie.contains("2001:db9::1"), is(false));
+        assertThat(trie.contains("0:0:0:0:0:0:0:1"), is(true));
+        assertThat(trie.contains("::2"), is(false));
+        assertThat(trie.contains("::ffff:10.2.3.4"), is(true));
+        assertThat(trie.contains("[2001:db8::1%eth0]"), is(true));
+        // IPv4 and IPv6 ranges are distinct
+        assertThat(trie.contains("10.2.3.4"), is(false));
+    }
+
+    @Test
+    public void ipv4_mapped_ipv6_addresses_match_the_ipv4_ranges() {
+        // prepare
+        CidrTrie trie = new CidrTrie();
+        trie.add("10.0.0.0/8");
+        trie.add("2001:db8::/32");
+
+        // verify
+        assertThat(trie.contains("::ffff:10.1.2.3"), is(true));
+        assertThat(trie.contains("::FFFF:10.1.2.3"), is(true));
+        assertThat(trie.contains("0:0:0:0:0:ffff:a01:203"), is(true));
+        assertThat(trie.contains("[::ffff:10.1.2.3]"), is(true));
+        assertThat(trie.contains("::ffff:11.1.2.3"), is(false));
+        // IPv4-compatible and NAT64 addresses are not mapped
+        assertThat(trie.contains("::10.1.2.3"), is(false));
+        assertThat(trie.contains("64:ff9b::10.1.2.3"), is(false));
+    }
+
+    @Test
+    public void catch_all_range() {
+        // prepare
+        CidrTrie trie = new CidrTrie();
+        trie.add("0.0.0.0/0");
+
+        // verify
+        assertThat(trie.contains("1.2.3.4"), is(true));
+        assertThat(trie.contains("::1"), is(false));
+    }
+
+    @Test
+    public void many_ranges() {
+        // prepare
+        CidrTrie trie = new CidrTrie();
+        for (int i = 0; i < 256; i++) {
+            trie.add("10." + i + "." + (255 - i) + ".0/24");
+        }
+
+        // verify
+        for (int i = 0; i < 256; i++) {
+            assertThat(trie.contains("10." + i + "." + (255 - i) + ".7"), is(true));
+            assertThat(trie.contains("10." + i + "." + (254 - i) + ".7"), is(false));
+        }
+    }
+
+    @Test
+    public void invalid_addresses_are_not_contained() {
+        // prepare
+        CidrTrie trie = new CidrTrie();
+        trie.add("0.0.0.0/0");
+        trie.add("::/0");
+
+        // verify
+        for (String address : new String[]{null, "", "1.2.3", "1.2.3.4.5", "1.2.3.256", "1..2.3", "localhost",
+                "1:2:3:4:5:6:7:8:9", "1::2::3", "12345::", "1:", "g::1"}) {
+            assertThat(address, trie.contains(address), is(false));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void reject_invalid_prefix_length() {
+        new CidrTrie().add("10.0.0.0/33");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void reject_invalid_range() {
+        new CidrTrie().add("10.0.0/8");
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.util;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TinyLfuCacheTest {
+
+    @Test
+    public void weight_is_bounded() {
+        // prepare
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(10000, 100);
+
+        // run
+        for (int i = 0; i < 1000; i++) {
+            cache.put("key-" + i, "value-" + i, 100);
+        }
+
+        // verify
+        assertThat(cache.weight(), lessThanOrEqualTo(10000L));
+        assertThat(cache.size(), lessThanOrEqualTo(100));
+    }
+
+    @Test
+    public void frequently_used_entries_survive_a_scan() {
+        // prepare
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(10000, 100);
+        for (int i = 0; i < 50; i++) {
+            cache.put("hot-" + i, "value", 100);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                cache.get("hot-" + i);
+            }
+        }
+
+        // run: one-hit wonders
+        for (int i = 0; i < 1000; i++) {
+            cache.put("cold-" + i, "value", 100);
+        }
+
+        // verify
+        int hotEntries = 0;
+        for (int i = 0; i < 50; i++) {
+            hotEntries += cache.get("hot-" + i) == null ? 0 : 1;
+        }
+        assertThat(hotEntries, is(50));
+        assertThat(cache.getRejectionCount(), greaterThan(900L));
+    }
+
+    @Test
+    public void entry_heavier_than_the_cache_is_rejected() {
+        // prepare
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(10000, 100);
+
+        // run
+        boolean stored = cache.put("key", "value", 20000);
+
+        // verify
+        assertThat(stored, is(false));
+        assertThat(cache.get("key"), nullValue());
+        assertThat(cache.weight(), is(0L));
+    }
+
+    @Test
+    public void replace_and_remove_update_the_weight() {
+        // prepare
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(10000, 100);
+        cache.put("key", "value-1", 50);
+
+        // run
+        cache.put("key", "value-2", 70);
+
+        // verify
+        assertThat(cache.get("key"), is("value-2"));
+        assertThat(cache.weight(), is(70L));
+        assertThat(cache.remove("key"), is("value-2"));
+        assertThat(cache.weight(), is(0L));
+    }
+}
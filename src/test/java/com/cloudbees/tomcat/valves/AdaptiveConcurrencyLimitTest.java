@@ -0,0 +1,143 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class AdaptiveConcurrencyLimitTest {
+
+    private long now = 0;
+
+    @Test
+    public void stable_latency_grows_the_limit_up_to_the_max() {
+        // prepare
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 10, 40);
+
+        // run: 20 * 0.8 + (20 + sqrt(20)) * 0.2 = 20.89, then 21.81
+        window(limit, 10, 20, false);
+        window(limit, 10, 20, false);
+
+        // verify
+        assertThat(limit.getLimit(), is(21));
+        assertThat(limit.getBaselineRttInMillis(), is(10L));
+        assertThat(limit.getShortRttInMillis(), is(10L));
+
+        // run: the latency stays within rttTolerance * baselineRtt
+        for (int i = 0; i < 100; i++) {
+            window(limit, 14, limit.getLimit(), false);
+        }
+
+        // verify
+        assertThat(limit.getLimit(), is(40));
+    }
+
+    @Test
+    public void latency_above_the_baseline_shrinks_the_limit_down_to_the_min() {
+        // prepare
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 10, 40);
+        window(limit, 10, 20, false);
+        assertThat(limit.getLimit(), is(20));
+
+        // run: gradient = max(0.5, 1.5 * 10 / 40) = 0.5, 20.89 * 0.8 + (20.89 * 0.5 + sqrt(20.89)) * 0.2 = 19.72
+        window(limit, 40, 20, false);
+
+        // verify
+        assertThat(limit.getLimit(), is(19));
+        assertThat(limit.getShortRttInMillis(), is(40L));
+
+        // run
+        for (int i = 0; i < 50; i++) {
+            window(limit, 40, 20, false);
+        }
+
+        // verify
+        assertThat(limit.getLimit(), is(10));
+    }
+
+    @Test
+    public void limit_is_unchanged_when_less_than_half_is_used() {
+        // prepare
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 10, 40);
+        window(limit, 10, 20, false);
+
+        // run
+        for (int i = 0; i < 10; i++) {
+            window(limit, 100, 9, false);
+        }
+
+        // verify
+        assertThat(limit.getLimit(), is(20));
+        assertThat(limit.getShortRttInMillis(), is(100L));
+    }
+
+    @Test
+    public void window_with_dropped_requests_backs_off() {
+        // prepare
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 10, 40);
+
+        // run: 20 * 0.9
+        window(limit, 10, 20, true);
+
+        // verify
+        assertThat(limit.getLimit(), is(18));
+
+        // run
+        for (int i = 0; i < 10; i++) {
+            window(limit, 10, 20, true);
+        }
+
+        // verify
+        assertThat(limit.getLimit(), is(10));
+    }
+
+    @Test
+    public void window_is_closed_after_its_duration_and_min_samples() {
+        // prepare
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 10, 40);
+
+        // run: 10 dropped requests within the window duration, then a late sample
+        for (int i = 0; i < 10; i++) {
+            limit.onSample(TimeUnit.MILLISECONDS.toNanos(10), 20, true, now + i);
+        }
+        int limitWithinWindow = limit.getLimit();
+        limit.onSample(TimeUnit.MILLISECONDS.toNanos(10), 20, false, now + TimeUnit.SECONDS.toNanos(1));
+
+        // verify
+        assertThat(limitWithinWindow, is(20));
+        assertThat(limit.getLimit(), is(18));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void initial_limit_out_of_bounds_is_rejected() {
+        new AdaptiveConcurrencyLimit(5, 10, 40);
+    }
+
+    /**
+     * Send a window of 10 samples lasting 1 second, the first one dropped if {@code dropped} is {@code true}.
+     */
+    private void window(AdaptiveConcurrencyLimit limit, long rttInMillis, int inflight, boolean dropped) {
+        for (int i = 0; i < 10; i++) {
+            long time = i == 9 ? now + TimeUnit.SECONDS.toNanos(1) : now;
+            limit.onSample(TimeUnit.MILLISECONDS.toNanos(rttInMillis), inflight, dropped && i == 0, time);
+        }
+        now += TimeUnit.SECONDS.toNanos(2);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.valves.ValveBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class AdmissionControlValveTest {
+
+    private static final Connector CONNECTOR = new Connector();
+
+    private AdmissionControlValve admissionControlValve;
+
+    private BlockingValve applicationValve;
+
+    @Before
+    public void before() throws Exception {
+        admissionControlValve = new AdmissionControlValve();
+        admissionControlValve.setInitialLimit(4);
+        admissionControlValve.setMinLimit(1);
+        admissionControlValve.setRetryAfterInSeconds(3);
+        admissionControlValve.setNormalPriorityLimitPercent(50);
+        admissionControlValve.setLowPriorityLimitPercent(25);
+        admissionControlValve.setPriorityUriPrefixes("/checkout");
+        admissionControlValve.setLowPriorityUriPrefixes("/reports");
+        applicationValve = new BlockingValve();
+        admissionControlValve.setNext(applicationValve);
+        // the container is needed to register the valve MBean
+        StandardEngine engine = new StandardEngine();
+        engine.setName("test");
+        StandardHost host = new StandardHost();
+        host.setName("localhost");
+        engine.addChild(host);
+        admissionControlValve.setContainer(host);
+        admissionControlValve.start();
+    }
+
+    @After
+    public void after() throws Exception {
+        applicationValve.release.countDown();
+        admissionControlValve.stop();
+        admissionControlValve.destroy();
+    }
+
+    @Test
+    public void requests_above_the_limit_are_rejected_with_a_503() throws Exception {
+        // prepare: normal priority, 50% of the limit of 4
+        List<Thread> threads = startBlockedRequests("/products", 2);
+
+        // run
+        Response response = invoke("/products");
+
+        // verify
+        assertThat(response.getStatus(), is(503));
+        assertThat(response.getHeader("Retry-After"), is("3"));
+        assertThat(admissionControlValve.getInFlightRequestCount(), is(2));
+        assertThat(admissionControlValve.getRejectedRequestCount(), is(1L));
+        assertThat(admissionControlValve.getAcceptedRequestCount(), is(2L));
+        assertThat(applicationValve.invocationCount.getCount(), is(0L));
+
+        // run
+        applicationValve.release.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        // verify
+        assertThat(admissionControlValve.getInFlightRequestCount(), is(0));
+        assertThat(admissionControlValve.getDroppedRequestCount(), is(0L));
+    }
+
+    @Test
+    public void priority_requests_use_the_whole_limit_and_low_priority_requests_are_rejected_first() throws Exception {
+        // prepare
+        startBlockedRequests("/checkout/cart", 1);
+
+        // run
+        Response lowPriorityResponse = invoke("/reports/monthly");
+        startBlockedRequests("/checkout/pay", 3);
+        Response priorityResponse = invoke("/checkout/confirm");
+
+        // verify
+        assertThat(lowPriorityResponse.getStatus(), is(503));
+        assertThat(priorityResponse.getStatus(), is(503));
+        assertThat(admissionControlValve.getInFlightRequestCount(), is(4));
+        assertThat(admissionControlValve.getRejectedRequestCount(), is(2L));
+        assertThat(admissionControlValve.getRejectedLowPriorityRequestCount(), is(1L));
+    }
+
+    @Test
+    public void failed_requests_release_their_slot_and_are_counted_as_dropped() throws Exception {
+        // prepare
+        applicationValve.release.countDown();
+        applicationValve.failure = new ServletException("JDBC pool timeout");
+
+        // run
+        try {
+            invoke("/products");
+            fail();
+        } catch (ServletException e) {
+            // expected
+        }
+        applicationValve.failure = null;
+        applicationValve.status = 504;
+        invoke("/products");
+        applicationValve.status = 200;
+        invoke("/products");
+
+        // verify
+        assertThat(admissionControlValve.getInFlightRequestCount(), is(0));
+        assertThat(admissionControlValve.getAcceptedRequestCount(), is(3L));
+        assertThat(admissionControlValve.getDroppedRequestCount(), is(2L));
+        assertThat(admissionControlValve.getRejectedRequestCount(), is(0L));
+    }
+
+    /**
+     * Start requests blocked in the application until {@link BlockingValve#release} is counted down.
+     */
+    private List<Thread> startBlockedRequests(final String uri, int count) throws InterruptedException {
+        applicationValve.invocationCount = new CountDownLatch(count);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        AdmissionControlValveTest.this.invoke(uri);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        assertThat(applicationValve.invocationCount.await(5, TimeUnit.SECONDS), is(true));
+        return threads;
+    }
+
+    private Response invoke(String uri) throws IOException, ServletException {
+        Request request = new Request();
+        request.setCoyoteRequest(new org.apache.coyote.Request());
+        request.getCoyoteRequest().decodedURI().setString(uri);
+        Response response = new Response();
+        response.setConnector(CONNECTOR);
+        response.setCoyoteResponse(new org.apache.coyote.Response());
+        request.setResponse(response);
+        response.setRequest(request);
+        admissionControlValve.invoke(request, response);
+        return response;
+    }
+
+    private static class BlockingValve extends ValveBase {
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile CountDownLatch invocationCount = new CountDownLatch(0);
+        volatile ServletException failure;
+        volatile int status = 200;
+
+        @Override
+        public void invoke(Request request, Response response) throws IOException, ServletException {
+            invocationCount.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            response.setStatus(status);
+        }
+    }
+}
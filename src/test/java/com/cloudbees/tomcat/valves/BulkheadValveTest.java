@@ -0,0 +1,205 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.valves.ValveBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class BulkheadValveTest {
+
+    private static final Connector CONNECTOR = new Connector();
+
+    private BulkheadValve bulkheadValve;
+
+    private BlockingValve applicationValve;
+
+    @Before
+    public void before() throws Exception {
+        bulkheadValve = new BulkheadValve();
+        bulkheadValve.setMaxConcurrentRequests(1);
+        bulkheadValve.setMaxWaitInMillis(100);
+        bulkheadValve.setRetryAfterInSeconds(2);
+        applicationValve = new BlockingValve();
+        bulkheadValve.setNext(applicationValve);
+        // the container is needed to register the valve MBean
+        StandardEngine engine = new StandardEngine();
+        engine.setName("test");
+        StandardHost host = new StandardHost();
+        host.setName("localhost");
+        engine.addChild(host);
+        bulkheadValve.setContainer(host);
+        bulkheadValve.start();
+    }
+
+    @After
+    public void after() throws Exception {
+        applicationValve.release.countDown();
+        bulkheadValve.stop();
+        bulkheadValve.destroy();
+    }
+
+    @Test
+    public void request_waiting_more_than_max_wait_is_rejected_with_a_503() throws Exception {
+        // prepare
+        Thread blockedRequest = startBlockedRequest();
+
+        // run
+        long startNanos = System.nanoTime();
+        Response response = invoke();
+        long waitInMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+        // verify
+        assertThat(response.getStatus(), is(503));
+        assertThat(response.getHeader("Retry-After"), is("2"));
+        assertThat(waitInMillis, greaterThanOrEqualTo(100L));
+        assertThat(bulkheadValve.getRejectedRequestCount(), is(1L));
+        assertThat(bulkheadValve.getAcceptedRequestCount(), is(1L));
+
+        // run
+        applicationValve.release.countDown();
+        blockedRequest.join(5000);
+
+        // verify
+        assertThat(bulkheadValve.getActiveRequestCount(), is(0));
+    }
+
+    @Test
+    public void permit_is_released_when_the_next_valve_throws() throws Exception {
+        // prepare
+        applicationValve.release.countDown();
+        applicationValve.failure = new ServletException("JDBC pool timeout");
+
+        // run
+        try {
+            invoke();
+            fail();
+        } catch (ServletException e) {
+            // expected
+        }
+        applicationValve.failure = null;
+        Response response = invoke();
+
+        // verify
+        assertThat(response.getStatus(), is(200));
+        assertThat(bulkheadValve.getActiveRequestCount(), is(0));
+        assertThat(bulkheadValve.getAcceptedRequestCount(), is(2L));
+        assertThat(bulkheadValve.getRejectedRequestCount(), is(0L));
+    }
+
+    @Test
+    public void active_and_queued_requests_are_counted() throws Exception {
+        // prepare
+        bulkheadValve.setMaxWaitInMillis(5000);
+        Thread blockedRequest = startBlockedRequest();
+
+        // run: a second request waits for the permit
+        Thread queuedRequest = startRequest();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bulkheadValve.getQueuedRequestCount() == 0 && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+
+        // verify
+        assertThat(bulkheadValve.getActiveRequestCount(), is(1));
+        assertThat(bulkheadValve.getQueuedRequestCount(), is(1));
+
+        // run
+        applicationValve.release.countDown();
+        blockedRequest.join(5000);
+        queuedRequest.join(5000);
+
+        // verify
+        assertThat(bulkheadValve.getActiveRequestCount(), is(0));
+        assertThat(bulkheadValve.getQueuedRequestCount(), is(0));
+        assertThat(bulkheadValve.getAcceptedRequestCount(), is(2L));
+        assertThat(bulkheadValve.getRejectedRequestCount(), is(0L));
+    }
+
+    /**
+     * Start a request blocked in the application until {@link BlockingValve#release} is counted down.
+     */
+    private Thread startBlockedRequest() throws InterruptedException {
+        applicationValve.invocationCount = new CountDownLatch(1);
+        Thread thread = startRequest();
+        assertThat(applicationValve.invocationCount.await(5, TimeUnit.SECONDS), is(true));
+        return thread;
+    }
+
+    private Thread startRequest() {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    BulkheadValveTest.this.invoke();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private Response invoke() throws IOException, ServletException {
+        Request request = new Request();
+        request.setCoyoteRequest(new org.apache.coyote.Request());
+        request.getCoyoteRequest().decodedURI().setString("/products");
+        Response response = new Response();
+        response.setConnector(CONNECTOR);
+        response.setCoyoteResponse(new org.apache.coyote.Response());
+        request.setResponse(response);
+        response.setRequest(request);
+        bulkheadValve.invoke(request, response);
+        return response;
+    }
+
+    private static class BlockingValve extends ValveBase {
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile CountDownLatch invocationCount = new CountDownLatch(0);
+        volatile ServletException failure;
+
+        @Override
+        public void invoke(Request request, Response response) throws IOException, ServletException {
+            invocationCount.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            response.setStatus(200);
+        }
+    }
+}
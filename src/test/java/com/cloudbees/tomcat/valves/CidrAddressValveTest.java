@@ -0,0 +1,191 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.valves.ValveBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class CidrAddressValveTest {
+
+    private static final Connector CONNECTOR = new Connector();
+
+    private CidrAddressValve cidrAddressValve;
+
+    private ApplicationValve applicationValve;
+
+    private String appExtraFiles;
+
+    @Before
+    public void before() throws Exception {
+        appExtraFiles = System.getProperty("app_extra_files");
+        cidrAddressValve = new CidrAddressValve();
+        applicationValve = new ApplicationValve();
+        cidrAddressValve.setNext(applicationValve);
+    }
+
+    @After
+    public void after() throws Exception {
+        if (appExtraFiles == null) {
+            System.clearProperty("app_extra_files");
+        } else {
+            System.setProperty("app_extra_files", appExtraFiles);
+        }
+        cidrAddressValve.stop();
+        cidrAddressValve.destroy();
+    }
+
+    @Test
+    public void deny_takes_precedence_over_allow() throws Exception {
+        // prepare
+        cidrAddressValve.setAllowCidrs("10.0.0.0/8, 2001:db8::/32");
+        cidrAddressValve.setDenyCidrs("10.1.0.0/16 2001:db8:1::/48");
+        start();
+
+        // run / verify
+        assertThat(cidrAddressValve.isAllowed("10.2.3.4"), is(true));
+        assertThat(cidrAddressValve.isAllowed("10.1.2.3"), is(false));
+        assertThat(cidrAddressValve.isAllowed("2001:db8:2::1"), is(true));
+        assertThat(cidrAddressValve.isAllowed("2001:db8:1::1"), is(false));
+        assertThat(cidrAddressValve.isAllowed("192.168.1.1"), is(false));
+    }
+
+    @Test
+    public void empty_allow_list_allows_every_address_not_denied() throws Exception {
+        // prepare
+        cidrAddressValve.setDenyCidrs("192.168.0.0/16");
+        start();
+
+        // run / verify
+        assertThat(cidrAddressValve.getAllowedRangeCount(), is(0));
+        assertThat(cidrAddressValve.isAllowed("10.2.3.4"), is(true));
+        assertThat(cidrAddressValve.isAllowed("2001:db8::1"), is(true));
+        assertThat(cidrAddressValve.isAllowed("192.168.1.1"), is(false));
+    }
+
+    @Test
+    public void relative_allow_cidrs_file_is_resolved_against_app_extra_files() throws Exception {
+        // prepare
+        Path extraFilesDir = Files.createTempDirectory("app-extra-files");
+        Files.write(extraFilesDir.resolve("allowed-cidrs.txt"), Arrays.asList(
+                "# office",
+                "10.0.0.0/8 # vpn",
+                "",
+                "  192.168.1.12  ",
+                "#172.16.0.0/12"), StandardCharsets.UTF_8);
+        System.setProperty("app_extra_files", extraFilesDir.toString());
+        cidrAddressValve.setAllowCidrsFile("allowed-cidrs.txt");
+
+        // run
+        start();
+
+        // verify
+        assertThat(cidrAddressValve.getAllowedRangeCount(), is(2));
+        assertThat(cidrAddressValve.isAllowed("10.2.3.4"), is(true));
+        assertThat(cidrAddressValve.isAllowed("192.168.1.12"), is(true));
+        assertThat(cidrAddressValve.isAllowed("172.16.0.1"), is(false));
+    }
+
+    @Test
+    public void invalid_range_fails_the_start() throws Exception {
+        // prepare
+        cidrAddressValve.setAllowCidrs("10.0.0.0/8, 10.0.0.0/33");
+
+        // run
+        try {
+            start();
+            fail();
+        } catch (LifecycleException e) {
+            // verify
+            Throwable rootCause = e;
+            while (rootCause.getCause() != null) {
+                rootCause = rootCause.getCause();
+            }
+            assertThat(rootCause, instanceOf(IllegalArgumentException.class));
+            assertThat(rootCause.getMessage(), containsString("10.0.0.0/33"));
+        }
+    }
+
+    @Test
+    public void rejected_request_gets_the_deny_status() throws Exception {
+        // prepare
+        cidrAddressValve.setAllowCidrs("10.0.0.0/8");
+        cidrAddressValve.setDenyStatus(404);
+        start();
+
+        // run
+        Response allowed = invoke("10.2.3.4");
+        Response denied = invoke("192.168.1.1");
+
+        // verify
+        assertThat(allowed.getStatus(), is(200));
+        assertThat(denied.getStatus(), is(404));
+        assertThat(applicationValve.invocationCount.get(), is(1));
+        assertThat(cidrAddressValve.getDeniedRequestCount(), is(1L));
+    }
+
+    private void start() throws LifecycleException {
+        // the container is needed to register the valve MBean
+        StandardEngine engine = new StandardEngine();
+        engine.setName("test");
+        StandardHost host = new StandardHost();
+        host.setName("localhost");
+        engine.addChild(host);
+        cidrAddressValve.setContainer(host);
+        cidrAddressValve.start();
+    }
+
+    private Response invoke(String remoteAddr) throws Exception {
+        Request request = new Request();
+        request.setCoyoteRequest(new org.apache.coyote.Request());
+        request.getCoyoteRequest().decodedURI().setString("/products");
+        request.setRemoteAddr(remoteAddr);
+        Response response = new Response();
+        response.setConnector(CONNECTOR);
+        response.setCoyoteResponse(new org.apache.coyote.Response());
+        request.setResponse(response);
+        response.setRequest(request);
+        cidrAddressValve.invoke(request, response);
+        return response;
+    }
+
+    private static class ApplicationValve extends ValveBase {
+        final AtomicInteger invocationCount = new AtomicInteger();
+
+        @Override
+        public void invoke(Request request, Response response) {
+            invocationCount.incrementAndGet();
+            response.setStatus(200);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2010-2014, the original author or authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import com.google.common.base.Charsets;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.core.StandardHost;
+import org.apache.catalina.realm.GenericPrincipal;
+import org.apache.catalina.valves.ValveBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class PrivateAppCacheValveTest {
+
+    private static final Connector CONNECTOR = new Connector();
+
+    private static final String NAME = "__private_app";
+
+    private static final String HEADER_NAME = "X-Private-App";
+
+    private PrivateAppCacheValve privateAppCacheValve;
+
+    private FakePrivateAppValve privateAppValve;
+
+    @Before
+    public void before() throws Exception {
+        privateAppCacheValve = new PrivateAppCacheValve();
+        privateAppCacheValve.setSecretKey("ze-supper-secret");
+        privateAppCacheValve.setAuthenticationHeaderName(HEADER_NAME);
+        privateAppCacheValve.setAuthenticationCookieName(NAME);
+        privateAppCacheValve.setAuthenticationParameterName(NAME);
+        privateAppCacheValve.setIgnoredUriRegexp("/health.*");
+        privateAppValve = new FakePrivateAppValve();
+        privateAppValve.validTokens.put("token-alice", "alice");
+        privateAppValve.validTokens.put("token-bob", "bob");
+        privateAppCacheValve.setNext(privateAppValve);
+        privateAppValve.setNext(new PrivateAppVerifiedValve());
+        privateAppValve.getNext().setNext(new ApplicationValve());
+        start(privateAppCacheValve);
+    }
+
+    @After
+    public void after() throws Exception {
+        privateAppCacheValve.stop();
+        privateAppCacheValve.destroy();
+    }
+
+    @Test
+    public void verified_cookie_is_served_from_the_cache() throws Exception {
+        // run
+        Request first = invoke("GET", "/products", "Cookie", "JSESSIONID=123; " + NAME + "=token-alice");
+        Request second = invoke("GET", "/products", "Cookie", NAME + "=token-alice; JSESSIONID=456");
+
+        // verify
+        assertThat(first.getUserPrincipal().getName(), is("alice"));
+        assertThat(second.getUserPrincipal().getName(), is("alice"));
+        assertThat(second.getAuthType(), is("PRIVATE_APP"));
+        assertThat(second.getResponse().getStatus(), is(200));
+        assertThat(privateAppValve.verificationCount.get(), is(1));
+        assertThat(privateAppCacheValve.getHitCount(), is(1L));
+        assertThat(privateAppCacheValve.getMissCount(), is(1L));
+        assertThat(privateAppCacheValve.getEntryCount(), is(1));
+    }
+
+    @Test
+    public void verified_header_is_served_from_the_cache() throws Exception {
+        // run
+        invoke("GET", "/products", HEADER_NAME, "token-bob");
+        Request second = invoke("GET", "/products", HEADER_NAME, "token-bob");
+        Request cookie = invoke("GET", "/products", "Cookie", NAME + "=token-bob");
+
+        // verify
+        assertThat(second.getUserPrincipal().getName(), is("bob"));
+        // the header and the cookie are distinct keys
+        assertThat(cookie.getUserPrincipal().getName(), is("bob"));
+        assertThat(privateAppValve.verificationCount.get(), is(2));
+        assertThat(privateAppCacheValve.getHitCount(), is(1L));
+    }
+
+    @Test
+    public void other_and_rejected_credentials_miss_the_cache() throws Exception {
+        // prepare
+        invoke("GET", "/products", "Cookie", NAME + "=token-alice");
+
+        // run
+        Request bob = invoke("GET", "/products", "Cookie", NAME + "=token-bob");
+        Request firstInvalid = invoke("GET", "/products", "Cookie", NAME + "=token-mallory");
+        Request secondInvalid = invoke("GET", "/products", "Cookie", NAME + "=token-mallory");
+
+        // verify
+        assertThat(bob.getUserPrincipal().getName(), is("bob"));
+        assertThat(firstInvalid.getResponse().getStatus(), is(401));
+        assertThat(secondInvalid.getResponse().getStatus(), is(401));
+        assertThat(secondInvalid.getUserPrincipal(), nullValue());
+        assertThat(privateAppValve.verificationCount.get(), is(4));
+        assertThat(privateAppCacheValve.getHitCount(), is(0L));
+        assertThat(privateAppCacheValve.getEntryCount(), is(2));
+    }
+
+    @Test
+    public void request_without_the_credential_is_never_served_from_the_cache() throws Exception {
+        // prepare: cached alice, the whole cookie header is not a credential
+        invoke("GET", "/products", "Cookie", NAME + "=token-alice");
+        invoke("GET", "/products", "Cookie", "JSESSIONID=123; theme=dark");
+
+        // run
+        Request unrelatedCookies = invoke("GET", "/products", "Cookie", "JSESSIONID=123; theme=dark");
+        Request otherCookieName = invoke("GET", "/products", "Cookie", "private_app=token-alice");
+
+        // verify
+        assertThat(unrelatedCookies.getResponse().getStatus(), is(401));
+        assertThat(unrelatedCookies.getUserPrincipal(), nullValue());
+        assertThat(otherCookieName.getResponse().getStatus(), is(401));
+        assertThat(privateAppValve.verificationCount.get(), is(4));
+        assertThat(privateAppCacheValve.getHitCount(), is(0L));
+        assertThat(privateAppCacheValve.getMissCount(), is(1L));
+        assertThat(privateAppCacheValve.getEntryCount(), is(1));
+    }
+
+    @Test
+    public void authentication_parameter_authorization_and_forms_bypass_the_cache() throws Exception {
+        // prepare
+        invoke("GET", "/products", "Cookie", NAME + "=token-alice");
+
+        // run
+        Request parameter = invoke("GET", "/products?page=2&" + NAME + "=token-bob", "Cookie", NAME + "=token-alice");
+        Request encodedParameter = invoke("GET", "/products?%5F%5Fprivate_app=token-bob", "Cookie", NAME + "=token-alice");
+        Request authorization = invoke("GET", "/products", "Cookie", NAME + "=token-alice", "Authorization", "Basic Ym9iOmJvYg==");
+        Request form = invoke("POST", "/products", "Cookie", NAME + "=token-alice", "Content-Type", "application/x-www-form-urlencoded");
+        Request otherParameter = invoke("GET", "/products?x" + NAME + "=token-bob", "Cookie", NAME + "=token-alice");
+
+        // verify
+        assertThat(parameter.getUserPrincipal().getName(), is("bob"));
+        assertThat(encodedParameter.getUserPrincipal().getName(), is("bob"));
+        assertThat(authorization.getUserPrincipal().getName(), is("alice"));
+        assertThat(form.getUserPrincipal().getName(), is("alice"));
+        assertThat(otherParameter.getUserPrincipal().getName(), is("alice"));
+        assertThat(privateAppValve.verificationCount.get(), is(5));
+        assertThat(privateAppCacheValve.getHitCount(), is(1L));
+        assertThat(privateAppCacheValve.getEntryCount(), is(1));
+    }
+
+    @Test
+    public void secret_key_rotation_clears_the_cache() throws Exception {
+        // prepare
+        invoke("GET", "/products", "Cookie", NAME + "=token-alice");
+
+        // run
+        privateAppCacheValve.setSecretKey("ze-new-secret");
+        Request afterRotation = invoke("GET", "/products", "Cookie", NAME + "=token-alice");
+        invoke("GET", "/products", "Cookie", NAME + "=token-alice");
+
+        // verify
+        assertThat(afterRotation.getUserPrincipal().getName(), is("alice"));
+        assertThat(privateAppValve.verificationCount.get(), is(2));
+        assertThat(privateAppCacheValve.getMissCount(), is(2L));
+        assertThat(privateAppCacheValve.getHitCount(), is(1L));
+    }
+
+    @Test
+    public void ignored_uri_skips_the_private_app_valve() throws Exception {
+        // run
+        Request health = invoke("GET", "/health/check");
+
+        // verify
+        assertThat(health.getResponse().getStatus(), is(200));
+        assertThat(privateAppValve.verificationCount.get(), is(0));
+        assertThat(privateAppCacheValve.getIgnoredUriCount(), is(1L));
+    }
+
+    @Test(expected = LifecycleException.class)
+    public void authentication_names_are_required() throws Exception {
+        PrivateAppCacheValve valve = new PrivateAppCacheValve();
+        valve.setSecretKey("ze-supper-secret");
+        valve.setAuthenticationCookieName(NAME);
+        valve.setNext(privateAppValve);
+        start(valve);
+    }
+
+    private static void start(PrivateAppCacheValve valve) throws LifecycleException {
+        // the container is needed to register the valve MBean
+        StandardEngine engine = new StandardEngine();
+        engine.setName("test");
+        StandardHost host = new StandardHost();
+        host.setName("localhost");
+        engine.addChild(host);
+        valve.setContainer(host);
+        valve.start();
+    }
+
+    private Request invoke(String method, String uri, String... headers) throws IOException, ServletException {
+        org.apache.coyote.Request coyoteRequest = new org.apache.coyote.Request();
+        coyoteRequest.method().setString(method);
+        int queryStart = uri.indexOf('?');
+        String path = queryStart == -1 ? uri : uri.substring(0, queryStart);
+        coyoteRequest.requestURI().setString(path);
+        coyoteRequest.decodedURI().setString(path);
+        if (queryStart != -1) {
+            coyoteRequest.queryString().setString(uri.substring(queryStart + 1));
+        }
+        for (int i = 0; i < headers.length; i += 2) {
+            // the cookies are parsed from bytes, as received by the connector
+            byte[] value = headers[i + 1].getBytes(Charsets.ISO_8859_1);
+            coyoteRequest.getMimeHeaders().addValue(headers[i]).setBytes(value, 0, value.length);
+        }
+        Request request = new Request();
+        request.setCoyoteRequest(coyoteRequest);
+        Response response = new Response();
+        response.setConnector(CONNECTOR);
+        response.setCoyoteResponse(new org.apache.coyote.Response());
+        request.setResponse(response);
+        response.setRequest(request);
+
+        privateAppCacheValve.invoke(request, response);
+        return request;
+    }
+
+    /**
+     * Simulation of the {@code PrivateAppValve}: the query string parameter, the header or the cookie must be a valid
+     * token.
+     */
+    private static class FakePrivateAppValve extends ValveBase {
+        final Map<String, String> validTokens = new HashMap<>();
+        final AtomicInteger verificationCount = new AtomicInteger();
+
+        @Override
+        public void invoke(Request request, Response response) throws IOException, ServletException {
+            verificationCount.incrementAndGet();
+            String token = null;
+            if (request.getQueryString() != null) {
+                for (String parameter : request.getQueryString().split("&")) {
+                    String[] nameAndValue = parameter.split("=", 2);
+                    if (NAME.equals(URLDecoder.decode(nameAndValue[0], "UTF-8"))) {
+                        token = nameAndValue[1];
+                    }
+                }
+            }
+            if (token == null) {
+                token = request.getHeader(HEADER_NAME);
+            }
+            if (token == null && request.getCookies() != null) {
+                for (Cookie cookie : request.getCookies()) {
+                    if (NAME.equals(cookie.getName())) {
+                        token = cookie.getValue();
+                    }
+                }
+            }
+            String user = token == null ? null : validTokens.get(token);
+            if (user == null) {
+                response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+                return;
+            }
+            request.setUserPrincipal(new GenericPrincipal(user, null, Collections.<String>emptyList()));
+            request.setAuthType("PRIVATE_APP");
+            getNext().invoke(request, response);
+        }
+    }
+
+    private static class ApplicationValve extends ValveBase {
+        @Override
+        public void invoke(Request request, Response response) {
+            response.setStatus(HttpServletResponse.SC_OK);
+        }
+    }
+}
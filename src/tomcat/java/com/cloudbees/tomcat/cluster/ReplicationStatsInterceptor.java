@@ -0,0 +1,152 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.cluster;
+
+import org.apache.catalina.tribes.ChannelException;
+import org.apache.catalina.tribes.ChannelMessage;
+import org.apache.catalina.tribes.Member;
+import org.apache.catalina.tribes.group.ChannelInterceptorBase;
+import org.apache.catalina.tribes.group.InterceptorPayload;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.modeler.Registry;
+
+import javax.management.ObjectName;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the messages and the bytes sent to and received from the members of the cluster and measures the replication
+ * lag, exposed as the {@code Catalina:type=Cluster,component=ReplicationStats} MBean.
+ * <p/>
+ * The replication lag of a message is the time between its submission to the channel by the request thread (the
+ * {@link ChannelMessage#getTimestamp() timestamp} of the message) and the end of its sending, including the wait in
+ * the queue of the {@link org.apache.catalina.tribes.group.interceptors.MessageDispatch15Interceptor} and the
+ * acknowledgement of the receiver if requested: the interceptor must be declared after the
+ * {@code MessageDispatch15Interceptor} to be invoked by its dispatch threads. The lag is measured on the sending
+ * member, it does not depend on the clock of the receiver.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class ReplicationStatsInterceptor extends ChannelInterceptorBase {
+
+    private static final Log log = LogFactory.getLog(ReplicationStatsInterceptor.class);
+
+    private String objectName = "Catalina:type=Cluster,component=ReplicationStats";
+
+    private ObjectName registeredObjectName;
+
+    private final AtomicLong sentMessageCount = new AtomicLong();
+
+    private final AtomicLong sentBytes = new AtomicLong();
+
+    private final AtomicLong sendErrorCount = new AtomicLong();
+
+    private final AtomicLong replicationLagInMillis = new AtomicLong();
+
+    private volatile long lastReplicationLagInMillis;
+
+    private final AtomicLong receivedMessageCount = new AtomicLong();
+
+    private final AtomicLong receivedBytes = new AtomicLong();
+
+    @Override
+    public void sendMessage(Member[] destination, ChannelMessage msg, InterceptorPayload payload) throws ChannelException {
+        try {
+            super.sendMessage(destination, msg, payload);
+        } catch (ChannelException e) {
+            sendErrorCount.incrementAndGet();
+            throw e;
+        }
+        long lag = System.currentTimeMillis() - msg.getTimestamp();
+        sentMessageCount.incrementAndGet();
+        sentBytes.addAndGet((long) msg.getMessage().getLength() * destination.length);
+        replicationLagInMillis.addAndGet(lag);
+        lastReplicationLagInMillis = lag;
+    }
+
+    @Override
+    public void messageReceived(ChannelMessage msg) {
+        receivedMessageCount.incrementAndGet();
+        receivedBytes.addAndGet(msg.getMessage().getLength());
+        super.messageReceived(msg);
+    }
+
+    @Override
+    public synchronized void start(int svc) throws ChannelException {
+        super.start(svc);
+        if (registeredObjectName == null) {
+            try {
+                ObjectName name = new ObjectName(objectName);
+                Registry.getRegistry(null, null).registerComponent(this, name, null);
+                registeredObjectName = name;
+            } catch (Exception e) {
+                log.warn("Failure to register the replication statistics MBean " + objectName, e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void stop(int svc) throws ChannelException {
+        if (registeredObjectName != null) {
+            Registry.getRegistry(null, null).unregisterComponent(registeredObjectName);
+            registeredObjectName = null;
+        }
+        super.stop(svc);
+    }
+
+    public String getObjectName() {
+        return objectName;
+    }
+
+    public void setObjectName(String objectName) {
+        this.objectName = objectName;
+    }
+
+    public long getSentMessageCount() {
+        return sentMessageCount.get();
+    }
+
+    /**
+     * @return size of the sent messages multiplied by the number of destinations, excluding the tribes headers
+     */
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    public long getSendErrorCount() {
+        return sendErrorCount.get();
+    }
+
+    /**
+     * @return sum of the replication lags of the sent messages, the average lag is
+     * {@code replicationLagInMillis / sentMessageCount}
+     */
+    public long getReplicationLagInMillis() {
+        return replicationLagInMillis.get();
+    }
+
+    public long getLastReplicationLagInMillis() {
+        return lastReplicationLagInMillis;
+    }
+
+    public long getReceivedMessageCount() {
+        return receivedMessageCount.get();
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes.get();
+    }
+}
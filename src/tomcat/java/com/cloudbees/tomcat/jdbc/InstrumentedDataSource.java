@@ -0,0 +1,125 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.jdbc;
+
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.apache.tomcat.jdbc.pool.PoolConfiguration;
+import org.apache.tomcat.jdbc.pool.PoolExhaustedException;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * tomcat-jdbc-pool {@link DataSource} measuring the time spent to borrow a connection from the pool, the
+ * {@code ConnectionPool} MBean of tomcat-jdbc 7.0 only reports the number of waiting threads.
+ * <p/>
+ * The counters are exposed as attributes of the {@code Catalina:type=DataSource} MBean, the average borrow wait time
+ * is {@code borrowWaitTimeInMillis / borrowCount} between two collections.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class InstrumentedDataSource extends DataSource {
+
+    private final AtomicLong borrowCount = new AtomicLong();
+
+    private final AtomicLong borrowWaitTimeInNanos = new AtomicLong();
+
+    private final AtomicLong borrowTimeoutCount = new AtomicLong();
+
+    private final AtomicLong borrowFailureCount = new AtomicLong();
+
+    public InstrumentedDataSource() {
+        super();
+    }
+
+    public InstrumentedDataSource(PoolConfiguration poolProperties) {
+        super(poolProperties);
+    }
+
+    /**
+     * {@link #getXAConnection()} and {@link #getPooledConnection()} also borrow their connection with this method.
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        long startTime = System.nanoTime();
+        boolean borrowed = false;
+        try {
+            Connection connection = super.getConnection();
+            borrowed = true;
+            return connection;
+        } catch (PoolExhaustedException e) {
+            borrowTimeoutCount.incrementAndGet();
+            throw e;
+        } finally {
+            borrowed(startTime, borrowed);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        long startTime = System.nanoTime();
+        boolean borrowed = false;
+        try {
+            Connection connection = super.getConnection(username, password);
+            borrowed = true;
+            return connection;
+        } catch (PoolExhaustedException e) {
+            borrowTimeoutCount.incrementAndGet();
+            throw e;
+        } finally {
+            borrowed(startTime, borrowed);
+        }
+    }
+
+    private void borrowed(long startTime, boolean success) {
+        borrowWaitTimeInNanos.addAndGet(System.nanoTime() - startTime);
+        if (success) {
+            borrowCount.incrementAndGet();
+        } else {
+            borrowFailureCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return number of connections successfully borrowed from the pool
+     */
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    /**
+     * @return cumulated time spent in {@code getConnection()}, including the failed attempts
+     */
+    public long getBorrowWaitTimeInMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(borrowWaitTimeInNanos.get());
+    }
+
+    /**
+     * @return number of {@code getConnection()} that timed out after {@code maxWait} because the pool was exhausted
+     */
+    public long getBorrowTimeoutCount() {
+        return borrowTimeoutCount.get();
+    }
+
+    /**
+     * @return number of failed {@code getConnection()}, including the timeouts
+     */
+    public long getBorrowFailureCount() {
+        return borrowFailureCount.get();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.jdbc;
+
+import org.apache.tomcat.jdbc.pool.DataSourceFactory;
+import org.apache.tomcat.jdbc.pool.PoolConfiguration;
+
+import javax.naming.Context;
+import javax.sql.DataSource;
+import java.util.Properties;
+
+/**
+ * {@link DataSourceFactory} creating {@link InstrumentedDataSource}s, the XA data sources are not instrumented.
+ * <p/>
+ * Usage: {@code <Resource type="javax.sql.DataSource" factory="com.cloudbees.tomcat.jdbc.InstrumentedDataSourceFactory" ... />}
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class InstrumentedDataSourceFactory extends DataSourceFactory {
+
+    @Override
+    public DataSource createDataSource(Properties properties, Context context, boolean XA) throws Exception {
+        if (XA) {
+            return super.createDataSource(properties, context, XA);
+        }
+        PoolConfiguration poolProperties = DataSourceFactory.parsePoolProperties(properties);
+        if (poolProperties.getDataSourceJNDI() != null && poolProperties.getDataSource() == null) {
+            performJNDILookup(context, poolProperties);
+        }
+        InstrumentedDataSource dataSource = new InstrumentedDataSource(poolProperties);
+        dataSource.createPool();
+        return dataSource;
+    }
+}
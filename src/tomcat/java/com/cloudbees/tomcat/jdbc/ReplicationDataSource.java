@@ -0,0 +1,474 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.jdbc;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.modeler.Registry;
+
+import javax.management.MBeanRegistration;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * {@link DataSource} sending the read-only connections to replica databases and the other connections to the primary
+ * database, each database has its own {@link InstrumentedDataSource} pool.
+ * <p/>
+ * The returned connections are lazy: the physical connection is borrowed when the first statement is created, after
+ * {@link Connection#setReadOnly(boolean)} has been called as done by the transaction managers for read-only
+ * transactions. A read-only connection is borrowed from the replica with the least outstanding connections; a replica
+ * that fails to provide a connection is skipped for {@link #setReplicaRetryDelayInMillis(long) replicaRetryDelayInMillis}
+ * and the primary serves the reads if no replica is available. Changing the read-only flag once the physical connection
+ * is borrowed does not move the connection to another database.
+ * <p/>
+ * When it is registered in JMX, the data source registers the pool of each database with the additional key
+ * {@code pool=primary}, {@code pool=replica1}...
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class ReplicationDataSource implements DataSource, MBeanRegistration {
+
+    private static final Log log = LogFactory.getLog(ReplicationDataSource.class);
+
+    private static class Replica {
+        final String name;
+        final InstrumentedDataSource dataSource;
+        final AtomicInteger outstandingConnections = new AtomicInteger();
+        volatile long unavailableUntil;
+
+        Replica(String name, InstrumentedDataSource dataSource) {
+            this.name = name;
+            this.dataSource = dataSource;
+        }
+    }
+
+    private final InstrumentedDataSource primary;
+
+    private final List<Replica> replicas = new ArrayList<>();
+
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    private final AtomicLong readConnectionCount = new AtomicLong();
+
+    private final AtomicLong writeConnectionCount = new AtomicLong();
+
+    private final AtomicLong primaryReadConnectionCount = new AtomicLong();
+
+    private final AtomicLong replicaFailureCount = new AtomicLong();
+
+    private long replicaRetryDelayInMillis = 5000;
+
+    private final List<ObjectName> poolObjectNames = new ArrayList<>();
+
+    public ReplicationDataSource(InstrumentedDataSource primary, List<InstrumentedDataSource> replicas) {
+        this.primary = primary;
+        for (int i = 0; i < replicas.size(); i++) {
+            this.replicas.add(new Replica("replica" + (i + 1), replicas.get(i)));
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return getConnection(null, null);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return (Connection) Proxy.newProxyInstance(ReplicationDataSource.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new RoutingConnection(username, password));
+    }
+
+    /**
+     * Borrow a connection from the replica with the least outstanding connections, round robin between the replicas
+     * with the same number of connections.
+     *
+     * @return {@code null} if no replica is available
+     */
+    private Connection borrowReplicaConnection(RoutingConnection routingConnection) {
+        List<Replica> candidates = new ArrayList<>(replicas.size());
+        long now = System.currentTimeMillis();
+        int start = nextReplica.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (replica.unavailableUntil <= now) {
+                candidates.add(replica);
+            }
+        }
+        while (!candidates.isEmpty()) {
+            Replica leastLoaded = candidates.get(0);
+            for (Replica candidate : candidates) {
+                if (candidate.outstandingConnections.get() < leastLoaded.outstandingConnections.get()) {
+                    leastLoaded = candidate;
+                }
+            }
+            leastLoaded.outstandingConnections.incrementAndGet();
+            try {
+                Connection connection = routingConnection.borrow(leastLoaded.dataSource);
+                routingConnection.replica = leastLoaded;
+                return connection;
+            } catch (SQLException e) {
+                leastLoaded.outstandingConnections.decrementAndGet();
+                leastLoaded.unavailableUntil = System.currentTimeMillis() + replicaRetryDelayInMillis;
+                replicaFailureCount.incrementAndGet();
+                log.warn("Failure to get a connection from " + leastLoaded.name + " (" + leastLoaded.dataSource.getUrl() +
+                        "), skip it for " + replicaRetryDelayInMillis + "ms: " + e);
+                candidates.remove(leastLoaded);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lazy connection routed to the primary or to a replica when the first statement is created.
+     */
+    private class RoutingConnection implements InvocationHandler {
+        private final String username;
+        private final String password;
+        private boolean readOnly;
+        private Boolean autoCommit;
+        private Integer transactionIsolation;
+        private boolean closed;
+        private Connection target;
+        private Replica replica;
+        private boolean readOnlyPrimary;
+
+        RoutingConnection(String username, String password) {
+            this.username = username;
+            this.password = password;
+        }
+
+        Connection borrow(DataSource dataSource) throws SQLException {
+            return username == null ? dataSource.getConnection() : dataSource.getConnection(username, password);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+            int argCount = args == null ? 0 : args.length;
+            switch (methodName) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "RoutingConnection[" + (target == null ? "not borrowed" : target) + "]";
+                case "close":
+                    close();
+                    return null;
+                case "isClosed":
+                    return closed;
+            }
+            if (closed) {
+                throw new SQLException("Connection is closed");
+            }
+            if (target == null) {
+                switch (methodName) {
+                    case "setReadOnly":
+                        readOnly = (Boolean) args[0];
+                        return null;
+                    case "isReadOnly":
+                        return readOnly;
+                    case "setAutoCommit":
+                        autoCommit = (Boolean) args[0];
+                        return null;
+                    case "getAutoCommit":
+                        return autoCommit == null ? Boolean.TRUE : autoCommit;
+                    case "setTransactionIsolation":
+                        transactionIsolation = (Integer) args[0];
+                        return null;
+                    case "getTransactionIsolation":
+                        if (transactionIsolation != null) {
+                            return transactionIsolation;
+                        }
+                        break;
+                    case "commit":
+                    case "rollback":
+                        if (argCount == 0) {
+                            // nothing has been executed
+                            return null;
+                        }
+                        break;
+                }
+                target = borrowTarget();
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+        }
+
+        private Connection borrowTarget() throws SQLException {
+            Connection connection;
+            if (readOnly) {
+                readConnectionCount.incrementAndGet();
+                connection = borrowReplicaConnection(this);
+                if (connection == null) {
+                    primaryReadConnectionCount.incrementAndGet();
+                    connection = borrow(primary);
+                    readOnlyPrimary = true;
+                }
+            } else {
+                writeConnectionCount.incrementAndGet();
+                connection = borrow(primary);
+            }
+            try {
+                if (readOnly) {
+                    connection.setReadOnly(true);
+                }
+                if (autoCommit != null) {
+                    connection.setAutoCommit(autoCommit);
+                }
+                if (transactionIsolation != null) {
+                    connection.setTransactionIsolation(transactionIsolation);
+                }
+            } catch (SQLException e) {
+                target = connection;
+                close();
+                throw e;
+            }
+            return connection;
+        }
+
+        private void close() throws SQLException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (target == null) {
+                return;
+            }
+            try {
+                if (readOnlyPrimary) {
+                    // the pooled primary connections must stay writable
+                    target.setReadOnly(false);
+                }
+            } finally {
+                try {
+                    target.close();
+                } finally {
+                    if (replica != null) {
+                        replica.outstandingConnections.decrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Register the pools of the primary and of the replicas next to this data source.
+     */
+    @Override
+    public ObjectName preRegister(MBeanServer server, ObjectName name) throws Exception {
+        poolObjectNames.add(registerPool(primary, name, "primary"));
+        for (Replica replica : replicas) {
+            poolObjectNames.add(registerPool(replica.dataSource, name, replica.name));
+        }
+        return name;
+    }
+
+    private ObjectName registerPool(InstrumentedDataSource dataSource, ObjectName name, String pool) throws Exception {
+        Hashtable<String, String> properties = name.getKeyPropertyList();
+        properties.put("pool", pool);
+        ObjectName poolObjectName = new ObjectName(name.getDomain(), properties);
+        Registry.getRegistry(null, null).registerComponent(dataSource, poolObjectName, null);
+        return poolObjectName;
+    }
+
+    @Override
+    public void postRegister(Boolean registrationDone) {
+    }
+
+    @Override
+    public void preDeregister() throws Exception {
+    }
+
+    @Override
+    public void postDeregister() {
+        for (ObjectName poolObjectName : poolObjectNames) {
+            Registry.getRegistry(null, null).unregisterComponent(poolObjectName);
+        }
+        poolObjectNames.clear();
+    }
+
+    public void close() {
+        primary.close();
+        for (Replica replica : replicas) {
+            replica.dataSource.close();
+        }
+    }
+
+    private List<InstrumentedDataSource> getDataSources() {
+        List<InstrumentedDataSource> dataSources = new ArrayList<>(replicas.size() + 1);
+        dataSources.add(primary);
+        for (Replica replica : replicas) {
+            dataSources.add(replica.dataSource);
+        }
+        return Collections.unmodifiableList(dataSources);
+    }
+
+    /**
+     * @param replicaRetryDelayInMillis delay before borrowing again a connection from a replica that failed
+     */
+    public void setReplicaRetryDelayInMillis(long replicaRetryDelayInMillis) {
+        this.replicaRetryDelayInMillis = replicaRetryDelayInMillis;
+    }
+
+    public long getReplicaRetryDelayInMillis() {
+        return replicaRetryDelayInMillis;
+    }
+
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    /**
+     * @return number of read-only connections, served by the replicas or by the primary if no replica was available
+     */
+    public long getReadConnectionCount() {
+        return readConnectionCount.get();
+    }
+
+    public long getPrimaryReadConnectionCount() {
+        return primaryReadConnectionCount.get();
+    }
+
+    public long getWriteConnectionCount() {
+        return writeConnectionCount.get();
+    }
+
+    public long getReplicaFailureCount() {
+        return replicaFailureCount.get();
+    }
+
+    public int getNumActive() {
+        int numActive = 0;
+        for (InstrumentedDataSource dataSource : getDataSources()) {
+            numActive += dataSource.getNumActive();
+        }
+        return numActive;
+    }
+
+    public int getNumIdle() {
+        int numIdle = 0;
+        for (InstrumentedDataSource dataSource : getDataSources()) {
+            numIdle += dataSource.getNumIdle();
+        }
+        return numIdle;
+    }
+
+    public int getWaitCount() {
+        int waitCount = 0;
+        for (InstrumentedDataSource dataSource : getDataSources()) {
+            waitCount += dataSource.getWaitCount();
+        }
+        return waitCount;
+    }
+
+    public int getMaxActive() {
+        int maxActive = 0;
+        for (InstrumentedDataSource dataSource : getDataSources()) {
+            maxActive += dataSource.getMaxActive();
+        }
+        return maxActive;
+    }
+
+    public long getBorrowCount() {
+        long borrowCount = 0;
+        for (InstrumentedDataSource dataSource : getDataSources()) {
+            borrowCount += dataSource.getBorrowCount();
+        }
+        return borrowCount;
+    }
+
+    public long getBorrowWaitTimeInMillis() {
+        long borrowWaitTime = 0;
+        for (InstrumentedDataSource dataSource : getDataSources()) {
+            borrowWaitTime += dataSource.getBorrowWaitTimeInMillis();
+        }
+        return borrowWaitTime;
+    }
+
+    public long getBorrowTimeoutCount() {
+        long borrowTimeoutCount = 0;
+        for (InstrumentedDataSource dataSource : getDataSources()) {
+            borrowTimeoutCount += dataSource.getBorrowTimeoutCount();
+        }
+        return borrowTimeoutCount;
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return primary.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        for (InstrumentedDataSource dataSource : getDataSources()) {
+            dataSource.setLogWriter(out);
+        }
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        for (InstrumentedDataSource dataSource : getDataSources()) {
+            dataSource.setLoginTimeout(seconds);
+        }
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return primary.getLoginTimeout();
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException(getClass().getName() + " is not a wrapper for " + iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicationDataSource[primary=" + primary.getUrl() + ", replicas=" + replicas.size() + "]";
+    }
+}
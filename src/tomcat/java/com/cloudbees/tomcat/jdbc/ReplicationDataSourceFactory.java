@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.jdbc;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.RefAddr;
+import javax.naming.Reference;
+import javax.naming.StringRefAddr;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * {@link InstrumentedDataSourceFactory} creating a {@link ReplicationDataSource} when the resource declares
+ * {@code replicaUrls}, a comma separated list of JDBC urls. The pools of the replicas have the same settings as the pool
+ * of the primary database ({@code url}).
+ * <p/>
+ * Usage: {@code <Resource type="javax.sql.DataSource" factory="com.cloudbees.tomcat.jdbc.ReplicationDataSourceFactory"
+ * url="jdbc:mysql://primary/db" replicaUrls="jdbc:mysql://replica-1/db,jdbc:mysql://replica-2/db" ... />}
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class ReplicationDataSourceFactory extends InstrumentedDataSourceFactory {
+
+    public static final String PROP_REPLICA_URLS = "replicaUrls";
+
+    public static final String PROP_REPLICA_RETRY_DELAY_IN_MILLIS = "replicaRetryDelayInMillis";
+
+    @Override
+    public Object getObjectInstance(Object obj, Name name, Context nameCtx, Hashtable<?, ?> environment) throws Exception {
+        if (!(obj instanceof Reference)) {
+            return null;
+        }
+        Reference ref = (Reference) obj;
+        RefAddr replicaUrls = ref.get(PROP_REPLICA_URLS);
+        if (replicaUrls == null || replicaUrls.getContent() == null || replicaUrls.getContent().toString().trim().isEmpty()) {
+            return super.getObjectInstance(obj, name, nameCtx, environment);
+        }
+        Object primary = super.getObjectInstance(obj, name, nameCtx, environment);
+        if (!(primary instanceof InstrumentedDataSource)) {
+            // XA data source or invalid type
+            return primary;
+        }
+        List<InstrumentedDataSource> replicas = new ArrayList<>();
+        for (String replicaUrl : replicaUrls.getContent().toString().split(",")) {
+            if (!replicaUrl.trim().isEmpty()) {
+                replicas.add((InstrumentedDataSource) super.getObjectInstance(withUrl(ref, replicaUrl.trim()), name, nameCtx, environment));
+            }
+        }
+        ReplicationDataSource dataSource = new ReplicationDataSource((InstrumentedDataSource) primary, replicas);
+        RefAddr replicaRetryDelay = ref.get(PROP_REPLICA_RETRY_DELAY_IN_MILLIS);
+        if (replicaRetryDelay != null && replicaRetryDelay.getContent() != null) {
+            dataSource.setReplicaRetryDelayInMillis(Long.parseLong(replicaRetryDelay.getContent().toString().trim()));
+        }
+        return dataSource;
+    }
+
+    /**
+     * @return a copy of the given reference with another {@code url}
+     */
+    private Reference withUrl(Reference ref, String url) {
+        Reference replicaRef = new Reference(ref.getClassName(), ref.getFactoryClassName(), ref.getFactoryClassLocation());
+        Enumeration<RefAddr> addresses = ref.getAll();
+        while (addresses.hasMoreElements()) {
+            RefAddr address = addresses.nextElement();
+            if (PROP_URL.equals(address.getType())) {
+                replicaRef.add(new StringRefAddr(PROP_URL, url));
+            } else {
+                replicaRef.add(address);
+            }
+        }
+        return replicaRef;
+    }
+}
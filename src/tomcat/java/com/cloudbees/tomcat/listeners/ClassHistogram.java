@@ -0,0 +1,187 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.listeners;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Class histogram of the live objects limited to the classes retaining the most memory, as printed by the
+ * {@code GC.class_histogram} diagnostic command of HotSpot ({@code jmap -histo:live}).
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class ClassHistogram {
+
+    /**
+     * {@code "   1:         12345        1234567  java.lang.String (java.base@11)"}, the module is ignored
+     */
+    private static final Pattern LINE = Pattern.compile("^\\s*\\d+:\\s+(\\d+)\\s+(\\d+)\\s+(\\S+).*$");
+
+    public static class Entry {
+        private final String className;
+        private final long instances;
+        private final long bytes;
+
+        Entry(String className, long instances, long bytes) {
+            this.className = className;
+            this.instances = instances;
+            this.bytes = bytes;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public long getInstances() {
+            return instances;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Growth of a class between the first and the last of a series of histograms.
+     */
+    public static class Growth {
+        private final String className;
+        private final long instancesDelta;
+        private final long bytesDelta;
+        private final long bytes;
+
+        Growth(String className, long instancesDelta, long bytesDelta, long bytes) {
+            this.className = className;
+            this.instancesDelta = instancesDelta;
+            this.bytesDelta = bytesDelta;
+            this.bytes = bytes;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public long getInstancesDelta() {
+            return instancesDelta;
+        }
+
+        public long getBytesDelta() {
+            return bytesDelta;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    private final long timestamp;
+
+    private final Map<String, Entry> entries;
+
+    ClassHistogram(long timestamp, Map<String, Entry> entries) {
+        this.timestamp = timestamp;
+        this.entries = entries;
+    }
+
+    /**
+     * Invoke the {@code GC.class_histogram} diagnostic command, it triggers a full GC to only count the live objects.
+     *
+     * @return {@code null} if the JVM doesn't provide the diagnostic commands (Java 7, non HotSpot JVMs)
+     */
+    public static String takeHistogram() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            return (String) mbeanServer.invoke(new ObjectName("com.sun.management:type=DiagnosticCommand"),
+                    "gcClassHistogram", new Object[]{null}, new String[]{String[].class.getName()});
+        } catch (InstanceNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param maxClasses number of classes to keep, the histogram is sorted by decreasing size
+     */
+    public static ClassHistogram parse(String histogram, int maxClasses, long timestamp) {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        for (String line : histogram.split("\n")) {
+            if (entries.size() >= maxClasses) {
+                break;
+            }
+            Matcher matcher = LINE.matcher(line);
+            if (matcher.matches()) {
+                String className = matcher.group(3);
+                entries.put(className, new Entry(className, Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2))));
+            }
+        }
+        return new ClassHistogram(timestamp, entries);
+    }
+
+    /**
+     * @param histograms oldest first
+     * @return the classes whose size increased in each of the given histograms, the largest growth first
+     */
+    public static List<Growth> findGrowingClasses(List<ClassHistogram> histograms, int maxClasses) {
+        List<Growth> growingClasses = new ArrayList<>();
+        if (histograms.size() < 2) {
+            return growingClasses;
+        }
+        ClassHistogram first = histograms.get(0);
+        ClassHistogram last = histograms.get(histograms.size() - 1);
+        for (Entry lastEntry : last.entries.values()) {
+            boolean growing = true;
+            Entry previous = null;
+            for (ClassHistogram histogram : histograms) {
+                Entry entry = histogram.entries.get(lastEntry.getClassName());
+                if (entry == null || (previous != null && entry.getBytes() <= previous.getBytes())) {
+                    growing = false;
+                    break;
+                }
+                previous = entry;
+            }
+            if (growing) {
+                Entry firstEntry = first.entries.get(lastEntry.getClassName());
+                growingClasses.add(new Growth(lastEntry.getClassName(), lastEntry.getInstances() - firstEntry.getInstances(),
+                        lastEntry.getBytes() - firstEntry.getBytes(), lastEntry.getBytes()));
+            }
+        }
+        Collections.sort(growingClasses, new Comparator<Growth>() {
+            @Override
+            public int compare(Growth g1, Growth g2) {
+                return Long.compare(g2.getBytesDelta(), g1.getBytesDelta());
+            }
+        });
+        return growingClasses.size() > maxClasses ? growingClasses.subList(0, maxClasses) : growingClasses;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Map<String, Entry> getEntries() {
+        return entries;
+    }
+}
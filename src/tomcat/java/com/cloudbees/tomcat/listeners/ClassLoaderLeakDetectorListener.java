@@ -0,0 +1,715 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.listeners;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.ContainerEvent;
+import org.apache.catalina.ContainerListener;
+import org.apache.catalina.Context;
+import org.apache.catalina.Globals;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.Server;
+import org.apache.catalina.Service;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.buf.B2CConverter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Driver;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Diagnoses the class loader and memory leaks that {@code JreMemoryLeakPreventionListener} and
+ * {@code ThreadLocalLeakPreventionListener} don't prevent.
+ * <p/>
+ * Declared on the {@code Server}, this listener:
+ * <ul>
+ * <li>tracks the class loaders of the web applications with weak references, a class loader still reachable after
+ * a collection unloading the classes (full GC, concurrent cycle of G1 or CMS) following the stop of its context is
+ * leaked,</li>
+ * <li>lists the threads, {@code ThreadLocal}s and JDBC drivers of the class loader of a context left over after its
+ * stop,</li>
+ * <li>samples the loaded class count, the metaspace (or PermGen) usage and the old generation usage after GC every
+ * {@link #setSamplingIntervalInSeconds(int) samplingIntervalInSeconds} and flags their growth per hour,</li>
+ * <li>optionally takes a class histogram of the live objects every {@link #setHistogramIntervalInMinutes(int)
+ * histogramIntervalInMinutes} and reports the classes growing in all the last {@link #setHistogramHistory(int)
+ * histogramHistory} histograms. Each histogram triggers a stop-the-world full GC, they are disabled by default.</li>
+ * </ul>
+ * The figures are written in {@link #setDataFile(String) dataFile} with the "{@code name value}" line format of
+ * {@code tomcat-metrics.data}, displayed by {@code stats-appstat}, and the details in the optional
+ * {@link #setReportFile(String) reportFile}, a compact alternative to a heap dump.
+ * <p/>
+ * The reflective inspection of the {@code ThreadLocal}s and JDBC drivers requires access to the internals of the
+ * JDK; when denied (Java 9+ without {@code --add-opens}), the corresponding counts are reported as {@code -1}.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class ClassLoaderLeakDetectorListener implements LifecycleListener, ContainerListener {
+
+    private static final Log log = LogFactory.getLog(ClassLoaderLeakDetectorListener.class);
+
+    private static final int MAX_LEFTOVERS_PER_CONTEXT = 50;
+
+    private int samplingIntervalInSeconds = 300;
+    private int maxSamples = 288;
+    private int histogramIntervalInMinutes = 0;
+    private int histogramMaxClasses = 200;
+    private int histogramHistory = 4;
+    private int loadedClassesGrowthThresholdPerHour = 100;
+    private int metaspaceGrowthThresholdInKilobytesPerHour = 1024;
+    private String dataFile = "logs/leak-detector.data";
+    private String reportFile = "";
+
+    /**
+     * Class loader of a web application, only weakly referenced.
+     */
+    private static class TrackedClassLoader {
+        final String contextName;
+        final WeakReference<ClassLoader> classLoader;
+        final long startTime;
+        volatile long stopTime = -1;
+        /**
+         * cleared once the classes have been unloaded after the stop, {@code null} if not stopped
+         */
+        volatile Reference<ClassLoader> unloadingSentinel;
+        final List<String> leftovers = new CopyOnWriteArrayList<>();
+
+        TrackedClassLoader(String contextName, ClassLoader classLoader) {
+            this.contextName = contextName;
+            this.classLoader = new WeakReference<>(classLoader);
+            this.startTime = System.currentTimeMillis();
+        }
+
+        boolean isStopped() {
+            return stopTime >= 0;
+        }
+    }
+
+    /**
+     * Class loader defining a single class, created at the stop of a context and only weakly referenced.
+     * <p/>
+     * The class loaders defining classes are only collected by the collections unloading the classes: the full GCs
+     * but also the concurrent cycles of G1 and CMS that the collection counts of the old generation MXBeans ignore
+     * ("G1 Old Generation" only counts the full GCs). Once the sentinel is cleared, a stopped class loader still
+     * reachable is leaked whatever the garbage collector.
+     */
+    static class UnloadingSentinel extends ClassLoader {
+
+        /**
+         * Defined by each sentinel.
+         */
+        static class Marker {
+        }
+
+        private static volatile byte[] markerBytes;
+
+        private UnloadingSentinel() {
+            super(null);
+        }
+
+        /**
+         * @return a weak reference to a new sentinel or {@code null} if the marker class can not be defined
+         */
+        static Reference<ClassLoader> create() {
+            try {
+                byte[] bytes = markerBytes;
+                if (bytes == null) {
+                    bytes = markerBytes = readMarkerBytes();
+                }
+                UnloadingSentinel sentinel = new UnloadingSentinel();
+                sentinel.defineClass(Marker.class.getName(), bytes, 0, bytes.length);
+                return new WeakReference<ClassLoader>(sentinel);
+            } catch (IOException | LinkageError e) {
+                log.warn("Exception defining the class unloading sentinel, leaked class loaders are not detected", e);
+                return null;
+            }
+        }
+
+        private static byte[] readMarkerBytes() throws IOException {
+            String resource = Marker.class.getName().replace('.', '/') + ".class";
+            try (InputStream in = UnloadingSentinel.class.getClassLoader().getResourceAsStream(resource)) {
+                if (in == null) {
+                    throw new IOException("Resource " + resource + " not found");
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                for (int length = in.read(buffer); length >= 0; length = in.read(buffer)) {
+                    out.write(buffer, 0, length);
+                }
+                return out.toByteArray();
+            }
+        }
+    }
+
+    static class Sample {
+        final long timestamp;
+        final long loadedClasses;
+        final long unloadedClasses;
+        final long metaspaceUsed;
+        final long oldGenUsedAfterGc;
+
+        Sample(long timestamp, long loadedClasses, long unloadedClasses, long metaspaceUsed, long oldGenUsedAfterGc) {
+            this.timestamp = timestamp;
+            this.loadedClasses = loadedClasses;
+            this.unloadedClasses = unloadedClasses;
+            this.metaspaceUsed = metaspaceUsed;
+            this.oldGenUsedAfterGc = oldGenUsedAfterGc;
+        }
+    }
+
+    private final List<TrackedClassLoader> trackedClassLoaders = new CopyOnWriteArrayList<>();
+    private final Deque<Sample> samples = new ArrayDeque<>();
+    private final Deque<ClassHistogram> histograms = new ArrayDeque<>();
+    private final AtomicLong leftoverThreads = new AtomicLong();
+    private final AtomicLong leftoverThreadLocals = new AtomicLong();
+    private final AtomicLong leftoverJdbcDrivers = new AtomicLong();
+    private long lastHistogramTime;
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void lifecycleEvent(LifecycleEvent event) {
+        Lifecycle lifecycle = event.getLifecycle();
+        if (lifecycle instanceof Server) {
+            if (Lifecycle.BEFORE_START_EVENT.equals(event.getType())) {
+                for (Service service : ((Server) lifecycle).findServices()) {
+                    Container engine = service.getContainer();
+                    for (Container host : engine.findChildren()) {
+                        host.addContainerListener(this);
+                        for (Container context : host.findChildren()) {
+                            ((Lifecycle) context).addLifecycleListener(this);
+                        }
+                    }
+                }
+            } else if (Lifecycle.AFTER_START_EVENT.equals(event.getType())) {
+                start();
+            } else if (Lifecycle.BEFORE_STOP_EVENT.equals(event.getType())) {
+                stop();
+            }
+        } else if (lifecycle instanceof Context) {
+            if (Lifecycle.AFTER_START_EVENT.equals(event.getType())) {
+                contextStarted((Context) lifecycle);
+            } else if (Lifecycle.AFTER_STOP_EVENT.equals(event.getType())) {
+                contextStopped((Context) lifecycle);
+            }
+        }
+    }
+
+    /**
+     * Track the contexts deployed after the start of the server, {@code addChild} is fired after the start of the
+     * child.
+     */
+    @Override
+    public void containerEvent(ContainerEvent event) {
+        if (Container.ADD_CHILD_EVENT.equals(event.getType()) && event.getData() instanceof Context) {
+            Context context = (Context) event.getData();
+            ((Lifecycle) context).addLifecycleListener(this);
+            if (context.getState().isAvailable()) {
+                contextStarted(context);
+            }
+        }
+    }
+
+    protected void start() {
+        lastHistogramTime = System.currentTimeMillis();
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "leak-detector");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sample();
+                } catch (Exception e) {
+                    log.warn("Exception sampling class loaders and memory", e);
+                }
+            }
+        }, 0, samplingIntervalInSeconds, TimeUnit.SECONDS);
+        log.info("Class loader leak detection started, samplingIntervalInSeconds=" + samplingIntervalInSeconds
+                + ", histogramIntervalInMinutes=" + histogramIntervalInMinutes);
+    }
+
+    protected void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    protected void contextStarted(Context context) {
+        ClassLoader classLoader = context.getLoader() == null ? null : context.getLoader().getClassLoader();
+        if (classLoader != null) {
+            contextStarted(getContextName(context), classLoader);
+        }
+    }
+
+    protected void contextStarted(String contextName, ClassLoader classLoader) {
+        for (TrackedClassLoader tracked : trackedClassLoaders) {
+            if (tracked.classLoader.get() == classLoader) {
+                return;
+            }
+        }
+        trackedClassLoaders.add(new TrackedClassLoader(contextName, classLoader));
+    }
+
+    /**
+     * The class loader has been stopped by the {@code WebappLoader}, look for what still refers to it.
+     */
+    protected void contextStopped(Context context) {
+        contextStopped(getContextName(context));
+    }
+
+    protected void contextStopped(String contextName) {
+        for (TrackedClassLoader tracked : trackedClassLoaders) {
+            ClassLoader classLoader = tracked.classLoader.get();
+            if (tracked.isStopped() || classLoader == null || !tracked.contextName.equals(contextName)) {
+                continue;
+            }
+            tracked.stopTime = System.currentTimeMillis();
+            tracked.unloadingSentinel = UnloadingSentinel.create();
+
+            List<String> leftovers = new ArrayList<>();
+            leftoverThreads.addAndGet(findLeftoverThreads(classLoader, leftovers));
+            int threadLocals = findLeftoverThreadLocals(classLoader, leftovers);
+            if (threadLocals >= 0) {
+                leftoverThreadLocals.addAndGet(threadLocals);
+            }
+            int jdbcDrivers = findLeftoverJdbcDrivers(classLoader, leftovers);
+            if (jdbcDrivers >= 0) {
+                leftoverJdbcDrivers.addAndGet(jdbcDrivers);
+            }
+            if (!leftovers.isEmpty()) {
+                log.warn("Context " + contextName + " stopped with " + leftovers.size() + " leftovers: " + leftovers);
+            }
+            tracked.leftovers.addAll(leftovers.size() > MAX_LEFTOVERS_PER_CONTEXT ?
+                    leftovers.subList(0, MAX_LEFTOVERS_PER_CONTEXT) : leftovers);
+        }
+    }
+
+    protected int findLeftoverThreads(ClassLoader classLoader, List<String> leftovers) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread == Thread.currentThread() || !thread.isAlive()) {
+                continue;
+            }
+            if (isLoadedBy(thread.getClass(), classLoader) || isSameOrChild(thread.getContextClassLoader(), classLoader)) {
+                count++;
+                leftovers.add("Thread '" + thread.getName() + "' (" + thread.getClass().getName() + ")");
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return {@code -1} if the {@code ThreadLocal}s are not accessible
+     */
+    protected int findLeftoverThreadLocals(ClassLoader classLoader, List<String> leftovers) {
+        try {
+            Field threadLocalsField = Thread.class.getDeclaredField("threadLocals");
+            threadLocalsField.setAccessible(true);
+            Field inheritableThreadLocalsField = Thread.class.getDeclaredField("inheritableThreadLocals");
+            inheritableThreadLocalsField.setAccessible(true);
+            Field tableField = Class.forName("java.lang.ThreadLocal$ThreadLocalMap").getDeclaredField("table");
+            tableField.setAccessible(true);
+            Field valueField = Class.forName("java.lang.ThreadLocal$ThreadLocalMap$Entry").getDeclaredField("value");
+            valueField.setAccessible(true);
+
+            int count = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                for (Object map : new Object[]{threadLocalsField.get(thread), inheritableThreadLocalsField.get(thread)}) {
+                    if (map == null) {
+                        continue;
+                    }
+                    for (Object entry : (Object[]) tableField.get(map)) {
+                        if (entry == null) {
+                            continue;
+                        }
+                        Object key = ((Reference<?>) entry).get();
+                        Object value = valueField.get(entry);
+                        if ((key != null && isLoadedBy(key.getClass(), classLoader)) || (value != null && isLoadedBy(value.getClass(), classLoader))) {
+                            count++;
+                            leftovers.add("ThreadLocal of thread '" + thread.getName() + "' key="
+                                    + (key == null ? null : key.getClass().getName()) + " value="
+                                    + (value == null ? null : value.getClass().getName()));
+                        }
+                    }
+                }
+            }
+            return count;
+        } catch (Exception e) {
+            log.debug("ThreadLocals not accessible, ignore them", e);
+            return -1;
+        }
+    }
+
+    /**
+     * @return {@code -1} if the drivers registered in the {@code DriverManager} are not accessible
+     */
+    protected int findLeftoverJdbcDrivers(ClassLoader classLoader, List<String> leftovers) {
+        try {
+            Field registeredDriversField = java.sql.DriverManager.class.getDeclaredField("registeredDrivers");
+            registeredDriversField.setAccessible(true);
+            int count = 0;
+            for (Object driverInfo : (Iterable<?>) registeredDriversField.get(null)) {
+                Field driverField = driverInfo.getClass().getDeclaredField("driver");
+                driverField.setAccessible(true);
+                Driver driver = (Driver) driverField.get(driverInfo);
+                if (isLoadedBy(driver.getClass(), classLoader)) {
+                    count++;
+                    leftovers.add("JDBC driver " + driver.getClass().getName());
+                }
+            }
+            return count;
+        } catch (Exception e) {
+            log.debug("DriverManager not accessible, ignore JDBC drivers", e);
+            return -1;
+        }
+    }
+
+    protected void sample() throws Exception {
+        long now = System.currentTimeMillis();
+        ClassLoadingMXBean classLoadingMXBean = ManagementFactory.getClassLoadingMXBean();
+        long metaspaceUsed = -1;
+        long oldGenUsedAfterGc = -1;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            String name = memoryPool.getName();
+            if (name.equals("Metaspace") || name.contains("Perm Gen")) {
+                metaspaceUsed = memoryPool.getUsage().getUsed();
+            } else if (name.contains("Old Gen") || name.contains("Tenured Gen")) {
+                MemoryUsage collectionUsage = memoryPool.getCollectionUsage();
+                oldGenUsedAfterGc = collectionUsage == null ? -1 : collectionUsage.getUsed();
+            }
+        }
+        samples.addLast(new Sample(now, classLoadingMXBean.getLoadedClassCount(), classLoadingMXBean.getUnloadedClassCount(),
+                metaspaceUsed, oldGenUsedAfterGc));
+        while (samples.size() > maxSamples) {
+            samples.removeFirst();
+        }
+
+        if (histogramIntervalInMinutes > 0 && now - lastHistogramTime >= TimeUnit.MINUTES.toMillis(histogramIntervalInMinutes)) {
+            lastHistogramTime = now;
+            String histogram = ClassHistogram.takeHistogram();
+            if (histogram == null) {
+                log.info("Class histograms not supported by this JVM, disable them");
+                histogramIntervalInMinutes = 0;
+            } else {
+                histograms.addLast(ClassHistogram.parse(histogram, histogramMaxClasses, now));
+                while (histograms.size() > histogramHistory) {
+                    histograms.removeFirst();
+                }
+            }
+        }
+
+        int running = 0;
+        int stopped = 0;
+        List<TrackedClassLoader> leaked = new ArrayList<>();
+        for (TrackedClassLoader tracked : trackedClassLoaders) {
+            if (tracked.classLoader.get() == null) {
+                trackedClassLoaders.remove(tracked);
+            } else if (!tracked.isStopped()) {
+                running++;
+            } else if (isUnloadingSinceStop(tracked)) {
+                leaked.add(tracked);
+            } else {
+                stopped++;
+            }
+        }
+
+        Sample last = samples.getLast();
+        double loadedClassesGrowth = growthPerHour(samples, new Metric() {
+            @Override
+            public long get(Sample sample) {
+                return sample.loadedClasses;
+            }
+        });
+        double metaspaceGrowth = growthPerHour(samples, new Metric() {
+            @Override
+            public long get(Sample sample) {
+                return sample.metaspaceUsed;
+            }
+        });
+        double oldGenGrowth = growthPerHour(samples, new Metric() {
+            @Override
+            public long get(Sample sample) {
+                return sample.oldGenUsedAfterGc;
+            }
+        });
+        boolean growthTrend = isGrowthTrend(loadedClassesGrowth, metaspaceGrowth);
+        List<ClassHistogram.Growth> growingClasses = ClassHistogram.findGrowingClasses(new ArrayList<>(histograms), 20);
+
+        List<String> lines = new ArrayList<>();
+        lines.add("leak_detector_loaded_classes " + last.loadedClasses);
+        lines.add("leak_detector_unloaded_classes " + last.unloadedClasses);
+        lines.add("leak_detector_metaspace_used_bytes " + last.metaspaceUsed);
+        lines.add("leak_detector_old_gen_used_after_gc_bytes " + last.oldGenUsedAfterGc);
+        lines.add("leak_detector_loaded_classes_growth_per_hour " + format(loadedClassesGrowth));
+        lines.add("leak_detector_metaspace_growth_bytes_per_hour " + format(metaspaceGrowth));
+        lines.add("leak_detector_old_gen_growth_bytes_per_hour " + format(oldGenGrowth));
+        lines.add("leak_detector_growth_trend " + (growthTrend ? 1 : 0));
+        lines.add("leak_detector_webapp_class_loaders " + running);
+        lines.add("leak_detector_stopped_class_loaders " + stopped);
+        lines.add("leak_detector_leaked_class_loaders " + leaked.size());
+        lines.add("leak_detector_leftover_threads " + leftoverThreads.get());
+        lines.add("leak_detector_leftover_thread_locals " + leftoverThreadLocals.get());
+        lines.add("leak_detector_leftover_jdbc_drivers " + leftoverJdbcDrivers.get());
+        lines.add("leak_detector_growing_classes " + growingClasses.size());
+        write(dataFile, lines);
+
+        if (growthTrend) {
+            log.warn("Growth trend: " + format(loadedClassesGrowth) + " loaded classes/hour, "
+                    + format(metaspaceGrowth / 1024) + " KB/hour of metaspace, " + leaked.size() + " leaked class loaders");
+        }
+        if (reportFile != null && !reportFile.isEmpty()) {
+            write(reportFile, Collections.singletonList(buildReport(loadedClassesGrowth, metaspaceGrowth, oldGenGrowth,
+                    growthTrend, leaked, growingClasses)));
+        }
+    }
+
+    boolean isGrowthTrend(double loadedClassesGrowthPerHour, double metaspaceGrowthInBytesPerHour) {
+        return loadedClassesGrowthPerHour > loadedClassesGrowthThresholdPerHour
+                || metaspaceGrowthInBytesPerHour > metaspaceGrowthThresholdInKilobytesPerHour * 1024.0;
+    }
+
+    private String buildReport(double loadedClassesGrowth, double metaspaceGrowth, double oldGenGrowth, boolean growthTrend,
+                               List<TrackedClassLoader> leaked, List<ClassHistogram.Growth> growingClasses) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        StringWriter report = new StringWriter();
+        PrintWriter out = new PrintWriter(report);
+        out.println("# Class loader leak report " + dateFormat.format(new Date()));
+        out.println();
+        out.println("Growth per hour over " + samples.size() + " samples" + (growthTrend ? " (GROWING)" : "") + ":");
+        out.println("  loaded classes        " + format(loadedClassesGrowth));
+        out.println("  metaspace (KB)        " + format(metaspaceGrowth / 1024));
+        out.println("  old gen after GC (KB) " + format(oldGenGrowth / 1024));
+        out.println();
+        out.println("Leaked class loaders (reachable after the unloading of the classes following the stop of their context):");
+        for (TrackedClassLoader tracked : leaked) {
+            out.println("  " + tracked.contextName + " started " + dateFormat.format(new Date(tracked.startTime))
+                    + ", stopped " + dateFormat.format(new Date(tracked.stopTime)));
+        }
+        out.println();
+        out.println("Leftovers after context stop:");
+        for (TrackedClassLoader tracked : trackedClassLoaders) {
+            for (String leftover : tracked.leftovers) {
+                out.println("  " + tracked.contextName + " " + dateFormat.format(new Date(tracked.stopTime)) + ": " + leftover);
+            }
+        }
+        out.println();
+        out.println("Classes growing in the last " + histograms.size() + " class histograms:");
+        for (ClassHistogram.Growth growth : growingClasses) {
+            out.println("  " + growth.getClassName() + " +" + growth.getInstancesDelta() + " instances, +"
+                    + growth.getBytesDelta() + " bytes, " + growth.getBytes() + " bytes");
+        }
+        out.flush();
+        return report.toString();
+    }
+
+    interface Metric {
+        long get(Sample sample);
+    }
+
+    /**
+     * @return least squares slope of the given metric per hour, {@code 0} if unknown or if the samples cover less
+     * than one hour
+     */
+    static double growthPerHour(Collection<Sample> samples, Metric metric) {
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (Sample sample : samples) {
+            first = Math.min(first, sample.timestamp);
+            last = Math.max(last, sample.timestamp);
+        }
+        if (samples.isEmpty() || last - first < TimeUnit.HOURS.toMillis(1)) {
+            return 0;
+        }
+        long origin = first;
+        double sumX = 0, sumY = 0, sumXY = 0, sumXX = 0;
+        int n = 0;
+        for (Sample sample : samples) {
+            long value = metric.get(sample);
+            if (value < 0) {
+                continue;
+            }
+            double x = (sample.timestamp - origin) / (double) TimeUnit.HOURS.toMillis(1);
+            sumX += x;
+            sumY += value;
+            sumXY += x * value;
+            sumXX += x * x;
+            n++;
+        }
+        double denominator = n * sumXX - sumX * sumX;
+        return n < 2 || denominator == 0 ? 0 : (n * sumXY - sumX * sumY) / denominator;
+    }
+
+    /**
+     * @return {@code true} if a collection has unloaded the classes since the stop of the class loader
+     */
+    private static boolean isUnloadingSinceStop(TrackedClassLoader tracked) {
+        Reference<ClassLoader> unloadingSentinel = tracked.unloadingSentinel;
+        return unloadingSentinel != null && unloadingSentinel.get() == null;
+    }
+
+    private static boolean isLoadedBy(Class<?> clazz, ClassLoader classLoader) {
+        return isSameOrChild(clazz.getClassLoader(), classLoader);
+    }
+
+    private static boolean isSameOrChild(ClassLoader candidate, ClassLoader classLoader) {
+        for (ClassLoader cl = candidate; cl != null; cl = cl.getParent()) {
+            if (cl == classLoader) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getContextName(Context context) {
+        return context.getPath() == null || context.getPath().isEmpty() ? "/" : context.getPath();
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ENGLISH, "%.1f", value);
+    }
+
+    /**
+     * Replace atomically the given file, relative to {@code catalina.base}.
+     */
+    private static void write(String file, List<String> lines) throws IOException {
+        Path path = Paths.get(file);
+        if (!path.isAbsolute()) {
+            path = Paths.get(System.getProperty(Globals.CATALINA_BASE_PROP, ".")).resolve(path);
+        }
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmpPath, lines, B2CConverter.UTF_8);
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int getSamplingIntervalInSeconds() {
+        return samplingIntervalInSeconds;
+    }
+
+    public void setSamplingIntervalInSeconds(int samplingIntervalInSeconds) {
+        this.samplingIntervalInSeconds = samplingIntervalInSeconds;
+    }
+
+    public int getMaxSamples() {
+        return maxSamples;
+    }
+
+    /**
+     * @param maxSamples number of samples used to compute the growth, 288 samples of 5 minutes cover 24 hours
+     */
+    public void setMaxSamples(int maxSamples) {
+        this.maxSamples = maxSamples;
+    }
+
+    public int getHistogramIntervalInMinutes() {
+        return histogramIntervalInMinutes;
+    }
+
+    /**
+     * @param histogramIntervalInMinutes interval between two class histograms, each one triggers a stop-the-world full
+     *                                   GC, {@code 0} (default) to disable them
+     */
+    public void setHistogramIntervalInMinutes(int histogramIntervalInMinutes) {
+        this.histogramIntervalInMinutes = histogramIntervalInMinutes;
+    }
+
+    public int getHistogramMaxClasses() {
+        return histogramMaxClasses;
+    }
+
+    public void setHistogramMaxClasses(int histogramMaxClasses) {
+        this.histogramMaxClasses = histogramMaxClasses;
+    }
+
+    public int getHistogramHistory() {
+        return histogramHistory;
+    }
+
+    public void setHistogramHistory(int histogramHistory) {
+        this.histogramHistory = histogramHistory;
+    }
+
+    public int getLoadedClassesGrowthThresholdPerHour() {
+        return loadedClassesGrowthThresholdPerHour;
+    }
+
+    public void setLoadedClassesGrowthThresholdPerHour(int loadedClassesGrowthThresholdPerHour) {
+        this.loadedClassesGrowthThresholdPerHour = loadedClassesGrowthThresholdPerHour;
+    }
+
+    public int getMetaspaceGrowthThresholdInKilobytesPerHour() {
+        return metaspaceGrowthThresholdInKilobytesPerHour;
+    }
+
+    public void setMetaspaceGrowthThresholdInKilobytesPerHour(int metaspaceGrowthThresholdInKilobytesPerHour) {
+        this.metaspaceGrowthThresholdInKilobytesPerHour = metaspaceGrowthThresholdInKilobytesPerHour;
+    }
+
+    public String getDataFile() {
+        return dataFile;
+    }
+
+    public void setDataFile(String dataFile) {
+        this.dataFile = dataFile;
+    }
+
+    public String getReportFile() {
+        return reportFile;
+    }
+
+    /**
+     * @param reportFile absolute or relative to {@code catalina.base}, empty to disable the report
+     */
+    public void setReportFile(String reportFile) {
+        this.reportFile = reportFile;
+    }
+}
@@ -0,0 +1,471 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.listeners;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+import org.apache.catalina.Engine;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.Service;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.core.NamingContextListener;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.deploy.ContextResource;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Warms up the web applications before the HTTP connectors start accepting requests.
+ * <p/>
+ * Declared on the {@code Engine}, this listener runs when the engine is started (web applications deployed) and
+ * before the {@link Service} starts its connectors. It:
+ * <ul>
+ * <li>fills the JDBC pools declared as {@code javax.sql.DataSource} resources of the contexts,</li>
+ * <li>sends requests to the configured {@link #setUrls(String) urls} through a temporary connector bound to
+ * {@code 127.0.0.1} until the {@link #setIterations(int) iterations} or the {@link #setDuration(int) duration} are
+ * reached,</li>
+ * <li>logs the responses which are not {@code 2xx}, they usually mean that the urls did not warm anything,</li>
+ * <li>reports the latency of each round of requests in the log and in {@link #setReportFile(String)}.</li>
+ * </ul>
+ * The warm-up is bounded by {@link #setTimeout(int)}. To delay the binding of the port of the application, the
+ * connectors should be declared with {@code bindOnInit="false"}.
+ * <p/>
+ * The warm-up requests carry a random token in the {@code X-Warmup} header, a
+ * {@link com.cloudbees.tomcat.valves.WarmupValve} lets them skip the access control valves of the host.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class WarmupListener implements LifecycleListener {
+
+    private static final Log log = LogFactory.getLog(WarmupListener.class);
+
+    static final String WARMUP_HEADER = "X-Warmup";
+
+    /**
+     * Temporary connector of the warm-up in progress
+     */
+    private static volatile Connector warmupConnector;
+
+    private static volatile String warmupToken;
+
+    private List<String> urls = Collections.singletonList("/");
+    private int iterations = 100;
+    private int duration = 0;
+    private int timeout = 120;
+    private int concurrency = Runtime.getRuntime().availableProcessors();
+    private boolean warmDataSources = true;
+    private String reportFile = "logs/warmup.csv";
+    private int requestTimeoutInMillis = 10000;
+
+    @Override
+    public void lifecycleEvent(LifecycleEvent event) {
+        if (!Lifecycle.AFTER_START_EVENT.equals(event.getType()) || !(event.getLifecycle() instanceof Engine)) {
+            return;
+        }
+        Engine engine = (Engine) event.getLifecycle();
+        long startNanos = System.nanoTime();
+        try {
+            if (warmDataSources) {
+                warmDataSources(engine);
+            }
+            warmUrls(engine, startNanos + TimeUnit.SECONDS.toNanos(timeout));
+        } catch (Exception e) {
+            log.warn("Exception during warm-up, ignore it", e);
+        }
+        log.info("Warm-up done in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + "ms");
+    }
+
+    protected void warmDataSources(Engine engine) {
+        for (Container host : engine.findChildren()) {
+            for (Container child : host.findChildren()) {
+                if (!(child instanceof StandardContext)) {
+                    continue;
+                }
+                StandardContext context = (StandardContext) child;
+                for (ContextResource resource : context.getNamingResources().findResources()) {
+                    if (DataSource.class.getName().equals(resource.getType())) {
+                        try {
+                            warmDataSource(context, resource.getName());
+                        } catch (Exception e) {
+                            log.warn("Exception warming data source '" + resource.getName() + "' of context '" + context.getName() + "'", e);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    protected void warmDataSource(StandardContext context, String name) throws Exception {
+        ClassLoader initialClassLoader = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(context.getLoader().getClassLoader());
+        try {
+            Object dataSource;
+            NamingContextListener namingContextListener = context.getNamingContextListener();
+            if (namingContextListener != null && namingContextListener.getEnvContext() != null) {
+                dataSource = namingContextListener.getEnvContext().lookup(name);
+            } else {
+                dataSource = new InitialContext().lookup("java:comp/env/" + name);
+            }
+            if (!(dataSource instanceof DataSource)) {
+                log.debug("Skip warm-up of '" + name + "', not a DataSource: " + dataSource);
+                return;
+            }
+            int connectionsCount = getMaxIdle(dataSource);
+            List<Connection> connections = new ArrayList<Connection>();
+            long startNanos = System.nanoTime();
+            try {
+                for (int i = 0; i < connectionsCount; i++) {
+                    connections.add(((DataSource) dataSource).getConnection());
+                }
+            } finally {
+                for (Connection connection : connections) {
+                    try {
+                        connection.close();
+                    } catch (Exception e) {
+                        // ignore
+                    }
+                }
+            }
+            log.info("Warm-up of data source '" + name + "' of context '" + context.getName() + "': " +
+                    connections.size() + " connections opened in " +
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) + "ms");
+        } finally {
+            Thread.currentThread().setContextClassLoader(initialClassLoader);
+        }
+    }
+
+    /**
+     * @return {@code maxIdle} of the pool (tomcat-jdbc, commons-dbcp) or 1 if not available
+     */
+    private int getMaxIdle(Object dataSource) {
+        try {
+            Method getMaxIdle = dataSource.getClass().getMethod("getMaxIdle");
+            return Math.max(1, ((Number) getMaxIdle.invoke(dataSource)).intValue());
+        } catch (Exception e) {
+            return 1;
+        }
+    }
+
+    protected void warmUrls(Engine engine, long deadlineNanos) throws Exception {
+        if (urls.isEmpty() || (iterations <= 0 && duration <= 0)) {
+            return;
+        }
+        Service service = engine.getService();
+        Connector connector = new Connector("org.apache.coyote.http11.Http11NioProtocol");
+        connector.setPort(0);
+        connector.setProperty("address", "127.0.0.1");
+        beginWarmup(connector);
+        service.addConnector(connector);
+        ConcurrentMap<String, AtomicInteger> unexpectedStatuses = new ConcurrentHashMap<String, AtomicInteger>();
+        ExecutorService executorService = Executors.newFixedThreadPool(concurrency);
+        PrintWriter report = openReport();
+        try {
+            String baseUrl = "http://127.0.0.1:" + connector.getLocalPort();
+            log.info("Warm-up " + urls + " on " + baseUrl + " with " + concurrency + " threads, iterations=" +
+                    iterations + ", duration=" + duration + "s, timeout=" + timeout + "s");
+
+            long durationDeadlineNanos = duration > 0 ? System.nanoTime() + TimeUnit.SECONDS.toNanos(duration) : Long.MAX_VALUE;
+            long startNanos = System.nanoTime();
+            for (int round = 1; ; round++) {
+                if (iterations > 0 && round > iterations) {
+                    break;
+                }
+                if (System.nanoTime() > durationDeadlineNanos) {
+                    break;
+                }
+                if (System.nanoTime() > deadlineNanos) {
+                    log.warn("Warm-up timeout (" + timeout + "s) reached after " + (round - 1) + " rounds");
+                    break;
+                }
+                List<Callable<Long>> requests = new ArrayList<Callable<Long>>();
+                for (int i = 0; i < concurrency; i++) {
+                    for (String url : urls) {
+                        requests.add(new WarmupRequest(new URL(baseUrl + url), unexpectedStatuses));
+                    }
+                }
+                long remainingNanos = Math.max(deadlineNanos - System.nanoTime(), 0);
+                List<Future<Long>> results = executorService.invokeAll(requests, remainingNanos, TimeUnit.NANOSECONDS);
+                reportRound(round, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), results, report);
+            }
+        } finally {
+            executorService.shutdownNow();
+            if (report != null) {
+                report.close();
+            }
+            endWarmup();
+            service.removeConnector(connector);
+            try {
+                connector.destroy();
+            } catch (Exception e) {
+                log.debug("Exception destroying warm-up connector", e);
+            }
+        }
+        for (Map.Entry<String, AtomicInteger> unexpectedStatus : unexpectedStatuses.entrySet()) {
+            log.warn("Warm-up request " + unexpectedStatus.getKey() + " (" + unexpectedStatus.getValue() +
+                    " times), the warm-up may not have warmed the application");
+        }
+    }
+
+    /**
+     * Accepts the warm-up requests received by the given connector until {@link #endWarmup()}.
+     *
+     * @return the token of the warm-up requests
+     */
+    static String beginWarmup(Connector connector) {
+        String token = newToken();
+        warmupToken = token;
+        warmupConnector = connector;
+        return token;
+    }
+
+    static void endWarmup() {
+        warmupConnector = null;
+        warmupToken = null;
+    }
+
+    /**
+     * @return {@code true} if the request is a warm-up request, received by the temporary connector of the warm-up in
+     * progress and carrying its token
+     */
+    public static boolean isWarmupRequest(Request request) {
+        Connector connector = warmupConnector;
+        String token = warmupToken;
+        if (connector == null || token == null || request.getConnector() != connector) {
+            return false;
+        }
+        String header = request.getHeader(WARMUP_HEADER);
+        return header != null && MessageDigest.isEqual(token.getBytes(), header.getBytes());
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder result = new StringBuilder();
+        for (byte b : bytes) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+
+    protected void reportRound(int round, long elapsedInMillis, List<Future<Long>> results, PrintWriter report) {
+        List<Long> latenciesInMicros = new ArrayList<Long>();
+        int errors = 0;
+        for (Future<Long> result : results) {
+            try {
+                latenciesInMicros.add(result.get());
+            } catch (Exception e) {
+                errors++;
+            }
+        }
+        Collections.sort(latenciesInMicros);
+        String line = round + "," + elapsedInMillis + "," + results.size() + "," + errors + "," +
+                percentile(latenciesInMicros, 50) + "," + percentile(latenciesInMicros, 90) + "," +
+                percentile(latenciesInMicros, 99) + "," + percentile(latenciesInMicros, 100);
+        if (report != null) {
+            report.println(line);
+        }
+        log.info("Warm-up round " + round + ": requests=" + results.size() + ", errors=" + errors +
+                ", p50=" + percentile(latenciesInMicros, 50) + "us, p99=" + percentile(latenciesInMicros, 99) +
+                "us, max=" + percentile(latenciesInMicros, 100) + "us");
+    }
+
+    static long percentile(List<Long> sortedValues, int percentile) {
+        if (sortedValues.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sortedValues.size()) - 1;
+        return sortedValues.get(Math.max(0, Math.min(index, sortedValues.size() - 1)));
+    }
+
+    private PrintWriter openReport() {
+        if (reportFile == null || reportFile.isEmpty()) {
+            return null;
+        }
+        File file = new File(reportFile);
+        if (!file.isAbsolute()) {
+            file = new File(System.getProperty("catalina.base"), reportFile);
+        }
+        try {
+            PrintWriter report = new PrintWriter(new FileWriter(file));
+            report.println("round,elapsed_ms,requests,errors,p50_us,p90_us,p99_us,max_us");
+            return report;
+        } catch (IOException e) {
+            log.warn("Exception creating warm-up report " + file, e);
+            return null;
+        }
+    }
+
+    private class WarmupRequest implements Callable<Long> {
+        private final URL url;
+        private final ConcurrentMap<String, AtomicInteger> unexpectedStatuses;
+
+        private WarmupRequest(URL url, ConcurrentMap<String, AtomicInteger> unexpectedStatuses) {
+            this.url = url;
+            this.unexpectedStatuses = unexpectedStatuses;
+        }
+
+        @Override
+        public Long call() throws Exception {
+            long startNanos = System.nanoTime();
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(requestTimeoutInMillis);
+            connection.setReadTimeout(requestTimeoutInMillis);
+            connection.setRequestProperty(WARMUP_HEADER, warmupToken);
+            connection.setInstanceFollowRedirects(false);
+            int status = connection.getResponseCode();
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (in != null) {
+                try {
+                    byte[] buffer = new byte[4096];
+                    while (in.read(buffer) != -1) {
+                        // consume the response
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            if (status >= 500) {
+                throw new IOException("Status " + status + " for " + url);
+            }
+            if (status < 200 || status >= 300) {
+                String key = url.getPath() + " returned " + status;
+                unexpectedStatuses.putIfAbsent(key, new AtomicInteger());
+                unexpectedStatuses.get(key).incrementAndGet();
+            }
+            return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * @param urls comma separated list of paths (e.g. {@code "/,/api/status"})
+     */
+    public void setUrls(String urls) {
+        List<String> result = new ArrayList<String>();
+        for (String url : Arrays.asList(urls.split(","))) {
+            url = url.trim();
+            if (!url.isEmpty()) {
+                result.add(url.startsWith("/") ? url : "/" + url);
+            }
+        }
+        this.urls = result;
+    }
+
+    public String getUrls() {
+        StringBuilder result = new StringBuilder();
+        for (String url : urls) {
+            if (result.length() > 0) {
+                result.append(",");
+            }
+            result.append(url);
+        }
+        return result.toString();
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void setIterations(int iterations) {
+        this.iterations = iterations;
+    }
+
+    /**
+     * @return duration of the warm-up in seconds, {@code 0} to rely on {@link #getIterations()}
+     */
+    public int getDuration() {
+        return duration;
+    }
+
+    public void setDuration(int duration) {
+        this.duration = duration;
+    }
+
+    /**
+     * @return max duration of the whole warm-up in seconds
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    public boolean isWarmDataSources() {
+        return warmDataSources;
+    }
+
+    public void setWarmDataSources(boolean warmDataSources) {
+        this.warmDataSources = warmDataSources;
+    }
+
+    /**
+     * @return report file, relative to {@code catalina.base} if not absolute
+     */
+    public String getReportFile() {
+        return reportFile;
+    }
+
+    public void setReportFile(String reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    public int getRequestTimeoutInMillis() {
+        return requestTimeoutInMillis;
+    }
+
+    public void setRequestTimeoutInMillis(int requestTimeoutInMillis) {
+        this.requestTimeoutInMillis = requestTimeoutInMillis;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.session;
+
+import org.apache.catalina.Session;
+import org.apache.catalina.session.PersistentManagerBase;
+import org.apache.catalina.session.StandardSession;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * {@link PersistentManagerBase} keeping the sessions in an {@link OffHeapSessionStore} and only the recently used ones
+ * deserialized on the heap.
+ * <p/>
+ * A session is swapped out of the heap when it is idle for more than {@link #setMaxIdleSwap(int) maxIdleSwap}
+ * seconds (60 by default) or when there are more than {@link #setMaxHeapSessions(int) maxHeapSessions} sessions on
+ * the heap, the least recently accessed first. These checks run with the background process of the context (every 60
+ * seconds by default). Unlike {@code maxActiveSessions}, {@code maxHeapSessions} never rejects the creation of a
+ * session.
+ * <p/>
+ * The sessions are swapped in lazily when a request refers to them, including after a restart.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class OffHeapSessionManager extends PersistentManagerBase {
+
+    private static final Log log = LogFactory.getLog(OffHeapSessionManager.class);
+
+    private static final String info = "OffHeapSessionManager/1.0";
+
+    private static final String name = "OffHeapSessionManager";
+
+    private int maxHeapSessions = 500;
+
+    public OffHeapSessionManager() {
+        setStore(new OffHeapSessionStore());
+        setSaveOnRestart(true);
+        setMaxIdleSwap(60);
+        // don't swap out the session created by a request in progress
+        setMinIdleSwap(1);
+    }
+
+    @Override
+    public String getInfo() {
+        return info;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void processPersistenceChecks() {
+        super.processPersistenceChecks();
+        processMaxHeapSwaps();
+    }
+
+    /**
+     * Swap out the least recently accessed sessions above {@code maxHeapSessions}.
+     */
+    protected void processMaxHeapSwaps() {
+        if (!getState().isAvailable() || maxHeapSessions < 0) {
+            return;
+        }
+        Session[] sessions = findSessions();
+        int toSwap = sessions.length - maxHeapSessions;
+        if (toSwap <= 0) {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Too many sessions on the heap: " + sessions.length + ", swap out " + toSwap);
+        }
+        Arrays.sort(sessions, new Comparator<Session>() {
+            @Override
+            public int compare(Session s1, Session s2) {
+                long t1 = ((StandardSession) s1).getThisAccessedTimeInternal();
+                long t2 = ((StandardSession) s2).getThisAccessedTimeInternal();
+                return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < sessions.length && toSwap > 0; i++) {
+            StandardSession session = (StandardSession) sessions[i];
+            synchronized (session) {
+                int timeIdle = (int) ((now - session.getThisAccessedTimeInternal()) / 1000L);
+                if (!session.isValid() || timeIdle <= getMinIdleSwap()) {
+                    continue;
+                }
+                try {
+                    swapOut(session);
+                    toSwap--;
+                } catch (IOException e) {
+                    log.warn("Failure to swap out session " + session.getIdInternal(), e);
+                }
+            }
+        }
+    }
+
+    private OffHeapSessionStore getOffHeapStore() {
+        if (getStore() instanceof OffHeapSessionStore) {
+            return (OffHeapSessionStore) getStore();
+        }
+        throw new IllegalStateException("Store " + getStore() + " is not an OffHeapSessionStore");
+    }
+
+    public int getMaxHeapSessions() {
+        return maxHeapSessions;
+    }
+
+    /**
+     * @param maxHeapSessions max number of deserialized sessions kept on the heap, {@code -1} for no limit
+     */
+    public void setMaxHeapSessions(int maxHeapSessions) {
+        this.maxHeapSessions = maxHeapSessions;
+    }
+
+    public int getCapacityInMegabytes() {
+        return getOffHeapStore().getCapacityInMegabytes();
+    }
+
+    public void setCapacityInMegabytes(int capacityInMegabytes) {
+        getOffHeapStore().setCapacityInMegabytes(capacityInMegabytes);
+    }
+
+    public int getBlockSizeInBytes() {
+        return getOffHeapStore().getBlockSizeInBytes();
+    }
+
+    public void setBlockSizeInBytes(int blockSizeInBytes) {
+        getOffHeapStore().setBlockSizeInBytes(blockSizeInBytes);
+    }
+
+    public int getSlabSizeInMegabytes() {
+        return getOffHeapStore().getSlabSizeInMegabytes();
+    }
+
+    public void setSlabSizeInMegabytes(int slabSizeInMegabytes) {
+        getOffHeapStore().setSlabSizeInMegabytes(slabSizeInMegabytes);
+    }
+
+    public String getPersistenceFile() {
+        return getOffHeapStore().getPersistenceFile();
+    }
+
+    public void setPersistenceFile(String persistenceFile) {
+        getOffHeapStore().setPersistenceFile(persistenceFile);
+    }
+
+    public int getStoreSessionCount() throws IOException {
+        return getOffHeapStore().getSize();
+    }
+
+    public long getStoreCapacityInBytes() {
+        return getOffHeapStore().getCapacityInBytes();
+    }
+
+    public long getStoreUsedBytes() {
+        return getOffHeapStore().getUsedBytes();
+    }
+
+    public long getStoreDataSizeInBytes() {
+        return getOffHeapStore().getDataSizeInBytes();
+    }
+
+    public long getStoreAllocatedBytes() {
+        return getOffHeapStore().getAllocatedBytes();
+    }
+
+    /**
+     * @return used bytes / capacity of the off-heap store in percent
+     */
+    public int getStoreOccupancyPercent() {
+        long capacity = getOffHeapStore().getCapacityInBytes();
+        return capacity == 0 ? 0 : (int) (100 * getOffHeapStore().getUsedBytes() / capacity);
+    }
+
+    public long getStoreHitCount() {
+        return getOffHeapStore().getHitCount();
+    }
+
+    public long getStoreMissCount() {
+        return getOffHeapStore().getMissCount();
+    }
+
+    public long getStoreEvictionCount() {
+        return getOffHeapStore().getEvictionCount();
+    }
+
+    public long getStoreRejectionCount() {
+        return getOffHeapStore().getRejectionCount();
+    }
+}
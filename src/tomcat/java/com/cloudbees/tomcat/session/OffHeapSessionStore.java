@@ -0,0 +1,323 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.session;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Loader;
+import org.apache.catalina.Session;
+import org.apache.catalina.session.PersistentManagerBase;
+import org.apache.catalina.session.StandardSession;
+import org.apache.catalina.session.StoreBase;
+import org.apache.catalina.util.CustomObjectInputStream;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.servlet.ServletContext;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * {@link org.apache.catalina.Store} keeping the serialized sessions in an {@link OffHeapSlabStore}.
+ * <p/>
+ * The sessions evicted to make room for new ones are lost without notification of the
+ * {@link javax.servlet.http.HttpSessionListener}s (reported by {@link #getEvictionCount()}), size the capacity on the
+ * number of sessions of the sticky node.
+ * <p/>
+ * The store is written in {@link #setPersistenceFile(String) persistenceFile} when it stops and reloaded when it
+ * starts.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class OffHeapSessionStore extends StoreBase {
+
+    private static final Log log = LogFactory.getLog(OffHeapSessionStore.class);
+
+    private static final String storeName = "offHeapStore";
+
+    private int capacityInMegabytes = 128;
+
+    private int blockSizeInBytes = 1024;
+
+    private int slabSizeInMegabytes = 16;
+
+    /**
+     * Relative to the work directory of the context
+     */
+    private String persistenceFile = "SESSIONS-offheap.ser";
+
+    private volatile OffHeapSlabStore slabStore;
+
+    @Override
+    public String getStoreName() {
+        return storeName;
+    }
+
+    @Override
+    protected synchronized void startInternal() throws LifecycleException {
+        slabStore = new OffHeapSlabStore(capacityInMegabytes * 1024L * 1024L, blockSizeInBytes, slabSizeInMegabytes * 1024 * 1024);
+        Path path = getPersistencePath();
+        if (path != null && Files.exists(path)) {
+            try {
+                int count = slabStore.load(path);
+                log.info("Loaded " + count + " sessions from " + path);
+            } catch (IOException e) {
+                log.warn("Ignore corrupted session file " + path, e);
+                slabStore.clear();
+            }
+            try {
+                Files.delete(path);
+            } catch (IOException e) {
+                log.warn("Failure to delete session file " + path, e);
+            }
+        }
+        super.startInternal();
+    }
+
+    /**
+     * Invoked by the manager after it has swapped out all the sessions when {@code saveOnRestart} is enabled.
+     */
+    @Override
+    protected synchronized void stopInternal() throws LifecycleException {
+        super.stopInternal();
+        boolean saveOnRestart = !(manager instanceof PersistentManagerBase) || ((PersistentManagerBase) manager).getSaveOnRestart();
+        Path path = getPersistencePath();
+        if (saveOnRestart && path != null) {
+            try {
+                Files.createDirectories(path.getParent());
+                int count = slabStore.persist(path);
+                log.info("Saved " + count + " sessions in " + path);
+            } catch (IOException e) {
+                log.warn("Failure to save sessions in " + path, e);
+            }
+        }
+        // the direct buffers are released by the garbage collector
+        slabStore = null;
+    }
+
+    /**
+     * Expire the sessions found expired in the index, unlike {@link StoreBase#processExpires()} the other sessions
+     * are not deserialized.
+     */
+    @Override
+    public void processExpires() {
+        OffHeapSlabStore slabStore = this.slabStore;
+        if (!getState().isAvailable() || slabStore == null) {
+            return;
+        }
+        for (String id : slabStore.expiredKeys(System.currentTimeMillis())) {
+            try {
+                // not a hit of the store
+                StandardSession session = deserialize(slabStore.peek(id));
+                if (session == null) {
+                    continue;
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug(getStoreName() + ": processExpires expire store session " + id);
+                }
+                boolean loaded = manager instanceof PersistentManagerBase ?
+                        ((PersistentManagerBase) manager).isLoaded(id) : manager.findSession(id) != null;
+                if (loaded) {
+                    // the session is active on the heap, only drop the stale copy
+                    session.recycle();
+                } else {
+                    session.expire();
+                }
+            } catch (Exception e) {
+                log.error("Session: " + id, e);
+            } finally {
+                slabStore.remove(id);
+            }
+        }
+    }
+
+    @Override
+    public int getSize() throws IOException {
+        OffHeapSlabStore slabStore = this.slabStore;
+        return slabStore == null ? 0 : slabStore.getSize();
+    }
+
+    @Override
+    public String[] keys() throws IOException {
+        OffHeapSlabStore slabStore = this.slabStore;
+        return slabStore == null ? new String[0] : slabStore.keys();
+    }
+
+    @Override
+    public Session load(String id) throws ClassNotFoundException, IOException {
+        OffHeapSlabStore slabStore = this.slabStore;
+        return deserialize(slabStore == null ? null : slabStore.get(id));
+    }
+
+    private StandardSession deserialize(byte[] bytes) throws ClassNotFoundException, IOException {
+        if (bytes == null) {
+            return null;
+        }
+        Container container = manager.getContainer();
+        Loader loader = container == null ? null : container.getLoader();
+        ClassLoader classLoader = loader == null ? null : loader.getClassLoader();
+        ClassLoader oldThreadContextClassLoader = Thread.currentThread().getContextClassLoader();
+        try {
+            ObjectInputStream in;
+            if (classLoader == null) {
+                in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            } else {
+                Thread.currentThread().setContextClassLoader(classLoader);
+                in = new CustomObjectInputStream(new ByteArrayInputStream(bytes), classLoader);
+            }
+            StandardSession session = (StandardSession) manager.createEmptySession();
+            session.readObjectData(in);
+            session.setManager(manager);
+            return session;
+        } finally {
+            Thread.currentThread().setContextClassLoader(oldThreadContextClassLoader);
+        }
+    }
+
+    @Override
+    public void remove(String id) throws IOException {
+        OffHeapSlabStore slabStore = this.slabStore;
+        if (slabStore != null) {
+            slabStore.remove(id);
+        }
+    }
+
+    @Override
+    public void clear() throws IOException {
+        OffHeapSlabStore slabStore = this.slabStore;
+        if (slabStore != null) {
+            slabStore.clear();
+        }
+    }
+
+    @Override
+    public void save(Session session) throws IOException {
+        OffHeapSlabStore slabStore = this.slabStore;
+        if (slabStore == null) {
+            throw new IOException(getStoreName() + " is not started");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            ((StandardSession) session).writeObjectData(out);
+        }
+        StandardSession standardSession = (StandardSession) session;
+        int maxInactiveInterval = standardSession.getMaxInactiveInterval();
+        long expirationTime = maxInactiveInterval <= 0 ? -1 :
+                standardSession.getThisAccessedTimeInternal() + maxInactiveInterval * 1000L;
+        if (!slabStore.put(session.getIdInternal(), bytes.toByteArray(), expirationTime)) {
+            log.warn("Session " + session.getIdInternal() + " of " + bytes.size() + " bytes exceeds the capacity of the store");
+        }
+    }
+
+    private Path getPersistencePath() {
+        if (persistenceFile == null || persistenceFile.isEmpty()) {
+            return null;
+        }
+        Path path = Paths.get(persistenceFile);
+        Container container = manager == null ? null : manager.getContainer();
+        if (!path.isAbsolute() && container instanceof Context) {
+            File workDir = (File) ((Context) container).getServletContext().getAttribute(ServletContext.TEMPDIR);
+            if (workDir != null) {
+                path = workDir.toPath().resolve(path);
+            }
+        }
+        return path.toAbsolutePath();
+    }
+
+    public int getCapacityInMegabytes() {
+        return capacityInMegabytes;
+    }
+
+    public void setCapacityInMegabytes(int capacityInMegabytes) {
+        this.capacityInMegabytes = capacityInMegabytes;
+    }
+
+    public int getBlockSizeInBytes() {
+        return blockSizeInBytes;
+    }
+
+    public void setBlockSizeInBytes(int blockSizeInBytes) {
+        this.blockSizeInBytes = blockSizeInBytes;
+    }
+
+    public int getSlabSizeInMegabytes() {
+        return slabSizeInMegabytes;
+    }
+
+    public void setSlabSizeInMegabytes(int slabSizeInMegabytes) {
+        this.slabSizeInMegabytes = slabSizeInMegabytes;
+    }
+
+    public String getPersistenceFile() {
+        return persistenceFile;
+    }
+
+    /**
+     * @param persistenceFile absolute or relative to the work directory of the context, empty to disable the
+     *                        persistence
+     */
+    public void setPersistenceFile(String persistenceFile) {
+        this.persistenceFile = persistenceFile;
+    }
+
+    public long getUsedBytes() {
+        OffHeapSlabStore slabStore = this.slabStore;
+        return slabStore == null ? 0 : slabStore.getUsedBytes();
+    }
+
+    public long getDataSizeInBytes() {
+        OffHeapSlabStore slabStore = this.slabStore;
+        return slabStore == null ? 0 : slabStore.getDataSizeInBytes();
+    }
+
+    public long getAllocatedBytes() {
+        OffHeapSlabStore slabStore = this.slabStore;
+        return slabStore == null ? 0 : slabStore.getAllocatedBytes();
+    }
+
+    public long getCapacityInBytes() {
+        OffHeapSlabStore slabStore = this.slabStore;
+        return slabStore == null ? 0 : slabStore.getCapacityInBytes();
+    }
+
+    public long getHitCount() {
+        OffHeapSlabStore slabStore = this.slabStore;
+        return slabStore == null ? 0 : slabStore.getHitCount();
+    }
+
+    public long getMissCount() {
+        OffHeapSlabStore slabStore = this.slabStore;
+        return slabStore == null ? 0 : slabStore.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        OffHeapSlabStore slabStore = this.slabStore;
+        return slabStore == null ? 0 : slabStore.getEvictionCount();
+    }
+
+    public long getRejectionCount() {
+        OffHeapSlabStore slabStore = this.slabStore;
+        return slabStore == null ? 0 : slabStore.getRejectionCount();
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Byte store backed by direct {@link ByteBuffer} slabs split in fixed size blocks, the values never live on the heap.
+ * <p/>
+ * Only the index (key, block numbers, length and expiration time) is kept on the heap. The slabs are allocated on
+ * demand up to {@code capacityInBytes}, then the least recently used entries are evicted to make room for the new
+ * ones.
+ * <p/>
+ * All the methods are synchronized, the critical sections are limited to a copy between the heap and the slabs.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class OffHeapSlabStore {
+
+    private static final int FILE_MAGIC = 0x43425353; // "CBSS"
+
+    private static final int FILE_VERSION = 1;
+
+    private static class Entry {
+        final int[] blocks;
+        final int length;
+        final long expirationTime;
+
+        Entry(int[] blocks, int length, long expirationTime) {
+            this.blocks = blocks;
+            this.length = length;
+            this.expirationTime = expirationTime;
+        }
+
+        boolean isExpired(long now) {
+            return expirationTime >= 0 && expirationTime <= now;
+        }
+    }
+
+    private final int blockSizeInBytes;
+
+    private final int blocksPerSlab;
+
+    private final int blockCount;
+
+    private final ByteBuffer[] slabs;
+
+    /**
+     * Access ordered: the eldest entry is the least recently used
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * Stack of the released blocks
+     */
+    private final int[] freeBlocks;
+
+    private int freeBlockCount;
+
+    /**
+     * Blocks above this number have never been used, their slab may not be allocated yet
+     */
+    private int nextUnusedBlock;
+
+    private long dataSizeInBytes;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private long evictionCount;
+
+    private long rejectionCount;
+
+    /**
+     * @param capacityInBytes  max off-heap memory, rounded down to a multiple of {@code blockSizeInBytes}
+     * @param blockSizeInBytes allocation unit, a value uses {@code ceil(length / blockSizeInBytes)} blocks
+     * @param slabSizeInBytes  size of each direct buffer, rounded down to a multiple of {@code blockSizeInBytes}
+     */
+    public OffHeapSlabStore(long capacityInBytes, int blockSizeInBytes, int slabSizeInBytes) {
+        if (blockSizeInBytes <= 0 || slabSizeInBytes < blockSizeInBytes || capacityInBytes < blockSizeInBytes) {
+            throw new IllegalArgumentException("Invalid sizes: capacityInBytes=" + capacityInBytes +
+                    ", blockSizeInBytes=" + blockSizeInBytes + ", slabSizeInBytes=" + slabSizeInBytes);
+        }
+        this.blockSizeInBytes = blockSizeInBytes;
+        this.blocksPerSlab = slabSizeInBytes / blockSizeInBytes;
+        long blocks = capacityInBytes / blockSizeInBytes;
+        if (blocks > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many blocks " + blocks + ", increase blockSizeInBytes");
+        }
+        this.blockCount = (int) blocks;
+        this.slabs = new ByteBuffer[(blockCount + blocksPerSlab - 1) / blocksPerSlab];
+        this.freeBlocks = new int[blockCount];
+    }
+
+    /**
+     * @param expirationTime time in millis after which the entry is reported by {@link #expiredKeys(long)}, negative
+     *                       to never expire
+     * @return {@code false} if the value is larger than the capacity of the store, the previous value of the key is
+     * then removed
+     */
+    public synchronized boolean put(String key, byte[] value, long expirationTime) {
+        remove(key);
+        int requiredBlocks = (value.length + blockSizeInBytes - 1) / blockSizeInBytes;
+        if (requiredBlocks > blockCount) {
+            rejectionCount++;
+            return false;
+        }
+        while (availableBlocks() < requiredBlocks) {
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            Entry evicted = eldest.next().getValue();
+            eldest.remove();
+            release(evicted);
+            evictionCount++;
+        }
+        int[] blocks = new int[requiredBlocks];
+        for (int i = 0; i < requiredBlocks; i++) {
+            int block = allocateBlock();
+            blocks[i] = block;
+            int offset = i * blockSizeInBytes;
+            ByteBuffer slab = slab(block);
+            slab.position(offsetInSlab(block));
+            slab.put(value, offset, Math.min(blockSizeInBytes, value.length - offset));
+        }
+        entries.put(key, new Entry(blocks, value.length, expirationTime));
+        dataSizeInBytes += value.length;
+        return true;
+    }
+
+    /**
+     * @return a copy of the value or {@code null} if the key is unknown or has been evicted
+     */
+    public synchronized byte[] get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return read(entry);
+    }
+
+    /**
+     * Same as {@link #get(String)} without counting a hit or a miss, for the housekeeping of the store (e.g. the
+     * expiration of the entries returned by {@link #expiredKeys(long)}).
+     */
+    public synchronized byte[] peek(String key) {
+        Entry entry = entries.get(key);
+        return entry == null ? null : read(entry);
+    }
+
+    private byte[] read(Entry entry) {
+        byte[] value = new byte[entry.length];
+        for (int i = 0; i < entry.blocks.length; i++) {
+            int block = entry.blocks[i];
+            int offset = i * blockSizeInBytes;
+            ByteBuffer slab = slab(block);
+            slab.position(offsetInSlab(block));
+            slab.get(value, offset, Math.min(blockSizeInBytes, value.length - offset));
+        }
+        return value;
+    }
+
+    public synchronized boolean remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        release(entry);
+        return true;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        freeBlockCount = 0;
+        nextUnusedBlock = 0;
+        dataSizeInBytes = 0;
+    }
+
+    public synchronized String[] keys() {
+        return entries.keySet().toArray(new String[entries.size()]);
+    }
+
+    /**
+     * Lookup in the index, the values are not read.
+     */
+    public synchronized List<String> expiredKeys(long now) {
+        List<String> expiredKeys = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().isExpired(now)) {
+                expiredKeys.add(entry.getKey());
+            }
+        }
+        return expiredKeys;
+    }
+
+    /**
+     * Write the entries, least recently used first, in the given file. The file is replaced atomically.
+     *
+     * @return the number of entries written
+     */
+    public synchronized int persist(Path file) throws IOException {
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().expirationTime);
+                byte[] value = read(entry.getValue());
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return entries.size();
+    }
+
+    /**
+     * Load the entries written by {@link #persist(Path)}, the expired entries are skipped.
+     *
+     * @return the number of entries loaded
+     */
+    public synchronized int load(Path file) throws IOException {
+        long now = System.currentTimeMillis();
+        int loadedCount = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("Unsupported format for " + file);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                long expirationTime = in.readLong();
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                if (expirationTime < 0 || expirationTime > now) {
+                    put(key, value, expirationTime);
+                    loadedCount++;
+                }
+            }
+        }
+        return loadedCount;
+    }
+
+    private int availableBlocks() {
+        return freeBlockCount + blockCount - nextUnusedBlock;
+    }
+
+    private int allocateBlock() {
+        if (freeBlockCount > 0) {
+            return freeBlocks[--freeBlockCount];
+        }
+        return nextUnusedBlock++;
+    }
+
+    private void release(Entry entry) {
+        for (int block : entry.blocks) {
+            freeBlocks[freeBlockCount++] = block;
+        }
+        dataSizeInBytes -= entry.length;
+    }
+
+    private ByteBuffer slab(int block) {
+        int slabIndex = block / blocksPerSlab;
+        ByteBuffer slab = slabs[slabIndex];
+        if (slab == null) {
+            int blocksInSlab = Math.min(blocksPerSlab, blockCount - slabIndex * blocksPerSlab);
+            slab = ByteBuffer.allocateDirect(blocksInSlab * blockSizeInBytes);
+            slabs[slabIndex] = slab;
+        }
+        return slab;
+    }
+
+    private int offsetInSlab(int block) {
+        return (block % blocksPerSlab) * blockSizeInBytes;
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public long getCapacityInBytes() {
+        return (long) blockCount * blockSizeInBytes;
+    }
+
+    /**
+     * @return memory reserved by the blocks in use, including the unused end of the last block of each entry
+     */
+    public synchronized long getUsedBytes() {
+        return (long) (blockCount - availableBlocks()) * blockSizeInBytes;
+    }
+
+    /**
+     * @return size of the stored values
+     */
+    public synchronized long getDataSizeInBytes() {
+        return dataSizeInBytes;
+    }
+
+    /**
+     * @return size of the direct buffers allocated so far
+     */
+    public synchronized long getAllocatedBytes() {
+        long allocatedBytes = 0;
+        for (ByteBuffer slab : slabs) {
+            allocatedBytes += slab == null ? 0 : slab.capacity();
+        }
+        return allocatedBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized long getRejectionCount() {
+        return rejectionCount;
+    }
+}
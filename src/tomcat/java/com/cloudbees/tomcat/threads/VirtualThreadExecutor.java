@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.threads;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleState;
+import org.apache.catalina.core.StandardThreadExecutor;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connector {@code Executor} running each request in a new virtual thread when the JVM supports them (Java 21+),
+ * falling back on the pool of platform threads of {@link StandardThreadExecutor} on older JVMs.
+ * <p/>
+ * Tomcat 7 connectors process the requests holding the monitor of the socket, which pins the virtual threads to
+ * their carrier thread until Java 24 (JEP 491): virtual threads are only used from
+ * {@link #setVirtualThreadsMinJavaVersion(int) Java 24} on.
+ * <p/>
+ * Virtual threads are created by reflection as Tomcat and the clickstack are compiled for Java 7. The number of
+ * concurrent requests is no longer bounded by {@link #getMaxThreads() maxThreads} (only used by the fallback pool),
+ * use the connector {@code maxConnections} and a {@link com.cloudbees.tomcat.valves.BulkheadValve} to limit it.
+ * <p/>
+ * Usage in {@code server.xml}:
+ * <code><pre>
+ * &lt;Executor name="tomcatThreadPool" className="com.cloudbees.tomcat.threads.VirtualThreadExecutor" namePrefix="http-vt-" /&gt;
+ * &lt;Connector executor="tomcatThreadPool" protocol="org.apache.coyote.http11.Http11NioProtocol" ... /&gt;
+ * </pre></code>
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class VirtualThreadExecutor extends StandardThreadExecutor {
+
+    private static final Log log = LogFactory.getLog(VirtualThreadExecutor.class);
+
+    private boolean virtualThreads = true;
+
+    private int virtualThreadsMinJavaVersion = 24;
+
+    private volatile ExecutorService virtualThreadExecutor;
+
+    private final AtomicInteger activeCount = new AtomicInteger();
+
+    private final AtomicInteger largestActiveCount = new AtomicInteger();
+
+    private final AtomicLong completedTaskCount = new AtomicLong();
+
+    /**
+     * @param namePrefix prefix of the name of the created virtual threads
+     * @return a virtual thread per task executor or {@code null} if the JVM doesn't support virtual threads
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+        } catch (Exception e) {
+            // NoSuchMethodException, ClassNotFoundException on JVMs without virtual threads
+            // UnsupportedOperationException wrapped in an InvocationTargetException on Java 19/20 without --enable-preview
+            if (log.isDebugEnabled()) {
+                log.debug("Virtual threads not supported by " + System.getProperty("java.version"), e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return the major version of the running JVM ({@code 7}, {@code 8}, {@code 21}...)
+     */
+    static int getJavaMajorVersion() {
+        String version = System.getProperty("java.specification.version", "1.7");
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        try {
+            return Integer.parseInt(version);
+        } catch (NumberFormatException e) {
+            return 7;
+        }
+    }
+
+    /**
+     * @return the executor running the requests in virtual threads or {@code null} if the JVM doesn't support them
+     */
+    protected ExecutorService newVirtualThreadExecutor() {
+        return newVirtualThreadPerTaskExecutor(getNamePrefix());
+    }
+
+    @Override
+    protected void startInternal() throws LifecycleException {
+        if (virtualThreads) {
+            if (getJavaMajorVersion() < virtualThreadsMinJavaVersion) {
+                log.info("Executor '" + getName() + "': virtual threads would be pinned by the connector on Java "
+                        + getJavaMajorVersion() + " (requires " + virtualThreadsMinJavaVersion + ")");
+            } else {
+                virtualThreadExecutor = newVirtualThreadExecutor();
+            }
+        }
+        if (virtualThreadExecutor == null) {
+            log.info("Executor '" + getName() + "': use a pool of " + getMaxThreads() + " platform threads");
+            super.startInternal();
+        } else {
+            log.info("Executor '" + getName() + "': use a virtual thread per request");
+            setState(LifecycleState.STARTING);
+        }
+    }
+
+    @Override
+    protected void stopInternal() throws LifecycleException {
+        ExecutorService executorService = virtualThreadExecutor;
+        if (executorService == null) {
+            super.stopInternal();
+        } else {
+            setState(LifecycleState.STOPPING);
+            executorService.shutdown();
+            virtualThreadExecutor = null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable command, long timeout, TimeUnit unit) {
+        if (virtualThreadExecutor == null) {
+            super.execute(command, timeout, unit);
+        } else {
+            execute(command);
+        }
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        ExecutorService executorService = virtualThreadExecutor;
+        if (executorService == null) {
+            super.execute(command);
+            return;
+        }
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                int active = activeCount.incrementAndGet();
+                int largest;
+                while (active > (largest = largestActiveCount.get()) && !largestActiveCount.compareAndSet(largest, active)) {
+                    // retry
+                }
+                try {
+                    command.run();
+                } finally {
+                    activeCount.decrementAndGet();
+                    completedTaskCount.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @param virtualThreads {@code false} to use the platform threads pool even if the JVM supports virtual threads
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public int getVirtualThreadsMinJavaVersion() {
+        return virtualThreadsMinJavaVersion;
+    }
+
+    /**
+     * @param virtualThreadsMinJavaVersion minimum version of the JVM to use virtual threads, lower it to measure the
+     *                                     effect of the pinning of the virtual threads on older JVMs
+     */
+    public void setVirtualThreadsMinJavaVersion(int virtualThreadsMinJavaVersion) {
+        this.virtualThreadsMinJavaVersion = virtualThreadsMinJavaVersion;
+    }
+
+    /**
+     * @return {@code true} if the requests currently run in virtual threads
+     */
+    public boolean isVirtualThreadsActive() {
+        return virtualThreadExecutor != null;
+    }
+
+    @Override
+    public int getActiveCount() {
+        return virtualThreadExecutor == null ? super.getActiveCount() : activeCount.get();
+    }
+
+    @Override
+    public int getPoolSize() {
+        return virtualThreadExecutor == null ? super.getPoolSize() : activeCount.get();
+    }
+
+    @Override
+    public int getLargestPoolSize() {
+        return virtualThreadExecutor == null ? super.getLargestPoolSize() : largestActiveCount.get();
+    }
+
+    @Override
+    public long getCompletedTaskCount() {
+        return virtualThreadExecutor == null ? super.getCompletedTaskCount() : completedTaskCount.get();
+    }
+
+    @Override
+    public boolean resizePool(int corePoolSize, int maximumPoolSize) {
+        return virtualThreadExecutor == null && super.resizePool(corePoolSize, maximumPoolSize);
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.util;
+
+import org.apache.catalina.core.AprLifecycleListener;
+import org.apache.tomcat.jni.Library;
+
+/**
+ * Checks, in the JVM of the application, that the Tomcat native library found in {@code java.library.path} can be
+ * loaded and matches the version required by Tomcat. Used at setup time to select the APR connector.
+ * <p/>
+ * Exits with {@code 0} if the library is usable, {@code 1} otherwise, the reasons are logged by Tomcat on the
+ * standard error.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class AprProbe {
+
+    public static void main(String[] args) {
+        // isAprAvailable() only initializes the library once an instance has been created
+        new AprLifecycleListener();
+        if (AprLifecycleListener.isAprAvailable()) {
+            System.out.println("APR " + Library.APR_MAJOR_VERSION + "." + Library.APR_MINOR_VERSION + "." + Library.APR_PATCH_VERSION
+                    + ", tcnative " + Library.TCN_MAJOR_VERSION + "." + Library.TCN_MINOR_VERSION + "." + Library.TCN_PATCH_VERSION);
+            System.exit(0);
+        } else {
+            System.out.println("Tomcat native library not usable with java.library.path=" + System.getProperty("java.library.path"));
+            System.exit(1);
+        }
+    }
+}
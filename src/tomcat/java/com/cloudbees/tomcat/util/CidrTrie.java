@@ -0,0 +1,332 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.util;
+
+import java.util.Arrays;
+
+/**
+ * Set of IPv4 and IPv6 address ranges in CIDR notation (e.g. {@code 10.0.0.0/8}, {@code 2001:db8::/32}, a single
+ * address is a {@code /32} or a {@code /128} range) stored in binary tries, one bit per level.
+ * <p/>
+ * {@link #contains(String)} parses the textual address and walks the trie in {@code O(address length)} whatever the
+ * number of ranges, without allocating objects: no {@link java.net.InetAddress} (which may resolve invalid addresses
+ * as host names), IPv6 addresses are parsed in a per-thread buffer.
+ * <p/>
+ * The trie is built at startup and then read-only: {@link #add(String)} must not be called concurrently with
+ * {@link #contains(String)}.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class CidrTrie {
+
+    private static final ThreadLocal<int[]> IPV6_HEXTETS = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[8];
+        }
+    };
+
+    private final BinaryTrie ipv4 = new BinaryTrie();
+
+    private final BinaryTrie ipv6 = new BinaryTrie();
+
+    private int size;
+
+    /**
+     * @param cidr e.g. {@code 192.168.0.0/16}, {@code 10.1.2.3}, {@code fe80::/10}
+     * @throws IllegalArgumentException if {@code cidr} is not a valid IPv4 or IPv6 range
+     */
+    public void add(String cidr) throws IllegalArgumentException {
+        String value = cidr.trim();
+        int slash = value.indexOf('/');
+        String address = slash == -1 ? value : value.substring(0, slash);
+        if (address.indexOf(':') == -1) {
+            long ipv4Address = parseIpv4(address, 0, address.length());
+            int prefixLength = parsePrefixLength(cidr, value, slash, 32);
+            if (ipv4Address == -1) {
+                throw new IllegalArgumentException("Invalid IPv4 range '" + cidr + "'");
+            }
+            ipv4.add(new int[]{(int) ipv4Address}, prefixLength);
+        } else {
+            int[] hextets = new int[8];
+            if (!parseIpv6(address, hextets)) {
+                throw new IllegalArgumentException("Invalid IPv6 range '" + cidr + "'");
+            }
+            int prefixLength = parsePrefixLength(cidr, value, slash, 128);
+            int[] words = new int[4];
+            for (int i = 0; i < 4; i++) {
+                words[i] = hextets[2 * i] << 16 | hextets[2 * i + 1];
+            }
+            ipv6.add(words, prefixLength);
+        }
+        size++;
+    }
+
+    private static int parsePrefixLength(String cidr, String value, int slash, int maxPrefixLength) {
+        if (slash == -1) {
+            return maxPrefixLength;
+        }
+        try {
+            int prefixLength = Integer.parseInt(value.substring(slash + 1));
+            if (prefixLength >= 0 && prefixLength <= maxPrefixLength) {
+                return prefixLength;
+            }
+        } catch (NumberFormatException e) {
+            // see below
+        }
+        throw new IllegalArgumentException("Invalid prefix length in range '" + cidr + "'");
+    }
+
+    /**
+     * An IPv4-mapped IPv6 address ({@code ::ffff:10.1.2.3}, as reported by a dual stack socket) matches both the IPv4
+     * ranges and the IPv6 ranges.
+     *
+     * @param address textual IPv4 or IPv6 address as returned by {@link javax.servlet.ServletRequest#getRemoteAddr()}
+     * @return {@code false} if the address is {@code null}, invalid or not in any range
+     */
+    public boolean contains(String address) {
+        if (address == null) {
+            return false;
+        }
+        if (address.indexOf(':') == -1) {
+            long ipv4Address = parseIpv4(address, 0, address.length());
+            return ipv4Address != -1 && ipv4.contains((int) ipv4Address);
+        }
+        int[] hextets = IPV6_HEXTETS.get();
+        if (!parseIpv6(address, hextets)) {
+            return false;
+        }
+        if (isIpv4Mapped(hextets) && ipv4.contains(hextets[6] << 16 | hextets[7])) {
+            return true;
+        }
+        return ipv6.contains(hextets);
+    }
+
+    /**
+     * @return {@code true} for the {@code ::ffff:0:0/96} addresses
+     */
+    private static boolean isIpv4Mapped(int[] hextets) {
+        for (int i = 0; i < 5; i++) {
+            if (hextets[i] != 0) {
+                return false;
+            }
+        }
+        return hextets[5] == 0xFFFF;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return number of ranges added
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the address as an unsigned int or {@code -1} if invalid
+     */
+    static long parseIpv4(CharSequence address, int start, int end) {
+        long result = 0;
+        int octet = -1;
+        int octetCount = 0;
+        for (int i = start; i < end; i++) {
+            char c = address.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = octet == -1 ? c - '0' : octet * 10 + c - '0';
+                if (octet > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && octet != -1 && octetCount < 3) {
+                result = result << 8 | octet;
+                octet = -1;
+                octetCount++;
+            } else {
+                return -1;
+            }
+        }
+        if (octet == -1 || octetCount != 3) {
+            return -1;
+        }
+        return result << 8 | octet;
+    }
+
+    /**
+     * Supports the {@code ::} compression, the embedded IPv4 address ({@code ::ffff:10.0.0.1}) and ignores the zone id
+     * ({@code fe80::1%eth0}).
+     *
+     * @param hextets filled with the 8 groups of 16 bits of the address
+     * @return {@code false} if the address is invalid
+     */
+    static boolean parseIpv6(String address, int[] hextets) {
+        int start = 0;
+        int end = address.length();
+        if (end > 2 && address.charAt(0) == '[' && address.charAt(end - 1) == ']') {
+            start = 1;
+            end--;
+        }
+        int zoneIndex = address.indexOf('%', start);
+        if (zoneIndex != -1 && zoneIndex < end) {
+            end = zoneIndex;
+        }
+        int groupCount = 0;
+        int compressionIndex = -1;
+        int i = start;
+        if (end - start >= 2 && address.charAt(i) == ':' && address.charAt(i + 1) == ':') {
+            compressionIndex = 0;
+            i += 2;
+        }
+        while (i < end) {
+            if (groupCount == 8) {
+                return false;
+            }
+            int groupEnd = i;
+            int hextet = 0;
+            while (groupEnd < end && address.charAt(groupEnd) != ':') {
+                char c = address.charAt(groupEnd);
+                if (c == '.') {
+                    // embedded IPv4 address, last 32 bits
+                    long ipv4Address = parseIpv4(address, i, end);
+                    if (ipv4Address == -1 || groupCount > 6) {
+                        return false;
+                    }
+                    hextets[groupCount++] = (int) (ipv4Address >>> 16);
+                    hextets[groupCount++] = (int) (ipv4Address & 0xFFFF);
+                    i = end;
+                    groupEnd = -1;
+                    break;
+                }
+                int digit = c >= '0' && c <= '9' ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10 : c >= 'A' && c <= 'F' ? c - 'A' + 10 : -1;
+                if (digit == -1 || groupEnd - i >= 4) {
+                    return false;
+                }
+                hextet = hextet << 4 | digit;
+                groupEnd++;
+            }
+            if (groupEnd == -1) {
+                break;
+            }
+            if (groupEnd == i) {
+                return false;
+            }
+            hextets[groupCount++] = hextet;
+            i = groupEnd;
+            if (i < end) {
+                // skip ':' and detect '::'
+                i++;
+                if (i < end && address.charAt(i) == ':') {
+                    if (compressionIndex != -1) {
+                        return false;
+                    }
+                    compressionIndex = groupCount;
+                    i++;
+                } else if (i == end) {
+                    return false;
+                }
+            }
+        }
+        if (compressionIndex == -1) {
+            return groupCount == 8;
+        }
+        if (groupCount == 8) {
+            return false;
+        }
+        // move the groups after '::' to the end and fill the gap with zeros
+        int tailLength = groupCount - compressionIndex;
+        System.arraycopy(hextets, compressionIndex, hextets, 8 - tailLength, tailLength);
+        Arrays.fill(hextets, compressionIndex, 8 - tailLength, 0);
+        return true;
+    }
+
+    /**
+     * Binary trie of bit strings, the nodes are stored in arrays. Node {@code 0} is the root, a child index of
+     * {@code 0} means no child.
+     */
+    private static class BinaryTrie {
+        private int[] zero = new int[64];
+        private int[] one = new int[64];
+        private boolean[] terminal = new boolean[64];
+        private int nodeCount = 1;
+
+        /**
+         * @param words bits of the prefix, most significant bit first
+         */
+        void add(int[] words, int prefixLength) {
+            int node = 0;
+            for (int i = 0; i < prefixLength; i++) {
+                if (terminal[node]) {
+                    // already covered by a larger range
+                    return;
+                }
+                int bit = (words[i >>> 5] >>> (31 - (i & 31))) & 1;
+                int child = bit == 0 ? zero[node] : one[node];
+                if (child == 0) {
+                    // newNode() may reallocate the arrays
+                    child = newNode();
+                    if (bit == 0) {
+                        zero[node] = child;
+                    } else {
+                        one[node] = child;
+                    }
+                }
+                node = child;
+            }
+            terminal[node] = true;
+        }
+
+        private int newNode() {
+            if (nodeCount == terminal.length) {
+                int newLength = terminal.length * 2;
+                zero = Arrays.copyOf(zero, newLength);
+                one = Arrays.copyOf(one, newLength);
+                terminal = Arrays.copyOf(terminal, newLength);
+            }
+            return nodeCount++;
+        }
+
+        boolean contains(int address) {
+            int node = 0;
+            for (int i = 31; i >= 0; i--) {
+                if (terminal[node]) {
+                    return true;
+                }
+                node = ((address >>> i) & 1) == 0 ? zero[node] : one[node];
+                if (node == 0) {
+                    return false;
+                }
+            }
+            return terminal[node];
+        }
+
+        boolean contains(int[] hextets) {
+            int node = 0;
+            for (int hextet : hextets) {
+                for (int i = 15; i >= 0; i--) {
+                    if (terminal[node]) {
+                        return true;
+                    }
+                    node = ((hextet >>> i) & 1) == 0 ? zero[node] : one[node];
+                    if (node == 0) {
+                        return false;
+                    }
+                }
+            }
+            return terminal[node];
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache bounded by the total weight (e.g. bytes) of its entries with a W-TinyLFU eviction policy: new entries go to
+ * a small LRU admission window (1% of the weight), the entries evicted from the window compete with the least recently
+ * used entry of the main segmented LRU and are only admitted if they have been accessed more often according to a
+ * {@link FrequencySketch count-min sketch}. One-hit wonders are thus evicted without flushing the popular entries.
+ * <p/>
+ * The main segment is split in a probation segment (20%) and a protected segment (80%) for the entries accessed
+ * again after their admission.
+ * <p/>
+ * Thread safe, the operations are synchronized and run in constant time.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class TinyLfuCache<K, V> {
+
+    private enum Segment {WINDOW, PROBATION, PROTECTED}
+
+    private static class Node<K, V> {
+        final K key;
+        final V value;
+        final long weight;
+        Segment segment;
+
+        Node(K key, V value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final long maxWeight;
+
+    private final long windowMaxWeight;
+
+    private final long protectedMaxWeight;
+
+    private final Map<K, Node<K, V>> data = new HashMap<>();
+
+    private final LinkedHashMap<K, Node<K, V>> window = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LinkedHashMap<K, Node<K, V>> probation = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final LinkedHashMap<K, Node<K, V>> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long windowWeight;
+
+    private long probationWeight;
+
+    private long protectedWeight;
+
+    private final FrequencySketch sketch;
+
+    private long evictionCount;
+
+    private long rejectionCount;
+
+    /**
+     * @param maxWeight       max total weight of the entries
+     * @param expectedEntries order of magnitude of the number of entries, sizes the frequency sketch
+     */
+    public TinyLfuCache(long maxWeight, int expectedEntries) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("Invalid maxWeight " + maxWeight);
+        }
+        this.maxWeight = maxWeight;
+        this.windowMaxWeight = Math.max(1, maxWeight / 100);
+        this.protectedMaxWeight = (maxWeight - windowMaxWeight) * 8 / 10;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    /**
+     * @return the value or {@code null}, the access is recorded in the frequency sketch in both cases
+     */
+    public synchronized V get(K key) {
+        sketch.increment(key.hashCode());
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        switch (node.segment) {
+            case WINDOW:
+                window.get(key);
+                break;
+            case PROBATION:
+                probation.remove(key);
+                probationWeight -= node.weight;
+                node.segment = Segment.PROTECTED;
+                protectedSegment.put(key, node);
+                protectedWeight += node.weight;
+                while (protectedWeight > protectedMaxWeight) {
+                    // demote the least recently used protected entries to the probation segment
+                    Node<K, V> demoted = removeEldest(protectedSegment);
+                    protectedWeight -= demoted.weight;
+                    demoted.segment = Segment.PROBATION;
+                    probation.put(demoted.key, demoted);
+                    probationWeight += demoted.weight;
+                }
+                break;
+            case PROTECTED:
+                protectedSegment.get(key);
+                break;
+            default:
+                throw new IllegalStateException("Unsupported segment " + node.segment);
+        }
+        return node.value;
+    }
+
+    /**
+     * Insert the given entry in the admission window, it may be evicted immediately if it is heavier than the cache.
+     *
+     * @return {@code false} if the entry is heavier than the cache
+     */
+    public synchronized boolean put(K key, V value, long weight) {
+        remove(key);
+        if (weight > maxWeight - windowMaxWeight) {
+            rejectionCount++;
+            return false;
+        }
+        sketch.increment(key.hashCode());
+        Node<K, V> node = new Node<>(key, value, weight);
+        node.segment = Segment.WINDOW;
+        data.put(key, node);
+        window.put(key, node);
+        windowWeight += weight;
+        while (windowWeight > windowMaxWeight) {
+            Node<K, V> candidate = removeEldest(window);
+            windowWeight -= candidate.weight;
+            admit(candidate);
+        }
+        return true;
+    }
+
+    /**
+     * Move the candidate evicted from the window to the probation segment if it is more frequently used than the
+     * entries it evicts.
+     */
+    private void admit(Node<K, V> candidate) {
+        int candidateFrequency = sketch.frequency(candidate.key.hashCode());
+        long mainMaxWeight = maxWeight - windowMaxWeight;
+        while (probationWeight + protectedWeight + candidate.weight > mainMaxWeight) {
+            LinkedHashMap<K, Node<K, V>> victimSegment = probation.isEmpty() ? protectedSegment : probation;
+            Node<K, V> victim = victimSegment.values().iterator().next();
+            if (sketch.frequency(victim.key.hashCode()) >= candidateFrequency) {
+                data.remove(candidate.key);
+                rejectionCount++;
+                return;
+            }
+            remove(victim.key);
+            evictionCount++;
+        }
+        candidate.segment = Segment.PROBATION;
+        probation.put(candidate.key, candidate);
+        probationWeight += candidate.weight;
+    }
+
+    private Node<K, V> removeEldest(LinkedHashMap<K, Node<K, V>> segment) {
+        Iterator<Node<K, V>> iterator = segment.values().iterator();
+        Node<K, V> eldest = iterator.next();
+        iterator.remove();
+        return eldest;
+    }
+
+    /**
+     * @return the removed value or {@code null}
+     */
+    public synchronized V remove(K key) {
+        Node<K, V> node = data.remove(key);
+        if (node == null) {
+            return null;
+        }
+        switch (node.segment) {
+            case WINDOW:
+                window.remove(key);
+                windowWeight -= node.weight;
+                break;
+            case PROBATION:
+                probation.remove(key);
+                probationWeight -= node.weight;
+                break;
+            case PROTECTED:
+                protectedSegment.remove(key);
+                protectedWeight -= node.weight;
+                break;
+            default:
+                throw new IllegalStateException("Unsupported segment " + node.segment);
+        }
+        return node.value;
+    }
+
+    public synchronized void clear() {
+        data.clear();
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        windowWeight = 0;
+        probationWeight = 0;
+        protectedWeight = 0;
+    }
+
+    public synchronized int size() {
+        return data.size();
+    }
+
+    public synchronized long weight() {
+        return windowWeight + probationWeight + protectedWeight;
+    }
+
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @return entries of the main segment evicted by more frequently used entries
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return entries evicted from the admission window, or too heavy, without being admitted in the main segment
+     */
+    public synchronized long getRejectionCount() {
+        return rejectionCount;
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, 4 counters per key, halved after {@code 10 x expectedEntries} increments
+     * so that the frequencies reflect the recent accesses.
+     */
+    static class FrequencySketch {
+
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+
+        private final int tableMask;
+
+        private final int sampleSize;
+
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            // one long of 16 counters per expected entry, 4 counters per key
+            int width = Integer.highestOneBit(Math.max(64, Math.min(expectedEntries, 1 << 24)) - 1) << 1;
+            this.table = new long[width];
+            this.tableMask = table.length - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        int frequency(int hashCode) {
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                long hash = hash(hashCode, i);
+                int index = (int) hash & tableMask;
+                int offset = (int) (hash >>> 40) & 15;
+                frequency = Math.min(frequency, (int) ((table[index] >>> (offset << 2)) & 15L));
+            }
+            return frequency;
+        }
+
+        void increment(int hashCode) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                long hash = hash(hashCode, i);
+                int index = (int) hash & tableMask;
+                int offset = (int) (hash >>> 40) & 15;
+                long mask = 15L << (offset << 2);
+                if ((table[index] & mask) != mask) {
+                    table[index] += 1L << (offset << 2);
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+
+        private static long hash(int hashCode, int i) {
+            long hash = (hashCode + SEEDS[i]) * SEEDS[i];
+            return hash ^ (hash >>> 29);
+        }
+    }
+}
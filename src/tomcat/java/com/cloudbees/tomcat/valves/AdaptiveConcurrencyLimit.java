@@ -0,0 +1,192 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+/**
+ * Concurrency limit adjusted on the measured latency: the limit shrinks when the average latency of the last sample
+ * window ({@code shortRtt}) grows above the latency without load ({@code baselineRtt}), requests are then queuing
+ * somewhere, and grows by {@code sqrt(limit)} while the latency is stable. A window with failed requests (e.g. JDBC
+ * pool timeouts) multiplies the limit by {@code backoffRatio}.
+ * <p/>
+ * {@code gradient = max(0.5, min(1, rttTolerance * baselineRtt / shortRtt))},
+ * {@code newLimit = limit * gradient + sqrt(limit)}, smoothed with {@code smoothing}.
+ * <p/>
+ * The baseline follows the lowest latency immediately and drifts slowly ({@code baselineWindowCount} windows) towards
+ * higher latencies to adapt to a slower application. The limit is not changed while less than half of it is used, the
+ * latency is then not representative of a saturated server.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class AdaptiveConcurrencyLimit {
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private double rttTolerance = 1.5;
+
+    private double smoothing = 0.2;
+
+    private double backoffRatio = 0.9;
+
+    private long windowInNanos = 1000L * 1000 * 1000;
+
+    private int minWindowSamples = 10;
+
+    /**
+     * Number of windows needed by the baseline latency to drift towards a higher latency
+     */
+    private int baselineWindowCount = 600;
+
+    private volatile int limit;
+
+    private double estimatedLimit;
+
+    private double baselineRttInNanos;
+
+    private double lastShortRttInNanos;
+
+    private long windowStartTime;
+
+    private long windowRttSumInNanos;
+
+    private int windowSampleCount;
+
+    private int windowDropCount;
+
+    private int windowMaxInflight;
+
+    public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Invalid limits: initialLimit=" + initialLimit + ", minLimit=" + minLimit +
+                    ", maxLimit=" + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.estimatedLimit = initialLimit;
+        this.limit = initialLimit;
+    }
+
+    /**
+     * @param rttInNanos latency of the request
+     * @param inflight   requests in progress when the request has been admitted, including itself
+     * @param dropped    {@code true} if the request failed because of an overload (timeout, 503...)
+     * @param now        {@link System#nanoTime()}
+     */
+    public synchronized void onSample(long rttInNanos, int inflight, boolean dropped, long now) {
+        if (windowSampleCount == 0 && windowDropCount == 0) {
+            windowStartTime = now;
+        }
+        if (dropped) {
+            windowDropCount++;
+        } else {
+            windowRttSumInNanos += rttInNanos;
+            windowSampleCount++;
+        }
+        windowMaxInflight = Math.max(windowMaxInflight, inflight);
+        if (now - windowStartTime < windowInNanos || windowSampleCount + windowDropCount < minWindowSamples) {
+            return;
+        }
+        if (windowDropCount > 0) {
+            estimatedLimit = Math.max(minLimit, estimatedLimit * backoffRatio);
+        } else {
+            updateLimit((double) windowRttSumInNanos / windowSampleCount, windowMaxInflight);
+        }
+        limit = (int) estimatedLimit;
+        windowRttSumInNanos = 0;
+        windowSampleCount = 0;
+        windowDropCount = 0;
+        windowMaxInflight = 0;
+    }
+
+    private void updateLimit(double shortRtt, int maxInflight) {
+        lastShortRttInNanos = shortRtt;
+        if (baselineRttInNanos == 0 || shortRtt < baselineRttInNanos) {
+            baselineRttInNanos = shortRtt;
+        } else {
+            baselineRttInNanos += (shortRtt - baselineRttInNanos) / baselineWindowCount;
+        }
+        if (maxInflight < estimatedLimit / 2) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, rttTolerance * baselineRttInNanos / shortRtt));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        newLimit = estimatedLimit * (1 - smoothing) + newLimit * smoothing;
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public synchronized long getBaselineRttInMillis() {
+        return (long) (baselineRttInNanos / 1000000);
+    }
+
+    public synchronized long getShortRttInMillis() {
+        return (long) (lastShortRttInNanos / 1000000);
+    }
+
+    /**
+     * @param rttTolerance ratio of the baseline latency accepted before reducing the limit
+     */
+    public void setRttTolerance(double rttTolerance) {
+        this.rttTolerance = rttTolerance;
+    }
+
+    /**
+     * @param smoothing weight of the new limit, between 0 and 1
+     */
+    public void setSmoothing(double smoothing) {
+        this.smoothing = smoothing;
+    }
+
+    /**
+     * @param backoffRatio multiplier of the limit after a window with dropped requests
+     */
+    public void setBackoffRatio(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * @param windowInMillis min duration of a sample window
+     */
+    public void setWindowInMillis(long windowInMillis) {
+        this.windowInNanos = windowInMillis * 1000 * 1000;
+    }
+
+    /**
+     * @param baselineWindowCount number of windows needed by the baseline latency to drift towards a higher latency
+     */
+    public void setBaselineWindowCount(int baselineWindowCount) {
+        this.baselineWindowCount = baselineWindowCount;
+    }
+
+    /**
+     * @param minWindowSamples min number of requests of a sample window
+     */
+    public void setMinWindowSamples(int minWindowSamples) {
+        this.minWindowSamples = minWindowSamples;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sheds the load before the latency collapses: the requests exceeding an {@link AdaptiveConcurrencyLimit adaptive
+ * concurrency limit} are immediately rejected with a {@code 503 Service Unavailable} and a {@code Retry-After} header.
+ * Unlike the {@link BulkheadValve}, the requests never wait and the limit follows the latency of the application rather
+ * than the size of the JDBC pools.
+ * <p/>
+ * Optional priorities by URI prefix: the {@link #setPriorityUriPrefixes(String) priority} requests can use the whole
+ * limit, the other requests {@link #setNormalPriorityLimitPercent(int) normalPriorityLimitPercent} of the limit and
+ * the {@link #setLowPriorityUriPrefixes(String) low priority} requests
+ * {@link #setLowPriorityLimitPercent(int) lowPriorityLimitPercent} of the limit so that they are rejected first.
+ * <p/>
+ * The {@code 503} and {@code 504} responses of the application and the exceptions are seen as an overload and reduce
+ * the limit. Asynchronous requests are only accounted for during their initial dispatch.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class AdmissionControlValve extends ValveBase {
+
+    private static final Log log = LogFactory.getLog(AdmissionControlValve.class);
+
+    private int initialLimit = 100;
+
+    private int minLimit = 10;
+
+    private int maxLimit = 1000;
+
+    private double rttTolerance = 1.5;
+
+    private double backoffRatio = 0.9;
+
+    private long windowInMillis = 1000;
+
+    private int retryAfterInSeconds = 1;
+
+    private String[] priorityUriPrefixes = new String[0];
+
+    private String[] lowPriorityUriPrefixes = new String[0];
+
+    private int normalPriorityLimitPercent = 90;
+
+    private int lowPriorityLimitPercent = 50;
+
+    private AdaptiveConcurrencyLimit concurrencyLimit;
+
+    private final AtomicInteger inFlightRequestCount = new AtomicInteger();
+
+    private final AtomicLong rejectedRequestCount = new AtomicLong();
+
+    private final AtomicLong rejectedLowPriorityRequestCount = new AtomicLong();
+
+    private final AtomicLong acceptedRequestCount = new AtomicLong();
+
+    private final AtomicLong droppedRequestCount = new AtomicLong();
+
+    public AdmissionControlValve() {
+        super(true);
+    }
+
+    @Override
+    protected void startInternal() throws LifecycleException {
+        try {
+            concurrencyLimit = new AdaptiveConcurrencyLimit(initialLimit, minLimit, maxLimit);
+        } catch (IllegalArgumentException e) {
+            throw new LifecycleException(e);
+        }
+        concurrencyLimit.setRttTolerance(rttTolerance);
+        concurrencyLimit.setBackoffRatio(backoffRatio);
+        concurrencyLimit.setWindowInMillis(windowInMillis);
+        log.info("Adaptive concurrency limit initialLimit=" + initialLimit + ", minLimit=" + minLimit +
+                ", maxLimit=" + maxLimit);
+        super.startInternal();
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        int limit = concurrencyLimit.getLimit();
+        String uri = request.getDecodedRequestURI();
+        int allowed;
+        boolean lowPriority = false;
+        if (startsWith(uri, priorityUriPrefixes)) {
+            allowed = limit;
+        } else if (startsWith(uri, lowPriorityUriPrefixes)) {
+            allowed = Math.max(1, limit * lowPriorityLimitPercent / 100);
+            lowPriority = true;
+        } else {
+            allowed = Math.max(1, limit * normalPriorityLimitPercent / 100);
+        }
+
+        int inFlight = inFlightRequestCount.incrementAndGet();
+        if (inFlight > allowed) {
+            inFlightRequestCount.decrementAndGet();
+            rejectedRequestCount.incrementAndGet();
+            if (lowPriority) {
+                rejectedLowPriorityRequestCount.incrementAndGet();
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Reject request " + uri + ", " + (inFlight - 1) + " requests in progress, limit " + limit);
+            }
+            response.setHeader("Retry-After", String.valueOf(retryAfterInSeconds));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        acceptedRequestCount.incrementAndGet();
+        long startTime = System.nanoTime();
+        boolean dropped = true;
+        try {
+            getNext().invoke(request, response);
+            int status = response.getStatus();
+            dropped = status == HttpServletResponse.SC_SERVICE_UNAVAILABLE || status == HttpServletResponse.SC_GATEWAY_TIMEOUT;
+        } finally {
+            inFlightRequestCount.decrementAndGet();
+            if (dropped) {
+                droppedRequestCount.incrementAndGet();
+            }
+            long now = System.nanoTime();
+            concurrencyLimit.onSample(now - startTime, inFlight, dropped, now);
+        }
+    }
+
+    private static boolean startsWith(String uri, String[] prefixes) {
+        if (uri == null) {
+            return false;
+        }
+        for (String prefix : prefixes) {
+            if (uri.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String[] splitPrefixes(String prefixes) {
+        List<String> result = new ArrayList<>();
+        if (prefixes != null) {
+            for (String prefix : prefixes.split(",")) {
+                prefix = prefix.trim();
+                if (!prefix.isEmpty()) {
+                    result.add(prefix);
+                }
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    private static String joinPrefixes(String[] prefixes) {
+        StringBuilder result = new StringBuilder();
+        for (String prefix : prefixes) {
+            result.append(result.length() == 0 ? "" : ",").append(prefix);
+        }
+        return result.toString();
+    }
+
+    public int getInitialLimit() {
+        return initialLimit;
+    }
+
+    public void setInitialLimit(int initialLimit) {
+        this.initialLimit = initialLimit;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public void setMinLimit(int minLimit) {
+        this.minLimit = minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public void setMaxLimit(int maxLimit) {
+        this.maxLimit = maxLimit;
+    }
+
+    public double getRttTolerance() {
+        return rttTolerance;
+    }
+
+    /**
+     * @param rttTolerance ratio of the latency without load accepted before reducing the limit, default {@code 1.5}
+     */
+    public void setRttTolerance(double rttTolerance) {
+        this.rttTolerance = rttTolerance;
+    }
+
+    public double getBackoffRatio() {
+        return backoffRatio;
+    }
+
+    /**
+     * @param backoffRatio multiplier of the limit when requests fail with a {@code 503}, a {@code 504} or an exception
+     */
+    public void setBackoffRatio(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+    }
+
+    public long getWindowInMillis() {
+        return windowInMillis;
+    }
+
+    public void setWindowInMillis(long windowInMillis) {
+        this.windowInMillis = windowInMillis;
+    }
+
+    public int getRetryAfterInSeconds() {
+        return retryAfterInSeconds;
+    }
+
+    public void setRetryAfterInSeconds(int retryAfterInSeconds) {
+        this.retryAfterInSeconds = retryAfterInSeconds;
+    }
+
+    public String getPriorityUriPrefixes() {
+        return joinPrefixes(priorityUriPrefixes);
+    }
+
+    /**
+     * @param priorityUriPrefixes comma separated URI prefixes (e.g. {@code /checkout,/api/payment}) allowed to use the
+     *                            whole limit
+     */
+    public void setPriorityUriPrefixes(String priorityUriPrefixes) {
+        this.priorityUriPrefixes = splitPrefixes(priorityUriPrefixes);
+    }
+
+    public String getLowPriorityUriPrefixes() {
+        return joinPrefixes(lowPriorityUriPrefixes);
+    }
+
+    /**
+     * @param lowPriorityUriPrefixes comma separated URI prefixes (e.g. {@code /reports}) rejected first
+     */
+    public void setLowPriorityUriPrefixes(String lowPriorityUriPrefixes) {
+        this.lowPriorityUriPrefixes = splitPrefixes(lowPriorityUriPrefixes);
+    }
+
+    public int getNormalPriorityLimitPercent() {
+        return normalPriorityLimitPercent;
+    }
+
+    public void setNormalPriorityLimitPercent(int normalPriorityLimitPercent) {
+        this.normalPriorityLimitPercent = normalPriorityLimitPercent;
+    }
+
+    public int getLowPriorityLimitPercent() {
+        return lowPriorityLimitPercent;
+    }
+
+    public void setLowPriorityLimitPercent(int lowPriorityLimitPercent) {
+        this.lowPriorityLimitPercent = lowPriorityLimitPercent;
+    }
+
+    public int getLimit() {
+        AdaptiveConcurrencyLimit concurrencyLimit = this.concurrencyLimit;
+        return concurrencyLimit == null ? initialLimit : concurrencyLimit.getLimit();
+    }
+
+    public long getShortRttInMillis() {
+        AdaptiveConcurrencyLimit concurrencyLimit = this.concurrencyLimit;
+        return concurrencyLimit == null ? 0 : concurrencyLimit.getShortRttInMillis();
+    }
+
+    public long getBaselineRttInMillis() {
+        AdaptiveConcurrencyLimit concurrencyLimit = this.concurrencyLimit;
+        return concurrencyLimit == null ? 0 : concurrencyLimit.getBaselineRttInMillis();
+    }
+
+    public int getInFlightRequestCount() {
+        return inFlightRequestCount.get();
+    }
+
+    public long getRejectedRequestCount() {
+        return rejectedRequestCount.get();
+    }
+
+    public long getRejectedLowPriorityRequestCount() {
+        return rejectedLowPriorityRequestCount.get();
+    }
+
+    public long getAcceptedRequestCount() {
+        return acceptedRequestCount.get();
+    }
+
+    /**
+     * @return accepted requests which failed with a {@code 503}, a {@code 504} or an exception
+     */
+    public long getDroppedRequestCount() {
+        return droppedRequestCount.get();
+    }
+}
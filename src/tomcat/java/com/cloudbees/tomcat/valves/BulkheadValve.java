@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of requests processed concurrently, the requests exceeding the limit wait up to
+ * {@link #setMaxWaitInMillis(long) maxWaitInMillis} for a permit and are then rejected with a
+ * {@code 503 Service Unavailable}.
+ * <p/>
+ * Used with the {@link com.cloudbees.tomcat.threads.VirtualThreadExecutor}, the number of threads is no longer a
+ * limit and the bulkhead, sized on the JDBC pools, prevents thousands of requests from piling up on the pools.
+ * <p/>
+ * The permit is released when the request leaves the valve, asynchronous requests are only accounted for during their
+ * initial dispatch.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class BulkheadValve extends ValveBase {
+
+    private static final Log log = LogFactory.getLog(BulkheadValve.class);
+
+    private int maxConcurrentRequests = 200;
+
+    private long maxWaitInMillis = 1000;
+
+    private int retryAfterInSeconds = 1;
+
+    private Semaphore semaphore;
+
+    private final AtomicLong rejectedRequestCount = new AtomicLong();
+
+    private final AtomicLong acceptedRequestCount = new AtomicLong();
+
+    public BulkheadValve() {
+        super(true);
+    }
+
+    @Override
+    protected void startInternal() throws LifecycleException {
+        semaphore = new Semaphore(maxConcurrentRequests, true);
+        log.info("Limit concurrent requests to " + maxConcurrentRequests + ", maxWaitInMillis=" + maxWaitInMillis);
+        super.startInternal();
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        boolean acquired;
+        try {
+            acquired = semaphore.tryAcquire(maxWaitInMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            rejectedRequestCount.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Reject request " + request.getRequestURI() + ", " + maxConcurrentRequests + " requests in progress");
+            }
+            response.setHeader("Retry-After", String.valueOf(retryAfterInSeconds));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        acceptedRequestCount.incrementAndGet();
+        try {
+            getNext().invoke(request, response);
+        } finally {
+            semaphore.release();
+        }
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    public long getMaxWaitInMillis() {
+        return maxWaitInMillis;
+    }
+
+    public void setMaxWaitInMillis(long maxWaitInMillis) {
+        this.maxWaitInMillis = maxWaitInMillis;
+    }
+
+    public int getRetryAfterInSeconds() {
+        return retryAfterInSeconds;
+    }
+
+    public void setRetryAfterInSeconds(int retryAfterInSeconds) {
+        this.retryAfterInSeconds = retryAfterInSeconds;
+    }
+
+    public int getActiveRequestCount() {
+        Semaphore semaphore = this.semaphore;
+        return semaphore == null ? 0 : maxConcurrentRequests - semaphore.availablePermits();
+    }
+
+    public int getQueuedRequestCount() {
+        Semaphore semaphore = this.semaphore;
+        return semaphore == null ? 0 : semaphore.getQueueLength();
+    }
+
+    public long getRejectedRequestCount() {
+        return rejectedRequestCount.get();
+    }
+
+    public long getAcceptedRequestCount() {
+        return acceptedRequestCount.get();
+    }
+}
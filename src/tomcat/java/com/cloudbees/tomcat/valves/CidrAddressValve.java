@@ -0,0 +1,187 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import com.cloudbees.tomcat.util.CidrTrie;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.buf.B2CConverter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Filters the requests on the remote address like {@link org.apache.catalina.valves.RemoteAddrValve} but with lists
+ * of IPv4 / IPv6 ranges in CIDR notation matched with a {@link CidrTrie} rather than a regular expression: the
+ * matching cost does not depend on the number of ranges.
+ * <p/>
+ * A request is rejected with {@link #setDenyStatus(int) denyStatus} if its address is in a denied range or if allowed
+ * ranges are defined and its address is in none of them.
+ * <p/>
+ * The ranges are separated by commas or white spaces. The files ({@link #setAllowCidrsFile(String) allowCidrsFile},
+ * {@link #setDenyCidrsFile(String) denyCidrsFile}) contain one range per line, {@code #} starts a comment; a relative
+ * path is resolved against the {@code app_extra_files} directory. The ranges are loaded when the valve starts.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class CidrAddressValve extends ValveBase {
+
+    private static final Log log = LogFactory.getLog(CidrAddressValve.class);
+
+    private String allowCidrs;
+
+    private String denyCidrs;
+
+    private String allowCidrsFile;
+
+    private String denyCidrsFile;
+
+    private int denyStatus = HttpServletResponse.SC_FORBIDDEN;
+
+    private volatile CidrTrie allowed = new CidrTrie();
+
+    private volatile CidrTrie denied = new CidrTrie();
+
+    private final AtomicLong deniedRequestCount = new AtomicLong();
+
+    public CidrAddressValve() {
+        super(true);
+    }
+
+    @Override
+    protected void startInternal() throws LifecycleException {
+        try {
+            allowed = load(allowCidrs, allowCidrsFile);
+            denied = load(denyCidrs, denyCidrsFile);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new LifecycleException(e);
+        }
+        log.info("Remote address filtering with " + allowed.size() + " allowed and " + denied.size() + " denied ranges");
+        super.startInternal();
+    }
+
+    private CidrTrie load(String cidrs, String cidrsFile) throws IOException {
+        CidrTrie trie = new CidrTrie();
+        if (cidrs != null) {
+            add(trie, cidrs);
+        }
+        if (cidrsFile != null && !cidrsFile.isEmpty()) {
+            Path file = Paths.get(cidrsFile);
+            if (!file.isAbsolute()) {
+                file = Paths.get(System.getProperty("app_extra_files", System.getProperty("catalina.base", "."))).resolve(file);
+            }
+            for (String line : Files.readAllLines(file, B2CConverter.UTF_8)) {
+                int comment = line.indexOf('#');
+                add(trie, comment == -1 ? line : line.substring(0, comment));
+            }
+        }
+        return trie;
+    }
+
+    private static void add(CidrTrie trie, String cidrs) {
+        for (String cidr : cidrs.split("[,\\s]+")) {
+            if (!cidr.isEmpty()) {
+                trie.add(cidr);
+            }
+        }
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        String remoteAddr = request.getRemoteAddr();
+        if (isAllowed(remoteAddr)) {
+            getNext().invoke(request, response);
+        } else {
+            deniedRequestCount.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Deny request " + request.getDecodedRequestURI() + " from " + remoteAddr);
+            }
+            response.sendError(denyStatus);
+        }
+    }
+
+    public boolean isAllowed(String remoteAddr) {
+        if (denied.contains(remoteAddr)) {
+            return false;
+        }
+        CidrTrie allowed = this.allowed;
+        return allowed.isEmpty() || allowed.contains(remoteAddr);
+    }
+
+    public String getAllowCidrs() {
+        return allowCidrs;
+    }
+
+    /**
+     * @param allowCidrs e.g. {@code 10.0.0.0/8, 192.168.1.12, 2001:db8::/32}
+     */
+    public void setAllowCidrs(String allowCidrs) {
+        this.allowCidrs = allowCidrs;
+    }
+
+    public String getDenyCidrs() {
+        return denyCidrs;
+    }
+
+    public void setDenyCidrs(String denyCidrs) {
+        this.denyCidrs = denyCidrs;
+    }
+
+    public String getAllowCidrsFile() {
+        return allowCidrsFile;
+    }
+
+    public void setAllowCidrsFile(String allowCidrsFile) {
+        this.allowCidrsFile = allowCidrsFile;
+    }
+
+    public String getDenyCidrsFile() {
+        return denyCidrsFile;
+    }
+
+    public void setDenyCidrsFile(String denyCidrsFile) {
+        this.denyCidrsFile = denyCidrsFile;
+    }
+
+    public int getDenyStatus() {
+        return denyStatus;
+    }
+
+    public void setDenyStatus(int denyStatus) {
+        this.denyStatus = denyStatus;
+    }
+
+    public int getAllowedRangeCount() {
+        return allowed.size();
+    }
+
+    public int getDeniedRangeCount() {
+        return denied.size();
+    }
+
+    public long getDeniedRequestCount() {
+        return deniedRequestCount.get();
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import com.cloudbees.tomcat.util.TinyLfuCache;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Valve;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.buf.B2CConverter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Principal;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of the credentials verified by the {@code com.cloudbees.tomcat.valves.PrivateAppValve} to save the
+ * verification of the signed cookie / header at each request.
+ * <p/>
+ * Must be declared just before the {@code PrivateAppValve}, itself followed by a {@link PrivateAppVerifiedValve}
+ * which records the principal of the requests accepted by the {@code PrivateAppValve}. On a cache hit, the principal
+ * is restored and both valves are skipped.
+ * <p/>
+ * The cache is keyed by a SHA-256 digest of the {@code secretKey} and of the credentials verified by the
+ * {@code PrivateAppValve}: the {@link #setAuthenticationHeaderName(String) authentication header} and the
+ * {@link #setAuthenticationCookieName(String) authentication cookie}, the tokens are not kept in memory. The names
+ * of the header, of the cookie and of the {@link #setAuthenticationParameterName(String) authentication parameter}
+ * are required, they must have the same values as in the {@code PrivateAppValve}. The entries expire after
+ * {@link #setTtlInSeconds(int) ttlInSeconds}, a revoked or expired token can be accepted during this delay. Changing
+ * the {@link #setSecretKey(String) secretKey} clears the cache.
+ * <p/>
+ * Only the verified credentials are cached. The rejected requests, the requests without authentication header nor
+ * cookie, the requests with an {@code Authorization} header and the requests which may carry the authentication
+ * parameter (query string or form) always go through the {@code PrivateAppValve}. The requests matching
+ * {@link #setIgnoredUriRegexp(String) ignoredUriRegexp} skip the {@code PrivateAppValve}.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class PrivateAppCacheValve extends ValveBase {
+
+    static final String VERIFICATION_NOTE = PrivateAppCacheValve.class.getName() + ".VERIFICATION";
+
+    private static final Log log = LogFactory.getLog(PrivateAppCacheValve.class);
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Principal accepted by the {@code PrivateAppValve}
+     */
+    static class Verification {
+        final Principal principal;
+        final String authType;
+        final long expirationTime;
+
+        Verification(Principal principal, String authType, long expirationTime) {
+            this.principal = principal;
+            this.authType = authType;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    private volatile byte[] secretKey;
+
+    private String authenticationHeaderName;
+
+    private String authenticationCookieName;
+
+    private String authenticationParameterName;
+
+    private Pattern ignoredUriPattern;
+
+    private int maxEntries = 10000;
+
+    private int ttlInSeconds = 60;
+
+    private TinyLfuCache<String, Verification> cache;
+
+    private Valve verifiedValve;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong ignoredUriCount = new AtomicLong();
+
+    public PrivateAppCacheValve() {
+        super(true);
+    }
+
+    @Override
+    protected void startInternal() throws LifecycleException {
+        if (secretKey == null) {
+            throw new LifecycleException("secretKey is missing");
+        }
+        if (authenticationHeaderName == null || authenticationCookieName == null || authenticationParameterName == null) {
+            throw new LifecycleException("authenticationHeaderName, authenticationCookieName and authenticationParameterName are required");
+        }
+        cache = new TinyLfuCache<>(maxEntries, maxEntries);
+        // the valves of the pipeline are chained before being started
+        verifiedValve = findVerifiedValve();
+        super.startInternal();
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        Valve verifiedValve = this.verifiedValve;
+        if (verifiedValve == null) {
+            getNext().invoke(request, response);
+            return;
+        }
+
+        String uri = request.getDecodedRequestURI();
+        if (ignoredUriPattern != null && uri != null && ignoredUriPattern.matcher(uri).matches()) {
+            ignoredUriCount.incrementAndGet();
+            verifiedValve.getNext().invoke(request, response);
+            return;
+        }
+        if (request.getHeader("Authorization") != null || mayHaveAuthenticationParameter(request)) {
+            // credentials not digested in the key, the PrivateAppValve exchanges the parameter for a cookie
+            getNext().invoke(request, response);
+            return;
+        }
+        byte[] secretKey = this.secretKey;
+        String key = digestCredentials(request, secretKey);
+        if (key == null) {
+            getNext().invoke(request, response);
+            return;
+        }
+
+        long now = System.nanoTime();
+        Verification verification = cache.get(key);
+        if (verification != null && verification.expirationTime - now > 0) {
+            hitCount.incrementAndGet();
+            request.setUserPrincipal(verification.principal);
+            request.setAuthType(verification.authType);
+            verifiedValve.getNext().invoke(request, response);
+            return;
+        }
+
+        missCount.incrementAndGet();
+        getNext().invoke(request, response);
+        verification = (Verification) request.getNote(VERIFICATION_NOTE);
+        if (verification != null && secretKey == this.secretKey) {
+            cache.put(key, new Verification(verification.principal, verification.authType,
+                    now + TimeUnit.SECONDS.toNanos(ttlInSeconds)), 1);
+        }
+    }
+
+    /**
+     * @return the {@link PrivateAppVerifiedValve} following the {@code PrivateAppValve} or {@code null} if the valves
+     * are not declared in the expected order
+     */
+    private Valve findVerifiedValve() {
+        Valve next = getNext();
+        Valve nextOfNext = next == null ? null : next.getNext();
+        if (nextOfNext instanceof PrivateAppVerifiedValve) {
+            return nextOfNext;
+        }
+        log.warn("PrivateAppCacheValve disabled, the next valves must be PrivateAppValve and PrivateAppVerifiedValve, not " +
+                next + " and " + nextOfNext);
+        return null;
+    }
+
+    /**
+     * @return {@code true} if the query string contains the authentication parameter or if the request is a form
+     * whose body may contain it
+     */
+    private boolean mayHaveAuthenticationParameter(Request request) {
+        String contentType = request.getContentType();
+        if (contentType != null) {
+            contentType = contentType.toLowerCase(Locale.ENGLISH);
+            if (contentType.startsWith("application/x-www-form-urlencoded") || contentType.startsWith("multipart/form-data")) {
+                return true;
+            }
+        }
+        String queryString = request.getQueryString();
+        if (queryString == null) {
+            return false;
+        }
+        for (String parameter : queryString.split("&")) {
+            int separator = parameter.indexOf('=');
+            String name = separator == -1 ? parameter : parameter.substring(0, separator);
+            try {
+                if (authenticationParameterName.equals(URLDecoder.decode(name, "UTF-8"))) {
+                    return true;
+                }
+            } catch (IllegalArgumentException e) {
+                // invalid escape sequence, let the PrivateAppValve handle the request
+                return true;
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the hex encoded digest or {@code null} if the request has neither authentication header nor cookie
+     */
+    private String digestCredentials(Request request, byte[] secretKey) {
+        MessageDigest digest = SHA_256.get();
+        digest.reset();
+        digest.update(secretKey);
+        boolean credentials = false;
+
+        Enumeration<String> headers = request.getHeaders(authenticationHeaderName);
+        while (headers != null && headers.hasMoreElements()) {
+            credentials |= update(digest, 1, headers.nextElement());
+        }
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (authenticationCookieName.equals(cookie.getName())) {
+                    credentials |= update(digest, 2, cookie.getValue());
+                }
+            }
+        }
+        if (!credentials) {
+            return null;
+        }
+
+        byte[] bytes = digest.digest();
+        char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            result[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            result[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(result);
+    }
+
+    private static boolean update(MessageDigest digest, int field, String value) {
+        if (value == null) {
+            return false;
+        }
+        // field separator, "a" + "bc" and "ab" + "c" must not collide
+        digest.update((byte) field);
+        digest.update(value.getBytes(B2CConverter.UTF_8));
+        digest.update((byte) 0);
+        return true;
+    }
+
+    /**
+     * Same value as the {@code secretKey} of the {@code PrivateAppValve}, clears the cache when changed.
+     */
+    public void setSecretKey(String secretKey) {
+        this.secretKey = secretKey == null ? null : secretKey.getBytes(B2CConverter.UTF_8);
+        TinyLfuCache<String, Verification> cache = this.cache;
+        if (cache != null) {
+            cache.clear();
+            log.info("Secret key changed, verification cache cleared");
+        }
+    }
+
+    public String getAuthenticationHeaderName() {
+        return authenticationHeaderName;
+    }
+
+    /**
+     * @param authenticationHeaderName name of the header of the {@code PrivateAppValve}, required
+     */
+    public void setAuthenticationHeaderName(String authenticationHeaderName) {
+        this.authenticationHeaderName = authenticationHeaderName;
+    }
+
+    public String getAuthenticationCookieName() {
+        return authenticationCookieName;
+    }
+
+    /**
+     * @param authenticationCookieName name of the cookie of the {@code PrivateAppValve}, required
+     */
+    public void setAuthenticationCookieName(String authenticationCookieName) {
+        this.authenticationCookieName = authenticationCookieName;
+    }
+
+    public String getAuthenticationParameterName() {
+        return authenticationParameterName;
+    }
+
+    /**
+     * @param authenticationParameterName name of the parameter of the {@code PrivateAppValve}, required to let the
+     *                                    requests carrying it go through the {@code PrivateAppValve}
+     */
+    public void setAuthenticationParameterName(String authenticationParameterName) {
+        this.authenticationParameterName = authenticationParameterName;
+    }
+
+    public String getIgnoredUriRegexp() {
+        return ignoredUriPattern == null ? null : ignoredUriPattern.pattern();
+    }
+
+    /**
+     * @param ignoredUriRegexp same value as the {@code ignoredUriRegexp} of the {@code PrivateAppValve}, compiled once
+     */
+    public void setIgnoredUriRegexp(String ignoredUriRegexp) {
+        this.ignoredUriPattern = ignoredUriRegexp == null || ignoredUriRegexp.isEmpty() ? null : Pattern.compile(ignoredUriRegexp);
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public int getTtlInSeconds() {
+        return ttlInSeconds;
+    }
+
+    public void setTtlInSeconds(int ttlInSeconds) {
+        this.ttlInSeconds = ttlInSeconds;
+    }
+
+    public int getEntryCount() {
+        TinyLfuCache<String, Verification> cache = this.cache;
+        return cache == null ? 0 : cache.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getIgnoredUriCount() {
+        return ignoredUriCount.get();
+    }
+}
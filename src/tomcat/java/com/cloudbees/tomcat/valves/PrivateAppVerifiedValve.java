@@ -0,0 +1,43 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+
+/**
+ * Declared just after the {@code com.cloudbees.tomcat.valves.PrivateAppValve}, only reached by the requests that it
+ * accepted: records their principal for the {@link PrivateAppCacheValve}.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class PrivateAppVerifiedValve extends ValveBase {
+
+    public PrivateAppVerifiedValve() {
+        super(true);
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        request.setNote(PrivateAppCacheValve.VERIFICATION_NOTE,
+                new PrivateAppCacheValve.Verification(request.getUserPrincipal(), request.getAuthType(), 0));
+        getNext().invoke(request, response);
+    }
+}
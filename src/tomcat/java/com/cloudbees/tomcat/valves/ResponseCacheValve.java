@@ -0,0 +1,581 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import com.cloudbees.tomcat.util.TinyLfuCache;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.coyote.OutputBuffer;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.http.FastHttpDateFormat;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared HTTP cache of the {@code GET} responses the application declares cacheable with {@code Cache-Control: max-age}
+ * or {@code s-maxage} or with an {@code Expires} header. {@code private}, {@code no-store}, {@code no-cache},
+ * {@code Vary: *}, {@code Set-Cookie} responses and requests with an {@code Authorization} header are never cached.
+ * Responses are stored per {@code Vary} request headers values.
+ * <p/>
+ * The entries are stored in a {@link TinyLfuCache} bounded by {@link #setMaxSizeInMegabytes(int) maxSizeInMegabytes},
+ * responses larger than {@link #setMaxEntrySizeInKilobytes(int) maxEntrySizeInKilobytes} are not cached. Concurrent
+ * misses on the same URL are coalesced: a single request is processed by the application, the others wait up to
+ * {@link #setCoalescingTimeoutInMillis(long) coalescingTimeoutInMillis} for its response.
+ * <p/>
+ * {@code If-None-Match} and {@code If-Modified-Since} requests on fresh entries are answered with a
+ * {@code 304 Not Modified}.
+ * <p/>
+ * The body is captured below the servlet output buffer, sized to {@code maxEntrySizeInKilobytes} so that the response
+ * is not committed before its headers are stored. Connector compression applies after the capture, on the misses and
+ * on the hits. Asynchronous requests are not cached.
+ * <p/>
+ * Only the requests matching the required {@link #setUriPrefixes(String) uriPrefixes} are cached, the other requests
+ * keep their servlet output buffer and are not captured.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class ResponseCacheValve extends ValveBase {
+
+    private static final Log log = LogFactory.getLog(ResponseCacheValve.class);
+
+    /**
+     * Headers generated by the connector or specific to a response, not stored
+     */
+    private static final Set<String> UNSTORED_HEADERS = new HashSet<>(Arrays.asList(
+            "age", "connection", "content-length", "content-type", "date", "keep-alive", "server", "transfer-encoding"));
+
+    /**
+     * Headers of the {@code 304 Not Modified} responses
+     */
+    private static final Set<String> NOT_MODIFIED_HEADERS = new HashSet<>(Arrays.asList(
+            "cache-control", "content-location", "etag", "expires", "vary"));
+
+    static class CachedResponse {
+        final List<String[]> headers;
+        final String contentType;
+        final byte[] body;
+        final String etag;
+        final long lastModified;
+        final long storedAt;
+        final long expiresAt;
+        /**
+         * Not {@code null} for the index of the variants of a {@code Vary} URL
+         */
+        final List<String> varyHeaderNames;
+
+        CachedResponse(List<String[]> headers, String contentType, byte[] body, String etag, long lastModified,
+                       long storedAt, long expiresAt, List<String> varyHeaderNames) {
+            this.headers = headers;
+            this.contentType = contentType;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+            this.varyHeaderNames = varyHeaderNames;
+        }
+
+        long weight() {
+            long weight = 128 + (body == null ? 0 : body.length);
+            for (String[] header : headers) {
+                weight += 2 * (header[0].length() + header[1].length());
+            }
+            return weight;
+        }
+    }
+
+    /**
+     * Copy the bytes written to the connector, up to {@code maxSize}.
+     */
+    static class CapturingOutputBuffer implements OutputBuffer {
+        private final OutputBuffer delegate;
+        private final int maxSize;
+        private final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        private boolean overflow;
+
+        CapturingOutputBuffer(OutputBuffer delegate, int maxSize) {
+            this.delegate = delegate;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int doWrite(ByteChunk chunk, org.apache.coyote.Response response) throws IOException {
+            if (!overflow) {
+                if (captured.size() + chunk.getLength() > maxSize) {
+                    overflow = true;
+                    captured.reset();
+                } else {
+                    captured.write(chunk.getBuffer(), chunk.getStart(), chunk.getLength());
+                }
+            }
+            return delegate.doWrite(chunk, response);
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return delegate.getBytesWritten();
+        }
+    }
+
+    private int maxSizeInMegabytes = 64;
+
+    private int maxEntrySizeInKilobytes = 1024;
+
+    private long coalescingTimeoutInMillis = 5000;
+
+    private String[] uriPrefixes = new String[0];
+
+    private TinyLfuCache<String, CachedResponse> cache;
+
+    private final ConcurrentMap<String, CountDownLatch> pendingRequests = new ConcurrentHashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong notModifiedCount = new AtomicLong();
+
+    private final AtomicLong coalescedRequestCount = new AtomicLong();
+
+    private final AtomicLong storedResponseCount = new AtomicLong();
+
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    public ResponseCacheValve() {
+        super(true);
+    }
+
+    @Override
+    protected void startInternal() throws LifecycleException {
+        if (uriPrefixes.length == 0) {
+            throw new LifecycleException("No 'uriPrefixes' defined for " + getClass().getName());
+        }
+        long maxSize = maxSizeInMegabytes * 1024L * 1024L;
+        // sketch sized for entries of 4 kilobytes
+        cache = new TinyLfuCache<>(maxSize, (int) Math.min(maxSize / 4096, Integer.MAX_VALUE));
+        log.info("Cache responses of " + getUriPrefixes() + " up to " + maxSizeInMegabytes + "MB, maxEntrySizeInKilobytes=" +
+                maxEntrySizeInKilobytes);
+        super.startInternal();
+    }
+
+    @Override
+    protected void stopInternal() throws LifecycleException {
+        super.stopInternal();
+        cache.clear();
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        String method = request.getMethod();
+        boolean head = "HEAD".equals(method);
+        if (!("GET".equals(method) || head) || request.getHeader("Authorization") != null ||
+                !startsWith(request.getDecodedRequestURI(), uriPrefixes)) {
+            getNext().invoke(request, response);
+            return;
+        }
+        String key = request.getScheme() + "://" + request.getServerName() + ":" + request.getServerPort() +
+                request.getRequestURI() + (request.getQueryString() == null ? "" : "?" + request.getQueryString());
+
+        String requestCacheControl = request.getHeader("Cache-Control");
+        boolean revalidate = (requestCacheControl != null && (hasDirective(requestCacheControl, "no-cache") ||
+                hasDirective(requestCacheControl, "max-age=0"))) || "no-cache".equals(request.getHeader("Pragma"));
+        if (!revalidate && serveFromCache(key, request, response)) {
+            return;
+        }
+        if (head) {
+            getNext().invoke(request, response);
+            return;
+        }
+
+        CountDownLatch latch = new CountDownLatch(1);
+        CountDownLatch pending = pendingRequests.putIfAbsent(key, latch);
+        if (pending == null) {
+            try {
+                invokeAndStore(key, request, response);
+            } finally {
+                pendingRequests.remove(key, latch);
+                latch.countDown();
+            }
+            return;
+        }
+
+        coalescedRequestCount.incrementAndGet();
+        try {
+            pending.await(coalescingTimeoutInMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!revalidate && serveFromCache(key, request, response)) {
+            return;
+        }
+        // the response was not cacheable, not the same variant or too slow
+        invokeAndStore(key, request, response);
+    }
+
+    private boolean serveFromCache(String key, Request request, Response response) throws IOException {
+        long now = System.currentTimeMillis();
+        CachedResponse cached = lookup(key, request, now);
+        if (cached == null) {
+            return false;
+        }
+        if (isNotModified(cached, request)) {
+            notModifiedCount.incrementAndGet();
+            bytesSaved.addAndGet(cached.body.length);
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            for (String[] header : cached.headers) {
+                if (NOT_MODIFIED_HEADERS.contains(header[0].toLowerCase(Locale.ENGLISH))) {
+                    response.addHeader(header[0], header[1]);
+                }
+            }
+            return true;
+        }
+        hitCount.incrementAndGet();
+        bytesSaved.addAndGet(cached.body.length);
+        response.setStatus(HttpServletResponse.SC_OK);
+        for (String[] header : cached.headers) {
+            response.addHeader(header[0], header[1]);
+        }
+        response.setHeader("Age", String.valueOf((now - cached.storedAt) / 1000));
+        if (cached.contentType != null) {
+            response.setContentType(cached.contentType);
+        }
+        response.setContentLength(cached.body.length);
+        if (!"HEAD".equals(request.getMethod())) {
+            response.getOutputStream().write(cached.body);
+        }
+        return true;
+    }
+
+    private CachedResponse lookup(String key, Request request, long now) {
+        CachedResponse cached = cache.get(key);
+        if (cached != null && cached.varyHeaderNames != null) {
+            key = variantKey(key, cached.varyHeaderNames, request);
+            cached = cache.get(key);
+        }
+        if (cached == null) {
+            return null;
+        }
+        if (cached.expiresAt <= now) {
+            cache.remove(key);
+            return null;
+        }
+        return cached;
+    }
+
+    private void invokeAndStore(String key, Request request, Response response) throws IOException, ServletException {
+        missCount.incrementAndGet();
+        int maxEntrySize = maxEntrySizeInKilobytes * 1024;
+        // keep the response uncommitted until its headers are captured
+        if (response.getBufferSize() < maxEntrySize) {
+            response.setBufferSize(maxEntrySize);
+        }
+        org.apache.coyote.Response coyoteResponse = response.getCoyoteResponse();
+        OutputBuffer outputBuffer = coyoteResponse.getOutputBuffer();
+        CapturingOutputBuffer capturingOutputBuffer = new CapturingOutputBuffer(outputBuffer, maxEntrySize);
+        coyoteResponse.setOutputBuffer(capturingOutputBuffer);
+        try {
+            getNext().invoke(request, response);
+
+            long now = System.currentTimeMillis();
+            long expiresAt = getExpiresAt(request, response, now);
+            if (expiresAt <= now) {
+                return;
+            }
+            List<String[]> headers = new ArrayList<>();
+            for (String name : response.getHeaderNames()) {
+                if (!UNSTORED_HEADERS.contains(name.toLowerCase(Locale.ENGLISH))) {
+                    for (String value : response.getHeaders(name)) {
+                        headers.add(new String[]{name, value});
+                    }
+                }
+            }
+            String contentType = response.getContentType();
+            String etag = response.getHeader("ETag");
+            String lastModified = response.getHeader("Last-Modified");
+            List<String> varyHeaderNames = getVaryHeaderNames(response.getHeader("Vary"));
+
+            // flush the servlet output buffer through the capturing buffer
+            response.finishResponse();
+            if (capturingOutputBuffer.overflow) {
+                return;
+            }
+            byte[] body = capturingOutputBuffer.captured.toByteArray();
+            CachedResponse cached = new CachedResponse(headers, contentType, body, etag,
+                    lastModified == null ? -1 : FastHttpDateFormat.parseDate(lastModified, null), now, expiresAt, null);
+            if (varyHeaderNames.isEmpty()) {
+                cache.put(key, cached, cached.weight());
+            } else {
+                CachedResponse index = new CachedResponse(Collections.<String[]>emptyList(), null, null, null, -1,
+                        now, expiresAt, varyHeaderNames);
+                cache.put(key, index, index.weight());
+                cache.put(variantKey(key, varyHeaderNames, request), cached, cached.weight());
+            }
+            storedResponseCount.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Store " + key + ", " + body.length + " bytes, expires in " + (expiresAt - now) + "ms");
+            }
+        } finally {
+            coyoteResponse.setOutputBuffer(outputBuffer);
+        }
+    }
+
+    /**
+     * @return expiration time of the response or {@code 0} if it is not cacheable
+     */
+    private long getExpiresAt(Request request, Response response, long now) {
+        if (response.getStatus() != HttpServletResponse.SC_OK || response.isCommitted() || response.isError() ||
+                request.isAsyncStarted() || response.containsHeader("Set-Cookie")) {
+            return 0;
+        }
+        String vary = response.getHeader("Vary");
+        if (vary != null && vary.trim().equals("*")) {
+            return 0;
+        }
+        String cacheControl = response.getHeader("Cache-Control");
+        if (cacheControl != null) {
+            if (hasDirective(cacheControl, "private") || hasDirective(cacheControl, "no-store") ||
+                    hasDirective(cacheControl, "no-cache")) {
+                return 0;
+            }
+            long maxAge = getDirectiveValue(cacheControl, "s-maxage");
+            if (maxAge < 0) {
+                maxAge = getDirectiveValue(cacheControl, "max-age");
+            }
+            if (maxAge >= 0) {
+                return now + maxAge * 1000;
+            }
+        }
+        String expires = response.getHeader("Expires");
+        if (expires != null) {
+            long expiresAt = FastHttpDateFormat.parseDate(expires, null);
+            return expiresAt < 0 ? 0 : expiresAt;
+        }
+        return 0;
+    }
+
+    private boolean isNotModified(CachedResponse cached, Request request) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (cached.etag == null) {
+                return false;
+            }
+            String etag = weakEtagValue(cached.etag);
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.equals("*") || weakEtagValue(candidate).equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return ifModifiedSince >= 0 && cached.lastModified >= 0 && cached.lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private static String weakEtagValue(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static String variantKey(String key, List<String> varyHeaderNames, Request request) {
+        StringBuilder variantKey = new StringBuilder(key);
+        for (String name : varyHeaderNames) {
+            variantKey.append('\n').append(name).append(':');
+            Enumeration<String> values = request.getHeaders(name);
+            while (values.hasMoreElements()) {
+                variantKey.append(values.nextElement()).append(',');
+            }
+        }
+        return variantKey.toString();
+    }
+
+    private static List<String> getVaryHeaderNames(String vary) {
+        if (vary == null) {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<>();
+        for (String name : vary.split(",")) {
+            name = name.trim().toLowerCase(Locale.ENGLISH);
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    static boolean hasDirective(String cacheControl, String directive) {
+        for (String token : cacheControl.split(",")) {
+            if (token.trim().equalsIgnoreCase(directive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return value in seconds of the given {@code Cache-Control} directive or {@code -1}
+     */
+    static long getDirectiveValue(String cacheControl, String directive) {
+        for (String token : cacheControl.split(",")) {
+            token = token.trim();
+            if (token.regionMatches(true, 0, directive + "=", 0, directive.length() + 1)) {
+                try {
+                    return Long.parseLong(token.substring(directive.length() + 1).replace("\"", "").trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(String uri, String[] prefixes) {
+        if (uri == null) {
+            return false;
+        }
+        for (String prefix : prefixes) {
+            if (uri.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getMaxSizeInMegabytes() {
+        return maxSizeInMegabytes;
+    }
+
+    public void setMaxSizeInMegabytes(int maxSizeInMegabytes) {
+        this.maxSizeInMegabytes = maxSizeInMegabytes;
+    }
+
+    public int getMaxEntrySizeInKilobytes() {
+        return maxEntrySizeInKilobytes;
+    }
+
+    public void setMaxEntrySizeInKilobytes(int maxEntrySizeInKilobytes) {
+        this.maxEntrySizeInKilobytes = maxEntrySizeInKilobytes;
+    }
+
+    public long getCoalescingTimeoutInMillis() {
+        return coalescingTimeoutInMillis;
+    }
+
+    public void setCoalescingTimeoutInMillis(long coalescingTimeoutInMillis) {
+        this.coalescingTimeoutInMillis = coalescingTimeoutInMillis;
+    }
+
+    public String getUriPrefixes() {
+        StringBuilder result = new StringBuilder();
+        for (String prefix : uriPrefixes) {
+            result.append(result.length() == 0 ? "" : ",").append(prefix);
+        }
+        return result.toString();
+    }
+
+    /**
+     * @param uriPrefixes comma separated URI prefixes (e.g. {@code /api/catalog,/static}) of the cached requests,
+     *                    required
+     */
+    public void setUriPrefixes(String uriPrefixes) {
+        List<String> result = new ArrayList<>();
+        if (uriPrefixes != null) {
+            for (String prefix : uriPrefixes.split(",")) {
+                prefix = prefix.trim();
+                if (!prefix.isEmpty()) {
+                    result.add(prefix);
+                }
+            }
+        }
+        this.uriPrefixes = result.toArray(new String[result.size()]);
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    /**
+     * @return percentage of the cacheable requests served from the cache, including the {@code 304}
+     */
+    public int getHitRatio() {
+        long hits = hitCount.get() + notModifiedCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0 : (int) (hits * 100 / total);
+    }
+
+    public long getCoalescedRequestCount() {
+        return coalescedRequestCount.get();
+    }
+
+    public long getStoredResponseCount() {
+        return storedResponseCount.get();
+    }
+
+    /**
+     * @return body bytes served from the cache or not sent thanks to a {@code 304}
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public int getEntryCount() {
+        TinyLfuCache<String, CachedResponse> cache = this.cache;
+        return cache == null ? 0 : cache.size();
+    }
+
+    public long getSizeInBytes() {
+        TinyLfuCache<String, CachedResponse> cache = this.cache;
+        return cache == null ? 0 : cache.weight();
+    }
+
+    public long getEvictionCount() {
+        TinyLfuCache<String, CachedResponse> cache = this.cache;
+        return cache == null ? 0 : cache.getEvictionCount() + cache.getRejectionCount();
+    }
+}
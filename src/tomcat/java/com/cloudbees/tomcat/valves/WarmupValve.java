@@ -0,0 +1,115 @@
+/*
+ * Copyright 2010-2014, CloudBees Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cloudbees.tomcat.valves;
+
+import com.cloudbees.tomcat.listeners.WarmupListener;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Valve;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lets the requests of the {@link WarmupListener} skip the access control valves ({@code RemoteAddrValve},
+ * {@code CidrAddressValve}, {@code PrivateAppValve}...) which would reject them.
+ * <p/>
+ * Must be declared before the access control valves. The warm-up requests, recognized by
+ * {@link WarmupListener#isWarmupRequest(Request)} (received by the temporary connector of the warm-up and carrying
+ * its random token), are passed to the valve following the last {@link #setSkippedValves(String) skipped valve}, the
+ * other requests go through the whole pipeline.
+ *
+ * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
+ */
+public class WarmupValve extends ValveBase {
+
+    private static final Log log = LogFactory.getLog(WarmupValve.class);
+
+    private List<String> skippedValves = Arrays.asList(
+            "org.apache.catalina.valves.RemoteAddrValve",
+            "com.cloudbees.tomcat.valves.CidrAddressValve",
+            "com.cloudbees.tomcat.valves.PrivateAppCacheValve",
+            "com.cloudbees.tomcat.valves.PrivateAppValve",
+            "com.cloudbees.tomcat.valves.PrivateAppVerifiedValve");
+
+    private Valve warmupNext;
+
+    public WarmupValve() {
+        super(true);
+    }
+
+    @Override
+    protected void startInternal() throws LifecycleException {
+        // the valves of the pipeline are chained before being started
+        warmupNext = findWarmupNext();
+        super.startInternal();
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        Valve warmupNext = this.warmupNext;
+        if (warmupNext != null && WarmupListener.isWarmupRequest(request)) {
+            warmupNext.invoke(request, response);
+        } else {
+            getNext().invoke(request, response);
+        }
+    }
+
+    /**
+     * @return the valve following the last skipped valve or {@link #getNext()} if no valve is skipped
+     */
+    private Valve findWarmupNext() {
+        Valve result = getNext();
+        for (Valve valve = getNext(); valve != null; valve = valve.getNext()) {
+            if (skippedValves.contains(valve.getClass().getName())) {
+                result = valve.getNext();
+            }
+        }
+        if (result != getNext()) {
+            log.debug("Warm-up requests skip the valves up to " + result);
+        }
+        return result;
+    }
+
+    public String getSkippedValves() {
+        StringBuilder result = new StringBuilder();
+        for (String skippedValve : skippedValves) {
+            result.append(result.length() == 0 ? "" : ",").append(skippedValve);
+        }
+        return result.toString();
+    }
+
+    /**
+     * @param skippedValves comma separated list of the class names of the valves skipped by the warm-up requests
+     */
+    public void setSkippedValves(String skippedValves) {
+        List<String> result = new ArrayList<String>();
+        for (String skippedValve : skippedValves.split(",")) {
+            skippedValve = skippedValve.trim();
+            if (!skippedValve.isEmpty()) {
+                result.add(skippedValve);
+            }
+        }
+        this.skippedValves = result;
+    }
+}